@@ -195,7 +195,9 @@ public class CodeAreaFragment extends Fragment {
 	}
 	
 	public void updateWithSketchFile() {
-		getCodeEditText().setText(sketchFile.getText());
+		// The sketch file already has this text, so don't send it back as an edit
+		getCodeEditText().setNoUndoText(sketchFile.getText());
+		sketchFile.clearPendingEdit();
 		
 		boolean editable = !sketchFile.isExample();
 		
@@ -2,6 +2,7 @@ package com.calsignlabs.apde;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.RectF;
@@ -10,6 +11,7 @@ import android.preference.PreferenceManager;
 import androidx.appcompat.widget.AppCompatEditText;
 import android.text.Editable;
 import android.text.TextPaint;
+import android.text.TextUtils;
 import android.text.TextWatcher;
 import android.util.AttributeSet;
 import android.util.TypedValue;
@@ -19,6 +21,8 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewParent;
+import android.view.ViewTreeObserver;
 import android.widget.HorizontalScrollView;
 import android.widget.ScrollView;
 
@@ -31,6 +35,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.xml.parsers.ParserConfigurationException;
@@ -62,20 +67,38 @@ public class CodeEditText extends AppCompatEditText {
 	public static Keyword[] syntax;
 	protected static AtomicBoolean syntaxLoaded = new AtomicBoolean(false);
 	
+	// The keywords by name, split by whether or not they match function calls. Touchable
+	// keywords are in both. Looked up for every token, so scanning the array isn't an option.
+	private static volatile HashMap<String, Keyword> functionKeywords = new HashMap<>();
+	private static volatile HashMap<String, Keyword> nonFunctionKeywords = new HashMap<>();
+	// Keywords for function calls that aren't in the syntax, so that we don't make a new one for
+	// every token
+	private static final ConcurrentHashMap<String, Keyword> otherFunctionKeywords = new ConcurrentHashMap<>();
+	private static final int MAX_OTHER_FUNCTION_KEYWORDS = 1024;
+	
 	// The default indentation (two spaces)
 	public static final String indent = "  ";
 	
 	// Syntax highlighter information
-	protected Token[] tokens;
+	protected SyntaxHighlighter highlighter;
 	protected int matchingBracket;
 	
 	// Highlight
 	ArrayList<Highlight> highlights;
+	private RectF highlightRect = new RectF();
+	private float highlightRadius;
+	
+	// These are read every frame, so don't go to the preferences for them
+	private boolean syntaxHighlightEnabled, problemHighlightEnabled;
+	private SharedPreferences.OnSharedPreferenceChangeListener preferenceListener;
+	
+	// The lines that are on screen and the lines that were drawn last frame
+	private ScrollView scroller;
+	private int visibleFirstLine, visibleLastLine;
+	private int drawnFirstLine = 0, drawnLastLine = -1;
+	private ViewTreeObserver.OnScrollChangedListener scrollListener;
 	
-	// Whether or not the syntax highlighter is currently running
-	private AtomicBoolean updatingTokens;
-	// Whether or not we need to update the tokens AGAIN
-	private AtomicBoolean flagRefreshTokens;
+	private float charWidth, charWidthTextSize = -1;
 	
 	public class Highlight {
 		public int pos;
@@ -132,8 +155,38 @@ public class CodeEditText extends AppCompatEditText {
 	}
 	
 	private void init() {
-		flagRefreshTokens = new AtomicBoolean();
-		updatingTokens = new AtomicBoolean();
+		highlighter = new SyntaxHighlighter(this, this::postInvalidate);
+		
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getContext());
+		syntaxHighlightEnabled = prefs.getBoolean("syntax_highlight", true);
+		problemHighlightEnabled = prefs.getBoolean("pref_problem_overview_highlight", true);
+		
+		// The preferences only keep a weak reference to the listener
+		preferenceListener = (sharedPreferences, key) -> {
+			if ("syntax_highlight".equals(key)) {
+				syntaxHighlightEnabled = sharedPreferences.getBoolean(key, true);
+				updateTokens();
+				postInvalidate();
+			} else if ("pref_problem_overview_highlight".equals(key)) {
+				problemHighlightEnabled = sharedPreferences.getBoolean(key, true);
+				postInvalidate();
+			}
+		};
+		prefs.registerOnSharedPreferenceChangeListener(preferenceListener);
+		
+		// Hardware accelerated views aren't redrawn when they are scrolled, so redraw once we
+		// get close to the edge of what has been drawn
+		scrollListener = () -> {
+			if (!syntaxHighlightEnabled || !highlighter.hasTokens()) {
+				return;
+			}
+			updateVisibleLines();
+			if (visibleFirstLine < drawnFirstLine || visibleLastLine > drawnLastLine) {
+				invalidate();
+			}
+		};
+		
+		highlightRadius = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 3, getResources().getDisplayMetrics());
 		
 		//Get rid of extra spacing at the top and bottom
 		setIncludeFontPadding(false);
@@ -204,7 +257,7 @@ public class CodeEditText extends AppCompatEditText {
 		
 		if (textListener == null) {
 			textListener = new TextWatcher() {
-				private String oldText;
+				private int oldLength;
 				private EditType lastEditType = EditType.NONE;
 				private long lastUpdate = 0;
 				
@@ -212,11 +265,11 @@ public class CodeEditText extends AppCompatEditText {
 				public void afterTextChanged(Editable editable) {
 					// Unfortunately, this appears to be the only way to detect character presses in all situations: reading the text directly...
 					
-					String text = getText().toString();
+					Editable text = getText();
 					
 					// Compare the old text and the new text
 					// TODO: Does this check fail in any corner cases (like mass-text insertion / deletion)?
-					if (text.length() == oldText.length() + 1 && getSelectionStart() > 0) {
+					if (text.length() == oldLength + 1 && getSelectionStart() > 0) {
 						char pressedChar = text.charAt(getSelectionStart() - 1);
 						
 						pressKeys(String.valueOf(pressedChar));
@@ -230,7 +283,7 @@ public class CodeEditText extends AppCompatEditText {
 							
 							EditType editType;
 							
-							int lenDif = text.length() - oldText.length();
+							int lenDif = text.length() - oldLength;
 							
 							switch (lenDif) {
 								case 1:
@@ -271,11 +324,17 @@ public class CodeEditText extends AppCompatEditText {
 				
 				@Override
 				public void beforeTextChanged(CharSequence s, int start, int count, int after) {
-					oldText = getText().toString();
+					oldLength = s.length();
 				}
 				
 				@Override
 				public void onTextChanged(CharSequence s, int start, int before, int count) {
+					// The sketch file keeps its own copy of the text, only pass on what changed.
+					// When we aren't taking snapshots, the sketch file has set the text itself.
+					if (sketchFile != null && !FLAG_NO_UNDO_SNAPSHOT) {
+						sketchFile.onEdit(start, before, TextUtils.substring(s, start, start + count));
+					}
+					
 					updateTokens();
 				}
 			};
@@ -456,6 +515,22 @@ public class CodeEditText extends AppCompatEditText {
 			syntax[i] = tempSyntax.get(i);
 		}
 		
+		// The first keyword with a given name wins, same as scanning the array
+		HashMap<String, Keyword> functions = new HashMap<>();
+		HashMap<String, Keyword> nonFunctions = new HashMap<>();
+		for (Keyword keyword : syntax) {
+			if ((keyword.function() || keyword.isTouchable()) && !functions.containsKey(keyword.name())) {
+				functions.put(keyword.name(), keyword);
+			}
+			if ((!keyword.function() || keyword.isTouchable()) && !nonFunctions.containsKey(keyword.name())) {
+				nonFunctions.put(keyword.name(), keyword);
+			}
+		}
+		functionKeywords = functions;
+		nonFunctionKeywords = nonFunctions;
+		// These have the old paint
+		otherFunctionKeywords.clear();
+		
 		syntaxLoaded.set(true);
 	}
 	
@@ -679,8 +754,8 @@ public class CodeEditText extends AppCompatEditText {
 			}
 			int cursorInLine = getSelectionStart() - newlinePos;
 			
-			for (CompilerProblem problem : sketchFile.getCompilerProblems()) {
-				if (line == problem.line && cursorInLine > problem.start && cursorInLine <= problem.start + problem.length + 1) {
+			for (CompilerProblem problem : sketchFile.getCompilerProblems(line, line)) {
+				if (cursorInLine > problem.start && cursorInLine <= problem.start + problem.length + 1) {
 					EditorActivity editor = ((APDE) context.getApplicationContext()).getEditor();
 					
 					if (problem.isError()) {
@@ -817,42 +892,42 @@ public class CodeEditText extends AppCompatEditText {
 		super.onDraw(canvas);
 		
 		// If the syntax highlighter hasn't run yet...
-		// Make sure this doesn't break
-		if (tokens == null) {
-			//Check again
-			invalidate();
+		// It will redraw when it's done
+		if (!highlighter.hasTokens()) {
 			return;
 		}
 		
-		if (PreferenceManager.getDefaultSharedPreferences(context).getBoolean("syntax_highlight", true)) {
-			//ScrollView doesn't like to let us know when it has scrolled...
-//			ScrollView scroller = (ScrollView) ((APDE) context.getApplicationContext()).getEditor().findViewById(R.id.code_scroller);
-			int topVis = 0;//(int) Math.max(scroller.getScrollY() / getLineHeight() - 1, 0); //inclusive
-			int bottomVis = getLineCount();//(int) Math.floor(Math.min((scroller.getScrollY() + scroller.getHeight()) / getLineHeight() + 1, getLineCount())); //exclusive
+		if (syntaxHighlightEnabled) {
+			// Only draw what's on screen, plus a screen's worth of lines above and below so that
+			// we don't have to redraw for every little scroll
+			updateVisibleLines();
+			int visibleCount = visibleLastLine - visibleFirstLine + 1;
+			drawnFirstLine = Math.max(0, visibleFirstLine - visibleCount);
+			drawnLastLine = Math.min(getLineCount() - 1, visibleLastLine + visibleCount);
 			
-			for(int i = 0; i < tokens.length; i ++) {
-				//Only draw this if we need to
-				if(tokens[i].lineNum >= topVis && tokens[i].isCustomPaint)
-					tokens[i].display(canvas);
-				else if(tokens[i].lineNum > bottomVis)
-					break;
+			float lineOffset = -getLayout().getLineDescent(0); //AH-HA! This is the metric that we need...
+			float xOffset = getCompoundPaddingLeft(); //TODO hopefully no one uses Arabic (right-aligned localities)... because getCompoundPaddingStart() was introduced in a later API level
+			float charWidth = getCharWidth();
+			
+			int lastLine = Math.min(drawnLastLine, highlighter.getLineCount() - 1);
+			for (int line = drawnFirstLine; line <= lastLine; line ++) {
+				float y = lineOffset + lineHeight * (line + 1);
+				
+				for (SyntaxHighlighter.Token token : highlighter.getTokens(line)) {
+					//Draw highlighted text
+					canvas.drawText(token.text, xOffset + token.offset * charWidth, y, token.paint);
+				}
 			}
 			
-			if (sketchFile.getCompilerProblems() != null
-					&& PreferenceManager.getDefaultSharedPreferences(getContext()).getBoolean("pref_problem_overview_highlight", true)) {
-				for (CompilerProblem problem : sketchFile.getCompilerProblems()) {
-					if (problem.line >= topVis && problem.line <= bottomVis) {
-						displayCompilerProblem(problem, canvas);
-					}
+			if (sketchFile.getCompilerProblems() != null && problemHighlightEnabled) {
+				for (CompilerProblem problem : sketchFile.getCompilerProblems(drawnFirstLine, drawnLastLine)) {
+					displayCompilerProblem(problem, canvas);
 				}
 			}
 			
 			//"{}", "()", "[]" open / close matching
 			//Make sure we don't crash if the bracket matcher hasn't updated yet and we are deleting a lot of text...
 			if(matchingBracket != -1 && matchingBracket < getText().length()) {
-				float xOffset = getCompoundPaddingLeft(); //TODO hopefully no one uses Arabic (right-aligned localities)... because getCompoundPaddingStart() was introduced in a later API level
-				float charWidth = getPaint().measureText("m");
-
 				//Calculate coordinates
 				float x = Math.max(xOffset + getLayout().getPrimaryHorizontal(matchingBracket), 1);
 				float y = lineHeight * getLayout().getLineForOffset(matchingBracket);
@@ -860,19 +935,20 @@ public class CodeEditText extends AppCompatEditText {
 				canvas.drawRect(x, y, x + charWidth, y + lineHeight, bracketMatch);
 			}
 			
-			float xOffset = getCompoundPaddingLeft();
-			float charWidth = getPaint().measureText("m");
-			
-			float radius = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 3, context.getResources().getDisplayMetrics());
-			
 			//Draw the highlight boxes
 			for (Highlight highlight : highlights) {
 				if (highlight.pos != -1 && highlight.pos + highlight.len <= getText().length()) {
+					int line = getLayout().getLineForOffset(highlight.pos);
+					if (line < drawnFirstLine || line > drawnLastLine) {
+						continue;
+					}
+					
 					//Calculate coordinates
 					float x = Math.max(xOffset + getLayout().getPrimaryHorizontal(highlight.pos), 1);
-					float y = lineHeight * getLayout().getLineForOffset(highlight.pos);
+					float y = lineHeight * line;
 					
-					canvas.drawRoundRect(new RectF(x, y, x + charWidth * highlight.len, y + lineHeight), radius, radius, highlight.paint);
+					highlightRect.set(x, y, x + charWidth * highlight.len, y + lineHeight);
+					canvas.drawRoundRect(highlightRect, highlightRadius, highlightRadius, highlight.paint);
 				}
 			}
 		}
@@ -882,284 +958,83 @@ public class CodeEditText extends AppCompatEditText {
 	}
 	
 	/**
-	 * Call this function to force the tokens to update AGAIN after the current / next update cycle has completed
+	 * The width of a character in the monospace font. Only measured when the text size changes.
 	 */
-	public void flagRefreshTokens() {
-		if (updatingTokens.get()) {
-			flagRefreshTokens.set(true);
-		} else {
-			updateTokens();
+	private float getCharWidth() {
+		float textSize = getPaint().getTextSize();
+		if (textSize != charWidthTextSize) {
+			charWidth = getPaint().measureText("m");
+			charWidthTextSize = textSize;
 		}
+		return charWidth;
 	}
 	
-	public synchronized void updateTokens() {
-		if(!PreferenceManager.getDefaultSharedPreferences(context).getBoolean("syntax_highlight", true))
-			return;
-		
-		//Get the text now so that we don't experience any synchronization issues
-		final String text = getText().toString();
-		
-		new Thread(new Runnable() {
-			public void run() {
-				updatingTokens.set(true);
-				
-				Token[] tempTokens = splitTokens(text, 0, new char[] {'!', '(', ')', '[', ']', '{', '}', '=', '+', '-', '/', '*', '"', '\'', '%', '&', '|', '?', ':', ';', '<', '>', ',', '.', ' ', '\\'});
-				
-				for(int i = 0; i < tempTokens.length; i ++) {
-					String nextNonSpace = "";
-					for(int j = i + 1; j < tempTokens.length; j ++) {
-						String next = tempTokens[j].text;
-
-						if(next.equals(" ") || next.equals("\n"))
-							continue;
-
-						nextNonSpace = next;
-						break;
-					}
-
-					tempTokens[i].updatePaint(nextNonSpace);
-				}
-				
-				boolean multiLineComment = false;
-				boolean singleLineComment = false;
-				boolean stringLiteral = false;
-				boolean charLiteral = false;
-				
-				int startLiteral = -1;
-				
-				String prev = "";
-				String next;
-				
-				boolean escaped = false, prevEscaped = false;
-				
-				for(int i = 0; i < tempTokens.length; i ++) {
-					Token token = tempTokens[i];
-					next = (i < tempTokens.length - 1 ? tempTokens[i + 1].text : "");
-					
-					if(token.text.equals("\n")) {
-						singleLineComment = false;
-						stringLiteral = false;
-						charLiteral = false;
-						
-						continue;
-					}
-					
-					prevEscaped = escaped;
-					escaped = prev.equals("\\");
-					
-					if(stringLiteral && prev.equals("\"") && i > startLiteral + 1 && !prevEscaped)
-						stringLiteral = false;
-					
-					if(charLiteral && prev.equals("'") && i > startLiteral + 1 && !prevEscaped)
-						charLiteral = false;
-					
-					if(!multiLineComment && !singleLineComment && !stringLiteral && !charLiteral) {
-						//Test for single-line comments
-						if(token.text.equals("/") && next.equals("/"))
-							singleLineComment = true;
-						//Test for multi-line comments
-						else if(token.text.equals("/") && next.equals("*"))
-							multiLineComment = true;
-					}
-					
-					//TODO Implement incomplete / invalid literals
-					
-					//Test for String literals
-					if(!stringLiteral && !multiLineComment && !singleLineComment && !charLiteral && token.text.equals("\"")) {
-						stringLiteral = true;
-						startLiteral = i;
-					}
-					
-					//Test for char literals
-					if(!charLiteral && !multiLineComment && !singleLineComment && !stringLiteral && token.text.equals("'")) {
-						charLiteral = true;
-						startLiteral = i;
-					}
-					
-					//Change paint for comments and literals
-					if(singleLineComment) {
-						token.paint = styles.get("comment_single");
-						token.isCustomPaint = true;
-					} else if(multiLineComment) {
-						token.paint = styles.get("comment_multi");
-						token.isCustomPaint = true;
-					} else if(stringLiteral) {
-						token.paint = styles.get("literal_string");
-						token.isCustomPaint = true;
-					} else if(charLiteral) {
-						token.paint = styles.get("literal_char");
-						token.isCustomPaint = true;
-					}
-					
-					//Test for end multi-line comments
-					if(multiLineComment)
-						if(prev.equals("*") && token.text.equals("/"))
-							multiLineComment = false;
-					
-					prev = token.text;
-				}
-				
-				//Compaction of same-colored tokens - like comments, for example (they were causing serious lag)
-				//TODO we're probably still picking up space characters...
-				
-				ArrayList<Token> finalTokens = new ArrayList<Token>();
-				Token activeToken = null;
-				
-				for(Token token : tempTokens) {
-					if(activeToken == null) {
-						activeToken = token;
-						
-						continue;
-					}
-					
-					//Direct reference comparison of paints, should be OK...
-					if(activeToken.lineNum != token.lineNum || activeToken.paint != token.paint) {
-						finalTokens.add(activeToken);
-						activeToken = token;
-						
-						continue;
-					}
-					
-					activeToken.text += token.text;
-				}
-				
-				//Add the extra token at the end
-				finalTokens.add(activeToken);
-				
-				tokens = finalTokens.toArray(new Token[finalTokens.size()]);
-				
-				//If there is no text, wipe the tokens
-				//TODO ...why do we need this? It seems somewhat counterproductive...
-				if(getText().length() == 0)
-					clearTokens();
-				
-				postInvalidate();
-				
-				updatingTokens.set(false);
-				
-				//Check to see if we have updated the text AGAIN since starting this update
-				//We shouldn't get too much recursion...
-				if(flagRefreshTokens.get()) {
-					updateTokens();
-					flagRefreshTokens.set(false);
+	/**
+	 * Figure out which lines are on screen. The code area is as tall as its text, so we have to
+	 * ask the ScrollView that it's in.
+	 */
+	private void updateVisibleLines() {
+		if (scroller == null) {
+			for (ViewParent parent = getParent(); parent instanceof View; parent = parent.getParent()) {
+				if (parent instanceof ScrollView) {
+					scroller = (ScrollView) parent;
+					break;
 				}
 			}
-		}).start();
-	}
-	
-	//Called internally to get a list of all tokens in an input String, such that each token may be syntax highlighted with a different color
-	//NOTE: This is not the same as PApplet.splitTokens()
-	private Token[] splitTokens(String input, int lineOffset, char[] tokens) {
-		//Create the output list
-		ArrayList<Token> output = new ArrayList<Token>();
-		output.add(new Token("", 0, 0));
-		
-		boolean wasToken = false;
-		int xOff = 0;
-		int currentLine = 0;
-		
-		//Read each char in the input String
-		for(int i = 0; i < input.length(); i ++) {
-			char c = input.charAt(i);
-			
-			if(c == '\n') {
-				currentLine ++;
-				xOff = 0;
-				
-				output.add(new Token("\n", xOff, lineOffset + currentLine));
-				wasToken = true;
-				
-				continue;
-			}
-			
-			//If it is a token, split into a new String
-			if(isToken(c, tokens)) {
-				output.add(new Token("", xOff, lineOffset + currentLine));
-				wasToken = true;
-			} else if(wasToken) {
-				output.add(new Token("", xOff, lineOffset + currentLine));
-				wasToken = false;
-			}
-			
-			//Append the char
-			output.get(output.size() - 1).text += c;
-			
-			xOff ++;
 		}
 		
-		//Convert to an array
-		Token[] array = output.toArray(new Token[output.size()]);
-		return array;
-	}
-	
-	//Called internally from splitTokens()
-	//Determines whether or not the specified char is in the array of chars
-	private boolean isToken(char token, char[] tokens) {
-		for(char c : tokens)
-			if(c == token)
-				return true;
+		int lineCount = getLineCount();
+		float lineHeight = getLineHeight();
 		
-		return false;
-	}
-	
-	//Used internally for the syntax highlighter
-	protected class Token {
-		protected String text;
-		protected int offset;
-		protected int lineNum;
-		
-		protected TextPaint paint;
-		//Do we actually we need to draw this over the default text?
-		protected boolean isCustomPaint;
-		
-		protected Token(String text, int offset, int lineNum) {
-			this.text = text;
-			this.offset = offset;
-			this.lineNum = lineNum;
-			
-			paint = styles.get("base");
-			isCustomPaint = false;
+		if (scroller == null || lineHeight <= 0) {
+			visibleFirstLine = 0;
+			visibleLastLine = lineCount - 1;
+			return;
 		}
 		
-		protected void updatePaint(String nextNonSpace) {
-			Keyword keyword = getKeyword(text, nextNonSpace.equals("("));
-			if (keyword != null) {
-				paint = keyword.paint();
-				isCustomPaint = true;
-			} else
-				paint = styles.get("base");
+		// Find where we are in the scroller's content
+		int top = 0;
+		for (View view = this; view != scroller && view != null; view = (View) view.getParent()) {
+			top += view.getTop();
 		}
 		
-		protected void display(Canvas canvas) {
-			if (paint == null) { // TODO this is SERIOUSLY fishy
-				return;
-			}
-			
-			float lineHeight = getLineHeight();
-			float lineOffset = -getLayout().getLineDescent(0); //AH-HA! This is the metric that we need...
-			float xOffset = getCompoundPaddingLeft(); //TODO hopefully no one uses Arabic (right-aligned localities)... because getCompoundPaddingStart() was introduced in a later API level
-			float charWidth = getPaint().measureText("m");
-			
-			//Calculate coordinates
-			float x = (xOffset + offset * charWidth);
-			float y = lineOffset + lineHeight * (lineNum + 1);
-			
-			//Draw highlighted text
-			canvas.drawText(text, x, y, paint);
-		}
+		int visibleTop = scroller.getScrollY() - top;
+		int visibleBottom = visibleTop + scroller.getHeight();
 		
-		protected void display(Canvas canvas, TextPaint customPaint) {
-			float lineHeight = getLineHeight();
-			float lineOffset = -getLayout().getLineDescent(0); //AH-HA! This is the metric that we need...
-			float xOffset = getCompoundPaddingLeft(); //TODO hopefully no one uses Arabic (right-aligned localities)... because getCompoundPaddingStart() was introduced in a later API level
-			float charWidth = getPaint().measureText("m");
-			
-			//Calculate coordinates
-			float x = xOffset + offset * charWidth;
-			float y = lineOffset + lineHeight * (lineNum + 1);
-			
-			//Draw highlighted text
-			canvas.drawText(text, x, y, customPaint);
+		visibleFirstLine = Math.max(0, (int) (visibleTop / lineHeight));
+		visibleLastLine = Math.min(lineCount - 1, (int) Math.ceil(visibleBottom / lineHeight));
+	}
+	
+	@Override
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+		getViewTreeObserver().addOnScrollChangedListener(scrollListener);
+	}
+	
+	@Override
+	protected void onDetachedFromWindow() {
+		getViewTreeObserver().removeOnScrollChangedListener(scrollListener);
+		super.onDetachedFromWindow();
+	}
+	
+	/**
+	 * Call this function to force the tokens to update AGAIN after the current / next update cycle has completed
+	 */
+	public void flagRefreshTokens() {
+		// The highlighter always picks up the latest text when it's done with the current update
+		updateTokens();
+	}
+	
+	public void updateTokens() {
+		if(!syntaxHighlightEnabled)
+			return;
+		
+		//Get the text now so that we don't experience any synchronization issues
+		//The sketch file's text can't change under us, so we can use it without making a copy
+		if (sketchFile != null && sketchFile.getDocument().length() == getText().length()) {
+			highlighter.update(sketchFile.getDocument());
+		} else {
+			highlighter.update(getText().toString());
 		}
 	}
 	
@@ -1218,7 +1093,7 @@ public class CodeEditText extends AppCompatEditText {
 	 * This function is used when tabs are switched so that the old syntax highlighting doesn't briefly show on top of the new code.
 	 */
 	public void clearTokens() {
-		tokens = new Token[0];
+		highlighter.clear();
 		
 		//Also clear the matching bracket...
 		matchingBracket = -1;
@@ -1229,17 +1104,23 @@ public class CodeEditText extends AppCompatEditText {
 	
 	public Keyword getKeyword(String text, boolean function) {
 		if (syntaxLoaded.get()) {
-			for (Keyword keyword : syntax) {
-				if (keyword != null) {
-					if (keyword.name().equals(text) && (keyword.function() == function || keyword.isTouchable())) {
-						return keyword;
-					}
-				}
+			Keyword keyword = (function ? functionKeywords : nonFunctionKeywords).get(text);
+			if (keyword != null) {
+				return keyword;
 			}
 			// Syntax highlighting for functions
 			if(function){
-				TextPaint paint = styles.get("keyword_processing_function");
-				return new Keyword(text, paint, true, "processing", text + "_", "", false, false);
+				keyword = otherFunctionKeywords.get(text);
+				if (keyword == null) {
+					// Don't let this grow forever as the user types
+					if (otherFunctionKeywords.size() >= MAX_OTHER_FUNCTION_KEYWORDS) {
+						otherFunctionKeywords.clear();
+					}
+					TextPaint paint = styles.get("keyword_processing_function");
+					keyword = new Keyword(text, paint, true, "processing", text + "_", "", false, false);
+					otherFunctionKeywords.put(text, keyword);
+				}
+				return keyword;
 			}
 		}
 
@@ -0,0 +1,232 @@
+package com.calsignlabs.apde;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Collects console output from any thread and hands it to the UI at most once per frame.
+ *
+ * Writers add chunks of text to a fixed-size ring buffer without taking a lock, so a sketch or a
+ * build that prints in a tight loop never waits on the UI thread, and the UI thread only has to
+ * do one append per frame no matter how many writes there were. If the writers get so far ahead
+ * that the buffer fills up, new chunks are dropped and the UI is told how many lines went missing
+ * instead.
+ *
+ * The ring buffer is a bounded multi-producer queue: every slot has a sequence number that says
+ * whether it is ready to be written or ready to be read, and writers claim slots by bumping the
+ * tail with compare-and-set. Only the UI thread reads.
+ */
+public class ConsoleBuffer {
+	/**
+	 * The number of chunks that can be waiting for the UI. Must be a power of two.
+	 */
+	private static final int CAPACITY = 4096;
+	private static final int MASK = CAPACITY - 1;
+	
+	public interface Listener {
+		/**
+		 * Called on the UI thread with the text that was written since the last flush, in order.
+		 * Consecutive writes with the same severity are joined together.
+		 *
+		 * @param text the text
+		 * @param severity the severity that the text was written with
+		 */
+		void onOutput(String text, int severity);
+		
+		/**
+		 * Called on the UI thread once all of the text has been passed to
+		 * {@link #onOutput(String, int)}.
+		 *
+		 * @param suppressedLines the number of lines that were dropped since the last flush
+		 */
+		void onFlushed(int suppressedLines);
+	}
+	
+	private final Listener listener;
+	
+	private final AtomicReferenceArray<String> chunks;
+	// Written before the slot is published and read after, so the sequences take care of
+	// making them visible
+	private final int[] severities;
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail;
+	// Only touched from the UI thread
+	private long head;
+	
+	private final AtomicInteger droppedLines;
+	
+	private final Handler handler;
+	private final Choreographer choreographer;
+	private final AtomicBoolean scheduled;
+	
+	private final Choreographer.FrameCallback flushCallback = frameTimeNanos -> flush();
+	private final Runnable scheduleFlush = new Runnable() {
+		@Override
+		public void run() {
+			choreographer.postFrameCallback(flushCallback);
+		}
+	};
+	
+	/**
+	 * Must be created on the UI thread.
+	 *
+	 * @param listener receives the output
+	 */
+	public ConsoleBuffer(Listener listener) {
+		this.listener = listener;
+		
+		chunks = new AtomicReferenceArray<>(CAPACITY);
+		severities = new int[CAPACITY];
+		sequences = new AtomicLongArray(CAPACITY);
+		for (int i = 0; i < CAPACITY; i ++) {
+			sequences.set(i, i);
+		}
+		tail = new AtomicLong(0);
+		head = 0;
+		
+		droppedLines = new AtomicInteger(0);
+		
+		handler = new Handler(Looper.getMainLooper());
+		choreographer = Choreographer.getInstance();
+		scheduled = new AtomicBoolean(false);
+	}
+	
+	/**
+	 * Add text to the console. Can be called from any thread.
+	 *
+	 * @param text the text
+	 * @param severity one of the severities in {@link ConsoleLineStore}
+	 */
+	public void write(String text, int severity) {
+		if (text.length() == 0) {
+			return;
+		}
+		
+		if (!offer(text, severity)) {
+			// The UI can't keep up, so there's no point in holding on to more
+			droppedLines.addAndGet(Math.max(countLines(text), 1));
+		}
+		
+		if (scheduled.compareAndSet(false, true)) {
+			handler.post(scheduleFlush);
+		}
+	}
+	
+	/**
+	 * Count lines that were dropped before they got here, e.g. by a sketch that couldn't send its
+	 * output fast enough. Can be called from any thread.
+	 *
+	 * @param lines the number of lines that were dropped
+	 */
+	public void suppress(int lines) {
+		droppedLines.addAndGet(lines);
+		
+		if (scheduled.compareAndSet(false, true)) {
+			handler.post(scheduleFlush);
+		}
+	}
+	
+	private boolean offer(String text, int severity) {
+		long pos = tail.get();
+		int index;
+		
+		while (true) {
+			index = (int) (pos & MASK);
+			long diff = sequences.get(index) - pos;
+			
+			if (diff == 0) {
+				// The slot is free, try to claim it
+				if (tail.compareAndSet(pos, pos + 1)) {
+					break;
+				}
+				pos = tail.get();
+			} else if (diff < 0) {
+				// The slot hasn't been read since we last went around, so we're full
+				return false;
+			} else {
+				// Another writer got here first
+				pos = tail.get();
+			}
+		}
+		
+		chunks.set(index, text);
+		severities[index] = severity;
+		// Publish the slot to the reader
+		sequences.set(index, pos + 1);
+		
+		return true;
+	}
+	
+	/**
+	 * @return whether or not there is a chunk ready to be read
+	 */
+	private boolean hasNext() {
+		// Either empty, or a writer has claimed the slot but hasn't filled it in yet
+		return sequences.get((int) (head & MASK)) == head + 1;
+	}
+	
+	/**
+	 * @return the severity of the next chunk, only valid if {@link #hasNext()}
+	 */
+	private int peekSeverity() {
+		return severities[(int) (head & MASK)];
+	}
+	
+	/**
+	 * @return the next chunk, only valid if {@link #hasNext()}
+	 */
+	private String next() {
+		int index = (int) (head & MASK);
+		
+		String text = chunks.get(index);
+		chunks.set(index, null);
+		// Free the slot for the next time around
+		sequences.set(index, head + CAPACITY);
+		head ++;
+		
+		return text;
+	}
+	
+	private void flush() {
+		// Clear the flag first so that anything written while we're draining schedules
+		// another flush
+		scheduled.set(false);
+		
+		// Don't keep going forever if the writers keep up with us, whatever they write from now on
+		// has already scheduled another flush
+		int budget = CAPACITY;
+		
+		StringBuilder output = new StringBuilder();
+		while (budget > 0 && hasNext()) {
+			int severity = peekSeverity();
+			output.setLength(0);
+			while (budget > 0 && hasNext() && peekSeverity() == severity) {
+				output.append(next());
+				budget --;
+			}
+			listener.onOutput(output.toString(), severity);
+		}
+		
+		listener.onFlushed(droppedLines.getAndSet(0));
+	}
+	
+	/**
+	 * @return the number of newlines in the text
+	 */
+	public static int countLines(CharSequence text) {
+		int count = 0;
+		for (int i = 0; i < text.length(); i ++) {
+			if (text.charAt(i) == '\n') {
+				count ++;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,248 @@
+package com.calsignlabs.apde;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+
+/**
+ * The lines of the console, stored in fixed-size chunks. Adding lines only ever touches the last
+ * chunk and dropping the oldest lines only ever touches the first one, so the console can hold
+ * hundreds of thousands of lines without copying them around.
+ *
+ * Every line has a severity. Lines are also given numbers that stay the same when older lines are
+ * dropped, so that other structures (e.g. the list of lines that match a filter) can refer to
+ * them.
+ */
+public class ConsoleLineStore {
+	public static final int SEVERITY_OUT = 0;
+	public static final int SEVERITY_ERR = 1;
+	/**
+	 * Messages from the console itself, e.g. that lines were suppressed.
+	 */
+	public static final int SEVERITY_NOTICE = 2;
+	
+	private static final int CHUNK_SIZE = 256;
+	
+	private static final char[] SEVERITY_CHARS = {'o', 'e', 'n'};
+	
+	private static class Chunk {
+		private final String[] lines = new String[CHUNK_SIZE];
+		private final byte[] severities = new byte[CHUNK_SIZE];
+		private int maxLength;
+	}
+	
+	private ArrayList<Chunk> chunks;
+	// The number of lines that have been dropped from the first chunk
+	private int start;
+	private int size;
+	// The number of the first line
+	private long firstLineNumber;
+	
+	// Whether or not the last line is waiting for the rest of its text
+	private boolean lastLineOpen;
+	
+	public ConsoleLineStore() {
+		clear();
+	}
+	
+	public void clear() {
+		// Keep counting from where we were, line numbers should never be reused
+		firstLineNumber += size;
+		
+		chunks = new ArrayList<>();
+		start = 0;
+		size = 0;
+		lastLineOpen = false;
+	}
+	
+	/**
+	 * @return the number of lines
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * @return the number of the first line, which goes up as lines are dropped
+	 */
+	public long getFirstLineNumber() {
+		return firstLineNumber;
+	}
+	
+	/**
+	 * @param index the index of the line, from 0 to size() - 1
+	 * @return the text of the line, without the newline
+	 */
+	public String getLine(int index) {
+		int pos = start + index;
+		return chunks.get(pos / CHUNK_SIZE).lines[pos % CHUNK_SIZE];
+	}
+	
+	/**
+	 * @param index the index of the line, from 0 to size() - 1
+	 * @return the severity of the line
+	 */
+	public int getSeverity(int index) {
+		int pos = start + index;
+		return chunks.get(pos / CHUNK_SIZE).severities[pos % CHUNK_SIZE];
+	}
+	
+	/**
+	 * @return the length of the longest line, or a bit more if the longest line has been dropped
+	 */
+	public int getMaxLineLength() {
+		int max = 0;
+		for (Chunk chunk : chunks) {
+			max = Math.max(max, chunk.maxLength);
+		}
+		return max;
+	}
+	
+	/**
+	 * @return whether or not the last line is waiting for the rest of its text
+	 */
+	public boolean isLastLineOpen() {
+		return lastLineOpen;
+	}
+	
+	/**
+	 * Add text to the end. The text is added to the last line if it didn't end with a newline.
+	 * A line is an error if any part of it is.
+	 *
+	 * @param text the text
+	 * @param severity the severity of the text
+	 */
+	public void append(String text, int severity) {
+		int lineStart = 0;
+		while (lineStart <= text.length()) {
+			int newline = text.indexOf('\n', lineStart);
+			String line = clean(newline == -1 ? text.substring(lineStart) : text.substring(lineStart, newline));
+			
+			if (lastLineOpen) {
+				int last = size - 1;
+				setLine(last, getLine(last) + line, Math.max(getSeverity(last), severity));
+			} else if (newline != -1 || line.length() > 0) {
+				addLine(line, severity);
+			}
+			
+			if (newline == -1) {
+				lastLineOpen = line.length() > 0 || lastLineOpen;
+				break;
+			}
+			
+			lastLineOpen = false;
+			lineStart = newline + 1;
+		}
+	}
+	
+	/**
+	 * Make sure that whatever is added next starts on a new line.
+	 */
+	public void endLine() {
+		lastLineOpen = false;
+	}
+	
+	private void addLine(String line, int severity) {
+		int pos = start + size;
+		if (pos / CHUNK_SIZE >= chunks.size()) {
+			chunks.add(new Chunk());
+		}
+		size ++;
+		setLine(size - 1, line, severity);
+	}
+	
+	private void setLine(int index, String line, int severity) {
+		int pos = start + index;
+		Chunk chunk = chunks.get(pos / CHUNK_SIZE);
+		chunk.lines[pos % CHUNK_SIZE] = line;
+		chunk.severities[pos % CHUNK_SIZE] = (byte) severity;
+		chunk.maxLength = Math.max(chunk.maxLength, line.length());
+	}
+	
+	/**
+	 * Drop the oldest lines until there are at most the given number left.
+	 *
+	 * @param maxLines the number of lines to keep
+	 */
+	public void trimTo(int maxLines) {
+		int drop = size - maxLines;
+		if (drop <= 0) {
+			return;
+		}
+		
+		size -= drop;
+		firstLineNumber += drop;
+		start += drop;
+		
+		// Throw out the chunks that are empty now
+		int emptyChunks = start / CHUNK_SIZE;
+		if (emptyChunks > 0) {
+			chunks.subList(0, emptyChunks).clear();
+			start -= emptyChunks * CHUNK_SIZE;
+		}
+		
+		if (size == 0) {
+			lastLineOpen = false;
+		}
+	}
+	
+	// Tabs and carriage returns don't draw properly
+	private static String clean(String line) {
+		if (line.indexOf('\t') == -1 && line.indexOf('\r') == -1) {
+			return line;
+		}
+		StringBuilder builder = new StringBuilder(line.length() + 8);
+		for (int i = 0; i < line.length(); i ++) {
+			char c = line.charAt(i);
+			if (c == '\t') {
+				builder.append("    ");
+			} else if (c != '\r') {
+				builder.append(c);
+			}
+		}
+		return builder.toString();
+	}
+	
+	/**
+	 * Save the lines to a file, one per line, each starting with a character for its severity.
+	 */
+	public void writeTo(File file) throws IOException {
+		try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"))) {
+			for (int i = 0; i < size; i ++) {
+				writer.write(SEVERITY_CHARS[getSeverity(i)]);
+				writer.write(getLine(i));
+				writer.write('\n');
+			}
+		}
+	}
+	
+	/**
+	 * Replace the lines with the ones saved by {@link #writeTo(File)}.
+	 */
+	public void readFrom(File file) throws IOException {
+		clear();
+		
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.length() == 0) {
+					continue;
+				}
+				int severity = SEVERITY_OUT;
+				for (int i = 0; i < SEVERITY_CHARS.length; i ++) {
+					if (SEVERITY_CHARS[i] == line.charAt(0)) {
+						severity = i;
+						break;
+					}
+				}
+				addLine(line.substring(1), severity);
+			}
+		}
+	}
+}
@@ -0,0 +1,450 @@
+package com.calsignlabs.apde;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.text.TextPaint;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.view.View;
+import android.view.ViewParent;
+import android.view.ViewTreeObserver;
+import android.widget.HorizontalScrollView;
+import android.widget.ScrollView;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * The console. Only draws the lines that are on screen, so it doesn't matter how many lines
+ * there are. The lines themselves are kept in a {@link ConsoleLineStore}.
+ *
+ * The console sits in a ScrollView and a HorizontalScrollView just like the TextView that it
+ * replaces. It is as big as all of its text, and works out what is on screen by asking the
+ * scrollers. Hardware accelerated views aren't redrawn when they are scrolled, so we draw a
+ * screen's worth of text around what is visible and redraw once the user scrolls past that.
+ *
+ * The lines can be filtered by severity and by text. Lines that match the filter are kept in a
+ * list of line numbers, which is updated as lines are added rather than rebuilt every time.
+ */
+public class ConsoleView extends View {
+	private static final int COLOR_OUT = 0xFFFFFFFF;
+	private static final int COLOR_ERR = 0xFFFF8A80;
+	private static final int COLOR_NOTICE = 0xFFB0B0B0;
+	private static final int COLOR_SEARCH_HIGHLIGHT = 0x6659C47F;
+	
+	private ConsoleLineStore lines;
+	private int lineLimit;
+	
+	// The filter, if there is one
+	private String filterText;
+	private String foldedFilterText;
+	private boolean errorsOnly;
+	// The numbers of the lines that match the filter, in order, from filteredStart to filteredEnd
+	private long[] filtered;
+	private int filteredStart, filteredEnd;
+	// The number of the first line that has changed since the filter was last updated
+	private long dirtyLineNumber;
+	
+	private TextPaint outPaint, errPaint, noticePaint;
+	private Paint highlightPaint;
+	private float charWidth;
+	private int lineHeight, lineAscent;
+	
+	private ScrollView scroller;
+	private HorizontalScrollView scrollerX;
+	private ViewTreeObserver.OnScrollChangedListener scrollListener;
+	
+	// What was drawn last time, in rows and columns
+	private int drawnFirstRow = 0, drawnLastRow = -1;
+	private int drawnFirstColumn = 0, drawnLastColumn = -1;
+	// What is on screen now
+	private int visibleFirstRow, visibleLastRow;
+	private int visibleFirstColumn, visibleLastColumn;
+	
+	private int lastWidth = -1, lastHeight = -1;
+	
+	public ConsoleView(Context context) {
+		super(context);
+		init();
+	}
+	
+	public ConsoleView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+		init();
+	}
+	
+	public ConsoleView(Context context, AttributeSet attrs, int defStyleAttr) {
+		super(context, attrs, defStyleAttr);
+		init();
+	}
+	
+	private void init() {
+		lines = new ConsoleLineStore();
+		lineLimit = -1;
+		
+		outPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+		outPaint.setTypeface(Typeface.MONOSPACE);
+		outPaint.setColor(COLOR_OUT);
+		errPaint = new TextPaint(outPaint);
+		errPaint.setColor(COLOR_ERR);
+		noticePaint = new TextPaint(outPaint);
+		noticePaint.setColor(COLOR_NOTICE);
+		
+		highlightPaint = new Paint();
+		highlightPaint.setStyle(Paint.Style.FILL);
+		highlightPaint.setColor(COLOR_SEARCH_HIGHLIGHT);
+		
+		setTextSize(14);
+		
+		scrollListener = () -> {
+			updateVisibleRange();
+			if (visibleFirstRow < drawnFirstRow || visibleLastRow > drawnLastRow
+					|| visibleFirstColumn < drawnFirstColumn || visibleLastColumn > drawnLastColumn) {
+				invalidate();
+			}
+		};
+	}
+	
+	/**
+	 * @param size the text size, in sp
+	 */
+	public void setTextSize(float size) {
+		float px = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, size, getResources().getDisplayMetrics());
+		outPaint.setTextSize(px);
+		errPaint.setTextSize(px);
+		noticePaint.setTextSize(px);
+		
+		Paint.FontMetricsInt metrics = outPaint.getFontMetricsInt();
+		lineHeight = metrics.descent - metrics.ascent + metrics.leading;
+		lineAscent = -metrics.ascent;
+		charWidth = outPaint.measureText("m");
+		
+		requestLayout();
+		invalidate();
+	}
+	
+	/**
+	 * @param lineLimit the number of lines to keep, or -1 to keep all of them
+	 */
+	public void setLineLimit(int lineLimit) {
+		this.lineLimit = lineLimit;
+	}
+	
+	/**
+	 * Add text to the console. Call {@link #update()} once done adding.
+	 *
+	 * @param text the text
+	 * @param severity one of the severities in {@link ConsoleLineStore}
+	 */
+	public void append(String text, int severity) {
+		markDirty();
+		lines.append(text, severity);
+	}
+	
+	/**
+	 * Add a line from the console itself, e.g. to say that lines were suppressed. Call
+	 * {@link #update()} once done adding.
+	 */
+	public void appendNotice(String text) {
+		lines.endLine();
+		markDirty();
+		lines.append(text + "\n", ConsoleLineStore.SEVERITY_NOTICE);
+	}
+	
+	private void markDirty() {
+		// The last line might still get more text, in which case it has to be checked again
+		long firstChanged = lines.getFirstLineNumber() + lines.size() - (lines.isLastLineOpen() ? 1 : 0);
+		dirtyLineNumber = Math.min(dirtyLineNumber, firstChanged);
+	}
+	
+	/**
+	 * Drop old lines, update the filter, and redraw after adding text.
+	 */
+	public void update() {
+		if (lineLimit != -1) {
+			lines.trimTo(lineLimit);
+		}
+		
+		updateFilter();
+		
+		// Only lay out again if the size has changed
+		if (measureWidth() != lastWidth || measureHeight() != lastHeight) {
+			requestLayout();
+		}
+		invalidate();
+	}
+	
+	public void clear() {
+		lines.clear();
+		resetFilter();
+		update();
+	}
+	
+	/**
+	 * @return the number of lines, not counting the filter
+	 */
+	public int getLineCount() {
+		return lines.size();
+	}
+	
+	/**
+	 * Only show the lines that contain the given text and have the given severity.
+	 *
+	 * @param text the text to look for, case-insensitive, or null to show all lines
+	 * @param errorsOnly whether or not to only show errors
+	 */
+	public void setFilter(String text, boolean errorsOnly) {
+		filterText = text == null || text.length() == 0 ? null : text;
+		foldedFilterText = filterText == null ? null : filterText.toLowerCase(Locale.ROOT);
+		this.errorsOnly = errorsOnly;
+		
+		resetFilter();
+		update();
+	}
+	
+	public String getFilterText() {
+		return filterText;
+	}
+	
+	public boolean isErrorsOnly() {
+		return errorsOnly;
+	}
+	
+	private boolean hasFilter() {
+		return filterText != null || errorsOnly;
+	}
+	
+	private void resetFilter() {
+		filtered = hasFilter() ? new long[64] : null;
+		filteredStart = 0;
+		filteredEnd = 0;
+		dirtyLineNumber = lines.getFirstLineNumber();
+	}
+	
+	private void updateFilter() {
+		long firstLineNumber = lines.getFirstLineNumber();
+		long endLineNumber = firstLineNumber + lines.size();
+		long from = Math.max(dirtyLineNumber, firstLineNumber);
+		dirtyLineNumber = endLineNumber;
+		
+		if (filtered == null) {
+			return;
+		}
+		
+		// Forget about lines that have been dropped...
+		while (filteredStart < filteredEnd && filtered[filteredStart] < firstLineNumber) {
+			filteredStart ++;
+		}
+		// ...and lines that have changed
+		while (filteredEnd > filteredStart && filtered[filteredEnd - 1] >= from) {
+			filteredEnd --;
+		}
+		
+		for (long lineNumber = from; lineNumber < endLineNumber; lineNumber ++) {
+			int index = (int) (lineNumber - firstLineNumber);
+			if (matchesFilter(index)) {
+				if (filteredEnd == filtered.length) {
+					// Make room, either by moving everything back to the start or by growing
+					int count = filteredEnd - filteredStart;
+					long[] dest = count > filtered.length / 2 ? new long[filtered.length * 2] : filtered;
+					System.arraycopy(filtered, filteredStart, dest, 0, count);
+					filtered = dest;
+					filteredStart = 0;
+					filteredEnd = count;
+				}
+				filtered[filteredEnd ++] = lineNumber;
+			}
+		}
+	}
+	
+	private boolean matchesFilter(int index) {
+		if (errorsOnly && lines.getSeverity(index) != ConsoleLineStore.SEVERITY_ERR) {
+			return false;
+		}
+		return foldedFilterText == null || lines.getLine(index).toLowerCase(Locale.ROOT).contains(foldedFilterText);
+	}
+	
+	/**
+	 * @return the number of rows that are shown
+	 */
+	private int getRowCount() {
+		return filtered == null ? lines.size() : filteredEnd - filteredStart;
+	}
+	
+	/**
+	 * @return the index in the line store of the line in the given row
+	 */
+	private int getLineIndex(int row) {
+		return filtered == null ? row : (int) (filtered[filteredStart + row] - lines.getFirstLineNumber());
+	}
+	
+	/**
+	 * @return the text of the lines that are shown, e.g. for copying
+	 */
+	public String getText() {
+		StringBuilder text = new StringBuilder();
+		int rowCount = getRowCount();
+		for (int row = 0; row < rowCount; row ++) {
+			text.append(lines.getLine(getLineIndex(row)));
+			if (row < rowCount - 1) {
+				text.append('\n');
+			}
+		}
+		return text.toString();
+	}
+	
+	/**
+	 * Save the console to a file rather than the instance state, which can't hold much.
+	 */
+	public void writeHistory(File file) throws IOException {
+		lines.writeTo(file);
+	}
+	
+	/**
+	 * Replace the contents of the console with what was saved by {@link #writeHistory(File)}.
+	 */
+	public void readHistory(File file) throws IOException {
+		lines.readFrom(file);
+		resetFilter();
+		update();
+	}
+	
+	private int measureWidth() {
+		return getPaddingLeft() + (int) Math.ceil(lines.getMaxLineLength() * charWidth) + getPaddingRight();
+	}
+	
+	private int measureHeight() {
+		return getPaddingTop() + getRowCount() * lineHeight + getPaddingBottom();
+	}
+	
+	@Override
+	protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+		lastWidth = measureWidth();
+		lastHeight = measureHeight();
+		
+		setMeasuredDimension(Math.max(lastWidth, getSuggestedMinimumWidth()), Math.max(lastHeight, getSuggestedMinimumHeight()));
+	}
+	
+	/**
+	 * Figure out which rows and columns are on screen. The console is as big as its text, so we
+	 * have to ask the scrollers that it's in.
+	 */
+	private void updateVisibleRange() {
+		if (scroller == null || scrollerX == null) {
+			for (ViewParent parent = getParent(); parent instanceof View; parent = parent.getParent()) {
+				if (parent instanceof ScrollView && scroller == null) {
+					scroller = (ScrollView) parent;
+				} else if (parent instanceof HorizontalScrollView && scrollerX == null) {
+					scrollerX = (HorizontalScrollView) parent;
+				}
+			}
+		}
+		
+		int rowCount = getRowCount();
+		
+		if (scroller == null || lineHeight <= 0) {
+			visibleFirstRow = 0;
+			visibleLastRow = rowCount - 1;
+		} else {
+			int visibleTop = scroller.getScrollY() - offsetIn(scroller) - getPaddingTop();
+			int visibleBottom = visibleTop + scroller.getHeight();
+			
+			visibleFirstRow = Math.max(0, visibleTop / lineHeight);
+			visibleLastRow = Math.min(rowCount - 1, (int) Math.ceil(visibleBottom / (float) lineHeight));
+		}
+		
+		if (scrollerX == null || charWidth <= 0) {
+			visibleFirstColumn = 0;
+			visibleLastColumn = Integer.MAX_VALUE;
+		} else {
+			int visibleLeft = scrollerX.getScrollX() - getLeft() - getPaddingLeft();
+			int visibleRight = visibleLeft + scrollerX.getWidth();
+			
+			visibleFirstColumn = Math.max(0, (int) (visibleLeft / charWidth));
+			visibleLastColumn = (int) Math.ceil(visibleRight / charWidth);
+		}
+	}
+	
+	// Where we are in the scroller's content
+	private int offsetIn(View ancestor) {
+		int top = 0;
+		for (View view = this; view != ancestor && view != null; view = (View) view.getParent()) {
+			top += view.getTop();
+		}
+		return top;
+	}
+	
+	@Override
+	protected void onDraw(Canvas canvas) {
+		updateVisibleRange();
+		
+		// Draw a screen's worth around what is visible so that small scrolls don't need a redraw
+		int visibleRows = visibleLastRow - visibleFirstRow + 1;
+		int visibleColumns = visibleLastColumn == Integer.MAX_VALUE ? 0 : visibleLastColumn - visibleFirstColumn + 1;
+		drawnFirstRow = Math.max(0, visibleFirstRow - visibleRows);
+		drawnLastRow = Math.min(getRowCount() - 1, visibleLastRow + visibleRows);
+		drawnFirstColumn = Math.max(0, visibleFirstColumn - visibleColumns);
+		drawnLastColumn = visibleLastColumn == Integer.MAX_VALUE ? Integer.MAX_VALUE : visibleLastColumn + visibleColumns;
+		
+		float left = getPaddingLeft();
+		
+		for (int row = drawnFirstRow; row <= drawnLastRow; row ++) {
+			int index = getLineIndex(row);
+			String line = lines.getLine(index);
+			
+			int firstColumn = Math.min(drawnFirstColumn, line.length());
+			int lastColumn = (int) Math.min((long) drawnLastColumn + 1, line.length());
+			
+			float top = getPaddingTop() + row * lineHeight;
+			
+			if (foldedFilterText != null) {
+				drawSearchHighlights(canvas, line, left, top, firstColumn, lastColumn);
+			}
+			
+			if (lastColumn > firstColumn) {
+				canvas.drawText(line, firstColumn, lastColumn, left + firstColumn * charWidth, top + lineAscent, getPaint(lines.getSeverity(index)));
+			}
+		}
+	}
+	
+	private void drawSearchHighlights(Canvas canvas, String line, float left, float top, int firstColumn, int lastColumn) {
+		String folded = line.toLowerCase(Locale.ROOT);
+		// Lower case can change the length of some strings, in which case the positions would be off
+		if (folded.length() != line.length()) {
+			return;
+		}
+		
+		int length = foldedFilterText.length();
+		int pos = folded.indexOf(foldedFilterText, Math.max(0, firstColumn - length));
+		while (pos != -1 && pos < lastColumn) {
+			canvas.drawRect(left + pos * charWidth, top, left + (pos + length) * charWidth, top + lineHeight, highlightPaint);
+			pos = folded.indexOf(foldedFilterText, pos + length);
+		}
+	}
+	
+	private TextPaint getPaint(int severity) {
+		switch (severity) {
+			case ConsoleLineStore.SEVERITY_ERR:
+				return errPaint;
+			case ConsoleLineStore.SEVERITY_NOTICE:
+				return noticePaint;
+			default:
+				return outPaint;
+		}
+	}
+	
+	@Override
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+		getViewTreeObserver().addOnScrollChangedListener(scrollListener);
+	}
+	
+	@Override
+	protected void onDetachedFromWindow() {
+		getViewTreeObserver().removeOnScrollChangedListener(scrollListener);
+		super.onDetachedFromWindow();
+	}
+}
@@ -90,6 +90,7 @@ import com.calsignlabs.apde.build.CompilerProblem;
 import com.calsignlabs.apde.build.ComponentTarget;
 import com.calsignlabs.apde.build.ExtractStaticBuildResources;
 import com.calsignlabs.apde.build.Manifest;
+import com.calsignlabs.apde.build.SketchParser;
 import com.calsignlabs.apde.build.SketchPreviewerBuilder;
 import com.calsignlabs.apde.build.dag.BuildContext;
 import com.calsignlabs.apde.build.dag.ModularBuild;
@@ -107,6 +108,8 @@ import org.xml.sax.SAXException;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -119,8 +122,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Stack;
 import java.util.concurrent.Executors;
@@ -183,6 +189,13 @@ public class EditorActivity extends AppCompatActivity {
 	private final static int RENAME_TAB = 0;
 	private final static int NEW_TAB = 1;
 	
+	// Binary undo/redo history of each tab, kept between sessions
+	private static final String UNDO_REDO_HISTORY_FILE = "sketchUndoRedoHistory.bin";
+	// Older versions saved the history as JSON
+	private static final String LEGACY_UNDO_REDO_HISTORY_FILE = "sketchUndoRedoHistory.json";
+	// The contents of the console, which are too big for the instance state
+	private static final String CONSOLE_HISTORY_FILE = "consoleHistory.txt";
+	
 	//Listener for managing the sliding message area
 	private MessageTouchListener messageListener;
 	//The height of the message area...
@@ -193,6 +206,9 @@ public class EditorActivity extends AppCompatActivity {
 	private ConsoleStream errStream;
 	protected AtomicBoolean FLAG_SUSPEND_OUT_STREAM = new AtomicBoolean(false);
 	
+	//Output waiting to be added to the console, which happens at most once per frame
+	private ConsoleBuffer consoleBuffer;
+	
 	//Recieve log / console output from sketches
 	private BroadcastReceiver consoleBroadcastReceiver;
 	private MessageClient.OnMessageReceivedListener wearConsoleReceiver;
@@ -275,9 +291,23 @@ public class EditorActivity extends AppCompatActivity {
 		toolbar.setBackgroundColor(getResources().getColor(R.color.bar_overlay));
 		setSupportActionBar(toolbar);
 		
+		consoleBuffer = new ConsoleBuffer(new ConsoleBuffer.Listener() {
+			@Override
+			public void onOutput(String text, int severity) {
+				getConsole().append(text, severity);
+			}
+			
+			@Override
+			public void onFlushed(int suppressedLines) {
+				flushConsole(suppressedLines);
+			}
+		});
+		getConsole().setLineLimit(getConsoleLineLimit());
+		getConsole().setOnLongClickListener(this::showConsoleActions);
+		
 		// Create custom output / error streams for the console
-		outStream = new ConsoleStream(System.out);
-		errStream = new ConsoleStream(System.err);
+		outStream = new ConsoleStream(System.out, ConsoleLineStore.SEVERITY_OUT);
+		errStream = new ConsoleStream(System.err, ConsoleLineStore.SEVERITY_ERR);
 		
 		// Set the custom output / error streams
 		System.setOut(new PrintStream(outStream));
@@ -287,11 +317,27 @@ public class EditorActivity extends AppCompatActivity {
 		consoleBroadcastReceiver = new BroadcastReceiver() {
 			@Override
 			public void onReceive(Context context, Intent intent) {
-				char severity = intent.getCharExtra("com.calsignlabs.apde.LogSeverity", 'o');
-				String message = intent.getStringExtra("com.calsignlabs.apde.LogMessage");
-				String exception = intent.getStringExtra("com.calsignlabs.apde.LogException");
+				String[] messages = intent.getStringArrayExtra("com.calsignlabs.apde.LogMessages");
 				
-				handleSketchConsoleLog(severity, message, exception);
+				if (messages != null) {
+					// Sketches send their output in batches
+					char[] severities = intent.getCharArrayExtra("com.calsignlabs.apde.LogSeverities");
+					for (int i = 0; i < messages.length; i ++) {
+						handleSketchConsoleLog(severities != null && i < severities.length ? severities[i] : 'o', messages[i], "");
+					}
+					
+					int droppedLines = intent.getIntExtra("com.calsignlabs.apde.LogDropped", 0);
+					if (droppedLines > 0) {
+						consoleBuffer.suppress(droppedLines);
+					}
+				} else {
+					// Exceptions, and sketches built with older versions of APDE
+					char severity = intent.getCharExtra("com.calsignlabs.apde.LogSeverity", 'o');
+					String message = intent.getStringExtra("com.calsignlabs.apde.LogMessage");
+					String exception = intent.getStringExtra("com.calsignlabs.apde.LogException");
+					
+					handleSketchConsoleLog(severity, message, exception);
+				}
 			}
 		};
 		
@@ -979,6 +1025,9 @@ public class EditorActivity extends AppCompatActivity {
 			autoCompileTimer = new ScheduledThreadPoolExecutor(1);
 		}
 		
+		// Loading JDT takes a while, so get it out of the way before the first auto-compile
+		autoCompileTimer.execute(SketchParser::warmUp);
+		
 		// Fallback component target
 		setComponentTarget(ComponentTarget.PREVIEW);
 		
@@ -1046,10 +1095,10 @@ public class EditorActivity extends AppCompatActivity {
 		// We can show different colors for different severities if we want to... later...
 		switch (severity) {
 			case 'o':
-				postConsole(message);
+				postConsole(message, ConsoleLineStore.SEVERITY_OUT);
 				break;
 			case 'e':
-				postConsole(message);
+				postConsole(message, ConsoleLineStore.SEVERITY_ERR);
 				break;
 			case 'x':
 				errorExt(message != null ? exception.concat(": ").concat(message) : exception);
@@ -1193,11 +1242,20 @@ public class EditorActivity extends AppCompatActivity {
 		
 		try {
 			TextView messageArea = (TextView) findViewById(R.id.message);
-			TextView console = (TextView) findViewById(R.id.console);
 			ScrollView consoleScroller = (ScrollView) findViewById(R.id.console_scroller);
 			HorizontalScrollView consoleScrollerX = (HorizontalScrollView) findViewById(R.id.console_scroller_x);
 			
-			outState.putString("consoleText", console.getText().toString());
+			// The console can be far too big for the instance state, so it goes in a file. Writing
+			// it isn't free, so only do it when the activity is about to be recreated (e.g. when
+			// the screen rotates) and not every time that the app goes into the background.
+			if (isChangingConfigurations()) {
+				try {
+					getConsole().writeHistory(new File(getFilesDir(), CONSOLE_HISTORY_FILE));
+					outState.putBoolean("consoleHistory", true);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
 			outState.putInt("consoleScrollPos", consoleScroller.getScrollY());
 			outState.putInt("consoleScrollPosX", consoleScrollerX.getScrollX());
 			outState.putString("messageText", messageArea.getText().toString());
@@ -1224,20 +1282,27 @@ public class EditorActivity extends AppCompatActivity {
 			}
 			
 			if (savedInstanceState != null) {
-				String consoleText = savedInstanceState.getString("consoleText");
+				boolean consoleHistory = savedInstanceState.getBoolean("consoleHistory", false);
 				final int consoleScrollPos = savedInstanceState.getInt("consoleScrollPos");
 				final int consoleScrollPosX = savedInstanceState.getInt("consoleScrollPosX");
 				String messageText = savedInstanceState.getString("messageText");
 				MessageType msgType = MessageType.deserialize(savedInstanceState.getString("messageIsError"));
 				
-				TextView console = (TextView) findViewById(R.id.console);
+				ConsoleView console = getConsole();
 				final ScrollView consoleScroller = (ScrollView) findViewById(R.id.console_scroller);
 				final HorizontalScrollView consoleScrollerX = (HorizontalScrollView) findViewById(R.id.console_scroller_x);
 				
-				if (consoleText != null) {
+				if (consoleHistory) {
 					// Assume that they're all there...
 					
-					console.setText(consoleText);
+					File consoleHistoryFile = new File(getFilesDir(), CONSOLE_HISTORY_FILE);
+					try {
+						console.readHistory(consoleHistoryFile);
+					} finally {
+						// Only needed for this one restore
+						//noinspection ResultOfMethodCallIgnored
+						consoleHistoryFile.delete();
+					}
 					
 					// This doesn't actually work in practice because the text is always
 					// replaced with "The sketch has been saved"...
@@ -1344,7 +1409,8 @@ public class EditorActivity extends AppCompatActivity {
 		
     	//Reference the SharedPreferences text size value
 //    	((CodeEditText) findViewById(R.id.code)).refreshTextSize();
-		((TextView) findViewById(R.id.console)).setTextSize(Integer.parseInt(PreferenceManager.getDefaultSharedPreferences(this).getString("textsize_console", "14")));
+		getConsole().setTextSize(Integer.parseInt(PreferenceManager.getDefaultSharedPreferences(this).getString("textsize_console", "14")));
+		getConsole().setLineLimit(getConsoleLineLimit());
     	
     	//Disable / enable the soft keyboard
         if(PreferenceManager.getDefaultSharedPreferences(getApplicationContext()).getBoolean("use_hardware_keyboard", false)) {
@@ -1889,7 +1955,7 @@ public class EditorActivity extends AppCompatActivity {
 		sketchData.append(getComponentTarget().serialize());
 		sketchData.append(';');
 		
-		JSONObject undoRedoHistories = new JSONObject();
+		Map<String, byte[]> undoRedoHistories = new LinkedHashMap<>();
 		
 		for (int i = 0; i < tabs.size(); i ++) {
 			SketchFile sketchFile = tabs.get(i);
@@ -1919,13 +1985,13 @@ public class EditorActivity extends AppCompatActivity {
 			
 			try {
 				undoRedoHistories.put(sketchFile.getFilename(), sketchFile.getUndoRedoHistory());
-			} catch (JSONException | NoSuchAlgorithmException e) {
+			} catch (IOException | NoSuchAlgorithmException e) {
 				e.printStackTrace();
 			}
 		}
 		
 		writeTempFile("sketchData.txt", sketchData.toString());
-		writeTempFile("sketchUndoRedoHistory.json", undoRedoHistories.toString());
+		writeUndoRedoHistories(undoRedoHistories);
 		
 		getGlobalState().writeCodeDeletionDebugStatus("end saveSketchForStop()");
 	}
@@ -1939,14 +2005,13 @@ public class EditorActivity extends AppCompatActivity {
 		try {
 			String sketchData = readTempFile("sketchData.txt");
 			String[] data = sketchData.split(";");
-			String jsonData = readTempFile("sketchUndoRedoHistory.json");
 			
-			if (data.length < 4 || jsonData.length() == 0) {
+			if (data.length < 4) {
 				// On clean installs and after updating
 				return false;
 			}
 			
-			JSONObject undoRedoHistories = new JSONObject(jsonData);
+			Map<String, byte[]> undoRedoHistories = readUndoRedoHistories();
 			
 			String sketchPath = data[0];
 			APDE.SketchLocation sketchLocation = APDE.SketchLocation.fromString(data[1]);
@@ -1973,7 +2038,10 @@ public class EditorActivity extends AppCompatActivity {
 			if (success) {
 				for (SketchFile sketchFile : tabs) {
 					try {
-						sketchFile.populateUndoRedoHistory(undoRedoHistories.getJSONObject(sketchFile.getFilename()));
+						byte[] history = undoRedoHistories.get(sketchFile.getFilename());
+						if (history != null) {
+							sketchFile.populateUndoRedoHistory(history);
+						}
 					} catch (Exception e) {
 						/* If an exception gets through, then this function reports that it was
 						 * not successful. The problem with that is that it will then automatically
@@ -2078,7 +2146,7 @@ public class EditorActivity extends AppCompatActivity {
 	
 	public void autoCompile() {
 		runOnUiThread(() -> {
-			if (isOldBuild()) {
+			if (!isModularAutoCompile()) {
 				final BuildContext context;
 				try {
 					context = BuildContext.create(getGlobalState());
@@ -2096,7 +2164,8 @@ public class EditorActivity extends AppCompatActivity {
 					runOnUiThread(() -> {
 						findViewById(R.id.auto_compile_placeholder).setBackgroundColor(getResources().getColor(R.color.message_back));
 					});
-					builder.build("debug", getComponentTarget(), true);
+					// Only does a real build if something other than the code has changed
+					builder.reconcile(getComponentTarget());
 					
 					toggleAutoCompileIndicator(false);
 					
@@ -2106,7 +2175,19 @@ public class EditorActivity extends AppCompatActivity {
 					}
 				}, 0, TimeUnit.SECONDS);
 			} else {
-				getGlobalState().getModularBuild().compile();
+				findViewById(R.id.auto_compile_placeholder).setBackgroundColor(getResources().getColor(R.color.message_back));
+				
+				boolean started = getGlobalState().getModularBuild().compile(new ModularBuild.ContextualizedOnCompleteListener() {
+					@Override
+					public boolean onComplete(boolean success) {
+						toggleAutoCompileIndicator(false);
+						return true;
+					}
+				});
+				
+				if (started) {
+					toggleAutoCompileIndicator(true);
+				}
 			}
 			
 			cancelAutoCompile();
@@ -2561,6 +2642,79 @@ public class EditorActivity extends AppCompatActivity {
 		}
     }
     
+	/**
+	 * Save the undo/redo history of each tab. The histories are already in a binary format, so
+	 * we just write them one after the other with their file names.
+	 *
+	 * @param histories the histories by file name
+	 */
+	private void writeUndoRedoHistories(Map<String, byte[]> histories) {
+		try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(openFileOutput(UNDO_REDO_HISTORY_FILE, Context.MODE_PRIVATE)))) {
+			outputStream.writeInt(histories.size());
+			for (Map.Entry<String, byte[]> history : histories.entrySet()) {
+				outputStream.writeUTF(history.getKey());
+				outputStream.writeInt(history.getValue().length);
+				outputStream.write(history.getValue());
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * @return the undo/redo histories saved by {@link #writeUndoRedoHistories(Map)}, which is
+	 * empty if there aren't any
+	 */
+	private Map<String, byte[]> readUndoRedoHistories() {
+		Map<String, byte[]> histories = new HashMap<>();
+		
+		if (!getFileStreamPath(UNDO_REDO_HISTORY_FILE).exists()) {
+			if (getFileStreamPath(LEGACY_UNDO_REDO_HISTORY_FILE).exists()) {
+				readLegacyUndoRedoHistories(histories);
+			}
+			return histories;
+		}
+		
+		try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(openFileInput(UNDO_REDO_HISTORY_FILE)))) {
+			int count = inputStream.readInt();
+			for (int i = 0; i < count; i ++) {
+				String filename = inputStream.readUTF();
+				byte[] history = new byte[inputStream.readInt()];
+				inputStream.readFully(history);
+				histories.put(filename, history);
+			}
+		} catch (IOException | NegativeArraySizeException e) {
+			// Better to lose the history than to fail loading the sketch
+			e.printStackTrace();
+			histories.clear();
+		}
+		
+		return histories;
+	}
+	
+	/**
+	 * Convert the JSON undo/redo histories saved by older versions. This only happens once, the
+	 * JSON file is deleted afterwards and the histories are saved in the new format next time.
+	 *
+	 * @param histories where to put the converted histories
+	 */
+	private void readLegacyUndoRedoHistories(Map<String, byte[]> histories) {
+		try {
+			JSONObject legacyHistories = new JSONObject(readTempFile(LEGACY_UNDO_REDO_HISTORY_FILE));
+			Iterator<String> filenames = legacyHistories.keys();
+			while (filenames.hasNext()) {
+				String filename = filenames.next();
+				histories.put(filename, SketchFile.convertLegacyUndoRedoHistory(legacyHistories.getJSONObject(filename)));
+			}
+		} catch (JSONException | IOException e) {
+			// Better to lose the history than to fail loading the sketch
+			e.printStackTrace();
+			histories.clear();
+		}
+		
+		deleteFile(LEGACY_UNDO_REDO_HISTORY_FILE);
+	}
+	
     /**
      * Write text to a temp file
      * 
@@ -3318,10 +3472,15 @@ public class EditorActivity extends AppCompatActivity {
 	}
 	
 	private boolean isOldBuild() {
-		// TODO modular build is fully disabled for now
+		// TODO modular build only supports the preview target for running, so only use it for
+		// auto compile for now
 		//return !getGlobalState().getPref("pref_build_modular_enable", true);
 		return true;
 	}
+	
+	private boolean isModularAutoCompile() {
+		return getGlobalState().getPref("pref_build_modular_enable", true);
+	}
     
     /**
      * Builds and launches the current sketch
@@ -3364,7 +3523,7 @@ public class EditorActivity extends AppCompatActivity {
 		imm.hideSoftInputFromWindow((findViewById(R.id.content)).getWindowToken(), 0);
     	
     	// Clear the console
-    	((TextView) findViewById(R.id.console)).setText("");
+    	clearConsole();
     	
     	if (isOldBuild()) {
 		    final BuildContext context;
@@ -4629,20 +4788,45 @@ public class EditorActivity extends AppCompatActivity {
 	}
 	
 	/**
-	 * Add a message to the console and automatically scroll to the bottom (if the user has this feature turned on)
+	 * Add a message to the console and automatically scroll to the bottom (if the user has this feature turned on).
+	 * Can be called from any thread, the message shows up in the next frame.
 	 * 
 	 * @param msg
 	 */
 	public void postConsole(String msg) {
+		postConsole(msg, ConsoleLineStore.SEVERITY_OUT);
+	}
+	
+	/**
+	 * @param msg the message
+	 * @param severity one of the severities in {@link ConsoleLineStore}
+	 */
+	public void postConsole(String msg, int severity) {
 		// Check to see if we've suspended messages
 		if (FLAG_SUSPEND_OUT_STREAM.get() && !PreferenceManager.getDefaultSharedPreferences(this).getBoolean("pref_debug_global_verbose_output", false)) {
 			return;
 		}
 		
-		final TextView tv = findViewById(R.id.console);
+		consoleBuffer.write(msg, severity);
+	}
+	
+	public ConsoleView getConsole() {
+		return findViewById(R.id.console);
+	}
+	
+	/**
+	 * Show the console once everything that has been written to it this frame has been added.
+	 */
+	protected void flushConsole(int suppressedLines) {
+		final ConsoleView console = getConsole();
+		
+		// Let the user know that we couldn't keep up
+		if (suppressedLines > 0) {
+			console.appendNotice(getResources().getQuantityString(R.plurals.console_lines_suppressed, suppressedLines, suppressedLines));
+		}
 		
-		// Add the text
-		tv.append(msg);
+		// Drops the oldest lines and redraws
+		console.update();
 		
 		final ScrollView scroll = findViewById(R.id.console_scroller);
 		final HorizontalScrollView scrollX = findViewById(R.id.console_scroller_x);
@@ -4652,7 +4836,7 @@ public class EditorActivity extends AppCompatActivity {
 			scroll.post(() -> {
 				// Scroll to the bottom
 				//scroll.fullScroll(ScrollView.FOCUS_DOWN);
-				scroll.scrollTo(0, scroll.getHeight());
+				scroll.scrollTo(0, console.getHeight());
 				
 				scrollX.post(() -> {
 					// Don't scroll horizontally at all...
@@ -4662,6 +4846,81 @@ public class EditorActivity extends AppCompatActivity {
 		});
 	}
 	
+	/**
+	 * Remove everything from the console. Must be called from the UI thread.
+	 */
+	public void clearConsole() {
+		getConsole().clear();
+	}
+	
+	/**
+	 * Show the actions for the console: copying, filtering, and clearing.
+	 */
+	protected boolean showConsoleActions(View view) {
+		final ConsoleView console = getConsole();
+		
+		PopupMenu popup = new PopupMenu(this, view);
+		getMenuInflater().inflate(R.menu.console_actions, popup.getMenu());
+		popup.getMenu().findItem(R.id.menu_console_errors_only).setChecked(console.isErrorsOnly());
+		
+		popup.setOnMenuItemClickListener(item -> {
+			switch (item.getItemId()) {
+				case R.id.menu_console_copy:
+					ClipboardManager clipboardManager = (ClipboardManager) getSystemService(CLIPBOARD_SERVICE);
+					if (clipboardManager != null) {
+						clipboardManager.setPrimaryClip(ClipData.newPlainText(getResources().getString(R.string.console_copy_description), console.getText()));
+						Toast.makeText(EditorActivity.this, R.string.problem_overview_list_copy_toast_message, Toast.LENGTH_SHORT).show();
+					}
+					return true;
+				case R.id.menu_console_filter:
+					launchConsoleFilter();
+					return true;
+				case R.id.menu_console_errors_only:
+					console.setFilter(console.getFilterText(), !console.isErrorsOnly());
+					return true;
+				case R.id.menu_console_clear:
+					clearConsole();
+					return true;
+			}
+			return false;
+		});
+		
+		popup.show();
+		
+		return true;
+	}
+	
+	/**
+	 * Ask the user what to look for in the console.
+	 */
+	protected void launchConsoleFilter() {
+		final ConsoleView console = getConsole();
+		
+		AlertDialog.Builder alert = new AlertDialog.Builder(this);
+		alert.setTitle(R.string.console_filter_title);
+		alert.setMessage(R.string.console_filter_message);
+		
+		String filterText = console.getFilterText();
+		final EditText input = getGlobalState().createAlertDialogEditText(this, alert, filterText != null ? filterText : "", true);
+		
+		alert.setPositiveButton(R.string.ok, (dialog, whichButton) -> console.setFilter(input.getText().toString(), console.isErrorsOnly()));
+		alert.setNegativeButton(R.string.cancel, (dialog, whichButton) -> {});
+		
+		alert.create().show();
+	}
+	
+	/**
+	 * @return the number of lines to keep in the console, or -1 to keep all of them
+	 */
+	protected int getConsoleLineLimit() {
+		try {
+			return Integer.parseInt(PreferenceManager.getDefaultSharedPreferences(this).getString("pref_console_max_lines", getResources().getString(R.string.pref_console_max_lines_default_value)));
+		} catch (NumberFormatException e) {
+			e.printStackTrace();
+			return -1;
+		}
+	}
+	
 	// Listener class for managing message area drag events
 	public class MessageTouchListener implements android.view.View.OnLongClickListener, android.view.View.OnTouchListener {
 		private boolean pressed;
@@ -4796,10 +5055,12 @@ public class EditorActivity extends AppCompatActivity {
 	private class ConsoleStream extends OutputStream {
 		final byte single[] = new byte[1];
 		private OutputStream pipeTo;
+		private int severity;
 		private boolean enabled;
 		
-		public ConsoleStream(OutputStream pipeTo) {
+		public ConsoleStream(OutputStream pipeTo, int severity) {
 			this.pipeTo = pipeTo;
+			this.severity = severity;
 			this.enabled = true;
 		}
 		
@@ -4825,17 +5086,8 @@ public class EditorActivity extends AppCompatActivity {
 					// shrug
 				}
 				
-				final String value = new String(b, offset, length);
-				
-				if (!(FLAG_SUSPEND_OUT_STREAM.get() &&
-						!PreferenceManager.getDefaultSharedPreferences(EditorActivity.this)
-								.getBoolean("pref_debug_global_verbose_output", false))) {
-					
-					runOnUiThread(() -> {
-						//Write the value to the console
-						postConsole(value);
-					});
-				}
+				//Write the value to the console, this doesn't wait for the UI thread
+				postConsole(new String(b, offset, length), severity);
 			}
 		}
 		
@@ -0,0 +1,55 @@
+package com.calsignlabs.apde;
+
+/**
+ * A single edit to a tab, along with the selection and scroll position on either side of it.
+ * These make up the undo and redo history of each {@link SketchFile}.
+ */
+public class FileChange {
+	public int changeIndex;
+	public String beforeText;
+	public String afterText;
+	
+	//Current selection
+	public int beforeSelectionStart;
+	public int beforeSelectionEnd;
+	
+	public int afterSelectionStart;
+	public int afterSelectionEnd;
+	
+	//Current scroll position;
+	public int beforeScrollX;
+	public int beforeScrollY;
+	
+	public int afterScrollX;
+	public int afterScrollY;
+	
+	public FileChange() {}
+	
+	public static void getTextChange(FileChange change, String oldText, String newText) {
+		//Find the difference between the old text and the new text
+		//Compare text starting at both ends to find the difference in the middle
+		
+		int changeStart = 0;
+		int changeEnd = 0;
+		
+		int minLength = Math.min(oldText.length(), newText.length());
+		
+		while (changeStart < oldText.length() && changeStart < newText.length()
+				&& oldText.charAt(changeStart) == newText.charAt(changeStart)) {
+			changeStart++;
+		}
+		
+		while (changeEnd < oldText.length() && changeEnd < newText.length()
+				&& minLength - changeEnd > changeStart
+				&& oldText.charAt(oldText.length() - changeEnd - 1) == newText.charAt(newText.length() - changeEnd - 1)) {
+			changeEnd++;
+		}
+		
+		int beforeEnd = oldText.length() - changeEnd;
+		int afterEnd = newText.length() - changeEnd;
+		
+		change.changeIndex = changeStart;
+		change.beforeText = beforeEnd - changeStart > 0 ? oldText.substring(changeStart, beforeEnd) : "";
+		change.afterText = afterEnd - changeStart > 0 ? newText.substring(changeStart, afterEnd) : "";
+	}
+}
@@ -0,0 +1,360 @@
+package com.calsignlabs.apde;
+
+/**
+ * Immutable text stored as a balanced tree of short strings. Replacing a range makes a new rope
+ * that shares everything but the path to the changed leaves with the old one, so edits are
+ * O(log n) and old versions cost nothing to keep around (e.g. for undo, or for the syntax
+ * highlighter to read on its own thread).
+ *
+ * The tree is kept balanced like an AVL tree: the heights of the two children of every node
+ * differ by at most one.
+ */
+public abstract class Rope implements CharSequence {
+	/**
+	 * Leaves are split into pieces of about this size.
+	 */
+	private static final int LEAF_SIZE = 512;
+	
+	/**
+	 * Leaves are allowed to grow up to this size before they are split again, so that typing in
+	 * the middle of a leaf doesn't split it every time.
+	 */
+	private static final int MAX_LEAF_SIZE = 2 * LEAF_SIZE;
+	
+	public static final Rope EMPTY = new Leaf("");
+	
+	// Cached by toString(), ropes never change
+	private String flat;
+	
+	private Rope() {}
+	
+	/**
+	 * @param text the text
+	 * @return a rope containing the given text
+	 */
+	public static Rope of(CharSequence text) {
+		return build(text.toString(), 0, text.length());
+	}
+	
+	private static Rope build(String text, int start, int end) {
+		if (end - start <= MAX_LEAF_SIZE) {
+			return start == end ? EMPTY : new Leaf(text.substring(start, end));
+		}
+		// Split in the middle so that the tree is balanced
+		int chunks = (end - start + LEAF_SIZE - 1) / LEAF_SIZE;
+		int mid = start + (chunks / 2) * LEAF_SIZE;
+		return new Node(build(text, start, mid), build(text, mid, end));
+	}
+	
+	/**
+	 * @return the height of the tree, 0 for a leaf
+	 */
+	abstract int height();
+	
+	/**
+	 * Check that the tree is put together properly: the stored lengths and heights add up, no
+	 * leaf is too long, and the heights of the children of every node differ by at most one.
+	 * This walks the whole tree, so it is only meant for tests.
+	 *
+	 * @return whether or not the tree is valid
+	 */
+	abstract boolean isValid();
+	
+	/**
+	 * Replace a range of the text.
+	 *
+	 * @param start the start of the range, inclusive
+	 * @param end the end of the range, exclusive
+	 * @param text the text to put in its place
+	 * @return the new rope
+	 */
+	public Rope replace(int start, int end, CharSequence text) {
+		checkRange(start, end);
+		if (start == end && text.length() == 0) {
+			return this;
+		}
+		return replaceInternal(start, end, text);
+	}
+	
+	abstract Rope replaceInternal(int start, int end, CharSequence text);
+	
+	/**
+	 * @param start the index to insert at
+	 * @param text the text to insert
+	 * @return the new rope
+	 */
+	public Rope insert(int start, CharSequence text) {
+		return replace(start, start, text);
+	}
+	
+	/**
+	 * @param start the start of the range, inclusive
+	 * @param end the end of the range, exclusive
+	 * @return the new rope
+	 */
+	public Rope delete(int start, int end) {
+		return replace(start, end, "");
+	}
+	
+	/**
+	 * @param start the start of the range, inclusive
+	 * @param end the end of the range, exclusive
+	 * @return the range as a rope, sharing leaves with this one
+	 */
+	public Rope subRope(int start, int end) {
+		checkRange(start, end);
+		if (start == 0 && end == length()) {
+			return this;
+		}
+		return subRopeInternal(start, end);
+	}
+	
+	abstract Rope subRopeInternal(int start, int end);
+	
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		return substring(start, end);
+	}
+	
+	/**
+	 * @param start the start of the range, inclusive
+	 * @param end the end of the range, exclusive
+	 * @return the range as a string
+	 */
+	public String substring(int start, int end) {
+		checkRange(start, end);
+		if (flat != null) {
+			return flat.substring(start, end);
+		}
+		StringBuilder builder = new StringBuilder(end - start);
+		appendTo(builder, start, end);
+		return builder.toString();
+	}
+	
+	abstract void appendTo(StringBuilder builder, int start, int end);
+	
+	@Override
+	public String toString() {
+		String result = flat;
+		if (result == null) {
+			StringBuilder builder = new StringBuilder(length());
+			appendTo(builder, 0, length());
+			result = builder.toString();
+			flat = result;
+		}
+		return result;
+	}
+	
+	private void checkRange(int start, int end) {
+		if (start < 0 || end > length() || start > end) {
+			throw new IndexOutOfBoundsException("Range [" + start + ", " + end + ") out of bounds for length " + length());
+		}
+	}
+	
+	/**
+	 * Join two ropes together, keeping the result balanced. This takes time proportional to the
+	 * difference in height between the two.
+	 */
+	static Rope concat(Rope left, Rope right) {
+		if (left.length() == 0) {
+			return right;
+		}
+		if (right.length() == 0) {
+			return left;
+		}
+		if (left.length() + right.length() <= MAX_LEAF_SIZE && left instanceof Leaf && right instanceof Leaf) {
+			return new Leaf(((Leaf) left).text + ((Leaf) right).text);
+		}
+		
+		int leftHeight = left.height(), rightHeight = right.height();
+		if (leftHeight > rightHeight + 1) {
+			return concatRight((Node) left, right);
+		} else if (rightHeight > leftHeight + 1) {
+			return concatLeft(left, (Node) right);
+		} else {
+			return new Node(left, right);
+		}
+	}
+	
+	// Go down the right side of the left tree until we find a node that is about the same height
+	private static Rope concatRight(Node left, Rope right) {
+		if (left.right.height() <= right.height() + 1) {
+			Node joined = new Node(left.right, right);
+			if (joined.height() <= left.left.height() + 1) {
+				return new Node(left.left, joined);
+			}
+			return rotateLeft(new Node(left.left, rotateRight(joined)));
+		}
+		
+		Rope joined = concatRight((Node) left.right, right);
+		Node result = new Node(left.left, joined);
+		if (joined.height() <= left.left.height() + 1) {
+			return result;
+		}
+		return rotateLeft(result);
+	}
+	
+	// Mirror image of concatRight()
+	private static Rope concatLeft(Rope left, Node right) {
+		if (right.left.height() <= left.height() + 1) {
+			Node joined = new Node(left, right.left);
+			if (joined.height() <= right.right.height() + 1) {
+				return new Node(joined, right.right);
+			}
+			return rotateRight(new Node(rotateLeft(joined), right.right));
+		}
+		
+		Rope joined = concatLeft(left, (Node) right.left);
+		Node result = new Node(joined, right.right);
+		if (joined.height() <= right.right.height() + 1) {
+			return result;
+		}
+		return rotateRight(result);
+	}
+	
+	private static Node rotateLeft(Node node) {
+		Node right = (Node) node.right;
+		return new Node(new Node(node.left, right.left), right.right);
+	}
+	
+	private static Node rotateRight(Node node) {
+		Node left = (Node) node.left;
+		return new Node(left.left, new Node(left.right, node.right));
+	}
+	
+	private static class Leaf extends Rope {
+		private final String text;
+		
+		private Leaf(String text) {
+			this.text = text;
+		}
+		
+		@Override
+		int height() {
+			return 0;
+		}
+		
+		@Override
+		boolean isValid() {
+			return text.length() <= MAX_LEAF_SIZE;
+		}
+		
+		@Override
+		public int length() {
+			return text.length();
+		}
+		
+		@Override
+		public char charAt(int index) {
+			return text.charAt(index);
+		}
+		
+		@Override
+		Rope replaceInternal(int start, int end, CharSequence replacement) {
+			String result = text.substring(0, start) + replacement + text.substring(end);
+			return result.length() <= MAX_LEAF_SIZE ? new Leaf(result) : build(result, 0, result.length());
+		}
+		
+		@Override
+		Rope subRopeInternal(int start, int end) {
+			return start == end ? EMPTY : new Leaf(text.substring(start, end));
+		}
+		
+		@Override
+		void appendTo(StringBuilder builder, int start, int end) {
+			builder.append(text, start, end);
+		}
+		
+		@Override
+		public String toString() {
+			return text;
+		}
+	}
+	
+	private static class Node extends Rope {
+		private final Rope left, right;
+		private final int length, height;
+		
+		private Node(Rope left, Rope right) {
+			this.left = left;
+			this.right = right;
+			length = left.length() + right.length();
+			height = Math.max(left.height(), right.height()) + 1;
+		}
+		
+		@Override
+		int height() {
+			return height;
+		}
+		
+		@Override
+		boolean isValid() {
+			return left.length() > 0 && right.length() > 0
+					&& length == left.length() + right.length()
+					&& height == Math.max(left.height(), right.height()) + 1
+					&& Math.abs(left.height() - right.height()) <= 1
+					&& left.isValid() && right.isValid();
+		}
+		
+		@Override
+		public int length() {
+			return length;
+		}
+		
+		@Override
+		public char charAt(int index) {
+			Rope node = this;
+			while (node instanceof Node) {
+				Node parent = (Node) node;
+				int leftLength = parent.left.length();
+				if (index < leftLength) {
+					node = parent.left;
+				} else {
+					node = parent.right;
+					index -= leftLength;
+				}
+			}
+			return node.charAt(index);
+		}
+		
+		@Override
+		Rope replaceInternal(int start, int end, CharSequence text) {
+			int leftLength = left.length();
+			
+			if (end <= leftLength && (end < leftLength || text.length() == 0 || start < end)) {
+				// All in the left side. Insertions right at the boundary go to the right side
+				// unless the left side is getting something deleted anyway.
+				return concat(left.replaceInternal(start, end, text), right);
+			} else if (start >= leftLength) {
+				return concat(left, right.replaceInternal(start - leftLength, end - leftLength, text));
+			} else {
+				Rope middle = text.length() == 0 ? EMPTY : of(text);
+				return concat(concat(left.subRopeInternal(0, start), middle), right.subRopeInternal(end - leftLength, right.length()));
+			}
+		}
+		
+		@Override
+		Rope subRopeInternal(int start, int end) {
+			int leftLength = left.length();
+			
+			if (end <= leftLength) {
+				return start == 0 && end == leftLength ? left : left.subRopeInternal(start, end);
+			} else if (start >= leftLength) {
+				return start == leftLength && end == length ? right : right.subRopeInternal(start - leftLength, end - leftLength);
+			} else {
+				return concat(left.subRopeInternal(start, leftLength), right.subRopeInternal(0, end - leftLength));
+			}
+		}
+		
+		@Override
+		void appendTo(StringBuilder builder, int start, int end) {
+			int leftLength = left.length();
+			if (start < leftLength) {
+				left.appendTo(builder, start, Math.min(end, leftLength));
+			}
+			if (end > leftLength) {
+				right.appendTo(builder, Math.max(start - leftLength, 0), end - leftLength);
+			}
+		}
+	}
+}
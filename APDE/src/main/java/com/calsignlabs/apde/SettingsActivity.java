@@ -44,6 +44,7 @@ import android.widget.TextView;
 
 import com.calsignlabs.apde.build.ExtractStaticBuildResources;
 import com.calsignlabs.apde.build.Build;
+import com.calsignlabs.apde.build.BuildMetrics;
 import com.calsignlabs.apde.build.SketchPreviewerBuilder;
 import com.calsignlabs.apde.support.CustomListPreference;
 import com.calsignlabs.apde.support.StockPreferenceFragment;
@@ -228,6 +229,19 @@ public class SettingsActivity extends AppCompatActivity implements PreferenceFra
 			});
 		}
 		
+		Preference exportMetrics = frag.findPreference("pref_build_export_metrics");
+		
+		if (exportMetrics != null) {
+			exportMetrics.setOnPreferenceClickListener(preference -> {
+				Intent intent = new Intent(Intent.ACTION_SEND);
+				intent.setType("application/json");
+				intent.putExtra(Intent.EXTRA_TEXT, BuildMetrics.exportHistory(this));
+				startActivity(Intent.createChooser(intent, getResources().getString(R.string.pref_build_export_metrics)));
+				
+				return true;
+			});
+		}
+		
 		Preference version = frag.findPreference("pref_about_version");
 		
 		if (version != null) {
@@ -381,6 +395,7 @@ public class SettingsActivity extends AppCompatActivity implements PreferenceFra
 		bindPreferenceSummaryToValue(frag.findPreference("pref_sketchbook_location"));
 		bindPreferenceSummaryToValue(frag.findPreference("pref_key_autosave_timeout"));
 		bindPreferenceSummaryToValue(frag.findPreference("pref_key_undo_redo_keep"));
+		bindPreferenceSummaryToValue(frag.findPreference("pref_console_max_lines"));
 		bindPreferenceSummaryToValue(frag.findPreference("pref_key_build_compile_timeout"));
 		bindPreferenceSummaryToValue(frag.findPreference("pref_build_modular_log_level"));
 		bindPreferenceSummaryToValue(frag.findPreference("pref_vr_default_renderer"));
@@ -20,6 +20,10 @@ import org.json.JSONObject;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -27,8 +31,7 @@ import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Collections;
 import java.util.List;
 
 /*
@@ -48,14 +51,27 @@ public class SketchFile extends BareSketchFile implements Parcelable {
 	//Current text is stored at the top of undoText
 	//Undo is stored behind current text in undoText
 	//Redo is stored in redoText
-	private LinkedList<FileChange> undo;
-	private LinkedList<FileChange> redo;
+	private UndoStack undo;
+	private UndoStack redo;
+	
+	/**
+	 * The amount of memory that the undo and redo history of a single tab can use, in bytes. Once
+	 * the history is bigger than this, the oldest changes are merged or dropped.
+	 */
+	public static final long UNDO_REDO_MEMORY_BUDGET = 1024 * 1024;
 	
 	//Whether or not we should save this (because we need this for some reason...?)
 	private boolean enabled;
 	
 	//Current text
-	protected String text;
+	protected Rope text;
+	
+	// Edits made in the code area since the last call to update(), combined into a single range.
+	// The code area reports every edit as it happens so that we never have to compare the whole
+	// text to find out what changed.
+	private Rope committedText;
+	private boolean hasPendingEdit;
+	private int pendingStart, pendingEnd, pendingGrowth;
 	
 	//Current selection
 	protected int selectionStart;
@@ -69,7 +85,7 @@ public class SketchFile extends BareSketchFile implements Parcelable {
 	
 	protected boolean isExample;
 	
-	private List<CompilerProblem> compilerProblems;
+	private volatile List<CompilerProblem> compilerProblems;
 	
 	/**
 	 * Used only for java files, the number of characters added to the start of the file for the
@@ -77,132 +93,17 @@ public class SketchFile extends BareSketchFile implements Parcelable {
 	 */
 	public int javaImportHeaderOffset = 0;
 	
-	public static class FileChange implements Parcelable {
-		public int changeIndex;
-		public String beforeText;
-		public String afterText;
-		
-		//Current selection
-		public int beforeSelectionStart;
-		public int beforeSelectionEnd;
-		
-		public int afterSelectionStart;
-		public int afterSelectionEnd;
-		
-		//Current scroll position;
-		public int beforeScrollX;
-		public int beforeScrollY;
-		
-		public int afterScrollX;
-		public int afterScrollY;
-		
-		public FileChange() {}
-		
-		@Override
-		public int describeContents() {
-			return 0;
-		}
-		
-		@Override
-		public void writeToParcel(Parcel dest, int flags) {
-			dest.writeInt(changeIndex);
-			dest.writeString(beforeText);
-			dest.writeString(afterText);
-			
-			dest.writeInt(beforeSelectionStart);
-			dest.writeInt(beforeSelectionEnd);
-			
-			dest.writeInt(afterSelectionStart);
-			dest.writeInt(afterSelectionEnd);
-			
-			dest.writeInt(beforeScrollX);
-			dest.writeInt(beforeScrollY);
-			
-			dest.writeInt(afterScrollX);
-			dest.writeInt(afterScrollY);
-		}
-		
-		private FileChange(Parcel source) {
-			changeIndex = source.readInt();
-			beforeText = source.readString();
-			afterText = source.readString();
-			
-			beforeSelectionStart = source.readInt();
-			beforeSelectionEnd = source.readInt();
-			
-			afterSelectionStart = source.readInt();
-			afterSelectionEnd = source.readInt();
-			
-			beforeScrollX = source.readInt();
-			beforeScrollY = source.readInt();
-			
-			afterScrollX = source.readInt();
-			afterScrollY = source.readInt();
-		}
-		
-		public static final Parcelable.Creator<FileChange> CREATOR = new Parcelable.Creator<FileChange>() {
-			@Override
-			public FileChange createFromParcel(Parcel source) {
-				return new FileChange(source);
-			}
-			
-			@Override
-			public FileChange[] newArray(int size) {
-				return new FileChange[size];
-			}
-		};
-		
-		public JSONObject toJsonObject() throws JSONException {
-			JSONObject json = new JSONObject();
-			
-			json.put("changeIndex", changeIndex);
-			json.put("beforeText", beforeText);
-			json.put("afterText", afterText);
-			
-			json.put("beforeSelectionStart", beforeSelectionStart);
-			json.put("beforeSelectionEnd", beforeSelectionEnd);
-			
-			json.put("afterSelectionStart", afterSelectionStart);
-			json.put("afterSelectionEnd", afterSelectionEnd);
-			
-			json.put("beforeScrollX", beforeScrollX);
-			json.put("beforeScrollY", beforeScrollY);
-			
-			json.put("afterScrollX", afterScrollX);
-			json.put("afterScrollY", afterScrollY);
-			
-			return json;
-		}
-		
-		public FileChange(JSONObject json) throws JSONException {
-			changeIndex = json.getInt("changeIndex");
-			beforeText = json.getString("beforeText");
-			afterText = json.getString("afterText");
-			
-			beforeSelectionStart = json.getInt("beforeSelectionStart");
-			beforeSelectionEnd = json.getInt("beforeSelectionEnd");
-			
-			afterSelectionStart = json.getInt("afterSelectionStart");
-			afterSelectionEnd = json.getInt("afterSelectionEnd");
-			
-			beforeScrollX = json.getInt("beforeScrollX");
-			beforeScrollY = json.getInt("beforeScrollY");
-			
-			afterScrollX = json.getInt("afterScrollX");
-			afterScrollY = json.getInt("afterScrollY");
-		}
-	}
-	
 	public SketchFile(String title) {
 		initFragment();
 		
 		setTitle(title);
 		setSuffix(".pde");
 		
-		undo = new LinkedList<>();
-		redo = new LinkedList<>();
+		undo = new UndoStack();
+		redo = new UndoStack();
 		
-		text = "";
+		text = Rope.EMPTY;
+		committedText = text;
 		selectionStart = 0;
 		selectionEnd = 0;
 		scrollX = 0;
@@ -219,10 +120,11 @@ public class SketchFile extends BareSketchFile implements Parcelable {
 		setTitle(title);
 		setSuffix(".pde");
 		
-		undo = new LinkedList<>();
-		redo = new LinkedList<>();
+		undo = new UndoStack();
+		redo = new UndoStack();
 		
-		this.text = text;
+		this.text = Rope.of(text);
+		committedText = this.text;
 		this.selectionStart = selectionStart;
 		this.selectionEnd = selectionEnd;
 		this.scrollX = scrollX;
@@ -233,34 +135,6 @@ public class SketchFile extends BareSketchFile implements Parcelable {
 		compilerProblems = new ArrayList<>();
 	}
 	
-	public static void getTextChange(FileChange change, String oldText, String newText) {
-		//Find the difference between the old text and the new text
-		//Compare text starting at both ends to find the difference in the middle
-		
-		int changeStart = 0;
-		int changeEnd = 0;
-		
-		int minLength = Math.min(oldText.length(), newText.length());
-		
-		while (changeStart < oldText.length() && changeStart < newText.length()
-				&& oldText.charAt(changeStart) == newText.charAt(changeStart)) {
-			changeStart++;
-		}
-		
-		while (changeEnd < oldText.length() && changeEnd < newText.length()
-				&& minLength - changeEnd > changeStart
-				&& oldText.charAt(oldText.length() - changeEnd - 1) == newText.charAt(newText.length() - changeEnd - 1)) {
-			changeEnd++;
-		}
-		
-		int beforeEnd = oldText.length() - changeEnd;
-		int afterEnd = newText.length() - changeEnd;
-		
-		change.changeIndex = changeStart;
-		change.beforeText = beforeEnd - changeStart > 0 ? oldText.substring(changeStart, beforeEnd) : "";
-		change.afterText = afterEnd - changeStart > 0 ? newText.substring(changeStart, afterEnd) : "";
-	}
-	
 	public FileChange getFileChange() {
 		EditText code = fragment.getCodeEditText();
 		
@@ -268,16 +142,12 @@ public class SketchFile extends BareSketchFile implements Parcelable {
 			return null;
 		}
 		
-		String codeText = code.getText().toString();
+		FileChange change = takePendingEdit(code);
 		
-		if (!text.equals(codeText)) {
+		if (change != null) {
 			HorizontalScrollView scrollerX = fragment.getCodeScrollerX();
 			ScrollView scrollerY = fragment.getCodeScroller();
 			
-			FileChange change = new FileChange();
-			
-			getTextChange(change, text, codeText);
-			
 			change.beforeSelectionStart = selectionStart;
 			change.beforeSelectionEnd = selectionEnd;
 			
@@ -296,6 +166,78 @@ public class SketchFile extends BareSketchFile implements Parcelable {
 		return null;
 	}
 	
+	/**
+	 * Called by the code area for every edit, as it happens. Keeps the text in sync with the code
+	 * area without copying it.
+	 *
+	 * @param start the start of the edit
+	 * @param before the number of characters that were replaced
+	 * @param inserted the characters that replaced them
+	 */
+	public void onEdit(int start, int before, CharSequence inserted) {
+		int end = start + before;
+		
+		// Grow the pending range to cover this edit. Everything outside of the range is the same
+		// as it was in the committed text.
+		if (hasPendingEdit) {
+			pendingEnd = Math.max(pendingEnd, end);
+			pendingStart = Math.min(pendingStart, start);
+		} else {
+			pendingStart = start;
+			pendingEnd = end;
+			hasPendingEdit = true;
+		}
+		pendingEnd += inserted.length() - before;
+		pendingGrowth += inserted.length() - before;
+		
+		text = text.replace(start, end, inserted);
+	}
+	
+	/**
+	 * Forget about the edits made since the last update, because the code area has been set to
+	 * the current text.
+	 */
+	protected void clearPendingEdit() {
+		hasPendingEdit = false;
+		pendingGrowth = 0;
+		committedText = text;
+	}
+	
+	/**
+	 * @param code the code area
+	 * @return the change made by the pending edits, or null if nothing has changed
+	 */
+	private FileChange takePendingEdit(EditText code) {
+		if (text.length() != code.getText().length()) {
+			// Something got past onEdit(), so we're out of sync. Fall back to comparing the
+			// whole text.
+			System.err.println("Text of " + getFilename() + " is out of sync with the code area");
+			text = Rope.of(code.getText());
+			hasPendingEdit = true;
+			pendingStart = 0;
+			pendingEnd = text.length();
+			pendingGrowth = text.length() - committedText.length();
+		}
+		
+		if (!hasPendingEdit) {
+			return null;
+		}
+		
+		FileChange change = new FileChange();
+		FileChange.getTextChange(change, committedText.substring(pendingStart, pendingEnd - pendingGrowth),
+				text.substring(pendingStart, pendingEnd));
+		change.changeIndex += pendingStart;
+		
+		clearPendingEdit();
+		
+		// The edits might have cancelled each other out
+		if (change.beforeText.length() == 0 && change.afterText.length() == 0) {
+			return null;
+		}
+		
+		return change;
+	}
+	
 	public void update(EditorActivity context, boolean undoRedo) {
 		if (undoRedo) {
 			FileChange change = getFileChange();
@@ -306,8 +248,6 @@ public class SketchFile extends BareSketchFile implements Parcelable {
 				
 				applyUndoRedoLimit(context);
 				
-				text = fragment.getCodeEditText().getText().toString();
-				
 				selectionStart = change.afterSelectionStart;
 				selectionEnd = change.afterSelectionEnd;
 				scrollX = change.afterScrollX;
@@ -338,7 +278,7 @@ public class SketchFile extends BareSketchFile implements Parcelable {
 			HorizontalScrollView scrollerX = fragment.getCodeScrollerX();
 			ScrollView scrollerY = fragment.getCodeScroller();
 			
-			text = code.getText().toString();
+			takePendingEdit(code);
 			
 			selectionStart = code.getSelectionStart();
 			selectionEnd = code.getSelectionEnd();
@@ -349,12 +289,24 @@ public class SketchFile extends BareSketchFile implements Parcelable {
 	}
 	
 	public void update(EditorActivity context, FileChange change) {
-		clearRedo();
-		undo.push(change);
-		
-		applyUndoRedoLimit(context);
+		update(context, change, true);
+	}
+	
+	/**
+	 * Apply a change that was made somewhere other than the code area, e.g. replace all.
+	 *
+	 * @param undoRedo whether or not to record the change so that it can be undone
+	 */
+	public void update(EditorActivity context, FileChange change, boolean undoRedo) {
+		if (undoRedo) {
+			clearRedo();
+			undo.push(change);
+			
+			applyUndoRedoLimit(context);
+		}
 		
-		text = text.substring(0, change.changeIndex) + change.afterText + text.substring(change.changeIndex + change.beforeText.length());
+		text = text.replace(change.changeIndex, change.changeIndex + change.beforeText.length(), change.afterText);
+		committedText = text;
 		
 		selectionStart = change.afterSelectionStart;
 		selectionEnd = change.afterSelectionEnd;
@@ -387,14 +339,19 @@ public class SketchFile extends BareSketchFile implements Parcelable {
 			result.afterScrollX = top.afterScrollX;
 			result.afterScrollY = top.afterScrollY;
 			
-			//Merge the changes (this isn't the prettiest way to do it...)
+			//Merge the changes: find the range in the text between the two changes that covers
+			//both of them, and only compare that much of the text before and after
 			
-			String beforeText = new String(text);
+			Rope middleText = text.replace(top.changeIndex, top.changeIndex + top.afterText.length(), top.beforeText);
+			Rope beforeText = middleText.replace(bottom.changeIndex, bottom.changeIndex + bottom.afterText.length(), bottom.beforeText);
 			
-			beforeText = beforeText.substring(0, top.changeIndex) + top.beforeText + beforeText.substring(top.changeIndex + top.afterText.length());
-			beforeText = beforeText.substring(0, bottom.changeIndex) + bottom.beforeText + beforeText.substring(bottom.changeIndex + bottom.afterText.length());
+			int start = Math.min(bottom.changeIndex, top.changeIndex);
+			int end = Math.max(bottom.changeIndex + bottom.afterText.length(), top.changeIndex + top.beforeText.length());
+			int bottomGrowth = bottom.afterText.length() - bottom.beforeText.length();
+			int topGrowth = top.afterText.length() - top.beforeText.length();
 			
-			getTextChange(result, beforeText, text);
+			FileChange.getTextChange(result, beforeText.substring(start, end - bottomGrowth), text.substring(start, end + topGrowth));
+			result.changeIndex += start;
 			
 			//Re-add the change
 			undo.push(result);
@@ -407,13 +364,15 @@ public class SketchFile extends BareSketchFile implements Parcelable {
 		if (limit != -1) {
 			trimEntries(limit);
 		}
+		
+		// Always keep the most recent change so that the user can undo it
+		undo.compact(UNDO_REDO_MEMORY_BUDGET - redo.memoryUsage(), 1);
 	}
 	
 	public void trimEntries(int limit) {
 		//Remove old changes to stay within the limit
-		//TODO potentially compact changes in the middle to save more history...
 		while (undo.size() + redo.size() > limit && undo.size() > 0) {
-			undo.removeLast();
+			undo.removeOldest();
 		}
 	}
 	
@@ -472,6 +431,13 @@ public class SketchFile extends BareSketchFile implements Parcelable {
 	
 	@Override
 	public String getText() {
+		return text.toString();
+	}
+	
+	/**
+	 * @return the current text, without copying it
+	 */
+	public Rope getDocument() {
 		return text;
 	}
 	
@@ -491,7 +457,8 @@ public class SketchFile extends BareSketchFile implements Parcelable {
 			FileChange restoreTo = undo.pop();
 			redo.push(restoreTo);
 			
-			text = text.substring(0, restoreTo.changeIndex) + restoreTo.beforeText + text.substring(restoreTo.changeIndex + restoreTo.afterText.length());
+			text = text.replace(restoreTo.changeIndex, restoreTo.changeIndex + restoreTo.afterText.length(), restoreTo.beforeText);
+			committedText = text;
 			
 			selectionStart = restoreTo.beforeSelectionStart;
 			selectionEnd = restoreTo.beforeSelectionEnd;
@@ -507,7 +474,8 @@ public class SketchFile extends BareSketchFile implements Parcelable {
 			FileChange restoreTo = redo.pop();
 			undo.push(restoreTo);
 			
-			text = text.substring(0, restoreTo.changeIndex) + restoreTo.afterText + text.substring(restoreTo.changeIndex + restoreTo.beforeText.length());
+			text = text.replace(restoreTo.changeIndex, restoreTo.changeIndex + restoreTo.beforeText.length(), restoreTo.afterText);
+			committedText = text;
 			
 			selectionStart = restoreTo.afterSelectionStart;
 			selectionEnd = restoreTo.afterSelectionEnd;
@@ -525,6 +493,7 @@ public class SketchFile extends BareSketchFile implements Parcelable {
 		
 		//Update the code area text
 		code.setNoUndoText(getText());
+		clearPendingEdit();
 		//Update the code area selection
 		code.setSelection(getSelectionStart(), getSelectionEnd());
 		
@@ -604,7 +573,8 @@ public class SketchFile extends BareSketchFile implements Parcelable {
 			}
 			
 			// Set the data
-			text = handleBadChars(output.toString());
+			text = Rope.of(handleBadChars(output.toString()));
+			clearPendingEdit();
 			
 			return true;
 		} catch (Exception e) {
@@ -669,14 +639,18 @@ public class SketchFile extends BareSketchFile implements Parcelable {
 		dest.writeString(title);
 		dest.writeString(suffix);
 		
-		dest.writeList(undo);
-		dest.writeList(redo);
+		try {
+			dest.writeByteArray(getUndoRedoBytes());
+		} catch (IOException e) {
+			e.printStackTrace();
+			dest.writeByteArray(null);
+		}
 		
 		dest.writeByte((byte) (enabled ? 1 : 0));
 		
 		dest.writeInt(tabNum);
 		
-		dest.writeString(text);
+		dest.writeString(getText());
 		
 		dest.writeInt(selectionStart);
 		dest.writeInt(selectionEnd);
@@ -691,17 +665,24 @@ public class SketchFile extends BareSketchFile implements Parcelable {
 		title = source.readString();
 		suffix = source.readString();
 		
-		undo = new LinkedList<>();
-		redo = new LinkedList<>();
+		undo = new UndoStack();
+		redo = new UndoStack();
 		
-		source.readList(undo, getClass().getClassLoader());
-		source.readList(redo, getClass().getClassLoader());
+		byte[] undoRedo = source.createByteArray();
+		if (undoRedo != null) {
+			try {
+				setUndoRedoBytes(undoRedo);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
 		
 		enabled = source.readByte() != 0;
 		
 		tabNum = source.readInt();
 		
-		text = source.readString();
+		text = Rope.of(source.readString());
+		committedText = text;
 		
 		selectionStart = source.readInt();
 		selectionEnd = source.readInt();
@@ -735,48 +716,117 @@ public class SketchFile extends BareSketchFile implements Parcelable {
 		return otherSketchFile.getFilename().equals(getFilename()) && otherSketchFile.getText().equals(getText());
 	}
 	
-	public JSONObject getUndoRedoHistory() throws JSONException, NoSuchAlgorithmException {
-		JSONObject history = new JSONObject();
-		
-		String md5 = getChecksum(getText());
-		
-		JSONArray undoList = new JSONArray(), redoList = new JSONArray();
-		
-		// Save in reverse order so that we can populate back-to-front
-		Iterator<FileChange> iterator = undo.descendingIterator();
-		while (iterator.hasNext()) undoList.put(iterator.next().toJsonObject());
-		iterator = redo.descendingIterator();
-		while (iterator.hasNext()) redoList.put(iterator.next().toJsonObject());
-		
-		history.put("checksum", md5);
-		history.put("undo", undoList);
-		history.put("redo", redoList);
-		
-		return history;
+	/**
+	 * Get the undo/redo history in a compact binary format, for saving.
+	 *
+	 * @return the history
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public byte[] getUndoRedoHistory() throws IOException, NoSuchAlgorithmException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(getChecksum(getText()));
+		out.write(getUndoRedoBytes());
+		out.flush();
+		return bytes.toByteArray();
 	}
 	
-	public void populateUndoRedoHistory(JSONObject history) throws JSONException, NoSuchAlgorithmException {
+	/**
+	 * Restore the undo/redo history saved by {@link #getUndoRedoHistory()}.
+	 *
+	 * @param history the history
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public void populateUndoRedoHistory(byte[] history) throws IOException, NoSuchAlgorithmException {
 		if (undo.size() != 0 || redo.size() != 0) {
 			throw new IllegalStateException("Trying to populate undo/redo history when there is already history");
 		}
 		
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(history));
+		
 		// If the user edited the files with a different app *gasp* then undo/redo will be broken.
 		// Prevent breaking things by comparing checksums.
-		String md5Current = getChecksum(text), md5Previous = history.getString("checksum");
+		String md5Current = getChecksum(getText()), md5Previous = in.readUTF();
 		if (!md5Current.equals(md5Previous)) {
 			System.err.println("File " + getFilename() + " has been modified since last saved with APDE.");
 			System.err.println("This is perfectly fine, but undo/redo history will be lost.");
 			return;
 		}
 		
+		UndoStack newUndo = UndoStack.readFrom(in);
+		UndoStack newRedo = UndoStack.readFrom(in);
+		undo = newUndo;
+		redo = newRedo;
+	}
+	
+	/**
+	 * Convert an undo/redo history saved as JSON by older versions of APDE into the format read
+	 * by {@link #populateUndoRedoHistory(byte[])}.
+	 *
+	 * @param history the old history
+	 * @return the history
+	 * @throws JSONException
+	 * @throws IOException
+	 */
+	public static byte[] convertLegacyUndoRedoHistory(JSONObject history) throws JSONException, IOException {
+		// The changes were saved oldest first
+		UndoStack undo = new UndoStack();
 		JSONArray undoArray = history.getJSONArray("undo");
 		for (int i = 0; i < undoArray.length(); i++) {
-			undo.push(new FileChange(undoArray.getJSONObject(i)));
+			undo.push(readLegacyFileChange(undoArray.getJSONObject(i)));
 		}
+		UndoStack redo = new UndoStack();
 		JSONArray redoArray = history.getJSONArray("redo");
 		for (int i = 0; i < redoArray.length(); i++) {
-			redo.push(new FileChange(redoArray.getJSONObject(i)));
+			redo.push(readLegacyFileChange(redoArray.getJSONObject(i)));
 		}
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(history.getString("checksum"));
+		undo.writeTo(out);
+		redo.writeTo(out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+	
+	private static FileChange readLegacyFileChange(JSONObject json) throws JSONException {
+		FileChange change = new FileChange();
+		
+		change.changeIndex = json.getInt("changeIndex");
+		change.beforeText = json.getString("beforeText");
+		change.afterText = json.getString("afterText");
+		
+		change.beforeSelectionStart = json.getInt("beforeSelectionStart");
+		change.beforeSelectionEnd = json.getInt("beforeSelectionEnd");
+		
+		change.afterSelectionStart = json.getInt("afterSelectionStart");
+		change.afterSelectionEnd = json.getInt("afterSelectionEnd");
+		
+		change.beforeScrollX = json.getInt("beforeScrollX");
+		change.beforeScrollY = json.getInt("beforeScrollY");
+		
+		change.afterScrollX = json.getInt("afterScrollX");
+		change.afterScrollY = json.getInt("afterScrollY");
+		
+		return change;
+	}
+	
+	private byte[] getUndoRedoBytes() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		undo.writeTo(out);
+		redo.writeTo(out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+	
+	private void setUndoRedoBytes(byte[] bytes) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		undo = UndoStack.readFrom(in);
+		redo = UndoStack.readFrom(in);
 	}
 	
 	/**
@@ -799,15 +849,51 @@ public class SketchFile extends BareSketchFile implements Parcelable {
 	 * @param problems
 	 */
 	public void setCompilerProblems(List<CompilerProblem> problems, int i) {
-		compilerProblems.clear();
+		List<CompilerProblem> tabProblems = new ArrayList<>();
 		for (CompilerProblem problem : problems) {
 			if (problem.sketchFile != null && problem.sketchFile.getIndex() == i) {
-				compilerProblems.add(problem);
+				tabProblems.add(problem);
 			}
 		}
+		
+		// Sort by line so that the code area can find the problems on the lines that it is drawing
+		Collections.sort(tabProblems, (a, b) -> Integer.compare(a.line, b.line));
+		
+		// Swap in a new list rather than changing the old one, it is read while drawing
+		compilerProblems = tabProblems;
 	}
 	
+	/**
+	 * @return the compiler problems in this tab, sorted by line
+	 */
 	public List<CompilerProblem> getCompilerProblems() {
 		return compilerProblems;
 	}
+	
+	/**
+	 * Get the compiler problems on the given range of lines.
+	 *
+	 * @param firstLine the first line, inclusive
+	 * @param lastLine the last line, inclusive
+	 * @return the problems, sorted by line
+	 */
+	public List<CompilerProblem> getCompilerProblems(int firstLine, int lastLine) {
+		List<CompilerProblem> problems = compilerProblems;
+		int start = firstProblemOnOrAfter(problems, firstLine);
+		int end = firstProblemOnOrAfter(problems, lastLine + 1);
+		return problems.subList(start, Math.max(start, end));
+	}
+	
+	private static int firstProblemOnOrAfter(List<CompilerProblem> problems, int line) {
+		int low = 0, high = problems.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (problems.get(mid).line < line) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
 }
\ No newline at end of file
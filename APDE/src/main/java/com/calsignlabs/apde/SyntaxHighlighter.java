@@ -0,0 +1,392 @@
+package com.calsignlabs.apde;
+
+import android.text.TextPaint;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Incremental, line-based syntax highlighter for the code area.
+ *
+ * The only lexer state that carries over from one line to the next is whether or not we are in a
+ * multi-line comment (single-line comments and literals end with the line). We keep the state
+ * at the start of every line along with its tokens, so when the text changes we only have to
+ * re-lex from the first changed line until the state at the start of a line matches what it was
+ * before. Everything after that is reused as is.
+ *
+ * All of the code areas share a single background thread. If the text changes several times
+ * while the highlighter is busy, only the latest text is highlighted.
+ */
+public class SyntaxHighlighter {
+	// Characters that separate tokens, each one is a token of its own
+	private static final boolean[] DELIMITERS = new boolean[128];
+	
+	static {
+		for (char c : new char[] {'!', '(', ')', '[', ']', '{', '}', '=', '+', '-', '/', '*', '"', '\'', '%', '&', '|', '?', ':', ';', '<', '>', ',', '.', ' ', '\\'}) {
+			DELIMITERS[c] = true;
+		}
+	}
+	
+	private static final ExecutorService WORKER = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "Syntax highlighter");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	/**
+	 * A run of text drawn with a paint other than the base paint. Base text is drawn by the
+	 * EditText itself, so it isn't stored.
+	 */
+	public static class Token {
+		public final String text;
+		public final int offset;
+		public final TextPaint paint;
+		
+		private Token(String text, int offset, TextPaint paint) {
+			this.text = text;
+			this.offset = offset;
+			this.paint = paint;
+		}
+	}
+	
+	private static class Line {
+		private final String text;
+		private final boolean startsInComment, endsInComment;
+		private final Token[] tokens;
+		
+		private Line(String text, boolean startsInComment, boolean endsInComment, Token[] tokens) {
+			this.text = text;
+			this.startsInComment = startsInComment;
+			this.endsInComment = endsInComment;
+			this.tokens = tokens;
+		}
+	}
+	
+	private static final Token[] NO_TOKENS = new Token[0];
+	
+	public interface Listener {
+		/**
+		 * Called from the highlighter thread when new tokens are available.
+		 */
+		void onHighlighted();
+	}
+	
+	private CodeEditText code;
+	private Listener listener;
+	
+	// Only touched from the highlighter thread
+	private List<Line> lines;
+	private boolean lexedWithSyntax;
+	
+	// The most recent results, for drawing
+	private volatile Line[] published;
+	
+	private AtomicReference<CharSequence> pendingText;
+	private AtomicBoolean scheduled;
+	private volatile boolean flagReset;
+	
+	public SyntaxHighlighter(CodeEditText code, Listener listener) {
+		this.code = code;
+		this.listener = listener;
+		
+		lines = new ArrayList<>();
+		pendingText = new AtomicReference<>();
+		scheduled = new AtomicBoolean(false);
+	}
+	
+	/**
+	 * Highlight the given text in the background. Only the lines that have changed since the last
+	 * update are lexed again.
+	 *
+	 * @param text the full text of the code area, which must not change afterwards (e.g. a
+	 *             String or a {@link Rope})
+	 */
+	public void update(CharSequence text) {
+		pendingText.set(text);
+		
+		// If the worker is already scheduled, it will pick up the new text when it gets to it
+		if (scheduled.compareAndSet(false, true)) {
+			WORKER.execute(this::drain);
+		}
+	}
+	
+	/**
+	 * Throw out all of the tokens. The next update highlights the whole text again.
+	 */
+	public void clear() {
+		published = null;
+		flagReset = true;
+	}
+	
+	/**
+	 * @return whether or not there are tokens to draw
+	 */
+	public boolean hasTokens() {
+		return published != null;
+	}
+	
+	/**
+	 * @return the number of lines that have been highlighted
+	 */
+	public int getLineCount() {
+		Line[] current = published;
+		return current == null ? 0 : current.length;
+	}
+	
+	/**
+	 * @param line the line number
+	 * @return the tokens on the given line, or an empty array if it hasn't been highlighted
+	 */
+	public Token[] getTokens(int line) {
+		Line[] current = published;
+		if (current == null || line < 0 || line >= current.length) {
+			return NO_TOKENS;
+		}
+		return current[line].tokens;
+	}
+	
+	/**
+	 * @return whether or not the highlighter has text that it hasn't finished highlighting
+	 */
+	public boolean isUpdating() {
+		return scheduled.get();
+	}
+	
+	private void drain() {
+		while (true) {
+			CharSequence text = pendingText.getAndSet(null);
+			
+			if (text == null) {
+				scheduled.set(false);
+				
+				// Text might have come in between the check and clearing the flag
+				if (pendingText.get() == null || !scheduled.compareAndSet(false, true)) {
+					return;
+				}
+				continue;
+			}
+			
+			// Flatten the text here rather than on the UI thread
+			highlight(text.toString());
+			listener.onHighlighted();
+		}
+	}
+	
+	private void highlight(String text) {
+		boolean syntaxLoaded = CodeEditText.syntaxLoaded.get();
+		
+		// If the keywords have been loaded since we last lexed, then all of the old tokens are wrong
+		if (flagReset || syntaxLoaded != lexedWithSyntax) {
+			flagReset = false;
+			lines.clear();
+			lexedWithSyntax = syntaxLoaded;
+		}
+		
+		String[] newLines = splitLines(text);
+		int oldCount = lines.size();
+		int newCount = newLines.length;
+		
+		// Find the lines that haven't changed at the start and end
+		int prefix = 0;
+		int maxMatch = Math.min(oldCount, newCount);
+		while (prefix < maxMatch && lines.get(prefix).text.equals(newLines[prefix])) {
+			prefix ++;
+		}
+		int suffix = 0;
+		while (suffix < maxMatch - prefix && lines.get(oldCount - 1 - suffix).text.equals(newLines[newCount - 1 - suffix])) {
+			suffix ++;
+		}
+		
+		List<Line> result = new ArrayList<>(newCount);
+		result.addAll(lines.subList(0, prefix));
+		
+		boolean inComment = prefix > 0 && lines.get(prefix - 1).endsInComment;
+		
+		int i = prefix;
+		for (; i < newCount; i ++) {
+			if (i >= newCount - suffix) {
+				// Once we're back in the unchanged lines, we can stop as soon as the state is the
+				// same as it was last time
+				if (lines.get(i - newCount + oldCount).startsInComment == inComment) {
+					break;
+				}
+			}
+			
+			Line line = lexLine(newLines[i], inComment);
+			result.add(line);
+			inComment = line.endsInComment;
+		}
+		for (; i < newCount; i ++) {
+			result.add(lines.get(i - newCount + oldCount));
+		}
+		
+		lines = result;
+		
+		// Tokens from a clear() that came in while we were working would be outdated
+		if (!flagReset) {
+			published = result.toArray(new Line[result.size()]);
+		}
+	}
+	
+	private static String[] splitLines(String text) {
+		int count = 1;
+		for (int i = 0; i < text.length(); i ++) {
+			if (text.charAt(i) == '\n') {
+				count ++;
+			}
+		}
+		
+		String[] lines = new String[count];
+		int start = 0, line = 0;
+		for (int i = 0; i < text.length(); i ++) {
+			if (text.charAt(i) == '\n') {
+				lines[line ++] = text.substring(start, i);
+				start = i + 1;
+			}
+		}
+		lines[line] = text.substring(start);
+		
+		return lines;
+	}
+	
+	private static boolean isDelimiter(char c) {
+		return c < DELIMITERS.length && DELIMITERS[c];
+	}
+	
+	/**
+	 * Split a line into tokens: every delimiter is a token, and so is every run of characters in
+	 * between.
+	 */
+	private static List<String> splitTokens(String line, List<Integer> offsets) {
+		List<String> tokens = new ArrayList<>();
+		
+		int start = 0;
+		for (int i = 0; i < line.length(); i ++) {
+			if (isDelimiter(line.charAt(i))) {
+				if (i > start) {
+					tokens.add(line.substring(start, i));
+					offsets.add(start);
+				}
+				tokens.add(line.substring(i, i + 1));
+				offsets.add(i);
+				start = i + 1;
+			}
+		}
+		if (start < line.length()) {
+			tokens.add(line.substring(start));
+			offsets.add(start);
+		}
+		
+		return tokens;
+	}
+	
+	private Line lexLine(String text, boolean startsInComment) {
+		List<Integer> offsets = new ArrayList<>();
+		List<String> tokens = splitTokens(text, offsets);
+		int count = tokens.size();
+		
+		// For each token, whether or not the next token that isn't a space is "("
+		boolean[] beforeParen = new boolean[count];
+		boolean nextIsParen = false;
+		for (int i = count - 1; i >= 0; i --) {
+			beforeParen[i] = nextIsParen;
+			String token = tokens.get(i);
+			if (!token.equals(" ")) {
+				nextIsParen = token.equals("(");
+			}
+		}
+		
+		TextPaint basePaint = CodeEditText.styles.get("base");
+		
+		boolean multiLineComment = startsInComment;
+		boolean singleLineComment = false;
+		boolean stringLiteral = false;
+		boolean charLiteral = false;
+		
+		int startLiteral = -1;
+		
+		String prev = "";
+		boolean escaped = false, prevEscaped;
+		
+		List<Token> output = new ArrayList<>();
+		StringBuilder run = new StringBuilder();
+		TextPaint runPaint = null;
+		int runOffset = 0;
+		
+		for (int i = 0; i < count; i ++) {
+			String token = tokens.get(i);
+			String next = i < count - 1 ? tokens.get(i + 1) : "";
+			
+			prevEscaped = escaped;
+			escaped = prev.equals("\\");
+			
+			if (stringLiteral && prev.equals("\"") && i > startLiteral + 1 && !prevEscaped) {
+				stringLiteral = false;
+			}
+			
+			if (charLiteral && prev.equals("'") && i > startLiteral + 1 && !prevEscaped) {
+				charLiteral = false;
+			}
+			
+			if (!multiLineComment && !singleLineComment && !stringLiteral && !charLiteral) {
+				if (token.equals("/") && next.equals("/")) {
+					singleLineComment = true;
+				} else if (token.equals("/") && next.equals("*")) {
+					multiLineComment = true;
+				}
+			}
+			
+			if (!stringLiteral && !multiLineComment && !singleLineComment && !charLiteral && token.equals("\"")) {
+				stringLiteral = true;
+				startLiteral = i;
+			}
+			
+			if (!charLiteral && !multiLineComment && !singleLineComment && !stringLiteral && token.equals("'")) {
+				charLiteral = true;
+				startLiteral = i;
+			}
+			
+			TextPaint paint;
+			if (singleLineComment) {
+				paint = CodeEditText.styles.get("comment_single");
+			} else if (multiLineComment) {
+				paint = CodeEditText.styles.get("comment_multi");
+			} else if (stringLiteral) {
+				paint = CodeEditText.styles.get("literal_string");
+			} else if (charLiteral) {
+				paint = CodeEditText.styles.get("literal_char");
+			} else {
+				Keyword keyword = code.getKeyword(token, beforeParen[i]);
+				paint = keyword != null ? keyword.paint() : basePaint;
+			}
+			
+			if (multiLineComment && prev.equals("*") && token.equals("/")) {
+				multiLineComment = false;
+			}
+			
+			prev = token;
+			
+			// Join runs of the same paint so that there is less to draw
+			if (paint != runPaint) {
+				if (runPaint != null && runPaint != basePaint) {
+					output.add(new Token(run.toString(), runOffset, runPaint));
+				}
+				run.setLength(0);
+				runPaint = paint;
+				runOffset = offsets.get(i);
+			}
+			run.append(token);
+		}
+		
+		if (runPaint != null && runPaint != basePaint) {
+			output.add(new Token(run.toString(), runOffset, runPaint));
+		}
+		
+		return new Line(text, startsInComment, multiLineComment,
+				output.isEmpty() ? NO_TOKENS : output.toArray(new Token[output.size()]));
+	}
+}
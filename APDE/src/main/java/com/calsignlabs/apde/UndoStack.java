@@ -0,0 +1,421 @@
+package com.calsignlabs.apde;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A stack of {@link FileChange}s, stored compactly. Rather than keeping two strings
+ * and a handful of boxed fields per change, the text of every change is encoded (mostly as UTF-8) into a
+ * single byte arena, and the rest of each change is packed into an int array. Changes are only
+ * turned back into objects when they are popped.
+ *
+ * Since the stack only ever grows and shrinks at the top, the text of the top change is always
+ * at the end of the arena, so popping frees its space straight away. Dropping the oldest changes
+ * leaves a gap at the start of the arena, which is reclaimed once it gets big enough.
+ */
+public class UndoStack {
+	// The fields of each change in the record array
+	private static final int CHANGE_INDEX = 0;
+	private static final int BEFORE_OFFSET = 1;
+	private static final int BEFORE_LENGTH = 2;
+	private static final int AFTER_LENGTH = 3;
+	private static final int BEFORE_SELECTION_START = 4;
+	private static final int BEFORE_SELECTION_END = 5;
+	private static final int AFTER_SELECTION_START = 6;
+	private static final int AFTER_SELECTION_END = 7;
+	private static final int BEFORE_SCROLL_X = 8;
+	private static final int BEFORE_SCROLL_Y = 9;
+	private static final int AFTER_SCROLL_X = 10;
+	private static final int AFTER_SCROLL_Y = 11;
+	private static final int STRIDE = 12;
+	
+	/**
+	 * Bump this whenever the binary format changes.
+	 */
+	private static final int FORMAT_VERSION = 1;
+	
+	// The before text of a change is followed directly by its after text
+	private byte[] arena;
+	private int arenaStart, arenaEnd;
+	
+	// Oldest change first
+	private int[] records;
+	private int first, count;
+	
+	public UndoStack() {
+		arena = new byte[256];
+		records = new int[STRIDE * 8];
+	}
+	
+	/**
+	 * @return the number of changes in the stack
+	 */
+	public int size() {
+		return count;
+	}
+	
+	public boolean isEmpty() {
+		return count == 0;
+	}
+	
+	/**
+	 * @return roughly how many bytes of memory the changes take up
+	 */
+	public long memoryUsage() {
+		return (long) (arenaEnd - arenaStart) + (long) count * STRIDE * 4;
+	}
+	
+	public void push(FileChange change) {
+		byte[] before = encode(change.beforeText);
+		byte[] after = encode(change.afterText);
+		
+		ensureArenaCapacity(before.length + after.length);
+		int offset = arenaEnd;
+		System.arraycopy(before, 0, arena, arenaEnd, before.length);
+		arenaEnd += before.length;
+		System.arraycopy(after, 0, arena, arenaEnd, after.length);
+		arenaEnd += after.length;
+		
+		ensureRecordCapacity();
+		int r = (first + count) * STRIDE;
+		records[r + CHANGE_INDEX] = change.changeIndex;
+		records[r + BEFORE_OFFSET] = offset;
+		records[r + BEFORE_LENGTH] = before.length;
+		records[r + AFTER_LENGTH] = after.length;
+		records[r + BEFORE_SELECTION_START] = change.beforeSelectionStart;
+		records[r + BEFORE_SELECTION_END] = change.beforeSelectionEnd;
+		records[r + AFTER_SELECTION_START] = change.afterSelectionStart;
+		records[r + AFTER_SELECTION_END] = change.afterSelectionEnd;
+		records[r + BEFORE_SCROLL_X] = change.beforeScrollX;
+		records[r + BEFORE_SCROLL_Y] = change.beforeScrollY;
+		records[r + AFTER_SCROLL_X] = change.afterScrollX;
+		records[r + AFTER_SCROLL_Y] = change.afterScrollY;
+		count ++;
+	}
+	
+	/**
+	 * @return the newest change, after removing it from the stack
+	 */
+	public FileChange pop() {
+		if (count == 0) {
+			throw new IllegalStateException("Undo stack is empty");
+		}
+		FileChange change = get(count - 1);
+		// The newest change is always at the end of the arena
+		arenaEnd = records[(first + count - 1) * STRIDE + BEFORE_OFFSET];
+		count --;
+		if (count == 0) {
+			clear();
+		}
+		return change;
+	}
+	
+	/**
+	 * @param i the index of the change, 0 being the oldest
+	 * @return the change
+	 */
+	public FileChange get(int i) {
+		if (i < 0 || i >= count) {
+			throw new IndexOutOfBoundsException("Index " + i + " out of bounds for size " + count);
+		}
+		int r = (first + i) * STRIDE;
+		int offset = records[r + BEFORE_OFFSET];
+		int beforeLength = records[r + BEFORE_LENGTH];
+		
+		FileChange change = new FileChange();
+		change.changeIndex = records[r + CHANGE_INDEX];
+		change.beforeText = decode(offset, beforeLength);
+		change.afterText = decode(offset + beforeLength, records[r + AFTER_LENGTH]);
+		change.beforeSelectionStart = records[r + BEFORE_SELECTION_START];
+		change.beforeSelectionEnd = records[r + BEFORE_SELECTION_END];
+		change.afterSelectionStart = records[r + AFTER_SELECTION_START];
+		change.afterSelectionEnd = records[r + AFTER_SELECTION_END];
+		change.beforeScrollX = records[r + BEFORE_SCROLL_X];
+		change.beforeScrollY = records[r + BEFORE_SCROLL_Y];
+		change.afterScrollX = records[r + AFTER_SCROLL_X];
+		change.afterScrollY = records[r + AFTER_SCROLL_Y];
+		return change;
+	}
+	
+	/**
+	 * Drop the oldest change.
+	 */
+	public void removeOldest() {
+		if (count == 0) {
+			return;
+		}
+		first ++;
+		count --;
+		if (count == 0) {
+			clear();
+			return;
+		}
+		arenaStart = records[first * STRIDE + BEFORE_OFFSET];
+		
+		// Reclaim the space at the start once it is more than half of the arena
+		if (arenaStart > arena.length / 2) {
+			compactArena();
+		}
+	}
+	
+	public void clear() {
+		arenaStart = arenaEnd = 0;
+		first = count = 0;
+		if (arena.length > 64 * 1024) {
+			arena = new byte[256];
+			records = new int[STRIDE * 8];
+		}
+	}
+	
+	/**
+	 * Shrink the stack until it fits in the given amount of memory. The oldest changes are merged
+	 * together into checkpoints where they touch each other (e.g. a run of typing), which keeps the
+	 * history but loses the steps in between. Changes that can't be merged are dropped.
+	 *
+	 * @param budget the number of bytes that the stack is allowed to use
+	 * @param minSize don't shrink the stack below this many changes
+	 */
+	public void compact(long budget, int minSize) {
+		while (memoryUsage() > budget && count > minSize) {
+			if (count >= 2) {
+				FileChange merged = merge(get(0), get(1));
+				if (merged != null) {
+					replaceOldestTwo(merged);
+					continue;
+				}
+			}
+			removeOldest();
+		}
+	}
+	
+	/**
+	 * Merge two consecutive changes into one, without the text that they were made to. This only
+	 * works if the second change touches the text of the first one, otherwise we would need the
+	 * text in between them.
+	 *
+	 * @param bottom the older change
+	 * @param top the newer change
+	 * @return the merged change, or null if they don't touch
+	 */
+	static FileChange merge(FileChange bottom, FileChange top) {
+		// Work in the text between the two changes
+		int bottomStart = bottom.changeIndex, bottomEnd = bottomStart + bottom.afterText.length();
+		int topStart = top.changeIndex, topEnd = topStart + top.beforeText.length();
+		
+		if (topStart > bottomEnd || topEnd < bottomStart) {
+			return null;
+		}
+		
+		int start = Math.min(bottomStart, topStart);
+		int end = Math.max(bottomEnd, topEnd);
+		
+		// Between them, the two changes cover all of the text in the range
+		char[] middle = new char[end - start];
+		bottom.afterText.getChars(0, bottom.afterText.length(), middle, bottomStart - start);
+		top.beforeText.getChars(0, top.beforeText.length(), middle, topStart - start);
+		String middleText = new String(middle);
+		
+		FileChange result = new FileChange();
+		FileChange.getTextChange(result,
+				middleText.substring(0, bottomStart - start) + bottom.beforeText + middleText.substring(bottomEnd - start),
+				middleText.substring(0, topStart - start) + top.afterText + middleText.substring(topEnd - start));
+		result.changeIndex += start;
+		
+		result.beforeSelectionStart = bottom.beforeSelectionStart;
+		result.beforeSelectionEnd = bottom.beforeSelectionEnd;
+		result.afterSelectionStart = top.afterSelectionStart;
+		result.afterSelectionEnd = top.afterSelectionEnd;
+		result.beforeScrollX = bottom.beforeScrollX;
+		result.beforeScrollY = bottom.beforeScrollY;
+		result.afterScrollX = top.afterScrollX;
+		result.afterScrollY = top.afterScrollY;
+		
+		return result;
+	}
+	
+	private void replaceOldestTwo(FileChange merged) {
+		byte[] before = encode(merged.beforeText);
+		byte[] after = encode(merged.afterText);
+		
+		// The merged text is never longer than the text of the two changes, so it fits in their
+		// space in the arena. Put it at the end so that the space before it is free.
+		int r = (first + 1) * STRIDE;
+		int end = records[r + BEFORE_OFFSET] + records[r + BEFORE_LENGTH] + records[r + AFTER_LENGTH];
+		int offset = end - before.length - after.length;
+		if (offset < arenaStart) {
+			// Shouldn't happen, but don't overwrite anything if it does
+			removeOldest();
+			return;
+		}
+		System.arraycopy(before, 0, arena, offset, before.length);
+		System.arraycopy(after, 0, arena, offset + before.length, after.length);
+		
+		first ++;
+		count --;
+		arenaStart = offset;
+		
+		records[r + CHANGE_INDEX] = merged.changeIndex;
+		records[r + BEFORE_OFFSET] = offset;
+		records[r + BEFORE_LENGTH] = before.length;
+		records[r + AFTER_LENGTH] = after.length;
+		records[r + BEFORE_SELECTION_START] = merged.beforeSelectionStart;
+		records[r + BEFORE_SELECTION_END] = merged.beforeSelectionEnd;
+		records[r + BEFORE_SCROLL_X] = merged.beforeScrollX;
+		records[r + BEFORE_SCROLL_Y] = merged.beforeScrollY;
+		// The after selection and scroll are already the top change's
+		
+		if (arenaStart > arena.length / 2) {
+			compactArena();
+		}
+	}
+	
+	/**
+	 * Write the stack in a compact binary format. The arena is written as is, so this is
+	 * basically a memory copy.
+	 */
+	public void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(FORMAT_VERSION);
+		out.writeInt(count);
+		out.writeInt(arenaEnd - arenaStart);
+		out.write(arena, arenaStart, arenaEnd - arenaStart);
+		for (int i = 0; i < count; i ++) {
+			int r = (first + i) * STRIDE;
+			for (int field = 0; field < STRIDE; field ++) {
+				// Store the offsets relative to the start of what we wrote
+				out.writeInt(field == BEFORE_OFFSET ? records[r + field] - arenaStart : records[r + field]);
+			}
+		}
+	}
+	
+	/**
+	 * Read a stack written by {@link #writeTo(DataOutputStream)}.
+	 */
+	public static UndoStack readFrom(DataInputStream in) throws IOException {
+		int version = in.readInt();
+		if (version != FORMAT_VERSION) {
+			throw new IOException("Unknown undo history format version " + version);
+		}
+		int count = in.readInt();
+		int arenaSize = in.readInt();
+		if (count < 0 || arenaSize < 0) {
+			throw new IOException("Corrupt undo history");
+		}
+		
+		UndoStack stack = new UndoStack();
+		stack.arena = new byte[Math.max(arenaSize, 256)];
+		in.readFully(stack.arena, 0, arenaSize);
+		stack.arenaEnd = arenaSize;
+		stack.records = new int[Math.max(count, 8) * STRIDE];
+		for (int i = 0; i < count * STRIDE; i ++) {
+			stack.records[i] = in.readInt();
+		}
+		stack.count = count;
+		
+		// Make sure that a corrupt file can't make us read outside of the arena
+		for (int i = 0; i < count; i ++) {
+			int r = i * STRIDE;
+			int offset = stack.records[r + BEFORE_OFFSET];
+			long end = (long) offset + stack.records[r + BEFORE_LENGTH] + stack.records[r + AFTER_LENGTH];
+			if (offset < 0 || stack.records[r + BEFORE_LENGTH] < 0 || stack.records[r + AFTER_LENGTH] < 0 || end > arenaSize) {
+				throw new IOException("Corrupt undo history");
+			}
+		}
+		
+		return stack;
+	}
+	
+	private void ensureArenaCapacity(int extra) {
+		if (arenaEnd + extra <= arena.length) {
+			return;
+		}
+		// Reclaim the space at the start before growing
+		if (arenaStart > 0) {
+			compactArena();
+			if (arenaEnd + extra <= arena.length) {
+				return;
+			}
+		}
+		byte[] newArena = new byte[Math.max(arena.length * 2, arenaEnd + extra)];
+		System.arraycopy(arena, 0, newArena, 0, arenaEnd);
+		arena = newArena;
+	}
+	
+	private void compactArena() {
+		int shift = arenaStart;
+		System.arraycopy(arena, arenaStart, arena, 0, arenaEnd - arenaStart);
+		arenaStart = 0;
+		arenaEnd -= shift;
+		for (int i = 0; i < count; i ++) {
+			records[(first + i) * STRIDE + BEFORE_OFFSET] -= shift;
+		}
+	}
+	
+	private void ensureRecordCapacity() {
+		if ((first + count + 1) * STRIDE <= records.length) {
+			return;
+		}
+		// Move the records down over the dropped ones if that frees up enough space
+		if (first > count) {
+			System.arraycopy(records, first * STRIDE, records, 0, count * STRIDE);
+			first = 0;
+			return;
+		}
+		int[] newRecords = new int[records.length * 2];
+		System.arraycopy(records, first * STRIDE, newRecords, 0, count * STRIDE);
+		records = newRecords;
+		first = 0;
+	}
+	
+	/**
+	 * Encode the text like UTF-8, except that every char is encoded on its own. Changes can start
+	 * or end in the middle of a surrogate pair, which real UTF-8 can't represent.
+	 */
+	private static byte[] encode(String text) {
+		int length = 0;
+		for (int i = 0; i < text.length(); i ++) {
+			char c = text.charAt(i);
+			length += c < 0x80 ? 1 : (c < 0x800 ? 2 : 3);
+		}
+		
+		byte[] bytes = new byte[length];
+		int j = 0;
+		for (int i = 0; i < text.length(); i ++) {
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				bytes[j ++] = (byte) c;
+			} else if (c < 0x800) {
+				bytes[j ++] = (byte) (0xC0 | (c >> 6));
+				bytes[j ++] = (byte) (0x80 | (c & 0x3F));
+			} else {
+				bytes[j ++] = (byte) (0xE0 | (c >> 12));
+				bytes[j ++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				bytes[j ++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		return bytes;
+	}
+	
+	private String decode(int offset, int length) {
+		char[] chars = new char[length];
+		int count = 0;
+		int end = offset + length;
+		for (int i = offset; i < end; ) {
+			int b = arena[i] & 0xFF;
+			if (b < 0x80) {
+				chars[count ++] = (char) b;
+				i ++;
+			} else if (b < 0xE0 && i + 1 < end) {
+				chars[count ++] = (char) (((b & 0x1F) << 6) | (arena[i + 1] & 0x3F));
+				i += 2;
+			} else if (i + 2 < end) {
+				chars[count ++] = (char) (((b & 0x0F) << 12) | ((arena[i + 1] & 0x3F) << 6) | (arena[i + 2] & 0x3F));
+				i += 3;
+			} else {
+				// Cut off, which only happens if the history is corrupt
+				break;
+			}
+		}
+		return new String(chars, 0, count);
+	}
+}
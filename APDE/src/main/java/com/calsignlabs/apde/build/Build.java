@@ -27,7 +27,6 @@ import com.calsignlabs.apde.support.documentfile.DocumentFile;
 
 import android.view.inputmethod.InputMethodManager;
 
-import com.android.sdklib.build.ApkBuilder;
 import com.android.tools.aapt2.Aapt2Jni;
 import com.calsignlabs.apde.APDE;
 import com.calsignlabs.apde.BuildConfig;
@@ -35,6 +34,7 @@ import com.calsignlabs.apde.EditorActivity;
 import com.calsignlabs.apde.R;
 import com.calsignlabs.apde.SketchFile;
 import com.calsignlabs.apde.build.dag.BuildContext;
+import com.calsignlabs.apde.build.dag.SketchCode;
 import com.calsignlabs.apde.contrib.Library;
 import com.calsignlabs.apde.support.FileSelection;
 import com.calsignlabs.apde.support.InputStreamKeySigner;
@@ -56,7 +56,6 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintStream;
-import java.lang.reflect.Method;
 import java.security.Security;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -69,6 +68,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
@@ -117,12 +117,16 @@ public class Build {
 	
 	private static AtomicBoolean running;
 	
+	// Describes what the build folder was last built from, see getReconcileKey()
+	private static volatile String lastReconcileKey;
+	
 	private Uri keystore;
 	private char[] keystorePassword;
 	private String keyAlias;
 	private char[] keyAliasPassword;
 	
 	private boolean injectLogBroadcaster;
+	private boolean incrementalCompile;
 	
 	private static boolean verbose;
 	
@@ -132,6 +136,8 @@ public class Build {
 	
 	protected BuildContext buildContext;
 	
+	private BuildMetrics metrics;
+	
 	public Build(APDE global, BuildContext buildContext) {
 		this.editor = global.getEditor();
 		
@@ -141,6 +147,7 @@ public class Build {
 		
 		injectLogBroadcaster = PreferenceManager.getDefaultSharedPreferences(global).getBoolean("inject_log_broadcaster", true);
 		verbose = PreferenceManager.getDefaultSharedPreferences(global).getBoolean("build_output_verbose", false);
+		incrementalCompile = PreferenceManager.getDefaultSharedPreferences(global).getBoolean("pref_build_incremental_compile", true);
 		
 		compilerProblems = new ArrayList<>();
 		
@@ -169,22 +176,34 @@ public class Build {
 	}
 	
 	private void cleanUpError() {
+		finishMetrics(BuildMetrics.RESULT_FAILURE);
 		cleanUp();
 		editor.errorExt(editor.getResources().getString(R.string.build_message_failed));
 	}
 	
 	private void cleanUpHalt() {
+		finishMetrics(BuildMetrics.RESULT_HALTED);
 		cleanUp();
 		editor.messageExt(editor.getResources().getString(R.string.build_message_stopped_early));
 	}
 	
 	private void cleanUp() {
 		//Anything we need to clean up now...
+		finishMetrics(BuildMetrics.RESULT_SUCCESS);
+	}
+	
+	private void finishMetrics(String result) {
+		// Only the first call counts, errors call this before cleanUp()
+		if (metrics != null) {
+			metrics.finish(editor, result);
+			metrics = null;
+		}
 	}
 	
 	public static void cleanUpPostLaunch(EditorActivity editor) {
 		if(!PreferenceManager.getDefaultSharedPreferences(editor).getBoolean("pref_build_folder_keep", true)) {
 			//Delete the build folder
+			lastReconcileKey = null;
 			if (!deleteFile(getBuildFolder(editor), editor)) {
 				System.out.println(editor.getResources().getString(R.string.build_delete_old_build_folder_failed));
 			} else if (verbose) {
@@ -285,6 +304,40 @@ public class Build {
 		return true;
 	}
 	
+	/**
+	 * Recursively delete a file or folder, except for the specified files. Folders containing the
+	 * kept files are left in place, but everything else inside of them is deleted.
+	 *
+	 * @param f the file or folder to delete
+	 * @param keep the files to keep
+	 * @param context
+	 * @return whether or not everything was deleted successfully
+	 */
+	public static boolean deleteFileExcept(File f, List<File> keep, Context context) {
+		boolean containsKept = false;
+		for (File kept : keep) {
+			if (kept.equals(f)) {
+				return true;
+			}
+			if (kept.getAbsolutePath().startsWith(f.getAbsolutePath() + File.separator)) {
+				containsKept = true;
+			}
+		}
+		
+		if (!containsKept) {
+			return deleteFile(f, context);
+		}
+		
+		boolean success = true;
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				success &= deleteFileExcept(child, keep, context);
+			}
+		}
+		return success;
+	}
+	
 	public void build(String target, ComponentTarget comp) {
 		build(target, comp, false);
 	}
@@ -298,11 +351,20 @@ public class Build {
 		boolean debug = target.equals("debug");
 		appComponent = comp;
 		
+		// Exports always get a clean build
+		boolean incremental = debug && incrementalCompile;
+		
 		running.set(true);
 		
+		metrics = new BuildMetrics(stopAfterCompile ? BuildMetrics.TYPE_COMPILE : (debug ? BuildMetrics.TYPE_RUN : BuildMetrics.TYPE_EXPORT));
+		metrics.startStage("init");
+		
 		// Reset compiler problems
 		compilerProblems.clear();
 		
+		// The build folder is about to change, so it can't be reconciled against until we're done
+		lastReconcileKey = null;
+		
 		//Throughout this function, perform periodic checks to see if the user has cancelled the build
 		
 		if (!stopAfterCompile) {
@@ -378,7 +440,17 @@ public class Build {
 		
 		//Wipe the old build folder
 		if(buildFolder.exists()) {
-			if (deleteFile(buildFolder, editor)) {
+			boolean deleted;
+			if (incremental) {
+				// Keep the class files around, the incremental compiler only replaces the ones
+				// that have changed
+				deleted = deleteFileExcept(buildFolder, Collections.singletonList(getClassesFolder()), editor);
+			} else {
+				deleted = deleteFile(buildFolder, editor);
+				IncrementalCompiler.invalidate(getClassesFolder());
+			}
+			
+			if (deleted) {
 				if (!stopAfterCompile || verbose) {
 					System.out.println(editor.getResources().getString(R.string.build_delete_old_build_folder_success));
 				}
@@ -410,6 +482,8 @@ public class Build {
 		Manifest manifest = null;
 		String sketchClassName = null;
 		
+		metrics.nextStage("preprocess");
+		
 		if (!stopAfterCompile) {
 			editor.messageExt(editor.getResources().getString(R.string.build_message_gen_project));
 		}
@@ -655,6 +729,8 @@ public class Build {
 		// NOTE: make sure that all places where build folders are specfied
 		// (e.g. "buildFolder") it is followed by ".getAbsolutePath()"!!!!!
 		
+		metrics.nextStage("aapt");
+		
 		if (!stopAfterCompile) {
 			editor.messageExt(editor.getResources().getString(R.string.build_message_run_aapt));
 		}
@@ -713,16 +789,13 @@ public class Build {
 			
 			for (File resDir : resDirs) {
 				File outputDir = new File(compiledRes, resDir.getName());
-				outputDir.mkdirs();
-				for (File innerDir : resDir.listFiles()) {
-					for (File resFile : innerDir.listFiles()) {
-						String[] args = {
-								resFile.getAbsolutePath(),
-								"-o", outputDir.getAbsolutePath(),
-						};
-						
-						Aapt2Wrapper.compile(editor.getGlobalState(), Arrays.asList(args));
-					}
+				// Unchanged resources come straight out of the cache
+				int compiledCount = ResourceCompiler.compile(editor.getGlobalState(),
+						Collections.singletonList(resDir), outputDir);
+				metrics.count("resourcesCompiled", compiledCount);
+				
+				if (verbose) {
+					System.out.println(String.format(Locale.US, editor.getResources().getString(R.string.build_aapt_compiled_count), compiledCount));
 				}
 			}
 			
@@ -754,7 +827,7 @@ public class Build {
 				// is truly quite hacky and perhaps surprising.
 				
 				try {
-					List<String> artifactPackages = getArtifactPackages();
+					List<String> artifactPackages = getArtifactPackages(editor, getAppComponent());
 					
 					for (String extraPackage : artifactPackages) {
 						linkArgs.add("--extra-packages");
@@ -768,12 +841,15 @@ public class Build {
 			}
 			
 			List<File> compiledResDirs = new ArrayList<>(Arrays.asList(compiledRes.listFiles()));
+			List<File> staticLinkInputs = new ArrayList<>();
+			staticLinkInputs.add(androidJarLoc);
 			for (File targetCompiledResDir : StaticBuildResources.getTargetDirs(StaticBuildResources.getResCompiledDir(editor), getAppComponent())) {
 				if (targetCompiledResDir.exists()) {
 					compiledResDirs.addAll(Arrays.asList(targetCompiledResDir.listFiles()));
+					staticLinkInputs.add(targetCompiledResDir);
 				}
 			}
-		
+			
 			for (File compiledResDir : compiledResDirs) {
 				for (File compiledResFile : compiledResDir.listFiles()) {
 					linkArgs.add("-R");
@@ -781,12 +857,39 @@ public class Build {
 				}
 			}
 			
-			Aapt2Wrapper.link(editor.getGlobalState(), linkArgs);
+			// If only the sketch code has changed, which is most of the time, then we can reuse the
+			// output from the last link
+			File apkRes = new File(binFolder, sketchName + ".apk.res");
+			String linkKey = null;
+			try {
+				linkKey = LinkCache.getKey(linkArgs, Arrays.asList(
+						new File(buildFolder, "AndroidManifest.xml"), assetsFolder, compiledRes), staticLinkInputs);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			
+			List<Aapt2Jni.Log> linkLogs = linkKey != null ? LinkCache.restore(editor, linkKey, apkRes, genFolder) : null;
+			if (linkLogs != null) {
+				metrics.count("linkCacheHits", 1);
+				
+				if (verbose) {
+					System.out.println(editor.getResources().getString(R.string.build_aapt_link_cached));
+				}
+			} else {
+				metrics.count("linkCacheMisses", 1);
+				
+				Aapt2Wrapper.link(editor.getGlobalState(), linkArgs);
+				linkLogs = new ArrayList<>(Aapt2Jni.getLogs());
+				
+				if (linkKey != null) {
+					LinkCache.store(editor, linkKey, apkRes, genFolder, linkLogs);
+				}
+			}
 			
 			if (customProblems) {
 				// add problems
 				// they will be reported after compilation
-				for (Aapt2Jni.Log log : Aapt2Jni.getLogs()) {
+				for (Aapt2Jni.Log log : linkLogs) {
 					compilerProblems.add(Aapt2Wrapper.buildCompilerProblem(log));
 				}
 			}
@@ -824,6 +927,8 @@ public class Build {
 			return;
 		}
 		
+		metrics.nextStage("compile");
+		
 		if (!stopAfterCompile) {
 			editor.messageExt(editor.getResources().getString(R.string.build_message_run_ecj));
 		}
@@ -834,17 +939,6 @@ public class Build {
 				System.out.println(editor.getResources().getString(R.string.build_compiling_ecj));
 			}
 			
-			Compiler compiler = new Compiler(customProblems);
-			
-			List<String> args = new ArrayList<String>();
-			
-			if (verbose) {
-				args.add("-verbose");
-			} else {
-				// Disable warning for unused imports (the preprocessor gives us a lot of them, so this is just a lot of noise)
-				args.add("-warn:-unusedImport");
-			}
-			
 			List<File> extDirs = new ArrayList<File>();
 			
 			// user libraries
@@ -863,40 +957,91 @@ public class Build {
 				}
 			}
 			
-			args.add("-extdirs");
-			args.add(joinFilesForEcj(extDirs));
-			
-			args.add("-bootclasspath");
-			args.add(androidJarLoc.getAbsolutePath());
-			
-			args.add("-classpath");
-			args.add(joinFilesForEcj(classPathEntries));
-			
-			// target java 1.6
-			args.add("-1.6");
-			args.add("-target");
-			args.add("1.6");
-			
-			// disable annotation processors
-			args.add("-proc:none");
-			
-			// where to output .class files
-			args.add("-d");
-			args.add(binFolder.getAbsolutePath() + "/classes/");
-			
-			// source code locations
-			args.add(srcFolder.getAbsolutePath() + "/");
-			args.add(genFolder.getAbsolutePath() + "/");
-			
 			if (verbose) {
 				System.out.println(String.format(Locale.US, editor.getResources().getString(R.string.build_compiling_file), srcFolder.getAbsolutePath() + "/" + mainActivityLoc + "/" + sketchName + ".java"));
 			}
 			
-			boolean success = compiler.compile(args.toArray(new String[] {})) && !preprocessor.hasSyntaxErrors();
+			boolean success;
+			List<? extends IProblem> problems;
+			
+			if (incremental) {
+				List<File> classPath = new ArrayList<>();
+				classPath.add(androidJarLoc);
+				classPath.addAll(IncrementalCompiler.listJars(extDirs));
+				
+				IncrementalCompiler compiler = IncrementalCompiler.get(classPath, getClassesFolder(),
+						StaticBuildResources.getClasspathIndex(editor));
+				
+				try {
+					success = compiler.compile(Arrays.asList(srcFolder, genFolder));
+				} catch (IOException e) {
+					e.printStackTrace();
+					cleanUpError();
+					return;
+				}
+				
+				problems = compiler.getProblems();
+				metrics.count("classesRecompiled", compiler.getRecompiledCount());
+				
+				// The build folder has everything that the sketch code needs to compile now
+				lastReconcileKey = getReconcileKey(manifest.getPackageName());
+				
+				if (verbose) {
+					System.out.println(String.format(Locale.US, editor.getResources().getString(R.string.build_compiling_incremental_count), compiler.getRecompiledCount()));
+				}
+				
+				if (!customProblems) {
+					// The batch compiler prints these for us, but here we have to do it ourselves
+					for (IProblem problem : problems) {
+						(problem.isError() ? System.err : System.out).println(formatProblem(problem));
+					}
+				}
+			} else {
+				Compiler compiler = new Compiler(customProblems);
+				
+				List<String> args = new ArrayList<String>();
+				
+				if (verbose) {
+					args.add("-verbose");
+				} else {
+					// Disable warning for unused imports (the preprocessor gives us a lot of them, so this is just a lot of noise)
+					args.add("-warn:-unusedImport");
+				}
+				
+				args.add("-extdirs");
+				args.add(joinFilesForEcj(extDirs));
+				
+				args.add("-bootclasspath");
+				args.add(androidJarLoc.getAbsolutePath());
+				
+				args.add("-classpath");
+				args.add(joinFilesForEcj(classPathEntries));
+				
+				// target java 1.6
+				args.add("-1.6");
+				args.add("-target");
+				args.add("1.6");
+				
+				// disable annotation processors
+				args.add("-proc:none");
+				
+				// where to output .class files
+				args.add("-d");
+				args.add(binFolder.getAbsolutePath() + "/classes/");
+				
+				// source code locations
+				args.add(srcFolder.getAbsolutePath() + "/");
+				args.add(genFolder.getAbsolutePath() + "/");
+				
+				success = compiler.compile(args.toArray(new String[] {}));
+				problems = compiler.getProblems();
+			}
+			
+			success &= !preprocessor.hasSyntaxErrors();
 			
 			if (customProblems) {
 				try {
-					for (IProblem problem : compiler.getProblems()) {
+					for (IProblem problem : problems) {
 						compilerProblems.add(preprocessor.buildCompilerProblem(problem));
 					}
 				} catch (TextTransform.LockException e) {
@@ -937,42 +1082,23 @@ public class Build {
 			return;
 		}
 		
+		metrics.nextStage("dex");
+		
 		editor.messageExt(editor.getResources().getString(R.string.build_message_run_dx));
 		
 		//Run DX Dexer
 		try {
 			System.out.println(editor.getResources().getString(R.string.build_dx_dexer));
 			
-			String[] args;
+			File sketchClassesDex = new File(binFolder, "sketch-classes.dex");
 			
-			//Yuck, this is the best way to support verbose output...
-			if (verbose) {
-				args = new String[] {
-						"--verbose",
-						"--num-threads=" + numCores,
-						"--output=" + binFolder.getAbsolutePath() + "/sketch-classes.dex", //The output location of the sketch's dexed classes
-						binFolder.getAbsolutePath() + "/classes/" //add "/classes/" to get DX to work properly
-				};
-			} else {
-				args = new String[] {
-						"--num-threads=" + numCores,
-						"--output=" + binFolder.getAbsolutePath() + "/sketch-classes.dex", //The output location of the sketch's dexed classes
-						binFolder.getAbsolutePath() + "/classes/" //add "/classes/" to get DX to work properly
-				};
-			}
+			// Only the classes that have changed since the last build are actually dexed, the
+			// rest come out of the cache
+			int dexedCount = IncrementalDexer.dex(editor, getClassesFolder(), sketchClassesDex);
+			metrics.count("classesDexed", dexedCount);
 			
-			//This is some side-stepping to avoid System.exit() calls
-			
-			com.androidjarjar.dx.command.dexer.Main.Arguments dexArgs = new com.androidjarjar.dx.command.dexer.Main.Arguments();
-			
-			Method mtd = com.androidjarjar.dx.command.dexer.Main.Arguments.class.getDeclaredMethod("parse", String[].class);
-			mtd.setAccessible(true);
-			mtd.invoke(dexArgs, new Object[] {args});
-			
-			int resultCode = com.androidjarjar.dx.command.dexer.Main.run(dexArgs);
-			
-			if (resultCode != 0) {
-				System.err.println(String.format(Locale.US, editor.getResources().getString(R.string.build_dx_dexer_failed_error_code), resultCode));
+			if (verbose) {
+				System.out.println(String.format(Locale.US, editor.getResources().getString(R.string.build_dx_dexer_count), dexedCount));
 			}
 		} catch(Exception e) {
 			System.out.println(editor.getResources().getString(R.string.build_dx_dexer_failed));
@@ -994,6 +1120,8 @@ public class Build {
 		// PREVIEW STOPS HERE
 		
 		if (getAppComponent() == ComponentTarget.PREVIEW) {
+			metrics.nextStage("launch");
+			
 			editor.messageExt(editor.getResources().getString(R.string.build_message_preview_launch));
 			System.out.println(editor.getResources().getString(R.string.build_preview_launch));
 			
@@ -1038,6 +1166,8 @@ public class Build {
 			return;
 		}
 		
+		metrics.nextStage("apk");
+		
 		editor.messageExt(editor.getResources().getString(R.string.build_message_run_apkbuilder));
 		
 		//Run APKBuilder
@@ -1055,32 +1185,44 @@ public class Build {
 //			
 //			com.android.sdklib.build.ApkBuilderMain.main(args);
 			
-			// Create the builder with the basic files
-			ApkBuilder builder = new ApkBuilder(new File(binFolder.getAbsolutePath() + "/" + sketchName + ".apk.unsigned"), //The location of the output APK file (unsigned)
-					new File(binFolder.getAbsolutePath() + "/" + sketchName + ".apk.res"), //The location of the .apk.res file
-					new File(binFolder.getAbsolutePath() + "/classes.dex"), //The location of the DEX class file
-					null, (verbose ? System.out : null) //Only specify an output stream if we want verbose output
-			);
-			
-			// Add everything else
+			File unsignedApk = new File(binFolder.getAbsolutePath() + "/" + sketchName + ".apk.unsigned"); //The location of the output APK file (unsigned)
 			
-			// Leave them out if we are class loading
-			if (!isBuildForClassLoader(debug) && glslFolder != null) {
-				builder.addZipFile(glslFolder); // Location of GLSL files
-			}
-			builder.addSourceFolder(srcFolder); // The location of the source folder
+			// Entries are copied over raw wherever possible, so only the things that have changed
+			// get compressed again
+			IncrementalApkWriter writer = new IncrementalApkWriter(unsignedApk, IncrementalApkWriter.getPreviousApk(editor, sketchName));
 			
-			// Add JNI libs - currently only used for VR and AR
-			for (File targetJniLibsDir : StaticBuildResources.getTargetDirs(StaticBuildResources.getJniLibsDir(editor), getAppComponent())) {
-				if (targetJniLibsDir.exists()) {
-					for (File jniLibZip : targetJniLibsDir.listFiles()) {
-						builder.addZipFile(jniLibZip);
+			try {
+				// Start with the basic files
+				writer.addZipFile(new File(binFolder.getAbsolutePath() + "/" + sketchName + ".apk.res")); //The location of the .apk.res file
+				writer.addFile(new File(binFolder.getAbsolutePath() + "/classes.dex"), "classes.dex"); //The location of the DEX class file
+				
+				// Add everything else
+				
+				// Leave them out if we are class loading
+				if (!isBuildForClassLoader(debug) && glslFolder != null) {
+					writer.addZipFile(glslFolder); // Location of GLSL files
+				}
+				writer.addSourceFolder(srcFolder); // The location of the source folder
+				
+				// Add JNI libs - currently only used for VR and AR
+				for (File targetJniLibsDir : StaticBuildResources.getTargetDirs(StaticBuildResources.getJniLibsDir(editor), getAppComponent())) {
+					if (targetJniLibsDir.exists()) {
+						for (File jniLibZip : targetJniLibsDir.listFiles()) {
+							writer.addZipFile(jniLibZip);
+						}
 					}
 				}
+			} finally {
+				// Seal the APK
+				writer.close();
 			}
 			
-			// Seal the APK
-			builder.sealApk();
+			metrics.count("apkEntriesCompressed", writer.getCompressedCount());
+			metrics.count("apkEntriesReused", writer.getReusedCount());
+			
+			if (verbose) {
+				System.out.println(String.format(Locale.US, editor.getResources().getString(R.string.build_apk_entries_count), writer.getCompressedCount(), writer.getReusedCount()));
+			}
 		} catch(Exception e) {
 			System.out.println(editor.getResources().getString(R.string.build_building_apkbuilder_failed));
 			e.printStackTrace();
@@ -1094,6 +1236,8 @@ public class Build {
 			return;
 		}
 		
+		metrics.nextStage("sign");
+		
 		editor.messageExt(editor.getResources().getString(debug ? R.string.build_message_run_zipsigner_debug : R.string.build_message_run_zipsigner_export));
 		
 		System.out.println(); //Separator
@@ -1103,6 +1247,8 @@ public class Build {
 			
 			//Sign the APK using ZipSigner
 			signApk();
+			
+			keepUnsignedApk();
 		} else {
 			try {
 				System.out.println(editor.getResources().getString(R.string.build_signing_private_key));
@@ -1122,6 +1268,7 @@ public class Build {
 				
 				// We want to sign for release!!!
 				signApkRelease(tempOutputFile.getAbsolutePath());
+				keepUnsignedApk();
 				
 				APDE.copyDocumentFile(DocumentFile.fromFile(tempOutputFile), outFile,
 						editor.getContentResolver());
@@ -1145,6 +1292,8 @@ public class Build {
 			return;
 		}
 		
+		metrics.nextStage("install");
+		
 		if (getAppComponent() == ComponentTarget.WATCHFACE) {
 			editor.messageExt(editor.getResources().getString(R.string.build_message_send_to_watch));
 			System.out.println(editor.getResources().getString(R.string.build_sending_apk_to_watch));
@@ -1225,6 +1374,188 @@ public class Build {
 		cleanUp();
 	}
 	
+	/**
+	 * Check the sketch for problems without building it, for auto-compile. The sketch is
+	 * preprocessed and compiled in memory against the classpath and the class files from the
+	 * last build, and the problems are sent to the editor. Nothing is written to the build folder
+	 * and AAPT2 doesn't run.
+	 *
+	 * This only works if nothing but the code has changed since the last build. If there hasn't
+	 * been a build yet, or the libraries, the code folder, the resources, the set of Java tabs,
+	 * or the target are different, then this falls back to a regular build that stops after
+	 * compiling.
+	 *
+	 * @param comp the component target
+	 */
+	public void reconcile(ComponentTarget comp) {
+		appComponent = comp;
+		
+		if (!incrementalCompile || lastReconcileKey == null || !getClassesFolder().exists()) {
+			build("debug", comp, true);
+			return;
+		}
+		
+		running.set(true);
+		
+		metrics = new BuildMetrics(BuildMetrics.TYPE_RECONCILE);
+		metrics.startStage("preprocess");
+		
+		compilerProblems.clear();
+		
+		boolean customProblems = PreferenceManager.getDefaultSharedPreferences(editor).getBoolean("pref_problem_overview_enable", true);
+		
+		Preprocessor preprocessor;
+		String packageName;
+		
+		try {
+			Manifest manifest = new Manifest(buildContext);
+			manifest.initBlank();
+			manifest.loadProperties(editor.getGlobalState().getProperties(buildContext), sketchName);
+			packageName = manifest.getPackageName();
+			
+			preprocessor = new Preprocessor(buildContext, this, packageName, sketchName, getCodeFolderPackages());
+			preprocessor.preprocess();
+			importedLibraries = preprocessor.getImportedLibraries();
+		} catch (MaybeDocumentFile.MaybeDocumentFileException e) {
+			e.printStackTrace();
+			cleanUpError();
+			return;
+		}
+		
+		String key = getReconcileKey(packageName);
+		if (key == null || !key.equals(lastReconcileKey)) {
+			// Something other than the code has changed, so the build folder is out of date
+			metrics = null;
+			build("debug", comp, true);
+			return;
+		}
+		
+		if(!running.get()) { //CHECK
+			cleanUpHalt();
+			return;
+		}
+		
+		metrics.nextStage("compile");
+		
+		// Compile the same files that the build would write, but straight from memory. Everything
+		// else (the main class, R, etc.) comes from the last build.
+		File srcFolder = new File(getBuildFolder(), "src");
+		Map<String, String> sources = new TreeMap<>();
+		addPreprocessedSource(sources, srcFolder, preprocessor.getPreprocessedText().toString(), getSketchMainFilename(), packageName);
+		for (SketchCode sketchFile : buildContext.getSketchFiles()) {
+			if (sketchFile.isJava()) {
+				sketchFile.javaImportHeaderOffset = addPreprocessedSource(sources, srcFolder,
+						sketchFile.getText().toString(), sketchFile.getFilename(), packageName);
+			}
+		}
+		
+		// The same classpath as the build, so that we get the compiler that the build has
+		// already warmed up
+		List<File> extDirs = new ArrayList<>();
+		extDirs.add(new File(getBuildFolder(), "libs"));
+		for (File targetLibsDir : StaticBuildResources.getTargetDirs(StaticBuildResources.getLibsDir(editor), getAppComponent())) {
+			if (targetLibsDir.exists()) {
+				extDirs.add(targetLibsDir);
+			}
+		}
+		
+		List<File> classPath = new ArrayList<>();
+		classPath.add(StaticBuildResources.getAndroidJarLoc(editor));
+		classPath.addAll(IncrementalCompiler.listJars(extDirs));
+		
+		IncrementalCompiler compiler = IncrementalCompiler.get(classPath, getClassesFolder(),
+				StaticBuildResources.getClasspathIndex(editor));
+		
+		List<? extends IProblem> problems = compiler.check(sources);
+		
+		if (customProblems) {
+			try {
+				for (IProblem problem : problems) {
+					compilerProblems.add(preprocessor.buildCompilerProblem(problem));
+				}
+			} catch (TextTransform.LockException e) {
+				e.printStackTrace();
+			}
+			
+			editor.showProblems(compilerProblems);
+		} else {
+			for (IProblem problem : problems) {
+				(problem.isError() ? System.err : System.out).println(formatProblem(problem));
+			}
+		}
+		
+		cleanUp();
+	}
+	
+	/**
+	 * Describes everything other than the code that the compiled sketch depends on. As long as
+	 * this doesn't change, the build folder has everything that the sketch needs to compile.
+	 *
+	 * @param packageName the package name of the sketch
+	 * @return the key, or null if it couldn't be worked out
+	 */
+	private String getReconcileKey(String packageName) {
+		StringBuilder key = new StringBuilder();
+		
+		try {
+			key.append(getSketchFolder()).append('\n');
+			key.append(sketchName).append('\n');
+			key.append(packageName).append('\n');
+			key.append(getAppComponent()).append('\n');
+			key.append(injectLogBroadcaster).append('\n');
+			
+			for (Library library : importedLibraries) {
+				key.append(library.getName()).append('\n');
+			}
+			
+			// Each Java tab is its own unit. The class files of a tab that has been deleted or
+			// renamed are still in the build folder, and the check would find them there.
+			for (SketchCode sketchFile : buildContext.getSketchFiles()) {
+				if (sketchFile.isJava()) {
+					key.append(sketchFile.getFilename()).append('\n');
+				}
+			}
+			
+			// The code folder goes on the classpath and the resources end up in R
+			describeFolder(getSketchCodeFolder(), key);
+			describeFolder(getSketchFolder().childDirectory("res"), key);
+		} catch (MaybeDocumentFile.MaybeDocumentFileException e) {
+			e.printStackTrace();
+			return null;
+		}
+		
+		return key.toString();
+	}
+	
+	private static void describeFolder(MaybeDocumentFile folder, StringBuilder key) throws MaybeDocumentFile.MaybeDocumentFileException {
+		if (folder.exists()) {
+			describeFolder(folder.resolve(), key);
+		}
+	}
+	
+	private static void describeFolder(DocumentFile folder, StringBuilder key) {
+		for (DocumentFile file : folder.listFiles()) {
+			key.append(file.getUri()).append(' ').append(file.length()).append(' ').append(file.lastModified()).append('\n');
+			
+			if (file.isDirectory()) {
+				describeFolder(file, key);
+			}
+		}
+	}
+	
+	/**
+	 * Format a compiler problem for the console, roughly the same way that the batch compiler does.
+	 *
+	 * @param problem the problem
+	 * @return the formatted problem
+	 */
+	public static String formatProblem(IProblem problem) {
+		return String.format(Locale.US, "%1$s:%2$d: %3$s: %4$s",
+				new File(new String(problem.getOriginatingFileName())).getName(),
+				problem.getSourceLineNumber(), problem.isError() ? "ERROR" : "WARNING",
+				problem.getMessage());
+	}
+	
 	private String joinFilesForEcj(List<File> files) {
 		StringBuilder joined = new StringBuilder();
 		for (int i = 0; i < files.size(); i++) {
@@ -1237,24 +1568,26 @@ public class Build {
 	}
 	
 	/**
-	 * Get the package names of all the artifacts for the current build target.
+	 * Get the package names of all the artifacts for the given build target.
 	 *
+	 * @param context the context
+	 * @param target the build target
 	 * @return the artifact package names
 	 */
-	private List<String> getArtifactPackages() throws IOException {
+	public static List<String> getArtifactPackages(Context context, ComponentTarget target) throws IOException {
 		// Package names for all artifacts
 		List<String> artifactPackages = new ArrayList<>();
 		// Package names we need are generated by gradle and placed in this file.
 		// (See the packageNames task in gradle/assets.gradle.)
 		BufferedReader reader = new BufferedReader(new InputStreamReader(
-				editor.getAssets().open("artifact_package_names.txt")));
+				context.getAssets().open("artifact_package_names.txt")));
 		String line;
 		while ((line = reader.readLine()) != null) {
 			// each line is delimited by semicolons
 			String[] split = line.split(";");
 			// the first item is the assetPrefix
 			// we want to add the package names needed for all asset prefixes we need
-			for (String assetPrefix : getAppComponent().getAssetPrefixes()) {
+			for (String assetPrefix : target.getAssetPrefixes()) {
 				if (split.length > 0 && assetPrefix.equals(split[0])) {
 					// the remaining items are package names
 					artifactPackages.addAll(Arrays.asList(split).subList(1, split.length));
@@ -1446,6 +1779,14 @@ public class Build {
 		}
 	}
 	
+	/**
+	 * Hang on to the unsigned APK so that the next build can copy unchanged entries out of it.
+	 */
+	private void keepUnsignedApk() {
+		IncrementalApkWriter.keepAsPrevious(new File(binFolder, sketchName + ".apk.unsigned"),
+				IncrementalApkWriter.getPreviousApk(editor, sketchName));
+	}
+	
 	private void signApkRelease(String outputFilename) {
 		Security.addProvider(new BouncyCastleProvider());
 		
@@ -1538,6 +1879,26 @@ public class Build {
 		return added;
 	}
 	
+	/**
+	 * The same as {@link #writePreprocessedFile(String, String, String)}, but adds the file to a
+	 * map instead of writing it.
+	 */
+	private static int addPreprocessedSource(Map<String, String> sources, File srcFolder, String code, String filename, String packageName) {
+		String packageMatch = Preprocessor.extractPackageName(code);
+		int added = 0;
+		if (packageMatch == null) {
+			String toInsert = "package " + packageName + ";\n";
+			code = toInsert + code;
+			packageMatch = packageName;
+			added = toInsert.length();
+		}
+		
+		File pkgFolder = new File(srcFolder, packageMatch.replace('.', '/'));
+		sources.put(new File(pkgFolder, filename).getAbsolutePath(), code);
+		
+		return added;
+	}
+	
 	private void writePreprocessedFiles(List<SketchFile> sketchFiles, CharSequence mainFile, String packageName) throws IOException {
 		// Write main .java file
 		writePreprocessedFile(mainFile.toString(), getSketchMainFilename(), packageName);
@@ -2065,6 +2426,13 @@ public class Build {
 		return getBuildFolder(editor);
 	}
 	
+	/**
+	 * @return the folder that ECJ puts the compiled .class files in
+	 */
+	public File getClassesFolder() {
+		return new File(new File(getBuildFolder(), "bin"), "classes");
+	}
+	
 	public static File getTempFolder(Context context) {
 		return new File(context.getFilesDir(), "tmp");
 	}
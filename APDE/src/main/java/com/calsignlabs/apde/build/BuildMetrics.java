@@ -0,0 +1,310 @@
+package com.calsignlabs.apde.build;
+
+import android.content.Context;
+import android.os.Debug;
+import android.os.Process;
+
+import com.calsignlabs.apde.BuildConfig;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records how long each stage of a build takes, along with the CPU time, the bytes read and
+ * written, and any counters that the stage reports (e.g. how many classes came out of the dex
+ * cache). Finished builds are added to a rolling history in the app's files directory, which can
+ * be exported as JSON.
+ *
+ * CPU time and I/O are measured for the thread that runs the stage. This works for both the
+ * regular build, which runs every stage on the same thread, and the modular build, which runs
+ * every task on its own thread. Work done in other processes (e.g. the AAPT2 binary) isn't
+ * counted.
+ */
+public class BuildMetrics {
+	public static final String TYPE_RUN = "run";
+	public static final String TYPE_EXPORT = "export";
+	public static final String TYPE_COMPILE = "compile";
+	public static final String TYPE_MODULAR = "modular";
+	public static final String TYPE_RECONCILE = "reconcile";
+	
+	public static final String RESULT_SUCCESS = "success";
+	public static final String RESULT_FAILURE = "failure";
+	public static final String RESULT_HALTED = "halted";
+	
+	/**
+	 * The number of builds to keep in the history.
+	 */
+	public static final int MAX_HISTORY = 50;
+	
+	private static final String HISTORY_FILE = "build_metrics.json";
+	
+	private String type;
+	private long timestamp, startTime;
+	private List<Stage> stages;
+	
+	private ThreadLocal<Stage> currentStage;
+	
+	public BuildMetrics(String type) {
+		this.type = type;
+		
+		timestamp = System.currentTimeMillis();
+		startTime = System.nanoTime();
+		stages = Collections.synchronizedList(new ArrayList<>());
+		currentStage = new ThreadLocal<>();
+	}
+	
+	public static class Stage {
+		private String name;
+		private long startTime, startCpuTime, startBytesRead, startBytesWritten;
+		private long wallTime = -1, cpuTime = -1, bytesRead = -1, bytesWritten = -1;
+		private Map<String, Long> counters;
+		
+		private Stage(String name) {
+			this.name = name;
+			counters = new LinkedHashMap<>();
+			
+			long[] io = readThreadIo();
+			startBytesRead = io[0];
+			startBytesWritten = io[1];
+			startCpuTime = Debug.threadCpuTimeNanos();
+			startTime = System.nanoTime();
+		}
+		
+		private void end() {
+			wallTime = (System.nanoTime() - startTime) / 1000000;
+			
+			// Both of these return -1 if they aren't supported
+			long cpuTimeNanos = Debug.threadCpuTimeNanos();
+			if (cpuTimeNanos != -1 && startCpuTime != -1) {
+				cpuTime = (cpuTimeNanos - startCpuTime) / 1000000;
+			}
+			long[] io = readThreadIo();
+			if (io[0] != -1 && startBytesRead != -1) {
+				bytesRead = io[0] - startBytesRead;
+				bytesWritten = io[1] - startBytesWritten;
+			}
+		}
+		
+		private synchronized void count(String counter, long value) {
+			Long current = counters.get(counter);
+			counters.put(counter, current == null ? value : current + value);
+		}
+		
+		private synchronized JSONObject toJson() throws JSONException {
+			JSONObject json = new JSONObject();
+			json.put("name", name);
+			json.put("wallTimeMs", wallTime);
+			json.put("cpuTimeMs", cpuTime);
+			json.put("bytesRead", bytesRead);
+			json.put("bytesWritten", bytesWritten);
+			
+			JSONObject countersJson = new JSONObject();
+			for (Map.Entry<String, Long> counter : counters.entrySet()) {
+				countersJson.put(counter.getKey(), counter.getValue());
+			}
+			json.put("counters", countersJson);
+			
+			return json;
+		}
+	}
+	
+	/**
+	 * Start timing a stage on the current thread.
+	 *
+	 * @param name the name of the stage
+	 * @return the stage, to pass to {@link #endStage(Stage)}
+	 */
+	public Stage startStage(String name) {
+		Stage stage = new Stage(name);
+		stages.add(stage);
+		currentStage.set(stage);
+		return stage;
+	}
+	
+	/**
+	 * Stop timing a stage. Must be called from the same thread that started it.
+	 */
+	public void endStage(Stage stage) {
+		stage.end();
+		if (currentStage.get() == stage) {
+			currentStage.remove();
+		}
+	}
+	
+	/**
+	 * End the stage running on the current thread, if there is one, and start the next one. This
+	 * is for builds that run their stages one after another.
+	 */
+	public void nextStage(String name) {
+		endCurrentStage();
+		startStage(name);
+	}
+	
+	private void endCurrentStage() {
+		Stage stage = currentStage.get();
+		if (stage != null) {
+			endStage(stage);
+		}
+	}
+	
+	/**
+	 * Add to a counter of the stage running on the current thread. Does nothing if there isn't
+	 * one, so callers don't have to check whether or not metrics are being recorded.
+	 *
+	 * @param counter the name of the counter, e.g. "dexCacheHits"
+	 * @param value the amount to add
+	 */
+	public void count(String counter, long value) {
+		Stage stage = currentStage.get();
+		if (stage != null) {
+			stage.count(counter, value);
+		}
+	}
+	
+	/**
+	 * Finish recording and add the build to the history.
+	 *
+	 * @param context the context
+	 * @param result one of {@link #RESULT_SUCCESS}, {@link #RESULT_FAILURE}, or {@link #RESULT_HALTED}
+	 */
+	public void finish(Context context, String result) {
+		endCurrentStage();
+		
+		try {
+			addToHistory(context, toJson(result));
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private JSONObject toJson(String result) throws JSONException {
+		JSONObject json = new JSONObject();
+		json.put("timestamp", timestamp);
+		json.put("type", type);
+		json.put("result", result);
+		json.put("wallTimeMs", (System.nanoTime() - startTime) / 1000000);
+		// So that we can compare between versions and devices
+		json.put("appVersion", BuildConfig.VERSION_NAME);
+		json.put("device", android.os.Build.MODEL);
+		json.put("sdkInt", android.os.Build.VERSION.SDK_INT);
+		json.put("cores", Runtime.getRuntime().availableProcessors());
+		
+		JSONArray stagesJson = new JSONArray();
+		synchronized (stages) {
+			for (Stage stage : stages) {
+				stagesJson.put(stage.toJson());
+			}
+		}
+		json.put("stages", stagesJson);
+		
+		return json;
+	}
+	
+	/**
+	 * Read the bytes read and written by the current thread so far. This counts all reads and
+	 * writes, whether or not they actually hit the disk.
+	 *
+	 * @return {rchar, wchar}, or {-1, -1} if they couldn't be read
+	 */
+	private static long[] readThreadIo() {
+		long[] io = {-1, -1};
+		
+		File ioFile = new File("/proc/self/task/" + Process.myTid() + "/io");
+		try (BufferedReader reader = new BufferedReader(new FileReader(ioFile))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("rchar:")) {
+					io[0] = Long.parseLong(line.substring(6).trim());
+				} else if (line.startsWith("wchar:")) {
+					io[1] = Long.parseLong(line.substring(6).trim());
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+			// Not all kernels have I/O accounting
+			return new long[] {-1, -1};
+		}
+		
+		return io[0] != -1 && io[1] != -1 ? io : new long[] {-1, -1};
+	}
+	
+	public static File getHistoryFile(Context context) {
+		return new File(context.getFilesDir(), HISTORY_FILE);
+	}
+	
+	/**
+	 * @return the history of recent builds, oldest first
+	 */
+	public static synchronized JSONArray loadHistory(Context context) {
+		File historyFile = getHistoryFile(context);
+		
+		if (!historyFile.exists()) {
+			return new JSONArray();
+		}
+		
+		try (InputStream inputStream = new FileInputStream(historyFile)) {
+			byte[] bytes = new byte[(int) historyFile.length()];
+			int offset = 0, len;
+			while (offset < bytes.length && (len = inputStream.read(bytes, offset, bytes.length - offset)) != -1) {
+				offset += len;
+			}
+			return new JSONArray(new String(bytes, 0, offset, "UTF-8"));
+		} catch (IOException | JSONException e) {
+			// Just start over
+			e.printStackTrace();
+			return new JSONArray();
+		}
+	}
+	
+	/**
+	 * @return the history of recent builds as a JSON string, for exporting
+	 */
+	public static String exportHistory(Context context) {
+		try {
+			return loadHistory(context).toString(2);
+		} catch (JSONException e) {
+			e.printStackTrace();
+			return "[]";
+		}
+	}
+	
+	private static synchronized void addToHistory(Context context, JSONObject build) {
+		JSONArray history = loadHistory(context);
+		
+		// Drop the oldest builds
+		JSONArray trimmed = new JSONArray();
+		for (int i = Math.max(0, history.length() - (MAX_HISTORY - 1)); i < history.length(); i ++) {
+			trimmed.put(history.opt(i));
+		}
+		trimmed.put(build);
+		
+		File historyFile = getHistoryFile(context);
+		File tempFile = new File(historyFile.getAbsolutePath() + ".tmp");
+		
+		try (OutputStream outputStream = new FileOutputStream(tempFile)) {
+			outputStream.write(trimmed.toString().getBytes("UTF-8"));
+		} catch (IOException e) {
+			e.printStackTrace();
+			tempFile.delete();
+			return;
+		}
+		
+		if (!tempFile.renameTo(historyFile)) {
+			tempFile.delete();
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package com.calsignlabs.apde.build;
+
+import org.eclipse.jdt.core.compiler.CharOperation;
+import org.eclipse.jdt.internal.compiler.env.IBinaryType;
+import org.eclipse.jdt.internal.compiler.env.INameEnvironment;
+import org.eclipse.jdt.internal.compiler.env.NameEnvironmentAnswer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Name environment that remembers the answers of another name environment. The classpath that we
+ * compile against (android.jar, processing-core, the support libraries, etc.) doesn't change
+ * between builds, so there is no reason to go looking through the jars every time ECJ asks for
+ * the same type.
+ *
+ * Both hits and misses are cached. This means that the wrapped environment must not change for
+ * as long as this one is in use.
+ */
+public class CachingNameEnvironment implements INameEnvironment {
+	private static final NameEnvironmentAnswer NOT_FOUND = new NameEnvironmentAnswer((IBinaryType) null, null);
+	
+	private INameEnvironment environment;
+	
+	private final Map<String, NameEnvironmentAnswer> types;
+	private final Map<String, Boolean> packages;
+	
+	public CachingNameEnvironment(INameEnvironment environment) {
+		this.environment = environment;
+		
+		types = new HashMap<>();
+		packages = new HashMap<>();
+	}
+	
+	@Override
+	public synchronized NameEnvironmentAnswer findType(char[][] compoundTypeName) {
+		String key = CharOperation.toString(compoundTypeName);
+		NameEnvironmentAnswer answer = types.get(key);
+		
+		if (answer == null) {
+			answer = environment.findType(compoundTypeName);
+			types.put(key, answer != null ? answer : NOT_FOUND);
+		}
+		
+		return answer != NOT_FOUND ? answer : null;
+	}
+	
+	@Override
+	public NameEnvironmentAnswer findType(char[] typeName, char[][] packageName) {
+		return findType(CharOperation.arrayConcat(packageName, typeName));
+	}
+	
+	@Override
+	public synchronized boolean isPackage(char[][] parentPackageName, char[] packageName) {
+		String key = (parentPackageName == null ? "" : CharOperation.toString(parentPackageName) + ".")
+				+ new String(packageName);
+		Boolean isPackage = packages.get(key);
+		
+		if (isPackage == null) {
+			isPackage = environment.isPackage(parentPackageName, packageName);
+			packages.put(key, isPackage);
+		}
+		
+		return isPackage;
+	}
+	
+	/**
+	 * Does nothing. The compiler calls this at the end of each compilation, but we want to keep
+	 * the cached answers (and the open jars) around for the next one. Use {@link #dispose()}
+	 * instead.
+	 */
+	@Override
+	public void cleanup() {}
+	
+	/**
+	 * Release the cached answers and close the wrapped environment.
+	 */
+	public synchronized void dispose() {
+		types.clear();
+		packages.clear();
+		environment.cleanup();
+	}
+}
@@ -0,0 +1,544 @@
+package com.calsignlabs.apde.build;
+
+import org.eclipse.jdt.core.compiler.CharOperation;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFileReader;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFormatException;
+import org.eclipse.jdt.internal.compiler.env.INameEnvironment;
+import org.eclipse.jdt.internal.compiler.env.NameEnvironmentAnswer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A pre-built index of every class in the static artifact jars (android.jar, processing-core, the
+ * support libraries, etc.). For each class we store which jar it lives in and where its entry
+ * starts, so ECJ can be handed the class file without opening and scanning the jars every build.
+ *
+ * The index is written once when the static build resources are extracted and memory-mapped
+ * when it is read, so loading it is nearly free. The jars are memory-mapped too, lazily.
+ *
+ * File layout (big-endian):
+ * <pre>
+ * int magic, int version
+ * int jarCount, then for each jar: int pathLength, byte[] path (UTF-8), long length, long lastModified
+ * int classCount, int classTableOffset
+ * int packageCount, int packageTableOffset
+ * int poolOffset
+ * class table: classCount * (int nameOffset, int nameLength, int jar, int localHeaderOffset,
+ *              int compressedSize, int uncompressedSize, int method), sorted by name then jar
+ * package table: packageCount * (int nameOffset, int nameLength, int jar), sorted by name then jar
+ * string pool: UTF-8 names, e.g. "processing/core/PApplet" and "processing/core"
+ * </pre>
+ */
+public class ClasspathIndex {
+	private static final int MAGIC = 0x41504349; // "APCI"
+	private static final int VERSION = 1;
+	
+	private static final int CLASS_RECORD_SIZE = 7 * 4;
+	private static final int PACKAGE_RECORD_SIZE = 3 * 4;
+	
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	
+	// Zip format constants
+	private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+	private static final int CENTRAL_DIRECTORY_HEADER = 0x02014b50;
+	private static final int LOCAL_FILE_HEADER_SIZE = 30;
+	private static final int METHOD_STORED = 0;
+	private static final int METHOD_DEFLATED = 8;
+	
+	private final File indexFile;
+	private final MappedByteBuffer buffer;
+	
+	private final List<File> jars;
+	private final MappedByteBuffer[] jarBuffers;
+	
+	private final int classCount, classTable;
+	private final int packageCount, packageTable;
+	private final int pool;
+	
+	private ClasspathIndex(File indexFile, MappedByteBuffer buffer, List<File> jars) {
+		this.indexFile = indexFile;
+		this.buffer = buffer;
+		this.jars = jars;
+		
+		jarBuffers = new MappedByteBuffer[jars.size()];
+		
+		// The header comes right after the jar table, which is where the buffer is positioned
+		classCount = buffer.getInt();
+		classTable = buffer.getInt();
+		packageCount = buffer.getInt();
+		packageTable = buffer.getInt();
+		pool = buffer.getInt();
+	}
+	
+	/**
+	 * Load an existing index. Returns null if there is no index, if it is in an old format, or if
+	 * any of the jars have changed since it was written.
+	 *
+	 * @param indexFile the index file
+	 * @return the index, or null
+	 */
+	public static ClasspathIndex load(File indexFile) {
+		if (!indexFile.exists()) {
+			return null;
+		}
+		
+		try (RandomAccessFile file = new RandomAccessFile(indexFile, "r")) {
+			// The mapping stays valid after the channel is closed
+			MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+			buffer.order(ByteOrder.BIG_ENDIAN);
+			
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				return null;
+			}
+			
+			int jarCount = buffer.getInt();
+			List<File> jars = new ArrayList<>(jarCount);
+			for (int i = 0; i < jarCount; i++) {
+				byte[] path = new byte[buffer.getInt()];
+				buffer.get(path);
+				File jar = new File(new String(path, UTF_8));
+				long length = buffer.getLong();
+				long lastModified = buffer.getLong();
+				
+				if (jar.length() != length || jar.lastModified() != lastModified) {
+					// Stale
+					return null;
+				}
+				
+				jars.add(jar);
+			}
+			
+			return new ClasspathIndex(indexFile, buffer, jars);
+		} catch (IOException | RuntimeException e) {
+			// A corrupted index is no worse than a missing one
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * Write an index for the given jars. Only the central directories of the jars are read, so
+	 * this is fairly quick.
+	 *
+	 * @param jars the jars to index, in classpath order
+	 * @param indexFile where to write the index
+	 */
+	public static void write(List<File> jars, File indexFile) throws IOException {
+		List<ClassRecord> classes = new ArrayList<>();
+		Set<PackageRecord> packages = new HashSet<>();
+		
+		for (int i = 0; i < jars.size(); i++) {
+			readCentralDirectory(jars.get(i), i, classes, packages);
+		}
+		
+		Collections.sort(classes, (a, b) -> {
+			int comp = compareBytes(a.name, b.name);
+			return comp != 0 ? comp : Integer.compare(a.jar, b.jar);
+		});
+		
+		List<PackageRecord> sortedPackages = new ArrayList<>(packages);
+		Collections.sort(sortedPackages, (a, b) -> {
+			int comp = compareBytes(a.name, b.name);
+			return comp != 0 ? comp : Integer.compare(a.jar, b.jar);
+		});
+		
+		// Names are shared between the tables, e.g. the same class in two different jars
+		ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+		Map<String, Integer> poolOffsets = new HashMap<>();
+		
+		ByteArrayOutputStream tables = new ByteArrayOutputStream();
+		DataOutputStream tableOut = new DataOutputStream(tables);
+		
+		for (ClassRecord record : classes) {
+			tableOut.writeInt(addToPool(record.name, poolBytes, poolOffsets));
+			tableOut.writeInt(record.name.length);
+			tableOut.writeInt(record.jar);
+			tableOut.writeInt(record.localHeaderOffset);
+			tableOut.writeInt(record.compressedSize);
+			tableOut.writeInt(record.uncompressedSize);
+			tableOut.writeInt(record.method);
+		}
+		for (PackageRecord record : sortedPackages) {
+			tableOut.writeInt(addToPool(record.name, poolBytes, poolOffsets));
+			tableOut.writeInt(record.name.length);
+			tableOut.writeInt(record.jar);
+		}
+		tableOut.flush();
+		
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream headerOut = new DataOutputStream(header);
+		headerOut.writeInt(MAGIC);
+		headerOut.writeInt(VERSION);
+		headerOut.writeInt(jars.size());
+		for (File jar : jars) {
+			byte[] path = jar.getAbsolutePath().getBytes(UTF_8);
+			headerOut.writeInt(path.length);
+			headerOut.write(path);
+			headerOut.writeLong(jar.length());
+			headerOut.writeLong(jar.lastModified());
+		}
+		
+		int classTable = header.size() + 5 * 4;
+		int packageTable = classTable + classes.size() * CLASS_RECORD_SIZE;
+		int pool = packageTable + sortedPackages.size() * PACKAGE_RECORD_SIZE;
+		
+		headerOut.writeInt(classes.size());
+		headerOut.writeInt(classTable);
+		headerOut.writeInt(sortedPackages.size());
+		headerOut.writeInt(packageTable);
+		headerOut.writeInt(pool);
+		headerOut.flush();
+		
+		// Write to a temporary file first so that a half-written index is never loaded
+		File tempFile = new File(indexFile.getAbsolutePath() + ".tmp");
+		try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+			header.writeTo(outputStream);
+			tables.writeTo(outputStream);
+			poolBytes.writeTo(outputStream);
+		}
+		
+		if (!tempFile.renameTo(indexFile)) {
+			throw new IOException("Failed to move classpath index into place: " + indexFile.getAbsolutePath());
+		}
+	}
+	
+	private static int addToPool(byte[] name, ByteArrayOutputStream pool, Map<String, Integer> offsets) {
+		String key = new String(name, UTF_8);
+		Integer offset = offsets.get(key);
+		if (offset == null) {
+			offset = pool.size();
+			pool.write(name, 0, name.length);
+			offsets.put(key, offset);
+		}
+		return offset;
+	}
+	
+	private static void readCentralDirectory(File jar, int jarIndex, List<ClassRecord> classes,
+	                                         Set<PackageRecord> packages) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(jar, "r")) {
+			ByteBuffer zip = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+			zip.order(ByteOrder.LITTLE_ENDIAN);
+			
+			// The end of central directory record is at the very end, followed by a comment of up
+			// to 64KB
+			int end = -1;
+			for (int i = zip.limit() - 22; i >= Math.max(0, zip.limit() - 22 - 0xFFFF); i--) {
+				if (zip.getInt(i) == END_OF_CENTRAL_DIRECTORY) {
+					end = i;
+					break;
+				}
+			}
+			if (end == -1) {
+				throw new IOException("Not a zip file: " + jar.getAbsolutePath());
+			}
+			
+			int entryCount = zip.getShort(end + 10) & 0xFFFF;
+			int offset = zip.getInt(end + 16);
+			
+			for (int i = 0; i < entryCount; i++) {
+				if (zip.getInt(offset) != CENTRAL_DIRECTORY_HEADER) {
+					throw new IOException("Bad central directory in " + jar.getAbsolutePath());
+				}
+				
+				int method = zip.getShort(offset + 10) & 0xFFFF;
+				int compressedSize = zip.getInt(offset + 20);
+				int uncompressedSize = zip.getInt(offset + 24);
+				int nameLength = zip.getShort(offset + 28) & 0xFFFF;
+				int extraLength = zip.getShort(offset + 30) & 0xFFFF;
+				int commentLength = zip.getShort(offset + 32) & 0xFFFF;
+				int localHeaderOffset = zip.getInt(offset + 42);
+				
+				byte[] name = new byte[nameLength];
+				for (int j = 0; j < nameLength; j++) {
+					name[j] = zip.get(offset + 46 + j);
+				}
+				
+				String nameStr = new String(name, UTF_8);
+				if (nameStr.endsWith(".class") && (method == METHOD_STORED || method == METHOD_DEFLATED)) {
+					String typeName = nameStr.substring(0, nameStr.length() - ".class".length());
+					classes.add(new ClassRecord(typeName.getBytes(UTF_8), jarIndex, localHeaderOffset,
+							compressedSize, uncompressedSize, method));
+					
+					// Record the package and all of its parents, these aren't always present as
+					// directory entries
+					int slash = typeName.lastIndexOf('/');
+					while (slash > 0) {
+						packages.add(new PackageRecord(typeName.substring(0, slash).getBytes(UTF_8), jarIndex));
+						slash = typeName.lastIndexOf('/', slash - 1);
+					}
+				}
+				
+				offset += 46 + nameLength + extraLength + commentLength;
+			}
+		}
+	}
+	
+	/**
+	 * @param jar a jar
+	 * @return whether or not the jar is in the index
+	 */
+	public boolean contains(File jar) {
+		return jars.contains(jar.getAbsoluteFile());
+	}
+	
+	public File getIndexFile() {
+		return indexFile;
+	}
+	
+	/**
+	 * Create a name environment that only finds classes in the given jars. Jars that aren't in the
+	 * index are ignored. Types are searched for in the order of the given jars, which doesn't have
+	 * to be the order that they were indexed in.
+	 *
+	 * @param classpath the jars to search, in classpath order
+	 * @return the name environment
+	 */
+	public INameEnvironment newNameEnvironment(List<File> classpath) {
+		// The position of each indexed jar in the classpath, or -1 if it isn't there
+		int[] ranks = new int[jars.size()];
+		Arrays.fill(ranks, -1);
+		for (int i = 0; i < classpath.size(); i++) {
+			int index = jars.indexOf(classpath.get(i).getAbsoluteFile());
+			if (index != -1 && ranks[index] == -1) {
+				ranks[index] = i;
+			}
+		}
+		return new IndexNameEnvironment(ranks);
+	}
+	
+	/**
+	 * Find the first record with the given name in a sorted table.
+	 *
+	 * @return the index of the record, or -1 if there isn't one
+	 */
+	private int findFirst(byte[] name, int table, int count, int recordSize) {
+		int low = 0;
+		int high = count - 1;
+		int found = -1;
+		
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int comp = compareToPool(name, table + mid * recordSize);
+			if (comp > 0) {
+				low = mid + 1;
+			} else {
+				if (comp == 0) {
+					found = mid;
+				}
+				high = mid - 1;
+			}
+		}
+		
+		return found;
+	}
+	
+	private int compareToPool(byte[] name, int record) {
+		int offset = pool + buffer.getInt(record);
+		int length = buffer.getInt(record + 4);
+		
+		int min = Math.min(name.length, length);
+		for (int i = 0; i < min; i++) {
+			int comp = (name[i] & 0xFF) - (buffer.get(offset + i) & 0xFF);
+			if (comp != 0) {
+				return comp;
+			}
+		}
+		return name.length - length;
+	}
+	
+	private static int compareBytes(byte[] a, byte[] b) {
+		int min = Math.min(a.length, b.length);
+		for (int i = 0; i < min; i++) {
+			int comp = (a[i] & 0xFF) - (b[i] & 0xFF);
+			if (comp != 0) {
+				return comp;
+			}
+		}
+		return a.length - b.length;
+	}
+	
+	private synchronized ByteBuffer getJarBuffer(int jar) throws IOException {
+		if (jarBuffers[jar] == null) {
+			try (RandomAccessFile file = new RandomAccessFile(jars.get(jar), "r")) {
+				jarBuffers[jar] = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+			}
+		}
+		// Duplicate so that concurrent readers don't fight over the position
+		ByteBuffer duplicate = jarBuffers[jar].duplicate();
+		duplicate.order(ByteOrder.LITTLE_ENDIAN);
+		return duplicate;
+	}
+	
+	private byte[] readClass(int record) throws IOException, DataFormatException {
+		int jar = buffer.getInt(record + 8);
+		int localHeaderOffset = buffer.getInt(record + 12);
+		int compressedSize = buffer.getInt(record + 16);
+		int uncompressedSize = buffer.getInt(record + 20);
+		int method = buffer.getInt(record + 24);
+		
+		ByteBuffer zip = getJarBuffer(jar);
+		
+		// The local header has its own name and extra field lengths, which can differ from the
+		// ones in the central directory
+		int nameLength = zip.getShort(localHeaderOffset + 26) & 0xFFFF;
+		int extraLength = zip.getShort(localHeaderOffset + 28) & 0xFFFF;
+		zip.position(localHeaderOffset + LOCAL_FILE_HEADER_SIZE + nameLength + extraLength);
+		
+		byte[] compressed = new byte[compressedSize];
+		zip.get(compressed);
+		
+		if (method == METHOD_STORED) {
+			return compressed;
+		}
+		
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(compressed);
+			byte[] uncompressed = new byte[uncompressedSize];
+			int read = 0;
+			while (read < uncompressedSize && !inflater.finished()) {
+				int len = inflater.inflate(uncompressed, read, uncompressedSize - read);
+				if (len == 0 && inflater.needsInput()) {
+					break;
+				}
+				read += len;
+			}
+			return uncompressed;
+		} finally {
+			inflater.end();
+		}
+	}
+	
+	private class IndexNameEnvironment implements INameEnvironment {
+		private final int[] ranks;
+		
+		private IndexNameEnvironment(int[] ranks) {
+			this.ranks = ranks;
+		}
+		
+		@Override
+		public NameEnvironmentAnswer findType(char[][] compoundTypeName) {
+			String typeName = CharOperation.toString(compoundTypeName).replace('.', '/');
+			byte[] name = typeName.getBytes(UTF_8);
+			
+			int first = findFirst(name, classTable, classCount, CLASS_RECORD_SIZE);
+			if (first == -1) {
+				return null;
+			}
+			
+			// The same class can be in more than one jar, take the one that comes first on the
+			// classpath
+			int found = -1;
+			for (int i = first; i < classCount; i++) {
+				int record = classTable + i * CLASS_RECORD_SIZE;
+				if (compareToPool(name, record) != 0) {
+					break;
+				}
+				int rank = ranks[buffer.getInt(record + 8)];
+				if (rank != -1 && (found == -1 || rank < ranks[buffer.getInt(found + 8)])) {
+					found = record;
+				}
+			}
+			
+			if (found == -1) {
+				return null;
+			}
+			
+			try {
+				String fileName = jars.get(buffer.getInt(found + 8)).getAbsolutePath() + "|" + typeName + ".class";
+				return new NameEnvironmentAnswer(new ClassFileReader(readClass(found), fileName.toCharArray()), null);
+			} catch (IOException | DataFormatException | ClassFormatException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+		
+		@Override
+		public NameEnvironmentAnswer findType(char[] typeName, char[][] packageName) {
+			return findType(CharOperation.arrayConcat(packageName, typeName));
+		}
+		
+		@Override
+		public boolean isPackage(char[][] parentPackageName, char[] packageName) {
+			String name = (parentPackageName == null || parentPackageName.length == 0 ? ""
+					: CharOperation.toString(parentPackageName).replace('.', '/') + "/") + new String(packageName);
+			byte[] nameBytes = name.getBytes(UTF_8);
+			
+			int first = findFirst(nameBytes, packageTable, packageCount, PACKAGE_RECORD_SIZE);
+			if (first == -1) {
+				return false;
+			}
+			
+			for (int i = first; i < packageCount; i++) {
+				int record = packageTable + i * PACKAGE_RECORD_SIZE;
+				if (compareToPool(nameBytes, record) != 0) {
+					break;
+				}
+				if (ranks[buffer.getInt(record + 8)] != -1) {
+					return true;
+				}
+			}
+			
+			return false;
+		}
+		
+		@Override
+		public void cleanup() {}
+	}
+	
+	private static class ClassRecord {
+		private final byte[] name;
+		private final int jar, localHeaderOffset, compressedSize, uncompressedSize, method;
+		
+		private ClassRecord(byte[] name, int jar, int localHeaderOffset, int compressedSize,
+		                    int uncompressedSize, int method) {
+			this.name = name;
+			this.jar = jar;
+			this.localHeaderOffset = localHeaderOffset;
+			this.compressedSize = compressedSize;
+			this.uncompressedSize = uncompressedSize;
+			this.method = method;
+		}
+	}
+	
+	private static class PackageRecord {
+		private final byte[] name;
+		private final int jar;
+		
+		private PackageRecord(byte[] name, int jar) {
+			this.name = name;
+			this.jar = jar;
+		}
+		
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof PackageRecord && ((PackageRecord) other).jar == jar
+					&& Arrays.equals(((PackageRecord) other).name, name);
+		}
+		
+		@Override
+		public int hashCode() {
+			return 31 * Arrays.hashCode(name) + jar;
+		}
+	}
+}
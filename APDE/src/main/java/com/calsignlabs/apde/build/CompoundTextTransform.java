@@ -19,6 +19,22 @@ public class CompoundTextTransform extends TextTransform implements CompoundText
 		this.charOffsets = charOffsets;
 	}
 	
+	/**
+	 * @return where the given section starts in the base text
+	 */
+	public int getSectionOffset(int section) {
+		return charOffsets[section];
+	}
+	
+	/**
+	 * @return the base text of the given section, without the newline that separates it from
+	 * the next one
+	 */
+	public CharSequence getSectionText(int section) {
+		int end = section + 1 < charOffsets.length ? charOffsets[section + 1] : getBaseText().length();
+		return getBaseText().subSequence(charOffsets[section], end - 1);
+	}
+	
 	public void insert(int section, int index, CharSequence text) {
 		insert(index + charOffsets[section], text);
 	}
@@ -67,13 +83,32 @@ public class CompoundTextTransform extends TextTransform implements CompoundText
 	@Override
 	public CompoundRange mapBackward(int index, int length, boolean shallow) throws LockException {
 		Range range = shallow ? new Range(index, length) : super.mapBackward(index, length);
-		int section = -1;
-		while (section < charOffsets.length - 1 && charOffsets[section + 1] <= range.index) {
-			section++;
-		}
+		int section = findSection(charOffsets, range.index);
 		return new CompoundRange(range.index - charOffsets[section], range.length, section);
 	}
 	
+	/**
+	 * Find the section that a position is in. An empty section starts at the same place as the
+	 * section after it, so the position belongs to the later one.
+	 *
+	 * @param charOffsets where each section starts, in order
+	 * @param index a position in the base text
+	 * @return the last section that starts at or before the index
+	 */
+	static int findSection(int[] charOffsets, int index) {
+		// The first section that starts after the index
+		int low = 0, high = charOffsets.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (charOffsets[mid] <= index) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low - 1;
+	}
+	
 	public interface TextHolder {
 		int count();
 		CharSequence getText(int section);
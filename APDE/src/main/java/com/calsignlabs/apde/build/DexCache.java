@@ -0,0 +1,190 @@
+package com.calsignlabs.apde.build;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Cache of dexed output, keyed by a hash of the input (a jar or a classes folder) and the options
+ * that it was dexed with. Dexing is by far the slowest thing that we do to libraries, and the same
+ * jar gets dexed again every time a library is reinstalled or a sketch is rebuilt without any
+ * changes to its code.
+ *
+ * The cache lives in the app's cache directory, so the system is free to clear it when storage is
+ * low. We also keep it under a fixed size ourselves by throwing out the least recently used
+ * entries.
+ */
+public class DexCache {
+	/**
+	 * The maximum total size of the cache, in bytes.
+	 */
+	public static final long MAX_SIZE = 64L * 1024 * 1024;
+	
+	/**
+	 * Bump this whenever the dexer is updated so that old output isn't reused.
+	 */
+	private static final String DEXER_VERSION = "dx-1";
+	
+	public static File getDexCacheDir(Context context) {
+		return new File(context.getCacheDir(), "dex_cache");
+	}
+	
+	/**
+	 * Compute the cache key for the given input. Directories are hashed recursively, including
+	 * the relative paths of the files that they contain.
+	 *
+	 * @param input the jar or classes folder to be dexed
+	 * @param options anything that affects the output of the dexer, e.g. command line flags
+	 * @return the key
+	 */
+	public static String getKey(File input, String options) throws IOException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(DEXER_VERSION.getBytes("UTF-8"));
+			digest.update((byte) 0);
+			digest.update(options.getBytes("UTF-8"));
+			digest.update((byte) 0);
+			
+			byte[] buffer = new byte[16 * 1024];
+			hash(input, "", digest, buffer);
+			
+			return toHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-1 is always available
+			throw new IOException(e);
+		}
+	}
+	
+	static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(String.format(Locale.US, "%02x", b));
+		}
+		return hex.toString();
+	}
+	
+	static void hash(File file, String relativePath, MessageDigest digest, byte[] buffer) throws IOException {
+		if (file.isDirectory()) {
+			File[] children = file.listFiles();
+			if (children == null) {
+				return;
+			}
+			// Sort so that the key doesn't depend on the order that the file system lists things
+			Arrays.sort(children);
+			for (File child : children) {
+				hash(child, relativePath + "/" + child.getName(), digest, buffer);
+			}
+		} else {
+			digest.update(relativePath.getBytes("UTF-8"));
+			digest.update((byte) 0);
+			
+			try (InputStream inputStream = new FileInputStream(file)) {
+				int len;
+				while ((len = inputStream.read(buffer)) != -1) {
+					digest.update(buffer, 0, len);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Copy the cached output for the given key to the output location.
+	 *
+	 * @param context the context
+	 * @param key the cache key from {@link #getKey(File, String)}
+	 * @param output where to put the dexed output
+	 * @return true if there was a cached entry, false if the input needs to be dexed
+	 */
+	public static synchronized boolean restore(Context context, String key, File output) {
+		File entry = new File(getDexCacheDir(context), key);
+		
+		if (!entry.exists()) {
+			return false;
+		}
+		
+		try {
+			Build.copyFile(entry, output);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		
+		// Keep track of when the entry was last used for LRU eviction
+		entry.setLastModified(System.currentTimeMillis());
+		
+		return true;
+	}
+	
+	/**
+	 * Add freshly dexed output to the cache, evicting old entries if needed.
+	 *
+	 * @param context the context
+	 * @param key the cache key from {@link #getKey(File, String)}
+	 * @param dexed the dexed output
+	 */
+	public static synchronized void store(Context context, String key, File dexed) {
+		if (!dexed.exists() || dexed.length() > MAX_SIZE) {
+			return;
+		}
+		
+		File dir = getDexCacheDir(context);
+		if (!dir.exists() && !dir.mkdirs()) {
+			return;
+		}
+		
+		// Copy to a temporary file first so that a half-written entry is never restored
+		File tempFile = new File(dir, key + ".tmp");
+		try {
+			Build.copyFile(dexed, tempFile);
+			if (!tempFile.renameTo(new File(dir, key))) {
+				tempFile.delete();
+				return;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			tempFile.delete();
+			return;
+		}
+		
+		evict(dir, MAX_SIZE);
+	}
+	
+	/**
+	 * Delete the least recently used entries until the cache fits in the given size.
+	 */
+	static void evict(File dir, long maxSize) {
+		File[] entries = dir.listFiles();
+		if (entries == null) {
+			return;
+		}
+		
+		long totalSize = 0;
+		for (File entry : entries) {
+			totalSize += entry.length();
+		}
+		
+		if (totalSize <= maxSize) {
+			return;
+		}
+		
+		// Oldest first
+		Arrays.sort(entries, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+		
+		for (File entry : entries) {
+			if (totalSize <= maxSize) {
+				break;
+			}
+			long length = entry.length();
+			if (entry.delete()) {
+				totalSize -= length;
+			}
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package com.calsignlabs.apde.build;
+
+import android.content.Context;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import kellinwood.zipio.ZioEntry;
+import kellinwood.zipio.ZipInput;
+import kellinwood.zipio.ZipOutput;
+
+/**
+ * Assembles the unsigned APK without recompressing anything that hasn't changed. ApkBuilder
+ * inflates and deflates every single entry, which means recompressing all of the sketch's assets
+ * every build even though they come straight out of the .apk.res.
+ *
+ * Entries from zip files (the .apk.res, GLSL, JNI libs) are copied over raw. Loose files (the
+ * classes.dex and any Java resources) are compared against the same entry in the last APK that we
+ * built for the sketch, and copied raw from there if the contents are the same. Only the files
+ * that have actually changed get compressed.
+ */
+public class IncrementalApkWriter {
+	private static final int DEFLATED = 8;
+	
+	/**
+	 * The same file types that ApkBuilder leaves out of the source folder.
+	 */
+	private static final Set<String> IGNORED_EXTENSIONS = new HashSet<>(Arrays.asList(
+			"java", "class", "aidl", "rs", "fs", "rsh", "d", "scala", "swp"));
+	private static final Set<String> IGNORED_FILES = new HashSet<>(Arrays.asList(
+			"package.html", "overview.html", "thumbs.db", "picasa.ini"));
+	private static final Set<String> IGNORED_FOLDERS = new HashSet<>(Arrays.asList(
+			"cvs", ".svn", "sccs", "meta-inf"));
+	
+	private ZipOutput output;
+	private ZipInput previous;
+	private List<ZipInput> inputs;
+	private Set<String> names;
+	
+	private byte[] buffer = new byte[16 * 1024];
+	
+	private int reusedCount, compressedCount;
+	
+	/**
+	 * @param outputFile where to write the unsigned APK
+	 * @param previousFile the last APK built for this sketch, or a file that doesn't exist
+	 */
+	public IncrementalApkWriter(File outputFile, File previousFile) throws IOException {
+		output = new ZipOutput(outputFile);
+		inputs = new ArrayList<>();
+		names = new HashSet<>();
+		
+		if (previousFile.exists()) {
+			try {
+				previous = ZipInput.read(previousFile.getAbsolutePath());
+			} catch (IOException e) {
+				// Corrupt or half-written, so just compress everything
+				e.printStackTrace();
+				previous = null;
+			}
+		}
+	}
+	
+	/**
+	 * Where to keep the last APK built for the given sketch. The build folder gets wiped every
+	 * build, so it has to live somewhere else.
+	 */
+	public static File getPreviousApk(Context context, String sketchName) {
+		return new File(new File(context.getCacheDir(), "apk_previous"), sketchName + ".apk.unsigned");
+	}
+	
+	/**
+	 * Keep the unsigned APK around for the next build to compare against.
+	 *
+	 * @param unsignedApk the APK that was just built
+	 * @param previousFile the location from {@link #getPreviousApk(Context, String)}
+	 */
+	public static void keepAsPrevious(File unsignedApk, File previousFile) {
+		File dir = previousFile.getParentFile();
+		if (!dir.exists() && !dir.mkdirs()) {
+			return;
+		}
+		
+		// The build folder might be on external storage, in which case we have to copy
+		if (!unsignedApk.renameTo(previousFile)) {
+			try {
+				Build.copyFile(unsignedApk, previousFile);
+			} catch (IOException e) {
+				e.printStackTrace();
+				previousFile.delete();
+			}
+		}
+	}
+	
+	/**
+	 * Copy all of the entries in a zip file into the APK without recompressing them. Folders and
+	 * META-INF are left out, just like ApkBuilder.
+	 */
+	public void addZipFile(File zipFile) throws IOException {
+		ZipInput input = ZipInput.read(zipFile.getAbsolutePath());
+		inputs.add(input);
+		
+		for (ZioEntry entry : input.getEntries().values()) {
+			if (entry.isDirectory() || entry.getName().startsWith("META-INF/")) {
+				continue;
+			}
+			write(entry);
+			reusedCount ++;
+		}
+	}
+	
+	/**
+	 * Add a single file to the APK. If the last APK has the exact same file, then it is copied
+	 * from there instead of being compressed again.
+	 *
+	 * @param file the file
+	 * @param archivePath the path of the file within the APK
+	 */
+	public void addFile(File file, String archivePath) throws IOException {
+		byte[] bytes = readFile(file);
+		
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		
+		ZioEntry old = previous != null ? previous.getEntry(archivePath) : null;
+		
+		// ZioEntry gives us the CRC as a signed int
+		if (old != null && old.getSize() == bytes.length && (old.getCrc32() & 0xFFFFFFFFL) == crc.getValue()) {
+			write(old);
+			reusedCount ++;
+		} else {
+			ZioEntry entry = new ZioEntry(archivePath);
+			entry.setCompression(DEFLATED);
+			entry.setTime(file.lastModified());
+			OutputStream entryOut = entry.getOutputStream();
+			entryOut.write(bytes);
+			write(entry);
+			compressedCount ++;
+		}
+	}
+	
+	/**
+	 * Add the Java resources in a source folder, leaving out the sources themselves.
+	 */
+	public void addSourceFolder(File folder) throws IOException {
+		addSourceFolder(folder, "");
+	}
+	
+	private void addSourceFolder(File folder, String prefix) throws IOException {
+		File[] children = folder.listFiles();
+		if (children == null) {
+			return;
+		}
+		// Sort so that the output doesn't depend on the order that the file system lists things
+		Arrays.sort(children);
+		for (File child : children) {
+			String name = child.getName();
+			if (name.startsWith(".")) {
+				continue;
+			}
+			
+			if (child.isDirectory()) {
+				if (!IGNORED_FOLDERS.contains(name.toLowerCase(Locale.US))) {
+					addSourceFolder(child, prefix + name + "/");
+				}
+			} else if (!isIgnoredFile(name)) {
+				addFile(child, prefix + name);
+			}
+		}
+	}
+	
+	private static boolean isIgnoredFile(String name) {
+		if (IGNORED_FILES.contains(name.toLowerCase(Locale.US))) {
+			return true;
+		}
+		int dot = name.lastIndexOf('.');
+		return dot != -1 && IGNORED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.US));
+	}
+	
+	private void write(ZioEntry entry) throws IOException {
+		if (!names.add(entry.getName())) {
+			throw new IOException("Duplicate entry in APK: " + entry.getName());
+		}
+		output.write(entry);
+	}
+	
+	private byte[] readFile(File file) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) file.length());
+		try (InputStream inputStream = new FileInputStream(file)) {
+			int len;
+			while ((len = inputStream.read(buffer)) != -1) {
+				bytes.write(buffer, 0, len);
+			}
+		}
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Write the central directory and close all of the files.
+	 */
+	public void close() throws IOException {
+		try {
+			output.close();
+		} finally {
+			for (ZipInput input : inputs) {
+				input.close();
+			}
+			if (previous != null) {
+				previous.close();
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of entries that were copied without being compressed again
+	 */
+	public int getReusedCount() {
+		return reusedCount;
+	}
+	
+	/**
+	 * @return the number of entries that had to be compressed
+	 */
+	public int getCompressedCount() {
+		return compressedCount;
+	}
+}
@@ -0,0 +1,684 @@
+package com.calsignlabs.apde.build;
+
+import org.eclipse.jdt.core.compiler.CategorizedProblem;
+import org.eclipse.jdt.core.compiler.CharOperation;
+import org.eclipse.jdt.internal.compiler.ClassFile;
+import org.eclipse.jdt.internal.compiler.CompilationResult;
+import org.eclipse.jdt.internal.compiler.DefaultErrorHandlingPolicies;
+import org.eclipse.jdt.internal.compiler.ICompilerRequestor;
+import org.eclipse.jdt.internal.compiler.batch.CompilationUnit;
+import org.eclipse.jdt.internal.compiler.batch.FileSystem;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFileReader;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFormatException;
+import org.eclipse.jdt.internal.compiler.env.ICompilationUnit;
+import org.eclipse.jdt.internal.compiler.env.INameEnvironment;
+import org.eclipse.jdt.internal.compiler.env.NameEnvironmentAnswer;
+import org.eclipse.jdt.internal.compiler.impl.CompilerOptions;
+import org.eclipse.jdt.internal.compiler.problem.DefaultProblemFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Compiles the sketch with ECJ, but only recompiles the compilation units whose text has changed
+ * since the last compile. Class files for everything else are reused from the output folder,
+ * which is fed back to the compiler as a source of binary types.
+ *
+ * The compiler is long-lived: we keep one instance per output folder around for as long as the
+ * classpath stays the same, so the classpath name lookups are cached across builds as well. (The
+ * regular build and the modular build each have their own output folder.)
+ *
+ * We don't track dependencies between compilation units. Instead, if recompiling the changed
+ * units changes the shape of any of their classes (new members, changed signatures, etc.), we go
+ * back and recompile everything else too. Sketches are small, so this is good enough.
+ */
+public class IncrementalCompiler {
+	private static final Map<File, IncrementalCompiler> instances = new HashMap<>();
+	
+	private final List<String> classpath;
+	private final List<Long> classpathLengths;
+	private final File outputFolder;
+	private final ClasspathIndex classpathIndex;
+	
+	private CachingNameEnvironment classpathEnvironment;
+	
+	/**
+	 * Compilation units from the last compile, keyed by absolute path. Sorted so that problems
+	 * are always reported in the same order.
+	 */
+	private final Map<String, Unit> units;
+	
+	private final List<CategorizedProblem> problems;
+	private int recompiledCount;
+	
+	private IncrementalCompiler(List<File> classpath, List<String> classpathNames, List<Long> classpathLengths,
+	                            File outputFolder, ClasspathIndex classpathIndex) {
+		this.classpath = classpathNames;
+		this.classpathLengths = classpathLengths;
+		this.outputFolder = outputFolder;
+		this.classpathIndex = classpathIndex;
+		
+		classpathEnvironment = new CachingNameEnvironment(createClasspathEnvironment(classpath, classpathIndex));
+		
+		units = new TreeMap<>();
+		problems = new ArrayList<>();
+	}
+	
+	/**
+	 * Get the compiler for the given output folder. If the classpath is different from the last
+	 * time, then the old compiler (and all of its cached state) is thrown out.
+	 *
+	 * @param classpath the jars to compile against, including android.jar
+	 * @param outputFolder where to put the class files
+	 * @param classpathIndex the index of the static artifact jars, or null to search all of the
+	 *                       jars directly
+	 * @return the compiler
+	 */
+	public static synchronized IncrementalCompiler get(List<File> classpath, File outputFolder,
+	                                                   ClasspathIndex classpathIndex) {
+		List<String> classpathNames = new ArrayList<>(classpath.size());
+		List<Long> classpathLengths = new ArrayList<>(classpath.size());
+		for (File entry : classpath) {
+			classpathNames.add(entry.getAbsolutePath());
+			// Jars in the build folder are re-copied every build, so we can't use the modification
+			// time to notice changes. The length will have to do.
+			classpathLengths.add(entry.length());
+		}
+		
+		IncrementalCompiler instance = instances.get(outputFolder);
+		
+		if (instance != null && !(instance.classpath.equals(classpathNames)
+				&& instance.classpathLengths.equals(classpathLengths)
+				&& instance.classpathIndex == classpathIndex)) {
+			invalidate(outputFolder);
+			instance = null;
+		}
+		
+		if (instance == null) {
+			// A new compiler doesn't know which class files came from which unit, so anything
+			// left over (e.g. from a deleted tab or a different sketch) would never be cleaned up
+			deleteContents(outputFolder);
+			instance = new IncrementalCompiler(classpath, classpathNames, classpathLengths, outputFolder, classpathIndex);
+			instances.put(outputFolder, instance);
+		}
+		
+		return instance;
+	}
+	
+	/**
+	 * Jars that are in the index are looked up through it, everything else (i.e. the user's
+	 * libraries) goes through a regular ECJ FileSystem.
+	 */
+	private static INameEnvironment createClasspathEnvironment(List<File> classpath, ClasspathIndex classpathIndex) {
+		if (classpathIndex == null) {
+			return new FileSystem(toPaths(classpath), new String[0], null);
+		}
+		
+		// Search the jars in classpath order, so that the user's libraries still come before the
+		// artifact libraries. Each run of indexed jars is searched through the index.
+		List<INameEnvironment> environments = new ArrayList<>();
+		List<File> run = new ArrayList<>();
+		boolean runIndexed = false;
+		for (File entry : classpath) {
+			boolean indexed = classpathIndex.contains(entry);
+			if (indexed != runIndexed && !run.isEmpty()) {
+				environments.add(createRunEnvironment(run, runIndexed, classpathIndex));
+				run = new ArrayList<>();
+			}
+			run.add(entry);
+			runIndexed = indexed;
+		}
+		if (!run.isEmpty()) {
+			environments.add(createRunEnvironment(run, runIndexed, classpathIndex));
+		}
+		
+		if (environments.size() == 1) {
+			return environments.get(0);
+		}
+		
+		return new ChainedNameEnvironment(environments.toArray(new INameEnvironment[environments.size()]));
+	}
+	
+	private static INameEnvironment createRunEnvironment(List<File> run, boolean indexed, ClasspathIndex classpathIndex) {
+		return indexed ? classpathIndex.newNameEnvironment(run) : new FileSystem(toPaths(run), new String[0], null);
+	}
+	
+	private static String[] toPaths(List<File> files) {
+		String[] paths = new String[files.size()];
+		for (int i = 0; i < paths.length; i++) {
+			paths[i] = files.get(i).getAbsolutePath();
+		}
+		return paths;
+	}
+	
+	/**
+	 * Throw out the compiler for the given output folder, along with the class files in it. The
+	 * next compile will be a full one.
+	 *
+	 * @param outputFolder the output folder
+	 */
+	public static synchronized void invalidate(File outputFolder) {
+		IncrementalCompiler instance = instances.remove(outputFolder);
+		if (instance != null) {
+			instance.classpathEnvironment.dispose();
+		}
+		
+		deleteContents(outputFolder);
+	}
+	
+	private static void deleteContents(File folder) {
+		File[] children = folder.listFiles();
+		if (children == null) {
+			return;
+		}
+		
+		for (File child : children) {
+			if (child.isDirectory()) {
+				deleteContents(child);
+			}
+			//noinspection ResultOfMethodCallIgnored
+			child.delete();
+		}
+	}
+	
+	/**
+	 * Expand a list of folders containing jars into a list of the jars themselves, the same way
+	 * that ECJ handles -extdirs.
+	 *
+	 * @param dirs the folders
+	 * @return the jars in those folders
+	 */
+	public static List<File> listJars(List<File> dirs) {
+		List<File> jars = new ArrayList<>();
+		for (File dir : dirs) {
+			File[] files = dir.listFiles();
+			if (files == null) {
+				continue;
+			}
+			Arrays.sort(files);
+			for (File file : files) {
+				String name = file.getName().toLowerCase(Locale.US);
+				if (file.isFile() && (name.endsWith(".jar") || name.endsWith(".zip"))) {
+					jars.add(file);
+				}
+			}
+		}
+		return jars;
+	}
+	
+	/**
+	 * Compile all of the .java files in the given source folders, skipping those that haven't
+	 * changed since the last compile.
+	 *
+	 * @param sourceFolders the source folders, e.g. src/ and gen/
+	 * @return true if there were no errors
+	 */
+	public synchronized boolean compile(List<File> sourceFolders) throws IOException {
+		problems.clear();
+		recompiledCount = 0;
+		
+		outputFolder.mkdirs();
+		
+		Map<String, String> sources = new TreeMap<>();
+		for (File sourceFolder : sourceFolders) {
+			collectSources(sourceFolder, sources);
+		}
+		
+		// Remove units that no longer exist
+		boolean removedUnits = false;
+		for (String path : new ArrayList<>(units.keySet())) {
+			if (!sources.containsKey(path)) {
+				deleteClassFiles(units.remove(path));
+				removedUnits = true;
+			}
+		}
+		
+		Set<String> changed = new HashSet<>();
+		for (Map.Entry<String, String> source : sources.entrySet()) {
+			Unit unit = units.get(source.getKey());
+			// Units with errors are always recompiled because the errors might have been caused
+			// by something in a different unit
+			if (unit == null || !unit.source.equals(source.getValue()) || unit.hasErrors
+					|| !classFilesExist(unit)) {
+				changed.add(source.getKey());
+			}
+		}
+		
+		boolean structuralChanges = compileUnits(changed, sources);
+		
+		if ((structuralChanges || removedUnits) && changed.size() < sources.size()) {
+			// Something that the other units might depend on has changed, so bring them up to date
+			Set<String> unchanged = new HashSet<>(sources.keySet());
+			unchanged.removeAll(changed);
+			compileUnits(unchanged, sources);
+		}
+		
+		boolean success = true;
+		for (Unit unit : units.values()) {
+			problems.addAll(unit.problems);
+			success &= !unit.hasErrors;
+		}
+		return success;
+	}
+	
+	/**
+	 * Compile the given sources in memory, just to find the problems in them. Nothing is written
+	 * to the output folder and the units from the last compile are left alone, so the next real
+	 * compile still knows what has changed.
+	 *
+	 * Types that aren't in the given sources come from the output folder and the classpath, so
+	 * this only makes sense after a compile into the output folder. The caller has to make sure
+	 * that no units have been removed since then, because their class files would still be found.
+	 *
+	 * @param sources the source code of the units to check, keyed by the path that they would be
+	 *                written to
+	 * @return the problems, in the order of the sources
+	 */
+	public synchronized List<CategorizedProblem> check(Map<String, String> sources) {
+		List<ICompilationUnit> compilationUnits = new ArrayList<>(sources.size());
+		for (Map.Entry<String, String> source : sources.entrySet()) {
+			compilationUnits.add(new CompilationUnit(source.getValue().toCharArray(), source.getKey(), null));
+		}
+		
+		List<CategorizedProblem> found = new ArrayList<>();
+		ICompilerRequestor requestor = result -> {
+			if (result.getProblems() != null) {
+				found.addAll(Arrays.asList(result.getProblems()));
+			}
+		};
+		
+		Map<String, String> options = getCompilerOptions();
+		// We only want the problems, so don't bother generating any code
+		options.put(CompilerOptions.OPTION_GenerateClassFiles, CompilerOptions.DISABLED);
+		
+		org.eclipse.jdt.internal.compiler.Compiler compiler = new org.eclipse.jdt.internal.compiler.Compiler(
+				new OutputFolderNameEnvironment(), DefaultErrorHandlingPolicies.proceedWithAllProblems(),
+				new CompilerOptions(options), requestor, new DefaultProblemFactory(Locale.getDefault()));
+		
+		compiler.compile(compilationUnits.toArray(new ICompilationUnit[0]));
+		
+		return found;
+	}
+	
+	/**
+	 * Find the problems in the sources in the given folders without writing anything, e.g. for
+	 * auto-compile. Only the units that have changed since the last compile are compiled, in
+	 * memory, and the rest keep their problems from then. Like {@link #compile(List)}, if the
+	 * shape of a class changed then everything is checked again.
+	 *
+	 * @param sourceFolders the source folders, e.g. src/ and gen/
+	 * @return the problems, or null if there is no compile to compare against (or units have been
+	 * added or removed since), in which case the caller should compile for real
+	 */
+	public synchronized List<CategorizedProblem> checkChanged(List<File> sourceFolders) throws IOException {
+		if (units.isEmpty()) {
+			return null;
+		}
+		
+		Map<String, String> sources = new TreeMap<>();
+		for (File sourceFolder : sourceFolders) {
+			collectSources(sourceFolder, sources);
+		}
+		
+		// New units could shadow stale class files in the output folder and removed units leave
+		// their class files behind, so let the real compile sort those out
+		if (!sources.keySet().equals(units.keySet())) {
+			return null;
+		}
+		
+		Set<String> changed = new HashSet<>();
+		for (Map.Entry<String, String> source : sources.entrySet()) {
+			Unit unit = units.get(source.getKey());
+			if (!unit.source.equals(source.getValue()) || unit.hasErrors || !classFilesExist(unit)) {
+				changed.add(source.getKey());
+			}
+		}
+		
+		Map<String, List<CategorizedProblem>> checked = new HashMap<>();
+		if (checkUnits(changed, sources, checked) && changed.size() < sources.size()) {
+			checked.clear();
+			checkUnits(sources.keySet(), sources, checked);
+		}
+		
+		List<CategorizedProblem> found = new ArrayList<>();
+		for (Map.Entry<String, Unit> unit : units.entrySet()) {
+			List<CategorizedProblem> unitProblems = checked.get(unit.getKey());
+			found.addAll(unitProblems != null ? unitProblems : unit.getValue().problems);
+		}
+		return found;
+	}
+	
+	/**
+	 * @return the problems from the last compile, including the ones for units that didn't need
+	 * to be recompiled
+	 */
+	public List<CategorizedProblem> getProblems() {
+		return problems;
+	}
+	
+	/**
+	 * @return the number of compilation units that were actually recompiled in the last compile
+	 */
+	public int getRecompiledCount() {
+		return recompiledCount;
+	}
+	
+	/**
+	 * Recompile the given units, replacing their old class files.
+	 *
+	 * @return whether or not the shape of any of the classes changed
+	 */
+	private boolean compileUnits(Set<String> paths, Map<String, String> sources) throws IOException {
+		if (paths.isEmpty()) {
+			return false;
+		}
+		
+		// Remember the old class files so that we can figure out if anything important changed
+		Map<String, byte[]> oldClassFiles = new HashMap<>();
+		for (String path : paths) {
+			Unit unit = units.remove(path);
+			if (unit != null) {
+				for (String classFile : unit.classFiles) {
+					File file = new File(outputFolder, classFile);
+					if (file.exists()) {
+						oldClassFiles.put(classFile, readFile(file));
+					}
+				}
+				deleteClassFiles(unit);
+			}
+		}
+		
+		List<ICompilationUnit> compilationUnits = new ArrayList<>(paths.size());
+		for (String path : paths) {
+			compilationUnits.add(new CompilationUnit(sources.get(path).toCharArray(), path, null));
+		}
+		
+		List<CompilationResult> results = new ArrayList<>();
+		ICompilerRequestor requestor = results::add;
+		
+		org.eclipse.jdt.internal.compiler.Compiler compiler = new org.eclipse.jdt.internal.compiler.Compiler(
+				new OutputFolderNameEnvironment(), DefaultErrorHandlingPolicies.proceedWithAllProblems(),
+				new CompilerOptions(getCompilerOptions()), requestor, new DefaultProblemFactory(Locale.getDefault()));
+		
+		compiler.compile(compilationUnits.toArray(new ICompilationUnit[0]));
+		
+		boolean structuralChanges = false;
+		Set<String> newClassFiles = new HashSet<>();
+		
+		for (CompilationResult result : results) {
+			String path = new String(result.getFileName());
+			Unit unit = new Unit(sources.get(path));
+			
+			if (result.getProblems() != null) {
+				unit.problems.addAll(Arrays.asList(result.getProblems()));
+			}
+			unit.hasErrors = result.hasErrors();
+			
+			for (ClassFile classFile : result.getClassFiles()) {
+				String name = new String(classFile.fileName()) + ".class";
+				byte[] bytes = classFile.getBytes();
+				
+				writeFile(new File(outputFolder, name), bytes);
+				unit.classFiles.add(name);
+				newClassFiles.add(name);
+				
+				structuralChanges |= hasStructuralChanges(name, oldClassFiles.get(name), bytes);
+			}
+			
+			units.put(path, unit);
+		}
+		
+		// Classes that used to exist but don't anymore
+		structuralChanges |= !newClassFiles.containsAll(oldClassFiles.keySet());
+		
+		recompiledCount += results.size();
+		
+		return structuralChanges;
+	}
+	
+	/**
+	 * Compile the given units in memory and compare their classes to the ones in the output
+	 * folder, without touching it.
+	 *
+	 * @param checked where to put the problems of each unit
+	 * @return whether or not the shape of any of the classes changed
+	 */
+	private boolean checkUnits(Set<String> paths, Map<String, String> sources,
+	                           Map<String, List<CategorizedProblem>> checked) throws IOException {
+		if (paths.isEmpty()) {
+			return false;
+		}
+		
+		Set<String> oldClassFiles = new HashSet<>();
+		List<ICompilationUnit> compilationUnits = new ArrayList<>(paths.size());
+		for (String path : paths) {
+			oldClassFiles.addAll(units.get(path).classFiles);
+			compilationUnits.add(new CompilationUnit(sources.get(path).toCharArray(), path, null));
+		}
+		
+		List<CompilationResult> results = new ArrayList<>();
+		ICompilerRequestor requestor = results::add;
+		
+		org.eclipse.jdt.internal.compiler.Compiler compiler = new org.eclipse.jdt.internal.compiler.Compiler(
+				new OutputFolderNameEnvironment(), DefaultErrorHandlingPolicies.proceedWithAllProblems(),
+				new CompilerOptions(getCompilerOptions()), requestor, new DefaultProblemFactory(Locale.getDefault()));
+		
+		compiler.compile(compilationUnits.toArray(new ICompilationUnit[0]));
+		
+		boolean structuralChanges = false;
+		Set<String> newClassFiles = new HashSet<>();
+		
+		for (CompilationResult result : results) {
+			List<CategorizedProblem> unitProblems = new ArrayList<>();
+			if (result.getProblems() != null) {
+				unitProblems.addAll(Arrays.asList(result.getProblems()));
+			}
+			checked.put(new String(result.getFileName()), unitProblems);
+			
+			for (ClassFile classFile : result.getClassFiles()) {
+				String name = new String(classFile.fileName()) + ".class";
+				File oldFile = new File(outputFolder, name);
+				newClassFiles.add(name);
+				
+				structuralChanges |= hasStructuralChanges(name, oldFile.exists() ? readFile(oldFile) : null, classFile.getBytes());
+			}
+		}
+		
+		// Classes that used to exist but don't anymore
+		structuralChanges |= !newClassFiles.containsAll(oldClassFiles);
+		
+		return structuralChanges;
+	}
+	
+	private static boolean hasStructuralChanges(String name, byte[] oldBytes, byte[] newBytes) {
+		if (oldBytes == null) {
+			return true;
+		}
+		
+		try {
+			return new ClassFileReader(oldBytes, name.toCharArray()).hasStructuralChanges(newBytes);
+		} catch (ClassFormatException e) {
+			return true;
+		}
+	}
+	
+	private static Map<String, String> getCompilerOptions() {
+		Map<String, String> options = new HashMap<>();
+		
+		// Same as "-1.6 -target 1.6"
+		options.put(CompilerOptions.OPTION_Compliance, CompilerOptions.VERSION_1_6);
+		options.put(CompilerOptions.OPTION_Source, CompilerOptions.VERSION_1_6);
+		options.put(CompilerOptions.OPTION_TargetPlatform, CompilerOptions.VERSION_1_6);
+		
+		// Same as the batch compiler's default "-g:lines,source"
+		options.put(CompilerOptions.OPTION_LineNumberAttribute, CompilerOptions.GENERATE);
+		options.put(CompilerOptions.OPTION_SourceFileAttribute, CompilerOptions.GENERATE);
+		
+		// Same as "-proc:none"
+		options.put(CompilerOptions.OPTION_Process_Annotations, CompilerOptions.DISABLED);
+		
+		// Same as "-warn:-unusedImport"
+		// The preprocessor gives us a lot of these, so this is just a lot of noise
+		options.put(CompilerOptions.OPTION_ReportUnusedImport, CompilerOptions.IGNORE);
+		
+		return options;
+	}
+	
+	private static void collectSources(File file, Map<String, String> sources) throws IOException {
+		if (file.isDirectory()) {
+			File[] children = file.listFiles();
+			if (children != null) {
+				for (File child : children) {
+					collectSources(child, sources);
+				}
+			}
+		} else if (file.getName().endsWith(".java")) {
+			sources.put(file.getAbsolutePath(), new String(readFile(file)));
+		}
+	}
+	
+	private boolean classFilesExist(Unit unit) {
+		for (String classFile : unit.classFiles) {
+			if (!new File(outputFolder, classFile).exists()) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private void deleteClassFiles(Unit unit) {
+		for (String classFile : unit.classFiles) {
+			//noinspection ResultOfMethodCallIgnored
+			new File(outputFolder, classFile).delete();
+		}
+	}
+	
+	private static byte[] readFile(File file) throws IOException {
+		try (InputStream inputStream = new FileInputStream(file)) {
+			ByteArrayOutputStream outputStream = new ByteArrayOutputStream((int) file.length());
+			Build.copyStream(inputStream, outputStream);
+			return outputStream.toByteArray();
+		}
+	}
+	
+	private static void writeFile(File file, byte[] bytes) throws IOException {
+		//noinspection ResultOfMethodCallIgnored
+		file.getParentFile().mkdirs();
+		try (OutputStream outputStream = new FileOutputStream(file)) {
+			outputStream.write(bytes);
+		}
+	}
+	
+	/**
+	 * Asks each environment in turn, the first one to find a type wins.
+	 */
+	private static class ChainedNameEnvironment implements INameEnvironment {
+		private final INameEnvironment[] environments;
+		
+		private ChainedNameEnvironment(INameEnvironment... environments) {
+			this.environments = environments;
+		}
+		
+		@Override
+		public NameEnvironmentAnswer findType(char[][] compoundTypeName) {
+			for (INameEnvironment environment : environments) {
+				NameEnvironmentAnswer answer = environment.findType(compoundTypeName);
+				if (answer != null) {
+					return answer;
+				}
+			}
+			return null;
+		}
+		
+		@Override
+		public NameEnvironmentAnswer findType(char[] typeName, char[][] packageName) {
+			for (INameEnvironment environment : environments) {
+				NameEnvironmentAnswer answer = environment.findType(typeName, packageName);
+				if (answer != null) {
+					return answer;
+				}
+			}
+			return null;
+		}
+		
+		@Override
+		public boolean isPackage(char[][] parentPackageName, char[] packageName) {
+			for (INameEnvironment environment : environments) {
+				if (environment.isPackage(parentPackageName, packageName)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		@Override
+		public void cleanup() {
+			for (INameEnvironment environment : environments) {
+				environment.cleanup();
+			}
+		}
+	}
+	
+	private static class Unit {
+		private final String source;
+		private final List<String> classFiles;
+		private final List<CategorizedProblem> problems;
+		private boolean hasErrors;
+		
+		private Unit(String source) {
+			this.source = source;
+			classFiles = new ArrayList<>();
+			problems = new ArrayList<>();
+		}
+	}
+	
+	/**
+	 * Looks for types in the output folder first (these are the classes from the units that we
+	 * aren't recompiling) and then in the classpath.
+	 */
+	private class OutputFolderNameEnvironment implements INameEnvironment {
+		@Override
+		public NameEnvironmentAnswer findType(char[][] compoundTypeName) {
+			File classFile = new File(outputFolder, CharOperation.toString(compoundTypeName).replace('.', '/') + ".class");
+			if (classFile.isFile()) {
+				try {
+					return new NameEnvironmentAnswer(ClassFileReader.read(classFile), null);
+				} catch (ClassFormatException | IOException e) {
+					e.printStackTrace();
+				}
+			}
+			
+			return classpathEnvironment.findType(compoundTypeName);
+		}
+		
+		@Override
+		public NameEnvironmentAnswer findType(char[] typeName, char[][] packageName) {
+			return findType(CharOperation.arrayConcat(packageName, typeName));
+		}
+		
+		@Override
+		public boolean isPackage(char[][] parentPackageName, char[] packageName) {
+			String path = (parentPackageName == null || parentPackageName.length == 0 ? ""
+					: CharOperation.toString(parentPackageName).replace('.', '/') + "/") + new String(packageName);
+			return new File(outputFolder, path).isDirectory()
+					|| classpathEnvironment.isPackage(parentPackageName, packageName);
+		}
+		
+		@Override
+		public void cleanup() {}
+	}
+}
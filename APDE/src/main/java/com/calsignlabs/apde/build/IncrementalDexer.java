@@ -0,0 +1,194 @@
+package com.calsignlabs.apde.build;
+
+import android.content.Context;
+
+import com.androidjarjar.dex.Dex;
+import com.androidjarjar.dx.cf.direct.DirectClassFile;
+import com.androidjarjar.dx.cf.direct.StdAttributeFactory;
+import com.androidjarjar.dx.command.dexer.DxContext;
+import com.androidjarjar.dx.dex.DexOptions;
+import com.androidjarjar.dx.dex.cf.CfOptions;
+import com.androidjarjar.dx.dex.cf.CfTranslator;
+import com.androidjarjar.dx.dex.file.DexFile;
+import com.androidjarjar.dx.merge.CollisionPolicy;
+import com.androidjarjar.dx.merge.DexMerger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Dexes a classes folder one class at a time, keeping the dexed version of each class (a "shard")
+ * in a cache keyed by the hash of the class file. Only the classes that have actually changed
+ * since the last build are dexed, and the shards are then merged into a single dex file.
+ *
+ * The merged output is also put in the {@link DexCache}, keyed by the set of shards, so that we
+ * don't even have to merge if none of the classes have changed.
+ */
+public class IncrementalDexer {
+	/**
+	 * The maximum total size of the shard cache, in bytes.
+	 */
+	public static final long MAX_SIZE = 32L * 1024 * 1024;
+	
+	/**
+	 * Bump this whenever the dexer or the options below are changed so that old shards aren't
+	 * reused.
+	 */
+	private static final String DEXER_VERSION = "dx-shard-1";
+	
+	public static File getShardCacheDir(Context context) {
+		return new File(context.getCacheDir(), "dex_shards");
+	}
+	
+	/**
+	 * Dex all of the classes in the given folder.
+	 *
+	 * @param context the context
+	 * @param classesFolder the folder containing the compiled classes
+	 * @param output where to put the dex file
+	 * @return the number of classes that had to be dexed
+	 */
+	public static synchronized int dex(Context context, File classesFolder, File output) throws IOException {
+		File shardDir = getShardCacheDir(context);
+		if (!shardDir.exists() && !shardDir.mkdirs()) {
+			throw new IOException("Failed to create " + shardDir.getAbsolutePath());
+		}
+		
+		List<File> classFiles = new ArrayList<>();
+		listClassFiles(classesFolder, classFiles);
+		
+		if (classFiles.isEmpty()) {
+			throw new IOException("No classes to dex in " + classesFolder.getAbsolutePath());
+		}
+		
+		MessageDigest mergedDigest = newDigest();
+		List<File> shards = new ArrayList<>(classFiles.size());
+		int dexedCount = 0;
+		byte[] buffer = new byte[16 * 1024];
+		
+		for (File classFile : classFiles) {
+			byte[] bytes = readFile(classFile, buffer);
+			String relativePath = classesFolder.toURI().relativize(classFile.toURI()).getPath();
+			
+			MessageDigest digest = newDigest();
+			digest.update(DEXER_VERSION.getBytes("UTF-8"));
+			digest.update((byte) 0);
+			digest.update(bytes);
+			String key = DexCache.toHex(digest.digest());
+			
+			File shard = new File(shardDir, key + ".dex");
+			
+			if (shard.exists()) {
+				// Keep track of when the shard was last used for LRU eviction
+				shard.setLastModified(System.currentTimeMillis());
+			} else {
+				writeShard(dexClass(relativePath, bytes), shard);
+				dexedCount ++;
+			}
+			
+			shards.add(shard);
+			mergedDigest.update(key.getBytes("UTF-8"));
+		}
+		
+		// If none of the classes have changed, then we have merged these shards before
+		String mergedKey = DexCache.toHex(mergedDigest.digest());
+		if (!DexCache.restore(context, mergedKey, output)) {
+			Dex[] dexes = new Dex[shards.size()];
+			for (int i = 0; i < dexes.length; i ++) {
+				dexes[i] = new Dex(shards.get(i));
+			}
+			
+			if (dexes.length == 1) {
+				dexes[0].writeTo(output);
+			} else {
+				// The merger reports each dex that it merges, which is far too much output
+				DxContext dxContext = new DxContext(new Build.NullOutputStream(), System.err);
+				new DexMerger(dexes, CollisionPolicy.FAIL, dxContext).merge().writeTo(output);
+			}
+			
+			DexCache.store(context, mergedKey, output);
+		}
+		
+		// Only evict once we're done with the shards, otherwise we could delete the ones that we
+		// are about to merge
+		if (dexedCount > 0) {
+			DexCache.evict(shardDir, MAX_SIZE);
+		}
+		
+		return dexedCount;
+	}
+	
+	private static byte[] dexClass(String relativePath, byte[] bytes) throws IOException {
+		// These are the same options that the dx command line uses by default
+		DxContext dxContext = new DxContext();
+		dxContext.optimizerOptions.loadOptimizeLists(null, null);
+		
+		DexOptions dexOptions = new DexOptions();
+		CfOptions cfOptions = new CfOptions();
+		cfOptions.localInfo = true;
+		cfOptions.optimize = true;
+		
+		DirectClassFile classFile = new DirectClassFile(bytes, relativePath, cfOptions.strictNameCheck);
+		classFile.setAttributeFactory(StdAttributeFactory.THE_ONE);
+		// Force the class file to be parsed
+		classFile.getMagic();
+		
+		DexFile dexFile = new DexFile(dexOptions);
+		dexFile.add(CfTranslator.translate(dxContext, classFile, bytes, cfOptions, dexOptions, dexFile));
+		return dexFile.toDex(null, false);
+	}
+	
+	private static void writeShard(byte[] dex, File shard) throws IOException {
+		// Write to a temporary file first so that a half-written shard is never used
+		File tempFile = new File(shard.getAbsolutePath() + ".tmp");
+		new Dex(dex).writeTo(tempFile);
+		if (!tempFile.renameTo(shard)) {
+			tempFile.delete();
+			throw new IOException("Failed to write " + shard.getAbsolutePath());
+		}
+	}
+	
+	private static void listClassFiles(File folder, List<File> classFiles) {
+		File[] children = folder.listFiles();
+		if (children == null) {
+			return;
+		}
+		// Sort so that the output doesn't depend on the order that the file system lists things
+		Arrays.sort(children);
+		for (File child : children) {
+			if (child.isDirectory()) {
+				listClassFiles(child, classFiles);
+			} else if (child.getName().endsWith(".class")) {
+				classFiles.add(child);
+			}
+		}
+	}
+	
+	private static byte[] readFile(File file, byte[] buffer) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) file.length());
+		try (InputStream inputStream = new FileInputStream(file)) {
+			int len;
+			while ((len = inputStream.read(buffer)) != -1) {
+				bytes.write(buffer, 0, len);
+			}
+		}
+		return bytes.toByteArray();
+	}
+	
+	private static MessageDigest newDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-1 is always available
+			throw new IOException(e);
+		}
+	}
+}
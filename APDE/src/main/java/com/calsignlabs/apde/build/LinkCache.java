@@ -0,0 +1,261 @@
+package com.calsignlabs.apde.build;
+
+import android.content.Context;
+
+import com.android.tools.aapt2.Aapt2Jni;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Cache of AAPT2 link output (the .apk.res, the generated R.java files and the logs). Most builds
+ * only change the sketch's code, in which case the manifest, resources and assets are exactly the
+ * same as last time and there is no reason to link them again.
+ *
+ * The key covers the link arguments, the contents of the sketch's inputs (manifest, compiled
+ * resources, assets) and the size and modification time of the static inputs (android.jar and
+ * the pre-compiled artifact resources). The static inputs only change when they are extracted
+ * again, and there are far too many of them to read every build.
+ */
+public class LinkCache {
+	/**
+	 * The maximum total size of the cache, in bytes. The .apk.res contains the assets, so entries
+	 * can be fairly large.
+	 */
+	public static final long MAX_SIZE = 32L * 1024 * 1024;
+	
+	/**
+	 * Bump this whenever AAPT2 is updated so that old output isn't reused.
+	 */
+	private static final String AAPT2_VERSION = "aapt2-1";
+	
+	private static final String APK_RES = "apk.res";
+	private static final String GEN = "gen";
+	private static final String LOGS = "logs";
+	
+	public static File getLinkCacheDir(Context context) {
+		return new File(context.getCacheDir(), "link_cache");
+	}
+	
+	/**
+	 * Compute the cache key for a link.
+	 *
+	 * @param linkArgs the arguments passed to AAPT2
+	 * @param inputs the inputs that are hashed by content
+	 * @param staticInputs the inputs that are only checked by size and modification time
+	 * @return the key
+	 */
+	public static String getKey(List<String> linkArgs, List<File> inputs, List<File> staticInputs) throws IOException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(AAPT2_VERSION.getBytes("UTF-8"));
+			digest.update((byte) 0);
+			
+			for (String arg : linkArgs) {
+				digest.update(arg.getBytes("UTF-8"));
+				digest.update((byte) 0);
+			}
+			
+			byte[] buffer = new byte[16 * 1024];
+			for (File input : inputs) {
+				digest.update(input.getAbsolutePath().getBytes("UTF-8"));
+				digest.update((byte) 0);
+				if (input.exists()) {
+					DexCache.hash(input, "", digest, buffer);
+				}
+			}
+			
+			for (File staticInput : staticInputs) {
+				hashStat(staticInput, digest);
+			}
+			
+			return DexCache.toHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-1 is always available
+			throw new IOException(e);
+		}
+	}
+	
+	private static void hashStat(File file, MessageDigest digest) throws IOException {
+		digest.update(file.getAbsolutePath().getBytes("UTF-8"));
+		digest.update((byte) 0);
+		
+		if (file.isDirectory()) {
+			File[] children = file.listFiles();
+			if (children == null) {
+				return;
+			}
+			Arrays.sort(children);
+			for (File child : children) {
+				hashStat(child, digest);
+			}
+		} else {
+			long[] values = { file.length(), file.lastModified() };
+			for (long value : values) {
+				for (int i = 0; i < 8; i ++) {
+					digest.update((byte) (value >>> (i * 8)));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Copy the cached link output for the given key to the output locations.
+	 *
+	 * @param context the context
+	 * @param key the cache key from {@link #getKey(List, List, List)}
+	 * @param apkRes where to put the .apk.res
+	 * @param gen where to put the generated R.java files
+	 * @return the logs from the cached link, or null if there was no cached entry and we need to
+	 * link
+	 */
+	public static synchronized List<Aapt2Jni.Log> restore(Context context, String key, File apkRes, File gen) {
+		File entry = new File(getLinkCacheDir(context), key);
+		
+		// Entries from before we kept the logs have to be linked again
+		if (!entry.exists() || !new File(entry, LOGS).exists()) {
+			return null;
+		}
+		
+		List<Aapt2Jni.Log> logs;
+		try {
+			logs = readLogs(new File(entry, LOGS));
+			Build.copyFile(new File(entry, APK_RES), apkRes);
+			Build.copyDir(new File(entry, GEN), gen);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		
+		// Keep track of when the entry was last used for LRU eviction
+		entry.setLastModified(System.currentTimeMillis());
+		
+		return logs;
+	}
+	
+	/**
+	 * Add fresh link output to the cache, evicting old entries if needed.
+	 *
+	 * @param context the context
+	 * @param key the cache key from {@link #getKey(List, List, List)}
+	 * @param apkRes the .apk.res output by AAPT2
+	 * @param gen the folder containing the generated R.java files
+	 * @param logs the logs from the link, so that the same warnings show up on a cache hit
+	 */
+	public static synchronized void store(Context context, String key, File apkRes, File gen, List<Aapt2Jni.Log> logs) {
+		if (!apkRes.exists() || !gen.exists() || apkRes.length() > MAX_SIZE) {
+			return;
+		}
+		
+		File dir = getLinkCacheDir(context);
+		if (!dir.exists() && !dir.mkdirs()) {
+			return;
+		}
+		
+		// Copy to a temporary folder first so that a half-written entry is never restored
+		File tempDir = new File(dir, key + ".tmp");
+		if (!tempDir.exists() && !tempDir.mkdirs()) {
+			return;
+		}
+		
+		try {
+			Build.copyFile(apkRes, new File(tempDir, APK_RES));
+			Build.copyDir(gen, new File(tempDir, GEN));
+			writeLogs(logs, new File(tempDir, LOGS));
+			File entry = new File(dir, key);
+			if (entry.exists()) {
+				Build.deleteFile(entry, context);
+			}
+			if (!tempDir.renameTo(entry)) {
+				Build.deleteFile(tempDir, context);
+				return;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			Build.deleteFile(tempDir, context);
+			return;
+		}
+		
+		evict(dir, context);
+	}
+	
+	private static void writeLogs(List<Aapt2Jni.Log> logs, File file) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(logs.size());
+			for (Aapt2Jni.Log log : logs) {
+				out.writeInt(log.level.ordinal());
+				out.writeBoolean(log.path != null);
+				if (log.path != null) {
+					out.writeUTF(log.path);
+				}
+				out.writeLong(log.line);
+				out.writeUTF(log.message);
+			}
+		}
+	}
+	
+	private static List<Aapt2Jni.Log> readLogs(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			int count = in.readInt();
+			List<Aapt2Jni.Log> logs = new ArrayList<>(count);
+			for (int i = 0; i < count; i ++) {
+				Aapt2Jni.Log.Level level = Aapt2Jni.Log.Level.values()[in.readInt()];
+				String path = in.readBoolean() ? in.readUTF() : null;
+				long line = in.readLong();
+				String message = in.readUTF();
+				logs.add(new Aapt2Jni.Log(level, path, line, message));
+			}
+			return logs;
+		}
+	}
+	
+	/**
+	 * Delete the least recently used entries until the cache fits in {@link #MAX_SIZE}.
+	 */
+	private static void evict(File dir, Context context) {
+		File[] entries = dir.listFiles();
+		if (entries == null) {
+			return;
+		}
+		
+		long totalSize = 0;
+		long[] sizes = new long[entries.length];
+		// Oldest first
+		Arrays.sort(entries, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+		for (int i = 0; i < entries.length; i ++) {
+			sizes[i] = sizeOf(entries[i]);
+			totalSize += sizes[i];
+		}
+		
+		for (int i = 0; i < entries.length && totalSize > MAX_SIZE; i ++) {
+			Build.deleteFile(entries[i], context);
+			totalSize -= sizes[i];
+		}
+	}
+	
+	private static long sizeOf(File file) {
+		if (file.isDirectory()) {
+			long size = 0;
+			File[] children = file.listFiles();
+			if (children != null) {
+				for (File child : children) {
+					size += sizeOf(child);
+				}
+			}
+			return size;
+		} else {
+			return file.length();
+		}
+	}
+}
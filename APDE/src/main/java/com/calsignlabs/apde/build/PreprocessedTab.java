@@ -0,0 +1,118 @@
+package com.calsignlabs.apde.build;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What the preprocessor found in one tab, kept between builds.
+ *
+ * Apart from the header, the footer, and the settings calls, every edit that the preprocessor
+ * makes only depends on the text of the tab that it is in. The tabs are looked up by a hash of
+ * their text, so when only one tab has changed since the last build, only that tab has to be
+ * lexed and parsed again and the rest of the edits are reused.
+ *
+ * All of the positions are relative to the start of the tab. The preprocessor shifts them into
+ * place when it puts the tabs together.
+ */
+public class PreprocessedTab {
+	/**
+	 * The number of tabs to remember. A few sketches' worth, so that switching between sketches
+	 * doesn't throw everything out.
+	 */
+	private static final int CACHE_SIZE = 128;
+	
+	// Least recently used tabs are dropped first
+	private static final Map<String, PreprocessedTab> CACHE = new LinkedHashMap<String, PreprocessedTab>(CACHE_SIZE, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, PreprocessedTab> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+	
+	private final PreprocessorLexer lexer;
+	
+	// The edits from parsing the tab, which depend on the mode of the sketch
+	private PreprocessorLexer.Mode astMode;
+	private List<TextTransform.Edit> astEdits;
+	
+	private PreprocessedTab(CharSequence text) {
+		lexer = new PreprocessorLexer(text);
+	}
+	
+	/**
+	 * Get the tab with the given text, lexing it if it hasn't been seen before.
+	 *
+	 * @param text the text of the tab
+	 * @return the tab
+	 */
+	public static PreprocessedTab get(CharSequence text) {
+		String key = getKey(text);
+		
+		synchronized (CACHE) {
+			PreprocessedTab tab = CACHE.get(key);
+			if (tab != null) {
+				return tab;
+			}
+		}
+		
+		PreprocessedTab tab = new PreprocessedTab(text);
+		
+		synchronized (CACHE) {
+			CACHE.put(key, tab);
+		}
+		
+		return tab;
+	}
+	
+	private static String getKey(CharSequence text) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(text.toString().getBytes("UTF-8"));
+			return DexCache.toHex(digest.digest());
+		} catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+			// SHA-1 and UTF-8 are always available, but fall back to the text itself if they aren't
+			e.printStackTrace();
+			return text.toString();
+		}
+	}
+	
+	public PreprocessorLexer getLexer() {
+		return lexer;
+	}
+	
+	/**
+	 * @param mode the mode of the sketch
+	 * @return the edits from parsing the tab in the given mode, or null if they haven't been
+	 * worked out yet
+	 */
+	public synchronized List<TextTransform.Edit> getAstEdits(PreprocessorLexer.Mode mode) {
+		return mode == astMode ? astEdits : null;
+	}
+	
+	/**
+	 * @param mode the mode of the sketch
+	 * @param edits the edits from parsing the tab in the given mode. They are never changed, the
+	 *              preprocessor makes shifted copies of them instead.
+	 */
+	public synchronized void setAstEdits(PreprocessorLexer.Mode mode, List<TextTransform.Edit> edits) {
+		astMode = mode;
+		astEdits = Collections.unmodifiableList(new ArrayList<>(edits));
+	}
+	
+	/**
+	 * Make a copy of an edit somewhere else.
+	 *
+	 * @param edit the edit
+	 * @param offset how far to move it
+	 * @return the copy
+	 */
+	public static TextTransform.Edit shift(TextTransform.Edit edit, int offset) {
+		return TextTransform.Edit.replace(edit.index() + offset, edit.before(), edit.after()).weight(edit.getWeight());
+	}
+}
@@ -1,6 +1,8 @@
 package com.calsignlabs.apde.build;
 
 import com.calsignlabs.apde.R;
+import com.calsignlabs.apde.build.PreprocessorLexer.MethodMatch;
+import com.calsignlabs.apde.build.PreprocessorLexer.Mode;
 import com.calsignlabs.apde.build.dag.BuildContext;
 import com.calsignlabs.apde.build.dag.SketchCode;
 import com.calsignlabs.apde.contrib.Library;
@@ -8,17 +10,12 @@ import com.calsignlabs.apde.contrib.Library;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.eclipse.jdt.core.JavaCore;
 import org.eclipse.jdt.core.compiler.IProblem;
-import org.eclipse.jdt.core.dom.AST;
-import org.eclipse.jdt.core.dom.ASTParser;
 import org.eclipse.jdt.core.dom.ASTVisitor;
 import org.eclipse.jdt.core.dom.CompilationUnit;
 import org.eclipse.jdt.core.dom.MethodDeclaration;
@@ -33,8 +30,6 @@ import org.eclipse.jdt.core.dom.SimpleType;
 public class Preprocessor {
 	private BuildContext context;
 	
-	private final ASTParser parser = ASTParser.newParser(AST.JLS8);
-	
 	private CompoundTextTransform transform;
 	
 	private Mode mode;
@@ -49,6 +44,9 @@ public class Preprocessor {
 	
 	private List<CompilerProblem> compilerProblems;
 	
+	// The settings statements that were taken out of the sketch
+	private List<TextTransform.Range> settingsRanges;
+	
 	public Preprocessor(BuildContext context, Build build, String packageName, String className, Set<String> codeFolderPackages) {
 		this.context = context;
 		this.packageName = packageName;
@@ -134,28 +132,33 @@ public class Preprocessor {
 		});
 		
 		try {
-			StringBuilder scrubbed = new StringBuilder(transform.getBaseText());
-			scrubCommentsAndStrings(scrubbed);
+			// Tabs that haven't changed since the last build have already been lexed, and
+			// probably parsed too
+			PreprocessedTab[] tabs = new PreprocessedTab[context.getSketchFiles().size()];
+			for (int section = 0; section < tabs.length; section ++) {
+				tabs[section] = PreprocessedTab.get(transform.getSectionText(section));
+			}
 			
 			List<TextTransform.Range> sketchImports = new ArrayList<>();
 			List<String> baseImports = new ArrayList<>();
 			addBaseImports(baseImports);
 			addCodeFolderImports(baseImports);
-			extractImports(scrubbed, sketchImports);
+			extractImports(tabs, sketchImports);
 			
-			mode = getMode(scrubbed);
+			mode = getMode(tabs);
 			
 			// Settings statements aren't done with the move transformation because they don't
 			// preserve the text, they rewrite it. This is OK, though, because there shouldn't be
 			// any problems with them that doesn't get picked up by the preprocessor.
-			List<String> settingsStatements = extractSettings(scrubbed);
-			replaceTypeConstructors(scrubbed);
-			replaceHexLiterals(scrubbed);
+			settingsRanges = new ArrayList<>();
+			List<String> settingsStatements = extractSettings(tabs);
+			replaceTypeConstructors(tabs);
+			replaceHexLiterals(tabs);
 			
 			writeHeader(baseImports, sketchImports); // imports get written here
-			writeFooter(settingsStatements, hasSettings(scrubbed));
+			writeFooter(settingsStatements, hasSettings(tabs));
 			
-			advancedPreprocess();
+			advancedPreprocess(tabs);
 			
 			buildPreprocessedText();
 		} catch (TextTransform.OverlappingEditException | TextTransform.LockException e) {
@@ -198,11 +201,15 @@ public class Preprocessor {
 		}
 	}
 	
-	private boolean hasSettings(CharSequence scrubbed) {
+	private boolean hasSettings(PreprocessedTab[] tabs) {
 		switch (mode) {
 			case ACTIVE:
-				Matcher settingsMatcher = SETTINGS_REGEX.matcher(scrubbed);
-				return settingsMatcher.find();
+				for (PreprocessedTab tab : tabs) {
+					if (tab.getLexer().hasSettings()) {
+						return true;
+					}
+				}
+				return false;
 			case JAVA:
 				return true;
 			case STATIC:
@@ -211,97 +218,67 @@ public class Preprocessor {
 		}
 	}
 	
-	private List<String> extractSettings(CharSequence scrubbed) throws TextTransform.LockException {
+	private List<String> extractSettings(PreprocessedTab[] tabs) throws TextTransform.LockException {
 		List<String> statements = new ArrayList<>();
 		
-		CharSequence searchArea = null;
-		int offset = 0;
+		if (hasSettingsArea(tabs)) {
+			extractSizeFullScreen(tabs, statements, context.getComponentTarget());
+			extractSmooth(tabs, statements);
+		}
+		
+		return statements;
+	}
+	
+	/**
+	 * @return the section with the first setup() function, or -1 if there isn't one
+	 */
+	private int getSetupSection(PreprocessedTab[] tabs) {
+		for (int section = 0; section < tabs.length; section ++) {
+			if (tabs[section].getLexer().hasSetup()) {
+				return section;
+			}
+		}
+		return -1;
+	}
+	
+	private boolean hasSettingsArea(PreprocessedTab[] tabs) {
 		switch (mode) {
 			case ACTIVE:
-				Matcher setupMatcher = SETUP_REGEX.matcher(scrubbed);
-				if (setupMatcher.find()) {
-					offset = scrubbed.toString().indexOf("{", setupMatcher.end());
-					if (offset >= 0) {
-						Matcher closeMatcher = CLOSING_BRACE.matcher(scrubbed);
-						if (closeMatcher.find(offset)) {
-							searchArea = scrubbed.subSequence(offset, closeMatcher.end());
-						}
-					}
-				}
-				break;
+				// The settings statements have to be in setup()
+				int setupSection = getSetupSection(tabs);
+				return setupSection != -1 && tabs[setupSection].getLexer().hasSettingsArea(mode);
 			case STATIC:
-				searchArea = scrubbed;
+				return true;
 			case JAVA:
 			default:
-				break;
-		}
-		
-		if (searchArea != null) {
-			extractSizeFullScreen(searchArea, offset, statements, context.getComponentTarget());
-			extractSmooth(searchArea, offset, statements);
+				return false;
 		}
-		
-		return statements;
 	}
 	
-	private static final Pattern SETUP_REGEX = Pattern.compile(
-			"(?:^|\\s|;)void\\s+setup\\s*\\(", Pattern.MULTILINE);
-	
-	private static final Pattern SETTINGS_REGEX = Pattern.compile(
-			"(?:^|\\s|;)void\\s+settings\\s*\\(", Pattern.MULTILINE);
-	
-	private static final Pattern CLOSING_BRACE = Pattern.compile("\\}");
-	
-	protected static class MethodMatch {
-		protected String text;
-		protected int start, length, semicolonLength;
-		protected String[] arguments;
-		
-		protected MethodMatch(String text, int start, String[] arguments, int semicolonLength) {
-			this.text = text;
-			this.start = start;
-			this.length = text.length();
-			this.arguments = arguments;
-			this.semicolonLength = semicolonLength;
+	/**
+	 * @param name the name of the function, e.g. "size"
+	 * @return the first call to the function in the part of the sketch that settings statements
+	 * are taken from, or null if there isn't one
+	 */
+	private MethodMatch getSettingsCall(PreprocessedTab[] tabs, String name) {
+		if (mode == Mode.ACTIVE) {
+			int setupSection = getSetupSection(tabs);
+			MethodMatch match = setupSection == -1 ? null : tabs[setupSection].getLexer().getSettingsCall(mode, name);
+			return match != null ? match.offset(transform.getSectionOffset(setupSection)) : null;
 		}
 		
-		protected String getArg(int i) {
-			return arguments[i];
-		}
-		
-		@SuppressWarnings("ResultOfMethodCallIgnored")
-		protected String getIntArg(int i, String passThrough) throws NumberFormatException {
-			String arg = getArg(i);
-			if (!passThrough.equals(arg)) {
-				 Integer.parseInt(getArg(i));
+		for (int section = 0; section < tabs.length; section ++) {
+			MethodMatch match = tabs[section].getLexer().getSettingsCall(mode, name);
+			if (match != null) {
+				return match.offset(transform.getSectionOffset(section));
 			}
-			return arg;
-		}
-		
-		protected TextTransform.Range toRange(int offset) {
-			return new TextTransform.Range(start + offset, length);
 		}
+		return null;
 	}
 	
-	private static MethodMatch findMethod(CharSequence code, String name) {
-		final String left = "(?:^|\\s|;)(";
-		final String right = "\\s*\\(([^\\)]*)\\))\\s*;";
-		Pattern pattern = Pattern.compile(left + name + right, Pattern.MULTILINE | Pattern.DOTALL);
-		Matcher matcher = pattern.matcher(code);
-		if (matcher.find()) {
-			// Get arguments
-			String[] groups = matcher.group(2).split(",");
-			for (int i = 0; i < groups.length; i++) {
-				groups[i] = groups[i].trim();
-			}
-			// We don't want an empty string from no arguments
-			if (groups.length > 0 && groups[0].equals("")) {
-				groups = new String[] {};
-			}
-			return new MethodMatch(matcher.group(1), matcher.start(1), groups, matcher.end() - matcher.start(1));
-		} else {
-			return null;
-		}
+	private void removeSettingsStatement(MethodMatch statement) {
+		transform.remove(statement.start, statement.semicolonLength);
+		settingsRanges.add(new TextTransform.Range(statement.start, statement.semicolonLength));
 	}
 	
 	private String getDefaultVrRenderer() {
@@ -325,16 +302,16 @@ public class Preprocessor {
 		RENDERERS.addAll(VR_RENDERERS);
 	}
 	
-	private void extractSizeFullScreen(CharSequence code, int offset, List<String> statements, ComponentTarget componentTarget) throws TextTransform.LockException {
+	private void extractSizeFullScreen(PreprocessedTab[] tabs, List<String> statements, ComponentTarget componentTarget) throws TextTransform.LockException {
 		// TODO detect more than one of size(), fullScreen(), etc. -> should be error
 		
-		MethodMatch sizeStatement = findMethod(code, "size");
-		MethodMatch fullScreenStatement = findMethod(code, "fullScreen");
+		MethodMatch sizeStatement = getSettingsCall(tabs, "size");
+		MethodMatch fullScreenStatement = getSettingsCall(tabs, "fullScreen");
 		
 		if (sizeStatement != null && fullScreenStatement != null) {
 			// Can't have both
-			addCompilerProblem(buildCompilerProblem(sizeStatement.toRange(offset), true, context.getResources().getString(R.string.preprocessor_problem_both_size_fullscreen), true));
-			addCompilerProblem(buildCompilerProblem(fullScreenStatement.toRange(offset), true, context.getResources().getString(R.string.preprocessor_problem_both_size_fullscreen), true));
+			addCompilerProblem(buildCompilerProblem(sizeStatement.toRange(), true, context.getResources().getString(R.string.preprocessor_problem_both_size_fullscreen), true));
+			addCompilerProblem(buildCompilerProblem(fullScreenStatement.toRange(), true, context.getResources().getString(R.string.preprocessor_problem_both_size_fullscreen), true));
 		}
 		
 		// We default to fullScreen, even if nothing is specified
@@ -358,11 +335,11 @@ public class Preprocessor {
 						break;
 					default:
 						// Poorly formed size statement
-						addCompilerProblem(buildCompilerProblem(sizeStatement.toRange(offset), true, context.getResources().getString(R.string.preprocessor_problem_size_argument_number), true));
+						addCompilerProblem(buildCompilerProblem(sizeStatement.toRange(), true, context.getResources().getString(R.string.preprocessor_problem_size_argument_number), true));
 				}
 			} catch (NumberFormatException e) {
 				// Bad size arguments
-				addCompilerProblem(buildCompilerProblem(sizeStatement.toRange(offset), true, context.getResources().getString(R.string.preprocessor_problem_size_bad_number), true));
+				addCompilerProblem(buildCompilerProblem(sizeStatement.toRange(), true, context.getResources().getString(R.string.preprocessor_problem_size_bad_number), true));
 			}
 		}
 		
@@ -375,7 +352,7 @@ public class Preprocessor {
 				renderer = fullScreenStatement.getArg(0);
 			} else if (fullScreenStatement.arguments.length > 2) {
 				// Too many args
-				addCompilerProblem(buildCompilerProblem(fullScreenStatement.toRange(offset), true, context.getResources().getString(R.string.preprocessor_problem_fullscreen_arguement_number), true));
+				addCompilerProblem(buildCompilerProblem(fullScreenStatement.toRange(), true, context.getResources().getString(R.string.preprocessor_problem_fullscreen_arguement_number), true));
 			}
 			// "SPAN" is not a renderer, discard it
 			if ("SPAN".equals(renderer)) {
@@ -391,7 +368,7 @@ public class Preprocessor {
 		if (renderer != null && !RENDERERS.contains(renderer)) {
 			// Invalid renderer
 			// If renderer is not null, then we have either a size() or fullScreen() statement
-			addCompilerProblem(buildCompilerProblem(fullScreen ? fullScreenStatement.toRange(offset) : sizeStatement.toRange(offset), true, context.getResources().getString(R.string.preprocessor_problem_invalid_renderer), true));
+			addCompilerProblem(buildCompilerProblem(fullScreen ? fullScreenStatement.toRange() : sizeStatement.toRange(), true, context.getResources().getString(R.string.preprocessor_problem_invalid_renderer), true));
 			renderer = null;
 		}
 		
@@ -426,31 +403,31 @@ public class Preprocessor {
 		builder.append(");");
 		
 		if (fullScreenStatement != null) {
-			transform.remove(fullScreenStatement.start + offset, fullScreenStatement.semicolonLength);
+			removeSettingsStatement(fullScreenStatement);
 		}
 		if (sizeStatement != null) {
-			transform.remove(sizeStatement.start + offset, sizeStatement.semicolonLength);
+			removeSettingsStatement(sizeStatement);
 		}
 		statements.add(builder.toString());
 	}
 	
-	private void extractSmooth(CharSequence code, int offset, List<String> statements) throws TextTransform.LockException {
-		MethodMatch smoothStatement = findMethod(code, "smooth");
-		MethodMatch noSmoothStatement = findMethod(code, "noSmooth");
+	private void extractSmooth(PreprocessedTab[] tabs, List<String> statements) throws TextTransform.LockException {
+		MethodMatch smoothStatement = getSettingsCall(tabs, "smooth");
+		MethodMatch noSmoothStatement = getSettingsCall(tabs, "noSmooth");
 		
 		if (smoothStatement != null && noSmoothStatement != null) {
 			// Can't have both
-			addCompilerProblem(buildCompilerProblem(smoothStatement.toRange(offset), true, context.getResources().getString(R.string.preprocessor_problem_both_smooth_nosmooth), true));
-			addCompilerProblem(buildCompilerProblem(noSmoothStatement.toRange(offset), true, context.getResources().getString(R.string.preprocessor_problem_both_smooth_nosmooth), true));
+			addCompilerProblem(buildCompilerProblem(smoothStatement.toRange(), true, context.getResources().getString(R.string.preprocessor_problem_both_smooth_nosmooth), true));
+			addCompilerProblem(buildCompilerProblem(noSmoothStatement.toRange(), true, context.getResources().getString(R.string.preprocessor_problem_both_smooth_nosmooth), true));
 		}
 		
 		if (noSmoothStatement != null) {
 			if (noSmoothStatement.arguments.length > 0) {
 				// Too many args
-				addCompilerProblem(buildCompilerProblem(noSmoothStatement.toRange(offset), true, context.getResources().getString(R.string.preprocessor_problem_nosmooth_argument_number), true));
+				addCompilerProblem(buildCompilerProblem(noSmoothStatement.toRange(), true, context.getResources().getString(R.string.preprocessor_problem_nosmooth_argument_number), true));
 			}
 			
-			transform.remove(noSmoothStatement.start + offset, noSmoothStatement.semicolonLength);
+			removeSettingsStatement(noSmoothStatement);
 			if (smoothStatement == null) {
 				// Default to smooth() over noSmooth()
 				// We still have an error if both are specified, but we want to correct as many
@@ -467,14 +444,14 @@ public class Preprocessor {
 					arg = smoothStatement.getIntArg(0, "");
 				} catch (NumberFormatException e) {
 					// Bad arg
-					addCompilerProblem(buildCompilerProblem(smoothStatement.toRange(offset), true, context.getResources().getString(R.string.preprocessor_problem_smooth_bad_number), true));
+					addCompilerProblem(buildCompilerProblem(smoothStatement.toRange(), true, context.getResources().getString(R.string.preprocessor_problem_smooth_bad_number), true));
 				}
 			} else if (smoothStatement.arguments.length > 1) {
 				// Too many args
-				addCompilerProblem(buildCompilerProblem(smoothStatement.toRange(offset), true, context.getResources().getString(R.string.preprocessor_problem_smooth_argument_number), true));
+				addCompilerProblem(buildCompilerProblem(smoothStatement.toRange(), true, context.getResources().getString(R.string.preprocessor_problem_smooth_argument_number), true));
 			}
 			
-			transform.remove(smoothStatement.start + offset, smoothStatement.semicolonLength);
+			removeSettingsStatement(smoothStatement);
 			statements.add("smooth(" + (arg != null ? arg : "") + ");");
 		}
 	}
@@ -555,62 +532,55 @@ public class Preprocessor {
 		}
 	}
 	
-	private static final Pattern IMPORT_REGEX = Pattern.compile(
-			"(?:^|;)\\s*(import\\s+(?:(static)\\s+)?((?:\\w+\\s*\\.)*)\\s*(\\S+)\\s*;)",
-			Pattern.MULTILINE | Pattern.DOTALL);
-	
-	private void extractImports(CharSequence scrubbed, List<TextTransform.Range> imports) {
-		Matcher matcher = IMPORT_REGEX.matcher(scrubbed);
-		while (matcher.find()) {
-			imports.add(new TextTransform.Range(matcher.start(1), matcher.end(1) - matcher.start(1)));
-			
-			String libraryPkg = matcher.group(3);
-			int dot = libraryPkg.lastIndexOf('.');
-			libraryPkg = dot == -1 ? libraryPkg : libraryPkg.substring(0, dot);
-			
-			checkImport(libraryPkg);
+	private void extractImports(PreprocessedTab[] tabs, List<TextTransform.Range> imports) {
+		for (int section = 0; section < tabs.length; section ++) {
+			int offset = transform.getSectionOffset(section);
+			for (PreprocessorLexer.Import imp : tabs[section].getLexer().getImports()) {
+				imports.add(new TextTransform.Range(imp.range.index + offset, imp.range.length));
+				checkImport(imp.pkg);
+			}
 		}
 	}
 	
-	private static final Pattern TYPE_CONSTRUCTOR_REGEX = Pattern.compile("(?<=^|\\W)(int|char|float|boolean|byte)(?=\\s*\\()", Pattern.MULTILINE);
-	
-	private void replaceTypeConstructors(CharSequence scrubbed) {
-		Matcher matcher = TYPE_CONSTRUCTOR_REGEX.matcher(scrubbed);
-		while (matcher.find()) {
-			// Converts int() to PApplet.parseInt()
-			transform.replace(matcher.start(1), matcher.group(1).length(),
-					"parse" + Character.toUpperCase(matcher.group(1).charAt(0)) + matcher.group(1).substring(1));
+	private void replaceTypeConstructors(PreprocessedTab[] tabs) {
+		for (int section = 0; section < tabs.length; section ++) {
+			int offset = transform.getSectionOffset(section);
+			for (TextTransform.Range range : tabs[section].getLexer().getTypeConstructors()) {
+				transform.replace(range.index + offset, range.length, getTypeConstructorReplacement(transform.getBaseText(), range.index + offset, range.length));
+			}
 		}
 	}
 	
-	private static final Pattern HEX_LITERAL_REGEX = Pattern.compile("(?<=^|\\W)(#[A-Fa-f0-9]{6})(?=\\W|$)");
-	
-	private void replaceHexLiterals(CharSequence scrubbed) {
-		Matcher matcher = HEX_LITERAL_REGEX.matcher(scrubbed);
-		while (matcher.find()) {
-			transform.replace(matcher.start(1), 1, "0xff");
-		}
+	/**
+	 * Converts int() to PApplet.parseInt()
+	 */
+	private static String getTypeConstructorReplacement(CharSequence text, int index, int length) {
+		String type = text.subSequence(index, index + length).toString();
+		return "parse" + Character.toUpperCase(type.charAt(0)) + type.substring(1);
 	}
 	
-	private static final Pattern PUBLIC_CLASS = Pattern.compile(
-			"(^|;)\\s*public\\s+class\\s+\\S+\\s+extends\\s+PApplet", Pattern.MULTILINE);
-	
-	private static final Pattern FUNCTION_DECL = Pattern.compile(
-			"(^|;)\\s*((public|private|protected|final|static)\\s+)*(void|int|float|double|String|char|byte)(\\s*\\[\\s*\\])?\\s+[a-zA-Z0-9]+\\s*\\(",
-			Pattern.MULTILINE);
-	
-	public enum Mode {
-		JAVA, ACTIVE, STATIC;
+	private void replaceHexLiterals(PreprocessedTab[] tabs) {
+		for (int section = 0; section < tabs.length; section ++) {
+			int offset = transform.getSectionOffset(section);
+			for (int index : tabs[section].getLexer().getColorLiterals()) {
+				// Converts #FF0000 to 0xffFF0000
+				transform.replace(index + offset, 1, "0xff");
+			}
+		}
 	}
 	
-	private Mode getMode(CharSequence scrubbed) {
-		if (PUBLIC_CLASS.matcher(scrubbed).find()) {
-			return Mode.JAVA;
-		} else if (FUNCTION_DECL.matcher(scrubbed).find()) {
-			return Mode.ACTIVE;
-		} else {
-			return Mode.STATIC;
+	private Mode getMode(PreprocessedTab[] tabs) {
+		// A class in any tab makes it a Java sketch, a function in any tab makes it active
+		Mode mode = Mode.STATIC;
+		for (PreprocessedTab tab : tabs) {
+			Mode tabMode = tab.getLexer().getMode();
+			if (tabMode == Mode.JAVA) {
+				return Mode.JAVA;
+			} else if (tabMode == Mode.ACTIVE) {
+				mode = Mode.ACTIVE;
+			}
 		}
+		return mode;
 	}
 	
 	private void writeHeader(List<String> baseImports, List<TextTransform.Range> sketchImports) {
@@ -678,27 +648,6 @@ public class Preprocessor {
 		transform.insert(transform.getBaseText().length(), builder).weight(100);
 	}
 	
-	private CompilationUnit parse(CharSequence source) {
-		parser.setSource(source.toString().toCharArray());
-		parser.setKind(ASTParser.K_COMPILATION_UNIT);
-		parser.setCompilerOptions(COMPILER_OPTIONS);
-		parser.setStatementsRecovery(true);
-		
-		return (CompilationUnit) parser.createAST(null);
-	}
-	
-	private CompilationUnit parse(CharSequence source, String className, String[] classpath) {
-		parser.setSource(source.toString().toCharArray());
-		parser.setKind(ASTParser.K_COMPILATION_UNIT);
-		parser.setCompilerOptions(COMPILER_OPTIONS);
-		parser.setStatementsRecovery(true);
-		parser.setUnitName(className);
-		parser.setEnvironment(classpath, null, null, false);
-		parser.setResolveBindings(true);
-		
-		return (CompilationUnit) parser.createAST(null);
-	}
-	
 	// Verifies that whole input String is floating point literal. Can't be used for searching.
 	// https://docs.oracle.com/javase/specs/jls/se8/html/jls-3.html#jls-DecimalFloatingPointLiteral
 	public static final Pattern FLOATING_POINT_LITERAL_VERIFIER;
@@ -716,9 +665,72 @@ public class Preprocessor {
 	private static final int ACCESS_MODIFIERS_MASK =
 			Modifier.PUBLIC | Modifier.PRIVATE | Modifier.PROTECTED;
 	
-	private void advancedPreprocess() throws TextTransform.OverlappingEditException {
-		CompilationUnit intermediate = parse(transform.applyForward());
+	private void advancedPreprocess(PreprocessedTab[] tabs) throws TextTransform.OverlappingEditException {
 		// Save edits so that we wait to unlock after we apply them
+		List<TextTransform.Edit> edits = new ArrayList<>();
+		
+		for (int section = 0; section < tabs.length; section ++) {
+			if (!context.getSketchFiles().get(section).isPde()) {
+				continue;
+			}
+			
+			// Only parse the tabs that have changed
+			List<TextTransform.Edit> tabEdits = tabs[section].getAstEdits(mode);
+			if (tabEdits == null) {
+				tabEdits = parseTab(transform.getSectionText(section), tabs[section].getLexer());
+				tabs[section].setAstEdits(mode, tabEdits);
+			}
+			
+			int offset = transform.getSectionOffset(section);
+			for (TextTransform.Edit edit : tabEdits) {
+				TextTransform.Edit shifted = PreprocessedTab.shift(edit, offset);
+				if (!isInSettingsStatement(shifted.index())) {
+					edits.add(shifted);
+				}
+			}
+		}
+		
+		transform.edit(edits);
+	}
+	
+	private boolean isInSettingsStatement(int index) {
+		// The settings statements are moved out of the sketch, so anything in them is gone
+		for (TextTransform.Range range : settingsRanges) {
+			if (index >= range.index && index < range.index + range.length) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Parse one tab on its own to find the edits that need the AST: 'color' to 'int', 'f' after
+	 * floats, and 'public' before methods. The tab is changed the same way as it is in the sketch
+	 * and put in the same class so that it parses the same way.
+	 *
+	 * @param text the text of the tab
+	 * @param lexer what the lexer found in the tab
+	 * @return the edits, relative to the start of the tab
+	 */
+	private List<TextTransform.Edit> parseTab(CharSequence text, PreprocessorLexer lexer) throws TextTransform.OverlappingEditException {
+		final TextTransform local = new TextTransform(text);
+		
+		for (PreprocessorLexer.Import imp : lexer.getImports()) {
+			local.remove(imp.range);
+		}
+		for (TextTransform.Range range : lexer.getTypeConstructors()) {
+			local.replace(range, getTypeConstructorReplacement(text, range.index, range.length));
+		}
+		for (int index : lexer.getColorLiterals()) {
+			local.replace(index, 1, "0xff");
+		}
+		
+		if (mode != Mode.JAVA) {
+			local.insert(0, "public class " + className + " extends PApplet {\n" + (mode == Mode.STATIC ? "public void setup() {\n" : "")).weight(-100);
+			local.insert(text.length(), (mode == Mode.STATIC ? "\n}" : "") + "\n}\n").weight(100);
+		}
+		
+		CompilationUnit intermediate = SketchParser.get().parse(local.applyForward());
 		final List<TextTransform.Edit> edits = new ArrayList<>();
 		
 		intermediate.accept(new ASTVisitor() {
@@ -727,7 +739,7 @@ public class Preprocessor {
 				// Replace 'color' with 'int'
 				if ("color".equals(node.getName().toString())) {
 					try {
-						edits.add(transform.makeReplace(transform.mapBackward(node.getStartPosition(), node.getLength()), "int").weight(10));
+						edits.add(local.makeReplace(local.mapBackward(node.getStartPosition(), node.getLength()), "int").weight(10));
 					} catch (TextTransform.LockException e) {
 						e.printStackTrace();
 					}
@@ -741,7 +753,7 @@ public class Preprocessor {
 				String token = node.getToken().toLowerCase();
 				if (FLOATING_POINT_LITERAL_VERIFIER.matcher(token).matches() && !token.endsWith("f") && !token.endsWith("d")) {
 					try {
-					edits.add(transform.makeInsert(transform.mapBackward(node.getStartPosition() + node.getLength()), "f").weight(10));
+					edits.add(local.makeInsert(local.mapBackward(node.getStartPosition() + node.getLength()), "f").weight(10));
 					} catch (TextTransform.LockException e) {
 						e.printStackTrace();
 					}
@@ -754,7 +766,7 @@ public class Preprocessor {
 				// Add 'public' to methods with default visibility
 				if ((node.getModifiers() & ACCESS_MODIFIERS_MASK) == 0) {
 					try {
-						edits.add(transform.makeInsert(transform.mapBackward(node.getStartPosition()), "public ").weight(0));
+						edits.add(local.makeInsert(local.mapBackward(node.getStartPosition()), "public ").weight(0));
 					} catch (TextTransform.LockException e) {
 						e.printStackTrace();
 					}
@@ -763,7 +775,7 @@ public class Preprocessor {
 			}
 		});
 		
-		transform.edit(edits);
+		return edits;
 	}
 	
 	private void buildPreprocessedText() throws TextTransform.OverlappingEditException {
@@ -771,7 +783,7 @@ public class Preprocessor {
 	}
 	
 	private void findSyntaxProblems() throws TextTransform.LockException {
-		CompilationUnit compilable = parse(preprocessedText);
+		CompilationUnit compilable = SketchParser.get().parse(preprocessedText);
 		for (IProblem problem : compilable.getProblems()) {
 			addCompilerProblem(buildCompilerProblem(problem));
 		}
@@ -794,107 +806,4 @@ public class Preprocessor {
 				"java.io.IOException",
 		};
 	}
-	
-	// Taken straight from PDEX
-	public static void scrubCommentsAndStrings(StringBuilder p) {
-		final int length = p.length();
-		
-		final int OUT = 0;
-		final int IN_BLOCK_COMMENT = 1;
-		final int IN_EOL_COMMENT = 2;
-		final int IN_STRING_LITERAL = 3;
-		final int IN_CHAR_LITERAL = 4;
-		
-		int blockStart = -1;
-		
-		int prevState = OUT;
-		int state = OUT;
-		
-		for (int i = 0; i <= length; i++) {
-			char ch = (i < length) ? p.charAt(i) : 0;
-			char pch = (i == 0) ? 0 : p.charAt(i - 1);
-			// Get rid of double backslash immediately, otherwise
-			// the second backslash incorrectly triggers a new escape sequence
-			if (pch == '\\' && ch == '\\') {
-				p.setCharAt(i - 1, ' ');
-				p.setCharAt(i, ' ');
-				pch = ' ';
-				ch = ' ';
-			}
-			switch (state) {
-				case OUT:
-					switch (ch) {
-						case '\'':
-							state = IN_CHAR_LITERAL;
-							break;
-						case '"':
-							state = IN_STRING_LITERAL;
-							break;
-						case '*':
-							if (pch == '/') state = IN_BLOCK_COMMENT;
-							break;
-						case '/':
-							if (pch == '/') state = IN_EOL_COMMENT;
-							break;
-					}
-					break;
-				case IN_BLOCK_COMMENT:
-					if (pch == '*' && ch == '/' && (i - blockStart) > 0) {
-						state = OUT;
-					}
-					break;
-				case IN_EOL_COMMENT:
-					if (ch == '\r' || ch == '\n') {
-						state = OUT;
-					}
-					break;
-				case IN_STRING_LITERAL:
-					if ((pch != '\\' && ch == '"') || ch == '\r' || ch == '\n') {
-						state = OUT;
-					}
-					break;
-				case IN_CHAR_LITERAL:
-					if ((pch != '\\' && ch == '\'') || ch == '\r' || ch == '\n') {
-						state = OUT;
-					}
-					break;
-			}
-			
-			// Terminate ongoing block at last char
-			if (i == length) {
-				state = OUT;
-			}
-			
-			// Handle state changes
-			if (state != prevState) {
-				if (state != OUT) {
-					// Entering block
-					blockStart = i + 1;
-				} else {
-					// Exiting block
-					int blockEnd = i;
-					if (prevState == IN_BLOCK_COMMENT && i < length)
-						blockEnd--; // preserve star in '*/'
-					for (int j = blockStart; j < blockEnd; j++) {
-						char c = p.charAt(j);
-						if (c != '\n' && c != '\r') p.setCharAt(j, ' ');
-					}
-				}
-			}
-			
-			prevState = state;
-		}
-	}
-	
-	// --------
-	
-	private static final Map<String, String> COMPILER_OPTIONS;
-	static {
-		Map<String, String> options = new HashMap<>();
-		
-		// Not sure whether or not we can use 1.8
-		JavaCore.setComplianceOptions(JavaCore.VERSION_1_7, options);
-		
-		COMPILER_OPTIONS = Collections.unmodifiableMap(options);
-	}
 }
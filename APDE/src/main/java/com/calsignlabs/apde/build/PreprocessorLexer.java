@@ -0,0 +1,584 @@
+package com.calsignlabs.apde.build;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds everything that the preprocessor needs to change in a sketch in one pass over its text.
+ *
+ * The text is split into tokens once, skipping comments and string literals as it goes, and
+ * then the tokens are scanned once for imports, the mode of the sketch, the size(),
+ * fullScreen(), smooth() and noSmooth() calls, type constructors (e.g. "int(x)"), and color
+ * literals (e.g. "#FF0000"). This replaces copying the sketch with its comments and strings
+ * blanked out and then running a separate regular expression over the copy for each of these,
+ * and it runs in linear time no matter what the sketch looks like.
+ */
+public class PreprocessorLexer {
+	private static final int IDENTIFIER = 0;
+	private static final int NUMBER = 1;
+	private static final int STRING = 2;
+	private static final int COLOR = 3;
+	private static final int SYMBOL = 4;
+	
+	private static final String[] TYPE_CONSTRUCTORS = {"int", "char", "float", "boolean", "byte"};
+	private static final String[] FUNCTION_MODIFIERS = {"public", "private", "protected", "final", "static"};
+	private static final String[] FUNCTION_TYPES = {"void", "int", "float", "double", "String", "char", "byte"};
+	
+	// The calls that are moved into settings()
+	private static final String[] SETTINGS_CALLS = {"size", "fullScreen", "smooth", "noSmooth"};
+	
+	/**
+	 * An import statement.
+	 */
+	public static class Import {
+		/**
+		 * The whole statement, from "import" to the semicolon.
+		 */
+		public final TextTransform.Range range;
+		/**
+		 * The package that is imported from, e.g. "processing.video" for
+		 * "import processing.video.*;".
+		 */
+		public final String pkg;
+		
+		private Import(TextTransform.Range range, String pkg) {
+			this.range = range;
+			this.pkg = pkg;
+		}
+	}
+	
+	/**
+	 * The three ways that a sketch can be written: as plain Java, with setup() and draw(), or as
+	 * a list of statements.
+	 */
+	public enum Mode {
+		JAVA, ACTIVE, STATIC;
+	}
+	
+	/**
+	 * A call to one of the functions that are moved into settings(), e.g. size().
+	 */
+	protected static class MethodMatch {
+		protected String text;
+		protected int start, length, semicolonLength;
+		protected String[] arguments;
+		
+		protected MethodMatch(String text, int start, String[] arguments, int semicolonLength) {
+			this.text = text;
+			this.start = start;
+			this.length = text.length();
+			this.arguments = arguments;
+			this.semicolonLength = semicolonLength;
+		}
+		
+		protected String getArg(int i) {
+			return arguments[i];
+		}
+		
+		@SuppressWarnings("ResultOfMethodCallIgnored")
+		protected String getIntArg(int i, String passThrough) throws NumberFormatException {
+			String arg = getArg(i);
+			if (!passThrough.equals(arg)) {
+				 Integer.parseInt(getArg(i));
+			}
+			return arg;
+		}
+		
+		protected TextTransform.Range toRange() {
+			return new TextTransform.Range(start, length);
+		}
+		
+		protected MethodMatch offset(int offset) {
+			return new MethodMatch(text, start + offset, arguments, semicolonLength);
+		}
+	}
+	
+	private final CharSequence text;
+	
+	// The tokens, in order
+	private int tokenCount;
+	private int[] kinds;
+	private int[] starts;
+	private int[] ends;
+	// Whether or not there is a newline between the token and the one before it
+	private boolean[] lineStarts;
+	
+	private List<Import> imports;
+	private List<TextTransform.Range> typeConstructors;
+	private List<Integer> colors;
+	private boolean publicClass, functionDeclaration;
+	private boolean hasSetup, hasSettings;
+	// The first of each of the settings calls in the whole sketch, and in setup()
+	private MethodMatch[] firstCalls;
+	private MethodMatch[] setupCalls;
+	// Whether or not the body of setup() was found and closed
+	private boolean hasSetupBody;
+	
+	public PreprocessorLexer(CharSequence text) {
+		this.text = text;
+		
+		imports = new ArrayList<>();
+		typeConstructors = new ArrayList<>();
+		colors = new ArrayList<>();
+		firstCalls = new MethodMatch[SETTINGS_CALLS.length];
+		setupCalls = new MethodMatch[SETTINGS_CALLS.length];
+		
+		tokenize();
+		scan();
+		
+		// The tokens aren't needed anymore
+		kinds = null;
+		starts = null;
+		ends = null;
+		lineStarts = null;
+	}
+	
+	/**
+	 * @return the import statements, in order
+	 */
+	public List<Import> getImports() {
+		return imports;
+	}
+	
+	/**
+	 * @return the type names that are used as functions (e.g. "int" in "int(x)"), in order
+	 */
+	public List<TextTransform.Range> getTypeConstructors() {
+		return typeConstructors;
+	}
+	
+	/**
+	 * @return the positions of the '#' of each color literal, in order
+	 */
+	public List<Integer> getColorLiterals() {
+		return colors;
+	}
+	
+	public Mode getMode() {
+		if (publicClass) {
+			return Mode.JAVA;
+		} else if (functionDeclaration) {
+			return Mode.ACTIVE;
+		} else {
+			return Mode.STATIC;
+		}
+	}
+	
+	/**
+	 * @return whether or not there is a setup() function
+	 */
+	public boolean hasSetup() {
+		return hasSetup;
+	}
+	
+	/**
+	 * @return whether or not there is a settings() function
+	 */
+	public boolean hasSettings() {
+		return hasSettings;
+	}
+	
+	/**
+	 * @return whether or not the settings calls should be looked for in the given mode. In
+	 * active mode they have to be in setup().
+	 */
+	public boolean hasSettingsArea(Mode mode) {
+		return mode == Mode.STATIC || (mode == Mode.ACTIVE && hasSetupBody);
+	}
+	
+	/**
+	 * @param mode the mode of the sketch
+	 * @param name one of "size", "fullScreen", "smooth", or "noSmooth"
+	 * @return the first call to the function where the settings calls go for the given mode, or
+	 * null if there isn't one
+	 */
+	public MethodMatch getSettingsCall(Mode mode, String name) {
+		if (!hasSettingsArea(mode)) {
+			return null;
+		}
+		
+		for (int i = 0; i < SETTINGS_CALLS.length; i ++) {
+			if (SETTINGS_CALLS[i].equals(name)) {
+				return mode == Mode.ACTIVE ? setupCalls[i] : firstCalls[i];
+			}
+		}
+		return null;
+	}
+	
+	private void tokenize() {
+		int length = text.length();
+		int capacity = Math.max(16, length / 4);
+		kinds = new int[capacity];
+		starts = new int[capacity];
+		ends = new int[capacity];
+		lineStarts = new boolean[capacity];
+		
+		boolean newline = true;
+		int i = 0;
+		
+		while (i < length) {
+			char c = text.charAt(i);
+			
+			if (c == '\n') {
+				newline = true;
+				i ++;
+				continue;
+			}
+			if (Character.isWhitespace(c)) {
+				i ++;
+				continue;
+			}
+			
+			char next = i + 1 < length ? text.charAt(i + 1) : 0;
+			
+			if (c == '/' && next == '/') {
+				// Line comment, the newline is picked up next time around
+				i += 2;
+				while (i < length && text.charAt(i) != '\n') {
+					i ++;
+				}
+				continue;
+			}
+			if (c == '/' && next == '*') {
+				// Block comment
+				i += 2;
+				while (i < length && !(text.charAt(i) == '*' && i + 1 < length && text.charAt(i + 1) == '/')) {
+					if (text.charAt(i) == '\n') {
+						newline = true;
+					}
+					i ++;
+				}
+				i = Math.min(i + 2, length);
+				continue;
+			}
+			
+			int start = i;
+			int kind;
+			
+			if (c == '"' || c == '\'') {
+				// String or character literal, which can't go past the end of the line
+				i ++;
+				while (i < length) {
+					char d = text.charAt(i);
+					if (d == '\\') {
+						i += 2;
+					} else if (d == c) {
+						i ++;
+						break;
+					} else if (d == '\n') {
+						break;
+					} else {
+						i ++;
+					}
+				}
+				i = Math.min(i, length);
+				kind = STRING;
+			} else if (Character.isJavaIdentifierStart(c)) {
+				while (i < length && Character.isJavaIdentifierPart(text.charAt(i))) {
+					i ++;
+				}
+				kind = IDENTIFIER;
+			} else if (isDigit(c) || (c == '.' && isDigit(next))) {
+				i = skipNumber(i);
+				kind = NUMBER;
+			} else if (c == '#' && isColorLiteral(i)) {
+				i += 7;
+				kind = COLOR;
+			} else {
+				i ++;
+				kind = SYMBOL;
+			}
+			
+			addToken(kind, start, i, newline);
+			newline = false;
+		}
+	}
+	
+	private void addToken(int kind, int start, int end, boolean lineStart) {
+		if (tokenCount == kinds.length) {
+			int capacity = kinds.length * 2;
+			kinds = copyOf(kinds, capacity);
+			starts = copyOf(starts, capacity);
+			ends = copyOf(ends, capacity);
+			boolean[] newLineStarts = new boolean[capacity];
+			System.arraycopy(lineStarts, 0, newLineStarts, 0, tokenCount);
+			lineStarts = newLineStarts;
+		}
+		
+		kinds[tokenCount] = kind;
+		starts[tokenCount] = start;
+		ends[tokenCount] = end;
+		lineStarts[tokenCount] = lineStart;
+		tokenCount ++;
+	}
+	
+	private static int[] copyOf(int[] array, int capacity) {
+		int[] copy = new int[capacity];
+		System.arraycopy(array, 0, copy, 0, array.length);
+		return copy;
+	}
+	
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+	
+	private static boolean isWordChar(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || isDigit(c) || c == '_';
+	}
+	
+	private static boolean isHexDigit(char c) {
+		return isDigit(c) || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+	}
+	
+	private int skipNumber(int i) {
+		int length = text.length();
+		boolean hex = text.charAt(i) == '0' && i + 1 < length && (text.charAt(i + 1) == 'x' || text.charAt(i + 1) == 'X');
+		
+		while (i < length) {
+			char c = text.charAt(i);
+			if (isWordChar(c) || c == '.') {
+				i ++;
+			} else if ((c == '+' || c == '-') && !hex && (text.charAt(i - 1) == 'e' || text.charAt(i - 1) == 'E')) {
+				// Exponent
+				i ++;
+			} else {
+				break;
+			}
+		}
+		
+		return i;
+	}
+	
+	/**
+	 * A '#' followed by exactly six hex digits, and not stuck to a word on either side.
+	 */
+	private boolean isColorLiteral(int i) {
+		if (i > 0 && isWordChar(text.charAt(i - 1))) {
+			return false;
+		}
+		if (i + 7 > text.length()) {
+			return false;
+		}
+		for (int j = i + 1; j < i + 7; j ++) {
+			if (!isHexDigit(text.charAt(j))) {
+				return false;
+			}
+		}
+		return i + 7 == text.length() || !isWordChar(text.charAt(i + 7));
+	}
+	
+	private boolean is(int token, String value) {
+		if (token < 0 || token >= tokenCount) {
+			return false;
+		}
+		int length = ends[token] - starts[token];
+		if (length != value.length()) {
+			return false;
+		}
+		for (int i = 0; i < length; i ++) {
+			if (text.charAt(starts[token] + i) != value.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private boolean isAny(int token, String[] values) {
+		for (String value : values) {
+			if (is(token, value)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private boolean isIdentifier(int token) {
+		return token >= 0 && token < tokenCount && kinds[token] == IDENTIFIER;
+	}
+	
+	/**
+	 * Whether or not the token is at the start of a statement, or at the start of a line.
+	 */
+	private boolean isStatementStart(int token) {
+		return token == 0 || lineStarts[token] || is(token - 1, ";") || is(token - 1, "{") || is(token - 1, "}");
+	}
+	
+	private void scan() {
+		int depth = 0;
+		// The depth of the body of setup(), or -1 if we aren't in it
+		int setupDepth = -1;
+		boolean waitingForSetupBody = false;
+		
+		for (int token = 0; token < tokenCount; token ++) {
+			switch (kinds[token]) {
+				case SYMBOL:
+					if (is(token, "{")) {
+						depth ++;
+						if (waitingForSetupBody) {
+							waitingForSetupBody = false;
+							setupDepth = depth;
+						}
+					} else if (is(token, "}")) {
+						if (depth == setupDepth) {
+							setupDepth = -1;
+							hasSetupBody = true;
+						}
+						depth --;
+					}
+					break;
+				case COLOR:
+					colors.add(starts[token]);
+					break;
+				case IDENTIFIER:
+					boolean afterDot = is(token - 1, ".");
+					
+					if (is(token, "import") && !afterDot) {
+						scanImport(token);
+					} else if (isAny(token, TYPE_CONSTRUCTORS) && is(token + 1, "(")) {
+						typeConstructors.add(new TextTransform.Range(starts[token], ends[token] - starts[token]));
+					}
+					
+					if (isStatementStart(token)) {
+						if (!publicClass && is(token, "public") && is(token + 1, "class") && isIdentifier(token + 2)
+								&& is(token + 3, "extends") && is(token + 4, "PApplet")) {
+							publicClass = true;
+						}
+						if (!functionDeclaration && isFunctionDeclaration(token)) {
+							functionDeclaration = true;
+						}
+					}
+					
+					if (is(token, "void") && is(token + 2, "(") && !afterDot) {
+						if (!hasSetup && is(token + 1, "setup")) {
+							hasSetup = true;
+							waitingForSetupBody = true;
+						} else if (is(token + 1, "settings")) {
+							hasSettings = true;
+						}
+					}
+					
+					if (!afterDot) {
+						scanSettingsCall(token, setupDepth != -1);
+					}
+					break;
+			}
+		}
+	}
+	
+	private boolean isFunctionDeclaration(int token) {
+		while (isAny(token, FUNCTION_MODIFIERS)) {
+			token ++;
+		}
+		if (!isAny(token, FUNCTION_TYPES)) {
+			return false;
+		}
+		token ++;
+		if (is(token, "[") && is(token + 1, "]")) {
+			token += 2;
+		}
+		return isIdentifier(token) && is(token + 1, "(");
+	}
+	
+	private void scanImport(int token) {
+		int start = starts[token];
+		token ++;
+		if (is(token, "static")) {
+			token ++;
+		}
+		
+		// The name is identifiers separated by dots, maybe ending with a star
+		StringBuilder name = new StringBuilder();
+		while (token < tokenCount && (kinds[token] == IDENTIFIER || is(token, ".") || is(token, "*"))) {
+			name.append(text, starts[token], ends[token]);
+			token ++;
+		}
+		
+		if (name.length() == 0 || !is(token, ";")) {
+			// Not a proper import, so let the compiler complain about it
+			return;
+		}
+		
+		int dot = name.lastIndexOf(".");
+		imports.add(new Import(new TextTransform.Range(start, ends[token] - start), dot == -1 ? "" : name.substring(0, dot)));
+	}
+	
+	private void scanSettingsCall(int token, boolean inSetup) {
+		for (int i = 0; i < SETTINGS_CALLS.length; i ++) {
+			if (is(token, SETTINGS_CALLS[i])) {
+				// Only the first one counts
+				if (firstCalls[i] != null && (!inSetup || setupCalls[i] != null)) {
+					return;
+				}
+				
+				MethodMatch match = matchCall(token);
+				if (match != null) {
+					if (firstCalls[i] == null) {
+						firstCalls[i] = match;
+					}
+					if (inSetup && setupCalls[i] == null) {
+						setupCalls[i] = match;
+					}
+				}
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Match a call statement, e.g. "size(100, 100);", starting with the name of the function.
+	 */
+	private MethodMatch matchCall(int token) {
+		int nameToken = token;
+		token ++;
+		if (!is(token, "(")) {
+			return null;
+		}
+		token ++;
+		
+		List<String> arguments = new ArrayList<>();
+		int depth = 0;
+		int argStart = -1, argEnd = -1;
+		
+		for (; token < tokenCount; token ++) {
+			if (depth == 0 && (is(token, ",") || is(token, ")"))) {
+				if (argStart != -1) {
+					arguments.add(text.subSequence(starts[argStart], ends[argEnd]).toString());
+				} else if (is(token, ",") || arguments.size() > 0) {
+					// An empty argument, e.g. "size(, 100)"
+					arguments.add("");
+				}
+				argStart = -1;
+				
+				if (is(token, ")")) {
+					break;
+				}
+				continue;
+			}
+			
+			if (is(token, "(") || is(token, "[") || is(token, "{")) {
+				depth ++;
+			} else if (is(token, ")") || is(token, "]") || is(token, "}")) {
+				depth --;
+				if (depth < 0) {
+					return null;
+				}
+			} else if (is(token, ";")) {
+				// Ran off the end of the statement
+				return null;
+			}
+			
+			if (argStart == -1) {
+				argStart = token;
+			}
+			argEnd = token;
+		}
+		
+		if (!is(token, ")") || !is(token + 1, ";")) {
+			return null;
+		}
+		
+		int start = starts[nameToken];
+		String callText = text.subSequence(start, ends[token]).toString();
+		return new MethodMatch(callText, start, arguments.toArray(new String[arguments.size()]), ends[token + 1] - start);
+	}
+}
@@ -0,0 +1,200 @@
+package com.calsignlabs.apde.build;
+
+import android.content.Context;
+
+import com.calsignlabs.apde.APDE;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compiles resources with AAPT2, keeping the compiled .flat files around between builds. The build
+ * folder gets wiped every build, but the icons and layouts almost never change, so most of the
+ * time nothing needs to be compiled at all.
+ *
+ * Cache entries are keyed by a hash of the resource's path (e.g. "drawable-hdpi/icon.png") and
+ * contents. Like the {@link DexCache}, the cache lives in the app's cache directory and is kept
+ * under a fixed size.
+ */
+public class ResourceCompiler {
+	/**
+	 * The maximum total size of the cache, in bytes.
+	 */
+	public static final long MAX_SIZE = 16L * 1024 * 1024;
+	
+	/**
+	 * Bump this whenever AAPT2 is updated so that old output isn't reused.
+	 */
+	private static final String AAPT2_VERSION = "aapt2-1";
+	
+	public static File getCacheDir(Context context) {
+		return new File(context.getCacheDir(), "res_compiled_cache");
+	}
+	
+	/**
+	 * Compile all of the resources in the given res folders into the output folder. Resources
+	 * that haven't changed since they were last compiled are copied from the cache.
+	 *
+	 * When we have to use the AAPT2 binary, every compile is a separate process, so the changed
+	 * resources are compiled in parallel. The shared library runs in our process and isn't
+	 * thread-safe, so there they are compiled one at a time.
+	 *
+	 * @param context the context
+	 * @param resDirs the res folders, containing folders like "drawable" and "values"
+	 * @param outputDir where to put the .flat files
+	 * @return the number of resources that had to be compiled
+	 */
+	public static synchronized int compile(APDE context, List<File> resDirs, File outputDir)
+			throws Aapt2Wrapper.InvocationFailedException, IOException, InterruptedException {
+		
+		File cacheDir = getCacheDir(context);
+		if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+			throw new IOException("Failed to create " + cacheDir.getAbsolutePath());
+		}
+		if (!outputDir.exists() && !outputDir.mkdirs()) {
+			throw new IOException("Failed to create " + outputDir.getAbsolutePath());
+		}
+		
+		List<CompileJob> jobs = new ArrayList<>();
+		
+		for (File resDir : resDirs) {
+			File[] innerDirs = resDir.listFiles();
+			if (innerDirs == null) {
+				continue;
+			}
+			for (File innerDir : innerDirs) {
+				File[] resFiles = innerDir.listFiles();
+				if (resFiles == null) {
+					continue;
+				}
+				for (File resFile : resFiles) {
+					String key = getKey(resFile, innerDir.getName() + "/" + resFile.getName());
+					File output = new File(outputDir, innerDir.getName() + "_" + resFile.getName() + ".flat");
+					File entry = new File(cacheDir, key + ".flat");
+					
+					if (entry.exists()) {
+						Build.copyFile(entry, output);
+						// Keep track of when the entry was last used for LRU eviction
+						entry.setLastModified(System.currentTimeMillis());
+					} else {
+						jobs.add(new CompileJob(context, resFile, output, cacheDir, key));
+					}
+				}
+			}
+		}
+		
+		if (Aapt2Wrapper.useAapt2Bin() && jobs.size() > 1) {
+			runParallel(jobs);
+		} else {
+			for (CompileJob job : jobs) {
+				job.call();
+			}
+		}
+		
+		if (jobs.size() > 0) {
+			DexCache.evict(cacheDir, MAX_SIZE);
+		}
+		
+		return jobs.size();
+	}
+	
+	private static void runParallel(List<CompileJob> jobs)
+			throws Aapt2Wrapper.InvocationFailedException, IOException, InterruptedException {
+		
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.min(jobs.size(), Runtime.getRuntime().availableProcessors()));
+		
+		try {
+			List<Future<Void>> futures = executor.invokeAll(jobs);
+			for (Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof Aapt2Wrapper.InvocationFailedException) {
+						throw (Aapt2Wrapper.InvocationFailedException) cause;
+					} else if (cause instanceof IOException) {
+						throw (IOException) cause;
+					} else if (cause instanceof InterruptedException) {
+						throw (InterruptedException) cause;
+					} else {
+						throw new IOException(cause);
+					}
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	private static String getKey(File resFile, String relativePath) throws IOException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(AAPT2_VERSION.getBytes("UTF-8"));
+			digest.update((byte) 0);
+			DexCache.hash(resFile, relativePath, digest, new byte[16 * 1024]);
+			return DexCache.toHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-1 is always available
+			throw new IOException(e);
+		}
+	}
+	
+	private static class CompileJob implements Callable<Void> {
+		private APDE context;
+		private File resFile, output, cacheDir;
+		private String key;
+		
+		private CompileJob(APDE context, File resFile, File output, File cacheDir, String key) {
+			this.context = context;
+			this.resFile = resFile;
+			this.output = output;
+			this.cacheDir = cacheDir;
+			this.key = key;
+		}
+		
+		@Override
+		public Void call() throws Aapt2Wrapper.InvocationFailedException, IOException, InterruptedException {
+			// AAPT2 picks the name of the output file itself, so give each resource its own
+			// folder to find it in
+			File tempDir = new File(cacheDir, key + ".tmp");
+			if (tempDir.exists()) {
+				Build.deleteFile(tempDir, context);
+			}
+			if (!tempDir.mkdirs()) {
+				throw new IOException("Failed to create " + tempDir.getAbsolutePath());
+			}
+			
+			try {
+				Aapt2Wrapper.compile(context, Arrays.asList(
+						resFile.getAbsolutePath(),
+						"-o", tempDir.getAbsolutePath()));
+				
+				File[] compiled = tempDir.listFiles();
+				if (compiled == null || compiled.length != 1) {
+					throw new IOException("Unexpected AAPT2 output for " + resFile.getAbsolutePath());
+				}
+				
+				Build.copyFile(compiled[0], output);
+				
+				// Only add it to the cache once it has been fully written
+				//noinspection ResultOfMethodCallIgnored
+				compiled[0].renameTo(new File(cacheDir, key + ".flat"));
+			} finally {
+				Build.deleteFile(tempDir, context);
+			}
+			
+			return null;
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package com.calsignlabs.apde.build;
+
+import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.jdt.core.dom.AST;
+import org.eclipse.jdt.core.dom.ASTParser;
+import org.eclipse.jdt.core.dom.CompilationUnit;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parses sketch code for the preprocessor. There is only one of these, and it lives for as long
+ * as the app does.
+ *
+ * The first parse is by far the slowest: JDT has to load all of its classes and build the parser
+ * tables, which takes longer than the rest of the preprocessor put together. Call
+ * {@link #warmUp()} on a background thread before the first build so that the user doesn't have
+ * to wait for it.
+ */
+public class SketchParser {
+	private static final Map<String, String> COMPILER_OPTIONS;
+	static {
+		Map<String, String> options = new HashMap<>();
+		
+		// Not sure whether or not we can use 1.8
+		JavaCore.setComplianceOptions(JavaCore.VERSION_1_7, options);
+		
+		COMPILER_OPTIONS = Collections.unmodifiableMap(options);
+	}
+	
+	// Enough to touch everything that the preprocessor's visitors look at
+	private static final String WARM_UP_SOURCE =
+			"public class WarmUp extends PApplet {\n" +
+			"int c = 0xff000000;\n" +
+			"void setup() { size(100, 100); float f = 1.0f; }\n" +
+			"}\n";
+	
+	private static SketchParser instance;
+	
+	private final ASTParser parser;
+	
+	private SketchParser() {
+		parser = ASTParser.newParser(AST.JLS8);
+	}
+	
+	/**
+	 * @return the parser
+	 */
+	public static synchronized SketchParser get() {
+		if (instance == null) {
+			instance = new SketchParser();
+		}
+		
+		return instance;
+	}
+	
+	/**
+	 * Parse a bit of code so that JDT is ready to go for the first build. Blocks until it's done,
+	 * so don't call this on the UI thread.
+	 */
+	public static void warmUp() {
+		get().parse(WARM_UP_SOURCE);
+	}
+	
+	/**
+	 * Parse a compilation unit. Bindings aren't resolved, the preprocessor only needs the
+	 * syntax. The parser can only do one thing at a time, so other builds wait for it.
+	 *
+	 * @param source the source code
+	 * @return the compilation unit, with any syntax problems
+	 */
+	public synchronized CompilationUnit parse(CharSequence source) {
+		// The parser forgets all of its settings after each parse
+		parser.setSource(source.toString().toCharArray());
+		parser.setKind(ASTParser.K_COMPILATION_UNIT);
+		parser.setCompilerOptions(COMPILER_OPTIONS);
+		parser.setStatementsRecovery(true);
+		
+		return (CompilationUnit) parser.createAST(null);
+	}
+}
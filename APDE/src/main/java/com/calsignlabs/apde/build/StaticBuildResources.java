@@ -10,6 +10,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -27,6 +28,7 @@ public class StaticBuildResources {
 		extractAssets(context, "jniLibs", StaticBuildResources.getJniLibsDir(context), false);
 		extractAssets(context, "libs", StaticBuildResources.getLibsDir(context), false);
 		extractAssets(context, "libs-dex", StaticBuildResources.getLibsDexDir(context), false);
+		writeClasspathIndex(context);
 	}
 	
 	public static File getStaticBuildResourcesDir(Context context) {
@@ -53,6 +55,54 @@ public class StaticBuildResources {
 		return new File(getStaticBuildResourcesDir(context), "android.jar");
 	}
 	
+	public static File getClasspathIndexFile(Context context) {
+		return new File(getStaticBuildResourcesDir(context), "classpath.idx");
+	}
+	
+	private static ClasspathIndex classpathIndex;
+	
+	/**
+	 * Index android.jar and all of the artifact libraries, for all targets. Each build only uses
+	 * the jars for its own target.
+	 */
+	public static synchronized void writeClasspathIndex(Context context) throws IOException {
+		List<File> jars = new ArrayList<>();
+		jars.add(getAndroidJarLoc(context));
+		
+		File[] targetDirs = getLibsDir(context).listFiles();
+		if (targetDirs != null) {
+			// So that the index comes out the same every time
+			Arrays.sort(targetDirs);
+			jars.addAll(IncrementalCompiler.listJars(Arrays.asList(targetDirs)));
+		}
+		
+		ClasspathIndex.write(jars, getClasspathIndexFile(context));
+		classpathIndex = null;
+	}
+	
+	/**
+	 * Get the index of the static artifact jars. If the index is missing or out of date (e.g. the
+	 * resources were extracted by an older version), it is rebuilt.
+	 *
+	 * @return the index, or null if it couldn't be built
+	 */
+	public static synchronized ClasspathIndex getClasspathIndex(Context context) {
+		if (classpathIndex == null) {
+			classpathIndex = ClasspathIndex.load(getClasspathIndexFile(context));
+			
+			if (classpathIndex == null && getAndroidJarLoc(context).exists()) {
+				try {
+					writeClasspathIndex(context);
+					classpathIndex = ClasspathIndex.load(getClasspathIndexFile(context));
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		
+		return classpathIndex;
+	}
+	
 	public static List<File> getTargetDirs(File artifactDir, ComponentTarget target) {
 		List<File> dirs = new ArrayList<>();
 		for (String prefix : target.getAssetPrefixes()) {
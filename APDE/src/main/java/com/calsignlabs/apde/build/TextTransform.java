@@ -132,6 +132,10 @@ public class TextTransform implements TextMapper {
 	private StringBuilder baseText, workingText;
 	private List<Edit> edits;
 	
+	// Built from the sorted edits when the transform is locked, so that mapping doesn't have to
+	// walk all of the edits every time
+	private MapIndex forwardIndex, backwardIndex;
+	
 	// Unlock when adding items
 	// Lock when applying changes
 	// Must be locked in order to map ranges
@@ -265,6 +269,8 @@ public class TextTransform implements TextMapper {
 	
 	private void unlock() {
 		lock = false;
+		forwardIndex = null;
+		backwardIndex = null;
 	}
 	
 	private void checkLock(boolean check) throws LockException {
@@ -304,6 +310,9 @@ public class TextTransform implements TextMapper {
 			
 			// Go first to last for reverse-mapping
 			Collections.reverse(edits);
+			
+			forwardIndex = new MapIndex(edits, true);
+			backwardIndex = new MapIndex(edits, false);
 		}
 		
 		return workingText;
@@ -312,30 +321,120 @@ public class TextTransform implements TextMapper {
 	private Range map(int index, int length, boolean forward) throws LockException {
 		checkLock(true);
 		
-		// First to last
-		for (Edit edit : edits) {
-			if (edit.hasMoveLink() && edit.index() <= index && edit.index() + edit.directionalLength(!forward) >= index + length) {
+		MapIndex mapIndex = getMapIndex(forward);
+		
+		// The first edit that starts at or after the range, once the range has been shifted by
+		// all of the edits before it
+		int first = mapIndex.findFirstAtOrAfter(index);
+		
+		// Move edits are checked before everything else, so look at the ones that come before
+		// that edit too
+		for (int i : mapIndex.moves) {
+			if (i > first) {
+				break;
+			}
+			
+			Edit edit = edits.get(i);
+			int shifted = index + mapIndex.shifts[i];
+			if (edit.index() <= shifted && edit.index() + edit.directionalLength(!forward) >= shifted + length) {
 				// This is a move edit, so get the linked edit
 				// Map the range from the original to the linked edit range
-				return constrainRange(new Range(edit.getMoveLink().index() + (index - edit.index()), length), forward);
-			} else if (edit.index() >= index) {
-				if (edit.index() >= index + length) {
-					// Entirely after
-					return constrainRange(new Range(index, length), forward);
-				} else {
-					// Overlapping in some form
-					
-					// For now we will assume that it is identical
-					// Why? Because it should work for our purposes
-					return constrainRange(new Range(edit.index(), edit.directionalLength(forward)), forward);
+				return constrainRange(new Range(edit.getMoveLink().index() + (shifted - edit.index()), length), forward);
+			}
+		}
+		
+		int shifted = index + mapIndex.shifts[first];
+		
+		if (first == edits.size()) {
+			// Before all edits
+			return constrainRange(new Range(shifted, length), forward);
+		}
+		
+		Edit edit = edits.get(first);
+		if (edit.index() >= shifted + length) {
+			// Entirely after
+			return constrainRange(new Range(shifted, length), forward);
+		} else {
+			// Overlapping in some form
+			
+			// For now we will assume that it is identical
+			// Why? Because it should work for our purposes
+			return constrainRange(new Range(edit.index(), edit.directionalLength(forward)), forward);
+		}
+	}
+	
+	private MapIndex getMapIndex(boolean forward) {
+		// The transform can be locked without applying it, in which case the edits are mapped in
+		// the order that they were added
+		if (forwardIndex == null || backwardIndex == null) {
+			forwardIndex = new MapIndex(edits, true);
+			backwardIndex = new MapIndex(edits, false);
+		}
+		
+		return forward ? forwardIndex : backwardIndex;
+	}
+	
+	/**
+	 * Lets a range be mapped with a binary search instead of walking the edits one by one.
+	 *
+	 * Mapping goes through the edits in order, shifting the range by the change in length of
+	 * each one, and stops at the first edit that starts at or after the shifted range. That is
+	 * the first edit where the edit's index minus the shift before it is at least the original
+	 * index of the range. Those values aren't sorted (inserting a lot of text can shift the
+	 * range past the next edit), but their running maximum is, and the first edit to reach the
+	 * index is the same for both.
+	 */
+	private static class MapIndex {
+		// shifts[i] is the total change in length of the edits before edit i
+		private final int[] shifts;
+		// reach[i] is the largest edit index minus shift of edits 0 through i
+		private final int[] reach;
+		// The positions of the move edits, in order
+		private final int[] moves;
+		
+		private MapIndex(List<Edit> edits, boolean forward) {
+			shifts = new int[edits.size() + 1];
+			reach = new int[edits.size()];
+			
+			List<Integer> moveList = new ArrayList<>();
+			
+			for (int i = 0; i < edits.size(); i ++) {
+				Edit edit = edits.get(i);
+				
+				int key = edit.index() - shifts[i];
+				reach[i] = i == 0 ? key : Math.max(reach[i - 1], key);
+				shifts[i + 1] = shifts[i] + edit.directionlLengthDiff(forward);
+				
+				if (edit.hasMoveLink()) {
+					moveList.add(i);
 				}
 			}
 			
-			index += edit.directionlLengthDiff(forward);
+			moves = new int[moveList.size()];
+			for (int i = 0; i < moves.length; i ++) {
+				moves[i] = moveList.get(i);
+			}
 		}
 		
-		// Before all edits
-		return constrainRange(new Range(index, length), forward);
+		/**
+		 * @return the first edit that starts at or after the range, or the number of edits if
+		 * there isn't one
+		 */
+		private int findFirstAtOrAfter(int index) {
+			int low = 0;
+			int high = reach.length;
+			
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (reach[mid] >= index) {
+					high = mid;
+				} else {
+					low = mid + 1;
+				}
+			}
+			
+			return low;
+		}
 	}
 	
 	private Range constrainRange(Range range, boolean forward) {
@@ -1,72 +1,156 @@
 package com.calsignlabs.apde.build.dag;
 
+import com.android.tools.aapt2.Aapt2Jni;
+import com.calsignlabs.apde.BuildConfig;
 import com.calsignlabs.apde.R;
-import com.calsignlabs.apde.build.ComponentTarget;
+import com.calsignlabs.apde.build.Aapt2Wrapper;
+import com.calsignlabs.apde.build.Build;
+import com.calsignlabs.apde.build.LinkCache;
+import com.calsignlabs.apde.build.ResourceCompiler;
+import com.calsignlabs.apde.build.StaticBuildResources;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 
+/**
+ * Compiles the sketch's resources with AAPT2 and links them together with the pre-compiled
+ * resources of the artifacts. This generates R.java, which is all that we need for compiling.
+ */
 public class AaptBuildTask extends ArgLambdaBuildTask {
-	public AaptBuildTask(Getter<File> aapt, Getter<File> res, Getter<File> supportRes,
-						 Getter<File> supportWearableRes, Getter<File> vrRes, Getter<File> gen,
+	public AaptBuildTask(Getter<File> res, Getter<File> compiledRes, Getter<File> gen,
 						 Getter<File> assets, Getter<File> manifest, Getter<File> androidJar,
 						 Getter<File> out, BuildTask... deps) {
 		super(context -> {
-			List<String> args = new ArrayList<>();
-			
-			args.add(aapt.get(context).getAbsolutePath());
-			addAll(args, "package", "-v", "-f", "-m", "--auto-add-overlay", "--no-version-vectors");
-			addAll(args, "-S", res.get(context).getAbsolutePath());
-			addAll(args, "-S", supportRes.get(context).getAbsolutePath());
-			addAll(args, "-S", supportWearableRes.get(context).getAbsolutePath());
-			if (context.getComponentTarget() == ComponentTarget.VR) {
-				addAll(args, "-S", vrRes.get(context).getAbsolutePath());
-				addAll(args, "--extra-packages", "com.google.vr.cardboard");
-			} else {
-				addAll(args, "--extra-packages", "android.support.v7.appcompat");
-			}
-			addAll(args, "-J", gen.get(context).getAbsolutePath());
-			addAll(args, "-A", assets.get(context).getAbsolutePath());
-			addAll(args, "-M", manifest.get(context).getAbsolutePath());
-			addAll(args, "-I", androidJar.get(context).getAbsolutePath());
-			addAll(args, "-F", out.get(context).getAbsolutePath());
-			
-			Process aaptProcess;
-			
 			try {
-				aaptProcess = Runtime.getRuntime().exec(argsArray(args));
+				// We pre-compile the resources for the artifacts, so we only need to compile the
+				// ones in res
+				File compiledResDir = compiledRes.get(context);
+				if (!compiledResDir.exists() && !compiledResDir.mkdirs()) {
+					return false;
+				}
+				
+				// Get rid of resources that the user has since deleted
+				File[] oldCompiledRes = compiledResDir.listFiles();
+				if (oldCompiledRes != null) {
+					for (File oldFile : oldCompiledRes) {
+						oldFile.delete();
+					}
+				}
+				
+				// Unchanged resources come straight out of the cache
+				int compiledCount = ResourceCompiler.compile(context.getGlobal(),
+						Collections.singletonList(res.get(context)), compiledResDir);
+				context.count("resourcesCompiled", compiledCount);
+				
+				if (context.isVerbose()) {
+					System.out.println(String.format(Locale.US, context.getResources().getString(R.string.build_aapt_compiled_count), compiledCount));
+				}
+				
+				List<String> args = new ArrayList<>();
+				addAll(args, "-o", out.get(context).getAbsolutePath());
+				addAll(args, "--manifest", manifest.get(context).getAbsolutePath());
+				addAll(args, "-I", androidJar.get(context).getAbsolutePath());
+				addAll(args, "-A", assets.get(context).getAbsolutePath());
+				addAll(args, "--java", gen.get(context).getAbsolutePath());
+				addAll(args, "--auto-add-overlay", "--no-version-vectors");
+				
+				// See the comment in Build about the common R class
+				if (!context.getPackageName().equals(BuildConfig.COMMON_R_JAVA_PACKAGE)) {
+					addAll(args, "--extra-packages", BuildConfig.COMMON_R_JAVA_PACKAGE);
+				}
+				
+				if (context.getPreferences().getBoolean("pref_build_generate_all_support_library_resource_classes", false)) {
+					for (String extraPackage : Build.getArtifactPackages(context.getGlobal(), context.getComponentTarget())) {
+						addAll(args, "--extra-packages", extraPackage);
+					}
+				}
+				
+				List<File> compiledResFiles = new ArrayList<>();
+				List<File> staticLinkInputs = new ArrayList<>();
+				staticLinkInputs.add(androidJar.get(context));
+				addChildren(compiledResFiles, compiledResDir);
+				for (File targetCompiledResDir : StaticBuildResources.getTargetDirs(
+						StaticBuildResources.getResCompiledDir(context.getGlobal()), context.getComponentTarget())) {
+					staticLinkInputs.add(targetCompiledResDir);
+					File[] innerDirs = targetCompiledResDir.listFiles();
+					if (innerDirs != null) {
+						for (File innerDir : innerDirs) {
+							addChildren(compiledResFiles, innerDir);
+						}
+					}
+				}
+				
+				for (File compiledResFile : compiledResFiles) {
+					addAll(args, "-R", compiledResFile.getAbsolutePath());
+				}
+				
+				// Reuse the output from the last link if nothing that goes into it has changed
+				String linkKey = null;
+				try {
+					linkKey = LinkCache.getKey(args, Arrays.asList(manifest.get(context),
+							assets.get(context), compiledResDir), staticLinkInputs);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
 				
-				CopyBuildTask.copyStream(aaptProcess.getInputStream(), new NullOutputStream());
-				CopyBuildTask.copyStream(aaptProcess.getErrorStream(), context.isVerbose() ? System.err : new NullOutputStream());
+				List<Aapt2Jni.Log> logs = linkKey != null ? LinkCache.restore(context.getGlobal(), linkKey, out.get(context), gen.get(context)) : null;
+				if (logs != null) {
+					context.count("linkCacheHits", 1);
+					
+					if (context.isVerbose()) {
+						System.out.println(context.getResources().getString(R.string.build_aapt_link_cached));
+					}
+				} else {
+					context.count("linkCacheMisses", 1);
+					
+					Aapt2Wrapper.link(context.getGlobal(), args);
+					logs = new ArrayList<>(Aapt2Jni.getLogs());
+					
+					if (linkKey != null) {
+						LinkCache.store(context.getGlobal(), linkKey, out.get(context), gen.get(context), logs);
+					}
+				}
+				
+				if (context.isCustomProblems()) {
+					for (Aapt2Jni.Log log : logs) {
+						context.getProblems().add(Aapt2Wrapper.buildCompilerProblem(log));
+					}
+				}
+				
+				return true;
+			} catch (Aapt2Wrapper.InvocationFailedException e) {
+				System.err.println(context.getResources().getString(R.string.build_aapt_failed));
+				
+				if (context.isCustomProblems()) {
+					for (Aapt2Jni.Log log : e.logs) {
+						context.getProblems().add(Aapt2Wrapper.buildCompilerProblem(log));
+					}
+				} else {
+					for (Aapt2Jni.Log log : e.logs) {
+						System.err.println(log.toString());
+					}
+				}
+				
+				return false;
 			} catch (IOException e) {
+				System.err.println(context.getResources().getString(R.string.build_aapt_failed));
 				e.printStackTrace();
 				return false;
 			}
-			
-			int code = aaptProcess.waitFor();
-			
-			if (code == 0) {
-				return true;
-			} else {
-				System.err.println(context.getResources().getString(R.string.build_aapt_failed_error_code, code));
-				return false;
-			}
-		}, "Running AAPT...", deps);
+		}, "Running AAPT2...", deps);
 		
-		orGetterChangeNoticer(aapt, res, supportRes, supportWearableRes, vrRes, gen, assets,
-				manifest, androidJar, out);
+		orGetterChangeNoticer(res, compiledRes, gen, assets, manifest, androidJar, out);
 	}
 	
-	/**
-	 * Takes output and does nothing with it.
-	 */
-	protected static class NullOutputStream extends OutputStream {
-		public NullOutputStream() {}
-		
-		@Override
-		public void write(int i) throws IOException {}
+	private static void addChildren(List<File> list, File dir) {
+		File[] children = dir.listFiles();
+		if (children != null) {
+			list.addAll(Arrays.asList(children));
+		}
 	}
 }
@@ -9,6 +9,7 @@ import android.preference.PreferenceManager;
 import com.calsignlabs.apde.support.documentfile.DocumentFile;
 
 import com.calsignlabs.apde.APDE;
+import com.calsignlabs.apde.build.BuildMetrics;
 import com.calsignlabs.apde.build.CompilerProblem;
 import com.calsignlabs.apde.build.ComponentTarget;
 import com.calsignlabs.apde.build.Manifest;
@@ -53,9 +54,14 @@ public class BuildContext {
 	private List<String> previewAdditionalRequiredPermissions;
 	
 	private long timestamp;
+	private static long lastTimestamp = 0;
+	
+	private boolean checkOnly;
 	
 	private Handler handler;
 	
+	private BuildMetrics metrics;
+	
 	private BuildContext() {
 		problems = new ArrayList<>();
 	}
@@ -98,17 +104,39 @@ public class BuildContext {
 		buildContext.rootFilesDir = context.getFilesDir();
 		buildContext.alternateBuildFolder = context.getAlternateBuildFolder();
 		
-		buildContext.timestamp = System.currentTimeMillis();
+		// Change noticers are memoized by timestamp, so make sure that two builds started within
+		// the same millisecond don't share one
+		buildContext.timestamp = nextTimestamp();
 		
 		buildContext.handler = new Handler();
 		
 		return buildContext;
 	}
 	
+	/**
+	 * Create a build context for the modular build. This is the same as a regular build context,
+	 * except that it builds in its own folder. The regular build wipes its build folder every
+	 * time, which would otherwise leave the modular build's change noticers with the wrong idea
+	 * about what is on disk.
+	 *
+	 * @param context the application
+	 * @return the build context
+	 */
+	public static BuildContext createModular(APDE context) throws MaybeDocumentFile.MaybeDocumentFileException {
+		BuildContext buildContext = create(context);
+		buildContext.buildFolder = context.getDir("modular_build", 0);
+		buildContext.metrics = new BuildMetrics(BuildMetrics.TYPE_MODULAR);
+		return buildContext;
+	}
+	
 	public ContentResolver getContentResolver() {
 		return apde.getContentResolver();
 	}
 	
+	public APDE getGlobal() {
+		return apde;
+	}
+	
 	public File getBuildFolder() {
 		return buildFolder;
 	}
@@ -260,6 +288,39 @@ public class BuildContext {
 		return timestamp;
 	}
 	
+	/**
+	 * @return whether this build only has to find problems (i.e. auto-compile), so nothing is
+	 * going to use the class files
+	 */
+	public boolean isCheckOnly() {
+		return checkOnly;
+	}
+	
+	public void setCheckOnly(boolean checkOnly) {
+		this.checkOnly = checkOnly;
+	}
+	
+	/**
+	 * @return the metrics for this build, or null if they aren't being recorded
+	 */
+	public BuildMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Add to a counter of the task running on the current thread, if metrics are being recorded.
+	 */
+	public void count(String counter, long value) {
+		if (metrics != null) {
+			metrics.count(counter, value);
+		}
+	}
+	
+	private static synchronized long nextTimestamp() {
+		lastTimestamp = Math.max(lastTimestamp + 1, System.currentTimeMillis());
+		return lastTimestamp;
+	}
+	
 	public void post(Runnable runnable) {
 		handler.post(runnable);
 	}
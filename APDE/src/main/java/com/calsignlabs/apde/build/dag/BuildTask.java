@@ -1,5 +1,6 @@
 package com.calsignlabs.apde.build.dag;
 
+import com.calsignlabs.apde.build.BuildMetrics;
 import com.calsignlabs.apde.task.Task;
 
 import java.util.ArrayList;
@@ -17,6 +18,11 @@ public abstract class BuildTask extends Task {
 	private ChangeNoticer changeNoticer;
 	private final List<OnCompleteListener> onCompleteListeners;
 	
+	private BuildContext finishedContext;
+	
+	private BuildMetrics stageMetrics;
+	private BuildMetrics.Stage stage;
+	
 	private String name, tag;
 	private static AtomicLong tagCounter = new AtomicLong(0);
 	
@@ -239,19 +245,79 @@ public abstract class BuildTask extends Task {
 		onCompleteListeners.add(onCompleteListener);
 	}
 	
+	/**
+	 * Add a listener for the given build. If this task has already finished in that build, then
+	 * the listener is invoked right away on the calling thread instead. The check and the add
+	 * happen atomically with respect to {@link #stop()}, so the listener is never missed.
+	 *
+	 * @param context the build that the listener is interested in
+	 * @param onCompleteListener the listener
+	 */
+	public void addOnCompleteListener(BuildContext context, OnCompleteListener onCompleteListener) {
+		boolean finished;
+		
+		synchronized (getLock()) {
+			finished = finishedContext == context;
+			if (!finished) {
+				onCompleteListeners.add(onCompleteListener);
+			}
+		}
+		
+		if (finished) {
+			onCompleteListener.onComplete(success());
+		}
+	}
+	
 	@Override
 	public void start() {
 		super.start();
+		
+		// Time the task on the thread that it runs on
+		stageMetrics = buildContext != null ? buildContext.getMetrics() : null;
+		if (stageMetrics != null) {
+			stage = stageMetrics.startStage(getName());
+		}
 	}
 	
 	@Override
 	public void stop() {
+		boolean successful;
+		List<OnCompleteListener> listeners;
+		
 		synchronized (getLock()) {
-			boolean successful = success.get();
-			for (int i = onCompleteListeners.size() - 1; i >= 0; i--) {
-				if (onCompleteListeners.get(i).onComplete(successful)) {
-					onCompleteListeners.remove(i);
-				}
+			successful = success.get();
+			
+			// stop() is called more than once, only end the stage the first time
+			if (stage != null) {
+				stageMetrics.endStage(stage);
+				stage = null;
+				stageMetrics = null;
+			}
+			
+			// Mark the task as finished before notifying anyone so that listeners added from here
+			// on out are invoked immediately instead of being added to a list that nobody will
+			// ever look at again
+			finishedContext = buildContext;
+			if (buildContext != null) {
+				buildContext.getCompletedTasks().add(getName());
+			}
+			
+			listeners = new ArrayList<>(onCompleteListeners);
+			onCompleteListeners.clear();
+		}
+		
+		// Notify outside of the lock. The listeners go on to start other tasks, which can in turn
+		// add listeners to this one from other threads.
+		List<OnCompleteListener> keep = new ArrayList<>();
+		for (int i = listeners.size() - 1; i >= 0; i--) {
+			if (!listeners.get(i).onComplete(successful)) {
+				keep.add(0, listeners.get(i));
+			}
+		}
+		
+		if (!keep.isEmpty()) {
+			synchronized (getLock()) {
+				onCompleteListeners.addAll(0, keep);
 			}
 		}
 		
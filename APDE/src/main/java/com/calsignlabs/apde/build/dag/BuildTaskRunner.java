@@ -175,10 +175,7 @@ public class BuildTaskRunner {
 					}
 				}
 				if (actuallyRun) {
-					addOnCompleteListener(null, task, success -> {
-						addList(finishedTasks, task);
-						return true;
-					});
+					// The task marks itself as finished in the build context when it stops
 					Logger.writeLog("launching task: " + task.getName(), 1);
 					launchBuildTask(task);
 				}
@@ -215,26 +212,24 @@ public class BuildTaskRunner {
 	}
 	
 	private void addOnCompleteListener(@Nullable BuildTask parentTask, BuildTask depTask, BuildTask.OnCompleteListener listener) {
-		if (parentTask == null || !(completionListeners.containsKey(parentTask)
-				&& completionListeners.get(parentTask).contains(depTask))) {
-			if (parentTask != null) {
-				if (!completionListeners.containsKey(parentTask)) {
-					completionListeners.put(parentTask, getSynchronizedList());
+		if (parentTask != null) {
+			// Only listen for each dependency once per parent. Check and register atomically,
+			// otherwise two dependencies finishing at the same time can both register.
+			synchronized (completionListeners) {
+				List<BuildTask> registered = completionListeners.get(parentTask);
+				if (registered == null) {
+					registered = getSynchronizedList();
+					completionListeners.put(parentTask, registered);
 				}
-				completionListeners.get(parentTask).add(depTask);
-			}
-			
-			synchronized (depTask.getLock()) {
-				if (finishedTasks.contains(depTask.getName())) {
-					// We have some synchronization issues, but they are resolved by directly
-					// invoking the on completion listener a little bit later on the main thread
-					// TODO I don't think this is enough, it might just be a band-aid
-					buildContext.post(() -> listener.onComplete(depTask.success()));
-				} else {
-					depTask.addOnCompleteListener(listener);
+				if (registered.contains(depTask)) {
+					return;
 				}
+				registered.add(depTask);
 			}
 		}
+		
+		// If the dependency has already finished in this build, the listener is invoked right away
+		depTask.addOnCompleteListener(buildContext, listener);
 	}
 	
 	private void launchBuildTask(BuildTask task) {
@@ -0,0 +1,336 @@
+package com.calsignlabs.apde.build.dag;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+
+import com.calsignlabs.apde.support.documentfile.DocumentFile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps track of the (size, mtime, inode, hash) of every file that the change noticers look at,
+ * so that we only have to read the files that have actually been touched since the last build.
+ * Everything else is decided by a stat. The journal is saved to the cache directory so that it
+ * survives app restarts.
+ *
+ * Files are stat-ed again every time that they are checked, even within a build, because some of
+ * them are outputs that other tasks in the same build write to.
+ */
+public class ChangeJournal {
+	private static final int MAGIC = 0x4150434A; // "APCJ"
+	private static final int VERSION = 1;
+	
+	/**
+	 * Files modified this close to when we hashed them might have been modified again within the
+	 * same mtime tick, so we don't trust their stat.
+	 */
+	private static final long RACY_WINDOW = 2000;
+	
+	/**
+	 * Once there are this many entries, we only save the ones that have been used recently.
+	 */
+	private static final int MAX_SAVED_ENTRIES = 16384;
+	
+	private static final int BUFFER_SIZE = 8192;
+	
+	private static ChangeJournal instance;
+	
+	private File journalFile;
+	private Map<String, Entry> entries;
+	private boolean dirty;
+	
+	private byte[] buffer = new byte[BUFFER_SIZE];
+	
+	private static class Entry {
+		private long size, mtime, inode, hash, hashedAt;
+		
+		// Not saved, the last build that looked at this file
+		private long lastBuild = -1;
+		
+		private boolean sameStat(long size, long mtime, long inode) {
+			return this.size == size && this.mtime == mtime && this.inode == inode
+					&& mtime < hashedAt - RACY_WINDOW;
+		}
+	}
+	
+	private ChangeJournal(File journalFile) {
+		this.journalFile = journalFile;
+		entries = new HashMap<>();
+	}
+	
+	public static synchronized ChangeJournal get(Context context) {
+		if (instance == null) {
+			instance = new ChangeJournal(new File(context.getCacheDir(), "change_journal"));
+			instance.load();
+		}
+		return instance;
+	}
+	
+	/**
+	 * Calculate the checksum of a file or directory. Only the files whose stat has changed since
+	 * they were last hashed are read.
+	 *
+	 * @param file the file or directory
+	 * @param ignoreTitle whether or not to leave the name of the top-level file out of the checksum
+	 * @param buildTimestamp the timestamp of the current build context, used to decide which
+	 *                       entries are worth saving
+	 * @return the checksum, or null if the file doesn't exist or couldn't be read
+	 */
+	public synchronized BigInteger checksum(File file, boolean ignoreTitle, long buildTimestamp) {
+		if (!file.exists()) {
+			return null;
+		}
+		
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			updateChecksum(file, md, ignoreTitle, buildTimestamp);
+			return new BigInteger(1, md.digest());
+		} catch (IOException | NoSuchAlgorithmException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * Calculate the checksum of a document or document tree. Documents don't have inodes, so we
+	 * go by size and last modified time alone.
+	 */
+	public synchronized BigInteger checksum(DocumentFile document, boolean ignoreTitle, long buildTimestamp, ContentResolver contentResolver) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			updateChecksum(document, md, ignoreTitle, buildTimestamp, contentResolver);
+			return new BigInteger(1, md.digest());
+		} catch (IOException | NoSuchAlgorithmException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	private void updateChecksum(File file, MessageDigest md, boolean ignoreTitle, long buildTimestamp) throws IOException {
+		if (!ignoreTitle) {
+			// Track file names
+			md.update(file.getName().getBytes());
+		}
+		
+		if (file.isDirectory()) {
+			File[] children = file.listFiles();
+			if (children == null) {
+				throw new IOException("Failed to list " + file.getAbsolutePath());
+			}
+			// Sort so that the checksum doesn't depend on the order that the file system lists things
+			Arrays.sort(children);
+			for (File child : children) {
+				// Don't ignore title when we recurse, only for the top level
+				updateChecksum(child, md, false, buildTimestamp);
+			}
+		} else {
+			updateDigest(md, getFileEntry(file, buildTimestamp));
+		}
+	}
+	
+	private void updateChecksum(DocumentFile document, MessageDigest md, boolean ignoreTitle, long buildTimestamp, ContentResolver contentResolver) throws IOException {
+		if (!ignoreTitle && document.getName() != null) {
+			// Track file names
+			md.update(document.getName().getBytes());
+		}
+		
+		if (document.isDirectory()) {
+			// Unlike the file system, the order of the children isn't guaranteed to be stable
+			DocumentFile[] children = document.listFiles();
+			Arrays.sort(children, (a, b) -> String.valueOf(a.getName()).compareTo(String.valueOf(b.getName())));
+			for (DocumentFile child : children) {
+				// Don't ignore title when we recurse, only for the top level
+				updateChecksum(child, md, false, buildTimestamp, contentResolver);
+			}
+		} else {
+			updateDigest(md, getDocumentEntry(document, buildTimestamp, contentResolver));
+		}
+	}
+	
+	private static void updateDigest(MessageDigest md, Entry entry) {
+		long[] values = { entry.size, entry.hash };
+		for (long value : values) {
+			for (int i = 0; i < 8; i ++) {
+				md.update((byte) (value >>> (i * 8)));
+			}
+		}
+	}
+	
+	private Entry getFileEntry(File file, long buildTimestamp) throws IOException {
+		String key = file.getAbsolutePath();
+		Entry entry = entries.get(key);
+		
+		long size, mtime, inode;
+		if (android.os.Build.VERSION.SDK_INT >= 21) {
+			try {
+				StructStat stat = Os.stat(key);
+				size = stat.st_size;
+				mtime = file.lastModified();
+				inode = stat.st_ino;
+			} catch (ErrnoException e) {
+				throw new IOException(e);
+			}
+		} else {
+			size = file.length();
+			mtime = file.lastModified();
+			inode = 0;
+		}
+		
+		if (entry == null || !entry.sameStat(size, mtime, inode)) {
+			long hashedAt = System.currentTimeMillis();
+			try (InputStream inputStream = new FileInputStream(file)) {
+				entry = makeEntry(key, size, mtime, inode, fastHash(inputStream), hashedAt);
+			}
+		}
+		
+		entry.lastBuild = buildTimestamp;
+		return entry;
+	}
+	
+	private Entry getDocumentEntry(DocumentFile document, long buildTimestamp, ContentResolver contentResolver) throws IOException {
+		String key = document.getUri().toString();
+		Entry entry = entries.get(key);
+		
+		long size = document.length();
+		long mtime = document.lastModified();
+		
+		// Some providers don't report a last modified time, so we can't trust their stat
+		if (entry == null || mtime == 0 || !entry.sameStat(size, mtime, 0)) {
+			long hashedAt = System.currentTimeMillis();
+			try (InputStream inputStream = contentResolver.openInputStream(document.getUri())) {
+				if (inputStream == null) {
+					throw new FileNotFoundException(key);
+				}
+				entry = makeEntry(key, size, mtime, 0, fastHash(inputStream), hashedAt);
+			}
+		}
+		
+		entry.lastBuild = buildTimestamp;
+		return entry;
+	}
+	
+	private Entry makeEntry(String key, long size, long mtime, long inode, long hash, long hashedAt) {
+		Entry entry = new Entry();
+		entry.size = size;
+		entry.mtime = mtime;
+		entry.inode = inode;
+		entry.hash = hash;
+		entry.hashedAt = hashedAt;
+		entries.put(key, entry);
+		dirty = true;
+		return entry;
+	}
+	
+	/**
+	 * CRC32 and Adler32 are both implemented natively, so this is much faster than MD5. Between
+	 * the two of them and the file size we're not going to miss any real edits.
+	 */
+	private long fastHash(InputStream inputStream) throws IOException {
+		CRC32 crc = new CRC32();
+		Adler32 adler = new Adler32();
+		
+		int len;
+		while (-1 != (len = inputStream.read(buffer))) {
+			crc.update(buffer, 0, len);
+			adler.update(buffer, 0, len);
+		}
+		
+		return (crc.getValue() << 32) | adler.getValue();
+	}
+	
+	private void load() {
+		if (!journalFile.exists()) {
+			return;
+		}
+		
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return;
+			}
+			
+			int count = in.readInt();
+			for (int i = 0; i < count; i ++) {
+				String key = in.readUTF();
+				Entry entry = new Entry();
+				entry.size = in.readLong();
+				entry.mtime = in.readLong();
+				entry.inode = in.readLong();
+				entry.hash = in.readLong();
+				entry.hashedAt = in.readLong();
+				entries.put(key, entry);
+			}
+		} catch (IOException e) {
+			// Just start over
+			e.printStackTrace();
+			entries.clear();
+		}
+	}
+	
+	/**
+	 * Write the journal to disk if anything has changed. Called at the end of every build.
+	 */
+	public synchronized void save() {
+		if (!dirty) {
+			return;
+		}
+		
+		// Don't let the journal grow forever, throw out the entries that haven't been used since
+		// the app was started
+		if (entries.size() > MAX_SAVED_ENTRIES) {
+			Iterator<Entry> iterator = entries.values().iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next().lastBuild == -1) {
+					iterator.remove();
+				}
+			}
+		}
+		
+		File tempFile = new File(journalFile.getAbsolutePath() + ".tmp");
+		
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(entries.size());
+			for (Map.Entry<String, Entry> item : entries.entrySet()) {
+				Entry entry = item.getValue();
+				out.writeUTF(item.getKey());
+				out.writeLong(entry.size);
+				out.writeLong(entry.mtime);
+				out.writeLong(entry.inode);
+				out.writeLong(entry.hash);
+				out.writeLong(entry.hashedAt);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			tempFile.delete();
+			return;
+		}
+		
+		if (tempFile.renameTo(journalFile)) {
+			dirty = false;
+		} else {
+			tempFile.delete();
+		}
+	}
+}
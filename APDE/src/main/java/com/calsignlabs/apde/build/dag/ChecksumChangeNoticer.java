@@ -1,25 +1,21 @@
 package com.calsignlabs.apde.build.dag;
 
-import android.content.ContentResolver;
-
 import com.calsignlabs.apde.support.MaybeDocumentFile;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.SequenceInputStream;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 
-// TODO will we have problems with large files? (images, etc.)
+/**
+ * Notices changes by comparing checksums. Files and documents are checksummed through the
+ * {@link ChangeJournal}, so only the ones that have been touched since the last build are read.
+ */
 public class ChecksumChangeNoticer implements BuildTask.ChangeNoticer {
 	private static final int BUFFER_SIZE = 8192;
 	
@@ -51,7 +47,7 @@ public class ChecksumChangeNoticer implements BuildTask.ChangeNoticer {
 	public ChecksumChangeNoticer documentDiff(Getter<MaybeDocumentFile> documentGetter) {
 		mode = Mode.DOCUMENT_DIFF;
 		this.documentGetter = documentGetter;
-		deps = fileGetter.getDependencies();
+		deps = documentGetter.getDependencies();
 		
 		return this;
 	}
@@ -99,28 +95,17 @@ public class ChecksumChangeNoticer implements BuildTask.ChangeNoticer {
 		return deps;
 	}
 	
-	private static BigInteger calculateChecksum(File file, boolean ignoreTitle) {
-		InputStream inputStream = null;
-		
+	private static BigInteger calculateChecksum(File file, boolean ignoreTitle, BuildContext context) {
 		if (!file.exists()) {
 			Logger.writeLog("CHK doesn't exist: " + file.getAbsolutePath(), 1);
 			return null;
 		}
 		
-		try {
-			// Handle md5-ing directories
-			List<InputStream> sequence = new ArrayList<>();
-			buildFileStreamList(file, sequence, ignoreTitle);
-			inputStream = new SequenceInputStream(Collections.enumeration(sequence));
-			return calculateChecksum(inputStream);
-		} catch (IOException e) {
-			e.printStackTrace();
-			return null;
-		}
+		return ChangeJournal.get(context.getGlobal()).checksum(file, ignoreTitle, context.getTimestamp());
 	}
 	
-	private static BigInteger calculateChecksum(File file) {
-		return calculateChecksum(file, true);
+	private static BigInteger calculateChecksum(File file, BuildContext context) {
+		return calculateChecksum(file, true, context);
 	}
 	
 	private static BigInteger calculateChecksum(Getter<InputStream> getter, BuildContext context) {
@@ -158,42 +143,62 @@ public class ChecksumChangeNoticer implements BuildTask.ChangeNoticer {
 		}
 	}
 	
-	private static BigInteger calculateChecksum(MaybeDocumentFile document, boolean ignoreTitle) {
-		throw new RuntimeException("unimplemented");
-	}
-	
-	private static void buildFileStreamList(File file, List<InputStream> children, boolean ignoreTitle) throws FileNotFoundException {
-		if (!ignoreTitle) {
-			// Track file names
-			children.add(new ByteArrayInputStream(file.getName().getBytes()));
+	private static BigInteger calculateChecksum(MaybeDocumentFile document, boolean ignoreTitle, BuildContext context) {
+		if (!document.exists()) {
+			Logger.writeLog("CHK doesn't exist: " + document.toString(), 1);
+			return null;
 		}
 		
-		if (file.isDirectory()) {
-			for (File f : file.listFiles()) {
-				// Don't ignore title when we recurse, only for the top level
-				buildFileStreamList(f, children, false);
-			}
-		} else {
-			children.add(new FileInputStream(file));
+		try {
+			return ChangeJournal.get(context.getGlobal()).checksum(document.resolve(), ignoreTitle,
+					context.getTimestamp(), context.getContentResolver());
+		} catch (MaybeDocumentFile.MaybeDocumentFileException e) {
+			e.printStackTrace();
+			return null;
 		}
 	}
 	
-	public static boolean sameChecksum(File a, File b, boolean ignoreTitle) {
-		BigInteger checksumA = calculateChecksum(a, ignoreTitle);
-		BigInteger checksumB = calculateChecksum(b, ignoreTitle);
+	public static boolean sameChecksum(File a, File b, boolean ignoreTitle, BuildContext context) {
+		BigInteger checksumA = calculateChecksum(a, ignoreTitle, context);
+		BigInteger checksumB = calculateChecksum(b, ignoreTitle, context);
 		return Objects.equals(checksumA, checksumB);
 	}
 	
-	public static boolean sameChecksum(File a, MaybeDocumentFile b, boolean ignoreTitle) {
-		BigInteger checksumA = calculateChecksum(a, ignoreTitle);
-		BigInteger checksumB = calculateChecksum(b, ignoreTitle);
+	public static boolean sameChecksum(File a, MaybeDocumentFile b, boolean ignoreTitle, BuildContext context) {
+		BigInteger checksumA = calculateChecksum(a, ignoreTitle, context);
+		BigInteger checksumB = calculateChecksum(b, ignoreTitle, context);
 		return Objects.equals(checksumA, checksumB);
 	}
 	
 	private BigInteger checksum;
 	
+	// The checksum as of the end of the last build. A noticer can be asked several times per build
+	// (e.g. when it is combined with another noticer that is still unstable), so we always compare
+	// against this instead of the last checksum we saw. Otherwise the second evaluation would
+	// swallow the change. The files are still checked every time because some of them are
+	// written to by tasks that run earlier in the same build.
+	private long baselineTimestamp = -1;
+	private BigInteger baseline;
+	
+	private BuildTask.ChangeStatus updateChecksum(BigInteger newChecksum) {
+		Logger.writeLog("OLD CHECKSUM: " + (baseline == null ? "null" : baseline.toString()), 1);
+		Logger.writeLog("NEW CHECKSUM: " + (newChecksum == null ? "null" : newChecksum.toString()), 1);
+		boolean changed = !Objects.equals(baseline, newChecksum);
+		checksum = newChecksum;
+		return BuildTask.ChangeStatus.bool(changed);
+	}
+	
 	@Override
-	public BuildTask.ChangeStatus hasChanged(BuildContext context) {
+	public synchronized BuildTask.ChangeStatus hasChanged(BuildContext context) {
+		if (context.getTimestamp() != baselineTimestamp) {
+			baseline = checksum;
+			baselineTimestamp = context.getTimestamp();
+		}
+		
+		return calculateChangeStatus(context);
+	}
+	
+	private BuildTask.ChangeStatus calculateChangeStatus(BuildContext context) {
 		switch (mode) {
 			case FILE_DIFF:
 				File file = fileGetter.get(context);
@@ -202,15 +207,15 @@ public class ChecksumChangeNoticer implements BuildTask.ChangeNoticer {
 					checksum = null;
 					return BuildTask.ChangeStatus.UNCHANGED;
 				}
-				BigInteger newChecksum = calculateChecksum(file);
-				Logger.writeLog("OLD CHECKSUM: " + (checksum == null ? "null" : checksum.toString()), 1);
-				Logger.writeLog("NEW CHECKSUM: " + (newChecksum == null ? "null" : newChecksum.toString()), 1);
-				boolean changed = (checksum == null && newChecksum != null) || (checksum != null && !checksum.equals(newChecksum));
-				checksum = newChecksum;
-				return BuildTask.ChangeStatus.bool(changed);
+				return updateChecksum(calculateChecksum(file, context));
 			case DOCUMENT_DIFF:
-				// TODO: this whole modular build system is currently unused, so let's not bother with this for now
-				throw new RuntimeException("unimplemented");
+				MaybeDocumentFile document = documentGetter.get(context);
+				if (!vacuousChange && !document.exists()) {
+					Logger.writeLog("CHK vacuous change", 1);
+					checksum = null;
+					return BuildTask.ChangeStatus.UNCHANGED;
+				}
+				return updateChecksum(calculateChecksum(document, true, context));
 			case SOURCE_DEST_STREAM:
 				BigInteger test = calculateChecksum(inputStreamGetter, context);
 				BigInteger base = calculateChecksum(baseGetter, context);
@@ -228,8 +233,8 @@ public class ChecksumChangeNoticer implements BuildTask.ChangeNoticer {
 					}
 					return BuildTask.ChangeStatus.CHANGED;
 				}
-				BigInteger sourceChecksum = calculateChecksum(source);
-				BigInteger destChecksum = calculateChecksum(dest);
+				BigInteger sourceChecksum = calculateChecksum(source, context);
+				BigInteger destChecksum = calculateChecksum(dest, context);
 				Logger.writeLog("SOURCE CHECKSUM: " + (sourceChecksum == null ? "null" : source.toString()), 1);
 				Logger.writeLog("DEST CHECKSUM: " + (destChecksum == null ? "null" : dest.toString()), 1);
 				if (sourceChecksum == null || destChecksum == null) {
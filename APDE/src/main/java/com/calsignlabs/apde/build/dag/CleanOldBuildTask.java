@@ -45,7 +45,9 @@ public class CleanOldBuildTask extends BuildTask {
 			
 			succeed();
 		} else {
+			// Nothing to clean up
 			Logger.writeLog("Cleanup directory " + dirFile.getAbsolutePath() + " does not exist or is not a directory", 1);
+			succeed();
 		}
 	}
 	
@@ -1,10 +1,16 @@
 package com.calsignlabs.apde.build.dag;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 
-import com.calsignlabs.apde.build.Compiler;
+import com.calsignlabs.apde.R;
+import com.calsignlabs.apde.build.Build;
+import com.calsignlabs.apde.build.IncrementalCompiler;
+import com.calsignlabs.apde.build.StaticBuildResources;
 import com.calsignlabs.apde.build.TextTransform;
 
 import org.eclipse.jdt.core.compiler.IProblem;
@@ -13,37 +19,68 @@ public class CompileBuildTask extends ArgLambdaBuildTask {
 	public CompileBuildTask(Getter<File> libs, Getter<File> androidJar, Getter<File> src,
 							Getter<File> gen, Getter<File> binClasses, BuildTask... deps) {
 		super(context -> {
-			Compiler compiler = new Compiler(context.isCustomProblems());
+			List<File> libDirs = new ArrayList<>();
+			libDirs.add(libs.get(context));
 			
-			List<String> args = new ArrayList<String>();
-			
-			if (context.isVerbose()) {
-				args.add("-verbose");
-			} else {
-				args.add("-warn:-unusedImport");
+			// The artifact libraries are used straight from the static build resources
+			for (File targetLibsDir : StaticBuildResources.getTargetDirs(
+					StaticBuildResources.getLibsDir(context.getGlobal()), context.getComponentTarget())) {
+				if (targetLibsDir.exists()) {
+					libDirs.add(targetLibsDir);
+				}
 			}
 			
-			addAll(args, "-extdirs", libs.get(context).getAbsolutePath());
-			addAll(args, "-bootclasspath", androidJar.get(context).getAbsolutePath());
-			addAll(args, "-classpath", src.get(context).getAbsolutePath()
-					+ ":" + gen.get(context).getAbsolutePath()
-					+ ":" + libs.get(context).getAbsolutePath());
-			addAll(args, "-1.6", "-target", "1.6");
-			args.add("-proc:none");
-			addAll(args, "-d", binClasses.get(context).getAbsolutePath());
-			args.add(src.get(context).getAbsolutePath() + "/");
-			args.add(gen.get(context).getAbsolutePath() + "/");
+			List<File> classpath = new ArrayList<>();
+			classpath.add(androidJar.get(context));
+			classpath.addAll(IncrementalCompiler.listJars(libDirs));
 			
-			boolean success = compiler.compile(argsArray(args)) && !context.getPreprocessor().hasSyntaxErrors();
+			IncrementalCompiler compiler = IncrementalCompiler.get(classpath, binClasses.get(context),
+					StaticBuildResources.getClasspathIndex(context.getGlobal()));
+			
+			List<File> sourceFolders = Arrays.asList(src.get(context), gen.get(context));
+			List<? extends IProblem> problems = null;
+			boolean success;
+			try {
+				// When we only need the problems, check the changed sources in memory instead of
+				// writing class files, as long as there has been a real compile to check against
+				if (context.isCheckOnly()) {
+					problems = compiler.checkChanged(sourceFolders);
+				}
+				
+				if (problems == null) {
+					success = compiler.compile(sourceFolders);
+					problems = compiler.getProblems();
+					
+					context.count("classesRecompiled", compiler.getRecompiledCount());
+					
+					if (context.isVerbose()) {
+						System.out.println(String.format(Locale.US, context.getResources().getString(R.string.build_compiling_incremental_count), compiler.getRecompiledCount()));
+					}
+				} else {
+					success = true;
+					for (IProblem problem : problems) {
+						success &= !problem.isError();
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			}
+			
+			success &= !context.getPreprocessor().hasSyntaxErrors();
 			
 			if (context.isCustomProblems()) {
 				try {
-					for (IProblem problem : compiler.getProblems()) {
+					for (IProblem problem : problems) {
 						context.getProblems().add(context.getPreprocessor().buildCompilerProblem(problem));
 					}
 				} catch (TextTransform.LockException e) {
 					e.printStackTrace();
 				}
+			} else {
+				for (IProblem problem : problems) {
+					(problem.isError() ? System.err : System.out).println(Build.formatProblem(problem));
+				}
 			}
 			
 			return success;
@@ -51,4 +88,11 @@ public class CompileBuildTask extends ArgLambdaBuildTask {
 		
 		orGetterChangeNoticer(libs, androidJar, src, gen, binClasses);
 	}
+	
+	@Override
+	public boolean shouldRunIfNotUpdated() {
+		// Always report problems. If nothing has changed, the incremental compiler doesn't
+		// recompile anything and just hands back the problems from last time.
+		return true;
+	}
 }
@@ -1,7 +1,10 @@
 package com.calsignlabs.apde.build.dag;
 
+import android.content.ContentResolver;
+
 import com.calsignlabs.apde.R;
 import com.calsignlabs.apde.support.MaybeDocumentFile;
+import com.calsignlabs.apde.support.documentfile.DocumentFile;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
@@ -27,6 +30,9 @@ import java.util.zip.ZipOutputStream;
  *  - FILE FOLDER EXTRACT
  *  - FOLDER STREAM COMPRESS
  *  - FOLDER FILE COMPRESS
+ *  - DOCUMENT FILE COPY
+ *  - DOCUMENT FOLDER COPY
+ *  - DOCUMENT FILE COMPRESS
  *
  *  Note that ASSET for input is equivalent to STREAM.
  */
@@ -104,7 +110,10 @@ public class CopyBuildTask extends BuildTask {
 	public CopyBuildTask outFile(Getter<File> out, boolean detectChange) {
 		outputType = FILE;
 		outputFile = out;
-		if (detectChange && (inputType == FILE || inputType == STREAM)) {
+		if (detectChange && inputType == FILE) {
+			// Files go through the change journal, so we don't have to read them every build
+			orChangeNoticer((new ChecksumChangeNoticer()).sourceDestFile(inputFile, out));
+		} else if (detectChange && inputType == STREAM) {
 			populateStreamsForFiles();
 			orChangeNoticer((new ChecksumChangeNoticer()).sourceDestStream(inputStreamGetter, fis(out)));
 		}
@@ -183,6 +192,15 @@ public class CopyBuildTask extends BuildTask {
 				populateStreamsForFiles();
 				zipCompress();
 				break;
+			case DOCUMENT | FILE << 4 | COPY:
+				documentCopy();
+				break;
+			case DOCUMENT | FOLDER << 4 | COPY:
+				documentFolderCopy();
+				break;
+			case DOCUMENT | FILE << 4 | COMPRESS:
+				documentCompress();
+				break;
 			default:
 				throw new RuntimeException("Invalid copy task parameters: " + inputType + ", " + outputType + ", " + zipMethod);
 		}
@@ -217,6 +235,99 @@ public class CopyBuildTask extends BuildTask {
 		finish(handleCompress(inputFile.get(getBuildContext()), outputStreamGetter.get(getBuildContext())));
 	}
 	
+	private void documentCopy() {
+		MaybeDocumentFile document = inputDocument.get(getBuildContext());
+		if (!document.exists()) {
+			finish(vacuousSuccess);
+			return;
+		}
+		
+		try {
+			finish(handleStreamCopy(document.openIn(getBuildContext().getContentResolver()),
+					new FileOutputStream(outputFile.get(getBuildContext()))));
+		} catch (MaybeDocumentFile.MaybeDocumentFileException | FileNotFoundException e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	private void documentFolderCopy() {
+		MaybeDocumentFile document = inputDocument.get(getBuildContext());
+		if (!document.exists()) {
+			finish(vacuousSuccess);
+			return;
+		}
+		
+		try {
+			finish(copyDocumentFolder(document.resolve(), outputFile.get(getBuildContext()), getBuildContext().getContentResolver()));
+		} catch (MaybeDocumentFile.MaybeDocumentFileException e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	private void documentCompress() {
+		MaybeDocumentFile document = inputDocument.get(getBuildContext());
+		if (!document.exists()) {
+			finish(vacuousSuccess);
+			return;
+		}
+		
+		ZipOutputStream out = null;
+		
+		try {
+			out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile.get(getBuildContext()))));
+			finish(compressDocument(document.resolve(), "", out, getBuildContext().getContentResolver()));
+		} catch (MaybeDocumentFile.MaybeDocumentFileException | IOException e) {
+			e.printStackTrace();
+			fail();
+		} finally {
+			try {
+				if (out != null) {
+					out.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private static boolean copyDocumentFolder(DocumentFile source, File target, ContentResolver contentResolver) {
+		if (!target.exists() && !target.mkdirs()) return false;
+		
+		try {
+			for (DocumentFile file : source.listFiles()) {
+				if (file.getName() == null) continue;
+				File targetFile = new File(target, file.getName());
+				if (file.isDirectory()) {
+					if (!copyDocumentFolder(file, targetFile, contentResolver)) return false;
+				} else {
+					if (!handleStreamCopy(contentResolver.openInputStream(file.getUri()), new FileOutputStream(targetFile)))
+						return false;
+				}
+			}
+			return true;
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	private static boolean compressDocument(DocumentFile document, String prefix, ZipOutputStream out, ContentResolver contentResolver) throws IOException {
+		for (DocumentFile file : document.listFiles()) {
+			if (file.getName() == null) continue;
+			String entryName = prefix + file.getName();
+			if (file.isDirectory()) {
+				if (!compressDocument(file, entryName + "/", out, contentResolver)) return false;
+			} else {
+				out.putNextEntry(new ZipEntry(entryName));
+				if (!handleStreamCopy(contentResolver.openInputStream(file.getUri()), out, true, false)) return false;
+				out.closeEntry();
+			}
+		}
+		return true;
+	}
+	
 	private static boolean handleStreamCopy(InputStream in, OutputStream out) {
 		return handleStreamCopy(in, out, true, true);
 	}
@@ -281,7 +392,7 @@ public class CopyBuildTask extends BuildTask {
 			ZipEntry zipEntry;
 			while ((zipEntry = zipIn.getNextEntry()) != null) {
 				File file = new File(folder, zipEntry.getName());
-				if (file.getCanonicalPath().startsWith(folder.getCanonicalPath())) {
+				if (!file.getCanonicalPath().startsWith(folder.getCanonicalPath())) {
 					System.err.println("Aborted zip! Attempted zip path traversal attack extracting to: " + folder.getAbsolutePath());
 					return false;
 				}
@@ -12,7 +12,10 @@ import com.calsignlabs.apde.support.documentfile.DocumentFile;
 import com.calsignlabs.apde.APDE;
 import com.calsignlabs.apde.R;
 import com.calsignlabs.apde.build.Build;
+import com.calsignlabs.apde.build.BuildMetrics;
+import com.calsignlabs.apde.build.IncrementalCompiler;
 import com.calsignlabs.apde.build.SketchPreviewerBuilder;
+import com.calsignlabs.apde.build.StaticBuildResources;
 import com.calsignlabs.apde.contrib.Library;
 import com.calsignlabs.apde.support.MaybeDocumentFile;
 
@@ -77,20 +80,12 @@ public class ModularBuild {
 	
 	private static BuildFile STAGE = BuildContext::getStageFolder;
 	
-	private static BuildFile SUPPORT_RES = makeBuildFile(BUILD, "support-res");
-	private static BuildFile SUPPORT_WEARABLE_RES = makeBuildFile(BUILD, "support-wearable-res");
-	private static BuildFile VR_RES = makeBuildFile(BUILD, "vr-res");
-	
-	private static BuildFile GVR_BINARY_ZIP = makeBuildFile(BUILD, "vr-lib.zip");
-	private static BuildFile GLSL_ZIP = makeBuildFile(BUILD, "glsl-processing.zip");
-	
 	private static BuildFile RES_LAYOUT = makeBuildFile(RES, "layout");
 	private static BuildFile RES_VALUES = makeBuildFile(RES, "values");
 	private static BuildFile RES_XML = makeBuildFile(RES, "xml");
 	private static BuildFile[] RES_DRAWABLE;
 	
-	private static BuildFile AAPT = makeBuildFile(STAGE, "aapt");
-	private static BuildFile ANDROID_JAR = makeBuildFile(STAGE, "android.jar");
+	private static BuildFile ANDROID_JAR = context -> StaticBuildResources.getAndroidJarLoc(context.getGlobal());
 	
 	private static BuildFile MANIFEST = makeBuildFile(BUILD, "AndroidManifest.xml");
 	private static BuildFile SKETCH_APK_RES = context -> new File(BIN.get(context), context.getSketchName() + ".apk.res");
@@ -98,6 +93,7 @@ public class ModularBuild {
 	private static IconSet[] ICONS;
 	
 	private static BuildFile BIN_CLASSES = makeBuildFile(BIN, "classes");
+	private static BuildFile BIN_RES_COMPILED = makeBuildFile(BIN, "res-compiled");
 	private static BuildFile BIN_SKETCH_CLASSES = makeBuildFile(BIN, "sketch-classes.dex");
 	
 	private static BuildFile ROOT_FILES_INTERNAL = BuildContext::getRootFilesDir;
@@ -144,45 +140,23 @@ public class ModularBuild {
 	private void makeDag() {
 		// INIT
 		
-		BuildContext throwawayContext;
-		try {
-			throwawayContext = BuildContext.create(global);
-		} catch (MaybeDocumentFile.MaybeDocumentFileException e) {
-			e.printStackTrace();
-			return;
-		}
-		
 		BuildTask makeFolders = new MkdirBuildTask(BUILD, SRC, GEN, LIBS, ASSETS, RES, BIN, DEXED_LIBS, STAGE).setName("make folders");
 		
-		String[] libs = { "processing-core", "support-core-utils", "support-compat", "appcompat",
-				"support-fragment", "support-wearable", "percent", "gvr", "vr" };
-		String[] dexedLibs = { "all-lib-dex", "support-wearable-dex", "vr-dex" };
-		
-		List<BuildTask> copyAssetsTasks = new ArrayList<>();
-		
-		copyAssetsTasks.add(makeAssetsExtractor(SUPPORT_RES, throwawayContext, makeFolders).setName("support-res"));
-		copyAssetsTasks.add(makeAssetsExtractor(SUPPORT_WEARABLE_RES, throwawayContext, makeFolders).setName("support-wearable-res"));
-		copyAssetsTasks.add(makeAssetsExtractor(VR_RES, throwawayContext, makeFolders).setName("vr-res"));
-		
-		for (String lib : libs) {
-			copyAssetsTasks.add(new CopyBuildTask(makeFolders).inAsset("libs/" + lib + ".jar")
-					.outFile(makeBuildFile(LIBS, lib + ".jar")).setName("copy: " + lib));
-		}
-		
-		for (String dexedLib : dexedLibs) {
-			copyAssetsTasks.add(new CopyBuildTask(makeFolders).inAsset("libs-dex/" + dexedLib + ".jar")
-					.outFile(makeBuildFile(DEXED_LIBS, dexedLib + ".jar")).setName("copy: " + dexedLib));
-		}
-		
-		copyAssetsTasks.add(makeAssetsCopier(GVR_BINARY_ZIP, throwawayContext, makeFolders).setName("gvr binary"));
-		copyAssetsTasks.add(makeAssetsCopier(GLSL_ZIP, throwawayContext, makeFolders).setName("glsl"));
-		
-		copyAssetsTasks.add(new LambdaBuildTask(context -> AAPT.get(context).setExecutable(true, true), "",
-				new CopyBuildTask(makeFolders).inAsset(getAaptName()).outFile(AAPT).setName("copy aapt")).setName("aapt executable"));
-		
-		copyAssetsTasks.add(makeAssetsCopier(ANDROID_JAR, throwawayContext, makeFolders).setName("android.jar"));
+		// android.jar and the artifacts are shared with the regular build, so we only need to
+		// extract them if they aren't there yet (they are normally extracted when APDE starts)
+		BuildTask extractStaticBuildResources = new LambdaBuildTask(context -> {
+			try {
+				StaticBuildResources.extractAll(context.getGlobal());
+				return true;
+			} catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			}
+		}, "Extracting static build resources", makeFolders)
+				.orChangeNoticer(context -> BuildTask.ChangeStatus.bool(!ANDROID_JAR.get(context).exists()))
+				.setName("extract static build resources");
 		
-		BuildTask init = new CompoundBuildTask(copyAssetsTasks).setName("init");
+		BuildTask init = new CompoundBuildTask(makeFolders, extractStaticBuildResources).setName("init");
 		
 		// SKETCH FOLDER NOTICERS
 		
@@ -342,8 +316,8 @@ public class ModularBuild {
 				}, sketchName, generateManifest, preprocess, makeSketchClassFolder)
 				.setName("write main class");
 		
-		BuildTask aapt = new AaptBuildTask(AAPT, RES, SUPPORT_RES, SUPPORT_WEARABLE_RES, VR_RES,
-				GEN, ASSETS, MANIFEST, ANDROID_JAR, SKETCH_APK_RES, init, generateManifest,
+		BuildTask aapt = new AaptBuildTask(RES, BIN_RES_COMPILED, GEN, ASSETS, MANIFEST,
+				ANDROID_JAR, SKETCH_APK_RES, init, generateManifest,
 				writeRes, copyIcons, copySketchRes, copySketchData, deleteOldApkRes, deleteOldGen)
 				.setName("run aapt");
 		
@@ -409,32 +383,26 @@ public class ModularBuild {
 		
 		BuildTask deleteOldLibs = new CleanOldBuildTask(LIBS, ".*",
 				(context, file, filename) -> {
-					for (String lib : libs) {
-						if (filename.equals(lib + ".jar")) {
-							return true;
-						}
+					// Native library folders
+					if (file.isDirectory()) {
+						return true;
 					}
 					for (DocumentFile lib : context.getLibraryLibs()) {
 						if (filename.equals(lib.getName())) {
 							return true;
 						}
 					}
-					return false;
+					return isInDocumentFolder(SKETCH_CODE_FOLDER.get(context), filename);
 				}, init, preprocess, copyLibraryFiles).setName("delete old libs");
 		
 		BuildTask deleteOldDexLibs = new CleanOldBuildTask(DEXED_LIBS, ".*",
 				(context, file, filename) -> {
-					for (String lib : dexedLibs) {
-						if (filename.equals(lib + ".jar")) {
-							return true;
-						}
-					}
 					for (DocumentFile dexLib : context.getLibraryDexedLibs()) {
 						if (filename.equals(dexLib.getName())) {
 							return true;
 						}
 					}
-					return false;
+					return isInDocumentFolder(SKETCH_CODE_DEX_FOLDER.get(context), filename);
 				}, init, preprocess, copyLibraryFiles).setName("delete old dexed libs");
 		
 		BuildTask copyLibraryLibs = new ContextualCompoundBuildTask((context, tasks) -> {
@@ -460,13 +428,11 @@ public class ModularBuild {
 			}
 		}).setName("copy imported libraries");
 		
-		BuildTask deleteOldBinClasses = new DeleteFileTask(BIN_CLASSES, init, preprocess, aapt)
-				.setContentsOnly(true).setDependencyOnly(true).setName("delete old bin classes");
-		
+		// No need to delete old classes, the incremental compiler takes care of stale class files
 		BuildTask compile = new CompileBuildTask(LIBS, ANDROID_JAR, SRC, GEN, BIN_CLASSES,
 				init, preprocess, aapt, writeMainClass, writeLogBroadcasterUtil, copySketchCode,
-				copySketchCodeDex, copyLibraryFiles, copyLibraryLibs, deleteOldSrc, reloadLibraries,
-				deleteOldBinClasses).setName("compile");
+				copySketchCodeDex, copyLibraryFiles, copyLibraryLibs, deleteOldSrc, reloadLibraries)
+				.setName("compile");
 		
 		BuildTask dxDex = new DxDexBuildTask(BIN_SKETCH_CLASSES, BIN_CLASSES, compile).setName("dx dex");
 		
@@ -490,7 +456,7 @@ public class ModularBuild {
 						// If names are the same, file might not necessarily be the same;
 						// e.g. the user may have updated the library
 						if (realName.equals(newDexedLib.getName())
-								&& ChecksumChangeNoticer.sameChecksum(file, new MaybeDocumentFile(newDexedLib), true)) {
+								&& ChecksumChangeNoticer.sameChecksum(file, new MaybeDocumentFile(newDexedLib), true, context)) {
 							return true;
 						}
 					}
@@ -566,26 +532,35 @@ public class ModularBuild {
 			}
 		});
 		
+		// The incremental compiler keeps track of the class files that it has written
+		BuildTask resetCompiler = new LambdaBuildTask(context -> {
+			IncrementalCompiler.invalidate(BIN_CLASSES.get(context));
+			return true;
+		}, "Reset compiler", deleteBuild).setName("reset compiler");
+		
 		CLEAN = new CompoundBuildTask(deleteBuild, deleteAlternateBuild, deleteStage,
-				deletePreviewDex, deletePreviewData, deletePreviewLibraryDex).setName("clean");
-	}
-	
-	private static BuildTask makeAssetsExtractor(Getter<File> file, BuildContext context, BuildTask... deps) {
-		return new CopyBuildTask(deps).inAsset(file.get(context).getName() + ".zip").outFolder(file).extract();
-	}
-	
-	private static BuildTask makeAssetsCopier(Getter<File> file, BuildContext context, BuildTask... deps) {
-		return new CopyBuildTask(deps).inAsset(file.get(context).getName()).outFile(file);
-	}
-	
-	private static BuildTask makeChecksummer(Getter<File> file) {
-		return new ChangeNoticerWrapper((new ChecksumChangeNoticer()).fileDiff(file));
+				deletePreviewDex, deletePreviewData, deletePreviewLibraryDex, resetCompiler).setName("clean");
 	}
 	
 	private static BuildTask makeDocumentChecksummer(Getter<MaybeDocumentFile> file) {
 		return new ChangeNoticerWrapper((new ChecksumChangeNoticer()).documentDiff(file));
 	}
 	
+	private static boolean isInDocumentFolder(MaybeDocumentFile folder, String filename) {
+		try {
+			if (folder.exists()) {
+				for (DocumentFile item : folder.resolve().listFiles()) {
+					if (filename.equals(item.getName())) {
+						return true;
+					}
+				}
+			}
+		} catch (MaybeDocumentFile.MaybeDocumentFileException e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
+	
 	private Getter<File> getSketchClassLocation(String filename, List<BuildTask> deps) {
 		return new Getter<File>() {
 			@Override
@@ -621,21 +596,6 @@ public class ModularBuild {
 		}
 	}
 	
-	public static String getAaptName() {
-		String arch = android.os.Build.CPU_ABI.substring(0, 3).toLowerCase(Locale.US);
-		
-		// We no longer support Android 4.0 or below, so all devices now use the PIE AAPT binaries
-		
-		// Get the correct AAPT binary for this processor architecture
-		switch (arch) {
-			case "x86":
-				return "aapt-binaries/aapt-x86-pie";
-			case "arm":
-			default:
-				return "aapt-binaries/aapt-arm-pie";
-		}
-	}
-	
 	public void halt() {
 		// Unstable
 //		if (runner != null) {
@@ -724,9 +684,10 @@ public class ModularBuild {
 	 * Compile sketch with ECJ to produce error output.
 	 *
 	 * @param listeners
+	 * @return whether or not the build was started, i.e. false if a build is already running
 	 */
-	public void compile(ContextualizedOnCompleteListener... listeners) {
-		buildInternal(COMPILE, new ContextualizedOnCompleteListener() {
+	public boolean compile(ContextualizedOnCompleteListener... listeners) {
+		return buildInternal(COMPILE, new ContextualizedOnCompleteListener() {
 			@Override
 			public boolean onComplete(boolean success) {
 				global.getEditor().showProblems(getContext().getProblems());
@@ -739,12 +700,12 @@ public class ModularBuild {
 		buildInternal(CLEAN, null, listeners);
 	}
 	
-	private void buildInternal(BuildTask buildTask, ContextualizedOnCompleteListener listener,
-							   ContextualizedOnCompleteListener... listeners) {
+	private boolean buildInternal(BuildTask buildTask, ContextualizedOnCompleteListener listener,
+								  ContextualizedOnCompleteListener... listeners) {
 		
 		if (!BUILD_LOCK.compareAndSet(false, true)) {
 			Logger.writeLog("Build already running");
-			return;
+			return false;
 		}
 		
 		Logger.setLogLevelFromPrefs(global);
@@ -753,20 +714,27 @@ public class ModularBuild {
 		
 		BuildContext context = null;
 		try {
-			context = BuildContext.create(global);
+			context = BuildContext.createModular(global);
 		} catch (MaybeDocumentFile.MaybeDocumentFileException e) {
 			e.printStackTrace();
-			return;
+			BUILD_LOCK.set(false);
+			return false;
 		}
 		context.setPreviousTaskSucess(previousTaskStatus);
+		// Auto-compile only needs the problems
+		context.setCheckOnly(buildTask == COMPILE);
 		runner = new BuildTaskRunner(global, buildTask, context);
 		
+		BuildMetrics metrics = context.getMetrics();
+		
 		runner.addOnCompleteListener(success -> {
 			Logger.writeLog(String.format(Locale.US, "Finished in %1$dms", System.currentTimeMillis() - start));
 			// Make some space in the console
 //			for (int i = 0; i < 10; i++) {
 //				System.out.println();
 //			}
+			ChangeJournal.get(global).save();
+			metrics.finish(global, success ? BuildMetrics.RESULT_SUCCESS : BuildMetrics.RESULT_FAILURE);
 			BUILD_LOCK.set(false);
 			return true;
 		});
@@ -782,6 +750,7 @@ public class ModularBuild {
 		}
 		
 		runner.run();
+		return true;
 	}
 	
 	public boolean isBuilding() {
@@ -13,6 +13,7 @@ import com.calsignlabs.apde.support.documentfile.DocumentFile;
 import com.calsignlabs.apde.APDE;
 import com.calsignlabs.apde.R;
 import com.calsignlabs.apde.build.Build;
+import com.calsignlabs.apde.build.DexCache;
 import com.calsignlabs.apde.build.StaticBuildResources;
 import com.calsignlabs.apde.support.FileSelection;
 import com.calsignlabs.apde.support.MaybeDocumentFile;
@@ -380,16 +381,29 @@ public class ContributionManager {
 	 * Dexes the input JAR file and saves it to the output
 	 * This is just a wrapper function for the command line / Android native functionality
 	 * 
+	 * If the same JAR has been dexed before, the output is taken from the dex cache instead.
+	 * 
 	 * @param input
 	 * @param output
 	 */
 	public static void dexJar(File input, File output, Context context) {
+		String[] args = new String[] {
+				"--output=" + output.getAbsolutePath(), //The location of the output DEXed file
+				input.getAbsolutePath(), //The location of the file to DEXify
+		};
+		
+		String cacheKey = null;
+		try {
+			cacheKey = DexCache.getKey(input, getDexOptions(args, input, output));
+			if (DexCache.restore(context, cacheKey, output)) {
+				return;
+			}
+		} catch (IOException e) {
+			// Not the end of the world, just dex it
+			e.printStackTrace();
+		}
+		
 		try {
-			String[] args = new String[] {
-					"--output=" + output.getAbsolutePath(), //The location of the output DEXed file
-					input.getAbsolutePath(), //The location of the file to DEXify
-			};
-			
 			//This is some side-stepping to avoid System.exit() calls
 			
 			com.androidjarjar.dx.command.dexer.Main.Arguments dexArgs = new com.androidjarjar.dx.command.dexer.Main.Arguments();
@@ -402,6 +416,8 @@ public class ContributionManager {
 			
 			if (resultCode != 0) {
 				System.err.println(String.format(Locale.US, context.getResources().getString(R.string.dex_jar_failure_error_code), resultCode));
+			} else if (cacheKey != null) {
+				DexCache.store(context, cacheKey, output);
 			}
 		} catch (Exception e) {
 			System.err.println(context.getResources().getString(R.string.dex_jar_failure));
@@ -409,6 +425,26 @@ public class ContributionManager {
 		}
 	}
 	
+	/**
+	 * The dx arguments with the paths taken out, for the dex cache key. dx decides whether to
+	 * write a jar or a bare dex based on the output's extension, so that part is kept.
+	 */
+	private static String getDexOptions(String[] args, File input, File output) {
+		String outputName = output.getName();
+		String outputType = outputName.substring(outputName.lastIndexOf('.') + 1);
+		
+		StringBuilder options = new StringBuilder();
+		for (String arg : args) {
+			if (arg.equals(input.getAbsolutePath())) {
+				arg = "<input>";
+			} else if (arg.equals("--output=" + output.getAbsolutePath())) {
+				arg = "--output=<output>." + outputType;
+			}
+			options.append(arg).append('\0');
+		}
+		return options.toString();
+	}
+	
 	/**
 	 * Uninstalls the library by deleting its folder
 	 * 
@@ -1308,7 +1308,7 @@ public class ExportSignedPackage implements Tool {
 			binFolder.resolve();
 			
 			//Clear the console
-			((TextView) context.getEditor().findViewById(R.id.console)).setText("");
+			context.getEditor().clearConsole();
 			
 			builder = new Build(context, BuildContext.create(context));
 			builder.setKey(getKeystoreFileUri(), keystorePassword.getText().toString().toCharArray(), (String) alias.getSelectedItem(), aliasPassword.getText().toString().toCharArray());
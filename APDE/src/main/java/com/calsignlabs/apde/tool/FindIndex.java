@@ -0,0 +1,288 @@
+package com.calsignlabs.apde.tool;
+
+import com.calsignlabs.apde.Rope;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Search index for the text of one tab. Tabs are immutable {@link Rope}s, so an index is built
+ * for one version of the text and is thrown out as soon as the tab changes.
+ *
+ * The index keeps a case-folded copy of the text, which is all that a plain scan needs. Once the
+ * same text has been searched more than once (e.g. find next, or searching a tab that isn't being
+ * edited), it also builds a trigram index: the positions of every three-character sequence in the
+ * folded text. Searching for a token then only has to check the positions of its rarest trigram
+ * rather than the whole text.
+ *
+ * Folding is done one char at a time so that positions in the folded text are the same as in the
+ * original text, which String.toLowerCase() doesn't guarantee.
+ */
+public class FindIndex {
+	/**
+	 * Check whether or not the search has been cancelled every this many candidates.
+	 */
+	private static final int CANCEL_CHECK_INTERVAL = 1024;
+	
+	private final Rope source;
+	private final String text;
+	private final String folded;
+	
+	private Map<Long, int[]> trigrams;
+	private int searchCount;
+	
+	public FindIndex(Rope source) {
+		this.source = source;
+		text = source.toString();
+		folded = fold(text);
+	}
+	
+	/**
+	 * @return the text that this index is for
+	 */
+	public Rope getSource() {
+		return source;
+	}
+	
+	/**
+	 * @return the text that this index is for, flattened
+	 */
+	public String getText() {
+		return text;
+	}
+	
+	/**
+	 * Receives the matches as they are found.
+	 */
+	public interface MatchListener {
+		/**
+		 * @param start the start of the match, inclusive
+		 * @param end the end of the match, exclusive
+		 */
+		void onMatch(int start, int end);
+	}
+	
+	/**
+	 * Find all of the matches of the token in the given range, not counting overlapping matches.
+	 * Stops early if the thread is interrupted.
+	 *
+	 * @param token the token to look for
+	 * @param caseSensitive whether or not the case of the token matters
+	 * @param wholeWord whether or not matches have to be whole words
+	 * @param start the start of the range to search, inclusive
+	 * @param end the end of the range to search, exclusive
+	 * @param listener receives each match, in order
+	 */
+	public void findAll(String token, boolean caseSensitive, boolean wholeWord, int start, int end, MatchListener listener) {
+		int length = token.length();
+		if (length == 0) {
+			return;
+		}
+		
+		String foldedToken = fold(token);
+		int[] candidates = candidates(foldedToken);
+		
+		int nextFree = start;
+		
+		if (candidates == null) {
+			// No index yet, so just scan
+			int pos = start;
+			while (true) {
+				pos = folded.indexOf(foldedToken, pos);
+				if (pos == -1 || pos + length > end) {
+					break;
+				}
+				if (confirm(token, caseSensitive, wholeWord, pos)) {
+					listener.onMatch(pos, pos + length);
+					pos += length;
+				} else {
+					pos ++;
+				}
+				if (Thread.currentThread().isInterrupted()) {
+					return;
+				}
+			}
+			return;
+		}
+		
+		int offset = rarestTrigram(foldedToken);
+		int first = firstAtOrAfter(candidates, start + offset);
+		for (int i = first; i < candidates.length; i ++) {
+			int pos = candidates[i] - offset;
+			if (pos + length > end) {
+				break;
+			}
+			if (pos >= nextFree && matches(token, foldedToken, caseSensitive, wholeWord, pos)) {
+				listener.onMatch(pos, pos + length);
+				nextFree = pos + length;
+			}
+			if ((i - first) % CANCEL_CHECK_INTERVAL == 0 && Thread.currentThread().isInterrupted()) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * @param token the token to look for
+	 * @param caseSensitive whether or not the case of the token matters
+	 * @param wholeWord whether or not matches have to be whole words
+	 * @param from where to start looking
+	 * @param end the end of the range to search, exclusive
+	 * @return the position of the first match at or after from, or -1 if there isn't one
+	 */
+	public int findFirst(String token, boolean caseSensitive, boolean wholeWord, int from, int end) {
+		int length = token.length();
+		if (length == 0) {
+			return -1;
+		}
+		
+		String foldedToken = fold(token);
+		int[] candidates = candidates(foldedToken);
+		
+		if (candidates == null) {
+			int pos = from;
+			while (true) {
+				pos = folded.indexOf(foldedToken, pos);
+				if (pos == -1 || pos + length > end) {
+					return -1;
+				}
+				if (confirm(token, caseSensitive, wholeWord, pos)) {
+					return pos;
+				}
+				pos ++;
+			}
+		}
+		
+		int offset = rarestTrigram(foldedToken);
+		for (int i = firstAtOrAfter(candidates, from + offset); i < candidates.length; i ++) {
+			int pos = candidates[i] - offset;
+			if (pos + length > end) {
+				return -1;
+			}
+			if (matches(token, foldedToken, caseSensitive, wholeWord, pos)) {
+				return pos;
+			}
+		}
+		return -1;
+	}
+	
+	private boolean matches(String token, String foldedToken, boolean caseSensitive, boolean wholeWord, int pos) {
+		return (caseSensitive ? text.startsWith(token, pos) : folded.startsWith(foldedToken, pos))
+				&& (!wholeWord || isWordBoundary(text, pos, pos + token.length()));
+	}
+	
+	// For a match that has already been found in the folded text
+	private boolean confirm(String token, boolean caseSensitive, boolean wholeWord, int pos) {
+		return (!caseSensitive || text.startsWith(token, pos))
+				&& (!wholeWord || isWordBoundary(text, pos, pos + token.length()));
+	}
+	
+	/**
+	 * @return whether or not the given range isn't part of a larger word
+	 */
+	static boolean isWordBoundary(CharSequence text, int start, int end) {
+		return (start == 0 || !isWordChar(text.charAt(start - 1)))
+				&& (end == text.length() || !isWordChar(text.charAt(end)));
+	}
+	
+	private static boolean isWordChar(char c) {
+		return Character.isJavaIdentifierPart(c);
+	}
+	
+	/**
+	 * @return the positions of the rarest trigram in the token, or null if we should scan instead
+	 */
+	private synchronized int[] candidates(String foldedToken) {
+		searchCount ++;
+		
+		if (foldedToken.length() < 3) {
+			return null;
+		}
+		
+		// Don't bother indexing text that is only searched once, which is what happens while
+		// the user is typing
+		if (trigrams == null) {
+			if (searchCount < 2) {
+				return null;
+			}
+			buildTrigrams();
+		}
+		
+		int[] positions = trigrams.get(trigram(foldedToken, rarestTrigram(foldedToken)));
+		return positions != null ? positions : new int[0];
+	}
+	
+	private synchronized int rarestTrigram(String foldedToken) {
+		int best = 0;
+		int bestCount = Integer.MAX_VALUE;
+		for (int i = 0; i + 3 <= foldedToken.length(); i ++) {
+			int[] positions = trigrams.get(trigram(foldedToken, i));
+			int count = positions != null ? positions.length : 0;
+			if (count < bestCount) {
+				best = i;
+				bestCount = count;
+			}
+		}
+		return best;
+	}
+	
+	private void buildTrigrams() {
+		// Count first so that each posting list can be allocated at its final size
+		Map<Long, int[]> counts = new HashMap<>();
+		for (int i = 0; i + 3 <= folded.length(); i ++) {
+			Long key = trigram(folded, i);
+			int[] count = counts.get(key);
+			if (count == null) {
+				counts.put(key, new int[] {1});
+			} else {
+				count[0] ++;
+			}
+		}
+		
+		Map<Long, int[]> postings = new HashMap<>(counts.size() * 2);
+		for (Map.Entry<Long, int[]> entry : counts.entrySet()) {
+			// The last element keeps track of how many positions have been filled in
+			postings.put(entry.getKey(), new int[entry.getValue()[0] + 1]);
+		}
+		for (int i = 0; i + 3 <= folded.length(); i ++) {
+			int[] positions = postings.get(trigram(folded, i));
+			positions[positions[positions.length - 1] ++] = i;
+		}
+		for (Map.Entry<Long, int[]> entry : postings.entrySet()) {
+			int[] positions = entry.getValue();
+			int[] trimmed = new int[positions.length - 1];
+			System.arraycopy(positions, 0, trimmed, 0, trimmed.length);
+			entry.setValue(trimmed);
+		}
+		
+		trigrams = postings;
+	}
+	
+	private static long trigram(String text, int i) {
+		return ((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2);
+	}
+	
+	private static int firstAtOrAfter(int[] positions, int value) {
+		int low = 0, high = positions.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (positions[mid] < value) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+	
+	/**
+	 * Fold the case of the text without changing its length.
+	 */
+	static String fold(String text) {
+		char[] chars = text.toCharArray();
+		for (int i = 0; i < chars.length; i ++) {
+			chars[i] = Character.toLowerCase(chars[i]);
+		}
+		return new String(chars);
+	}
+}
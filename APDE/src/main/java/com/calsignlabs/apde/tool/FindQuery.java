@@ -0,0 +1,357 @@
+package com.calsignlabs.apde.tool;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A search token along with the options that change how it is matched.
+ *
+ * Plain tokens are found with the tab's {@link FindIndex}. Regular expressions are compiled into
+ * a Pattern, and the compiled patterns are cached because the find field searches again on every
+ * keystroke and every edit to the code.
+ *
+ * A regular expression can take a very long time to run on the wrong text (e.g. "(a+)+b"), so
+ * every search takes a deadline. The matcher reads the text through a CharSequence that checks
+ * the clock every so often and gives up once the deadline has passed, or once the thread has been
+ * interrupted because a newer search has started.
+ */
+public class FindQuery {
+	/**
+	 * The number of compiled patterns to keep around.
+	 */
+	private static final int PATTERN_CACHE_SIZE = 16;
+	
+	/**
+	 * Check the deadline every this many characters read by the matcher.
+	 */
+	private static final int DEADLINE_CHECK_INTERVAL = 4096;
+	
+	// Least recently used patterns are dropped first
+	private static final Map<String, Pattern> PATTERN_CACHE = new LinkedHashMap<String, Pattern>(PATTERN_CACHE_SIZE, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+			return size() > PATTERN_CACHE_SIZE;
+		}
+	};
+	
+	private final String token;
+	private final boolean caseSensitive;
+	private final boolean wholeWord;
+	
+	// Null for plain tokens
+	private final Pattern pattern;
+	
+	/**
+	 * @param token the token to look for
+	 * @param caseSensitive whether or not the case of the token matters
+	 * @param wholeWord whether or not matches have to be whole words
+	 * @param regExp whether or not the token is a regular expression
+	 * @throws PatternSyntaxException if the token is a regular expression and isn't valid
+	 */
+	public FindQuery(String token, boolean caseSensitive, boolean wholeWord, boolean regExp) throws PatternSyntaxException {
+		this.token = token;
+		this.caseSensitive = caseSensitive;
+		this.wholeWord = wholeWord;
+		
+		pattern = regExp ? getPattern(token, caseSensitive, wholeWord) : null;
+	}
+	
+	private static Pattern getPattern(String regExp, boolean caseSensitive, boolean wholeWord) throws PatternSyntaxException {
+		String key = (caseSensitive ? "c" : "i") + (wholeWord ? "w" : "-") + regExp;
+		
+		synchronized (PATTERN_CACHE) {
+			Pattern pattern = PATTERN_CACHE.get(key);
+			if (pattern != null) {
+				return pattern;
+			}
+		}
+		
+		// Use the same definition of a word as FindIndex
+		String source = wholeWord ? "(?<!\\p{javaJavaIdentifierPart})(?:" + regExp + ")(?!\\p{javaJavaIdentifierPart})" : regExp;
+		int flags = Pattern.MULTILINE | (caseSensitive ? 0 : Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+		Pattern pattern = Pattern.compile(source, flags);
+		
+		synchronized (PATTERN_CACHE) {
+			PATTERN_CACHE.put(key, pattern);
+		}
+		
+		return pattern;
+	}
+	
+	public String getToken() {
+		return token;
+	}
+	
+	public boolean isRegExp() {
+		return pattern != null;
+	}
+	
+	/**
+	 * Find all of the matches in the given range, not counting overlapping matches. Regular
+	 * expressions that match empty text aren't counted. Stops early if the thread is interrupted.
+	 *
+	 * @param index the index of the text to search
+	 * @param start the start of the range to search, inclusive
+	 * @param end the end of the range to search, exclusive
+	 * @param deadline when to give up, as in System.currentTimeMillis()
+	 * @param listener receives each match, in order
+	 * @throws TimeoutException if the search didn't finish before the deadline, or if the regular
+	 *                          expression is too complex to run
+	 */
+	public void findAll(FindIndex index, int start, int end, long deadline, FindIndex.MatchListener listener) throws TimeoutException {
+		if (pattern == null) {
+			index.findAll(token, caseSensitive, wholeWord, start, end, listener);
+			return;
+		}
+		
+		try {
+			Matcher matcher = matcher(index.getText(), start, end, deadline);
+			while (matcher.find()) {
+				if (matcher.end() > matcher.start()) {
+					listener.onMatch(matcher.start(), matcher.end());
+				}
+			}
+		} catch (DeadlineException e) {
+			e.rethrowIfTimedOut();
+		} catch (StackOverflowError e) {
+			throw tooComplex();
+		}
+	}
+	
+	/**
+	 * @param index the index of the text to search
+	 * @param from where to start looking
+	 * @param end the end of the range to search, exclusive
+	 * @param deadline when to give up, as in System.currentTimeMillis()
+	 * @return {start, end} of the first match at or after from, or null if there isn't one
+	 * @throws TimeoutException if the search didn't finish before the deadline
+	 */
+	public int[] findFirst(FindIndex index, int from, int end, long deadline) throws TimeoutException {
+		if (pattern == null) {
+			int pos = index.findFirst(token, caseSensitive, wholeWord, from, end);
+			return pos == -1 ? null : new int[] {pos, pos + token.length()};
+		}
+		
+		try {
+			Matcher matcher = matcher(index.getText(), from, end, deadline);
+			while (matcher.find()) {
+				if (matcher.end() > matcher.start()) {
+					return new int[] {matcher.start(), matcher.end()};
+				}
+			}
+		} catch (DeadlineException e) {
+			e.rethrowIfTimedOut();
+		} catch (StackOverflowError e) {
+			throw tooComplex();
+		}
+		return null;
+	}
+	
+	/**
+	 * Work out what a match should be replaced with. For regular expressions, references to
+	 * groups (e.g. "$1") are filled in, otherwise the replacement is used as is.
+	 *
+	 * @param text the text containing the match
+	 * @param start the start of the match, inclusive
+	 * @param end the end of the match, exclusive
+	 * @param replacement the replacement
+	 * @return the text to put in place of the match
+	 * @throws IllegalArgumentException if the replacement refers to a group that doesn't exist
+	 */
+	public String expandReplacement(String text, int start, int end, String replacement) throws IllegalArgumentException {
+		if (pattern == null) {
+			return replacement;
+		}
+		
+		Matcher matcher = matcher(text, start, text.length(), Long.MAX_VALUE);
+		if (!matcher.find() || matcher.start() != start || matcher.end() != end) {
+			// The text has changed since it was matched
+			return replacement;
+		}
+		
+		// This copies everything before the match too, but it's only one match
+		StringBuffer output = new StringBuffer();
+		appendReplacement(matcher, output, replacement);
+		return output.substring(start);
+	}
+	
+	/**
+	 * The result of replacing every match in a range of text. The new text only differs from the
+	 * old text between the first and the last match, so that's all that is kept.
+	 */
+	public static class Replacement {
+		public final int changeIndex;
+		public final String beforeText;
+		public final String afterText;
+		public final int count;
+		
+		private Replacement(int changeIndex, String beforeText, String afterText, int count) {
+			this.changeIndex = changeIndex;
+			this.beforeText = beforeText;
+			this.afterText = afterText;
+			this.count = count;
+		}
+	}
+	
+	/**
+	 * Replace every match in the given range in one pass over the text. Unlike
+	 * {@link #findAll(FindIndex, int, int, long, FindIndex.MatchListener)}, regular expressions
+	 * that match empty text are replaced too, e.g. "^" adds the replacement to the start of every
+	 * line.
+	 *
+	 * @param index the index of the text to search
+	 * @param replacement the replacement
+	 * @param start the start of the range to search, inclusive
+	 * @param end the end of the range to search, exclusive
+	 * @param deadline when to give up, as in System.currentTimeMillis()
+	 * @return the replacement, or null if there weren't any matches or the thread was interrupted
+	 * @throws TimeoutException if the search didn't finish before the deadline
+	 * @throws IllegalArgumentException if the replacement refers to a group that doesn't exist
+	 */
+	public Replacement replaceAll(FindIndex index, final String replacement, int start, int end, long deadline) throws TimeoutException, IllegalArgumentException {
+		final String text = index.getText();
+		
+		if (pattern == null) {
+			final StringBuilder output = new StringBuilder();
+			// {start of the first match, end of the last match, number of matches}
+			final int[] state = {-1, -1, 0};
+			
+			index.findAll(token, caseSensitive, wholeWord, start, end, (matchStart, matchEnd) -> {
+				if (state[0] == -1) {
+					state[0] = matchStart;
+				} else {
+					output.append(text, state[1], matchStart);
+				}
+				output.append(replacement);
+				state[1] = matchEnd;
+				state[2] ++;
+			});
+			
+			if (state[0] == -1 || Thread.currentThread().isInterrupted()) {
+				return null;
+			}
+			return new Replacement(state[0], text.substring(state[0], state[1]), output.toString(), state[2]);
+		}
+		
+		try {
+			Matcher matcher = matcher(text, start, end, deadline);
+			// appendReplacement() starts copying from the start of the text, so the output
+			// has everything before the first match in it as well
+			StringBuffer output = new StringBuffer();
+			int first = -1, last = -1, count = 0;
+			
+			while (matcher.find()) {
+				if (first == -1) {
+					first = matcher.start();
+				}
+				appendReplacement(matcher, output, replacement);
+				last = matcher.end();
+				count ++;
+			}
+			
+			if (first == -1) {
+				return null;
+			}
+			return new Replacement(first, text.substring(first, last), output.substring(first), count);
+		} catch (DeadlineException e) {
+			e.rethrowIfTimedOut();
+			return null;
+		} catch (StackOverflowError e) {
+			throw tooComplex();
+		}
+	}
+	
+	/**
+	 * Patterns with a lot of nested repetition (e.g. "(a|b)*" on a long line) can run out of
+	 * stack before they run out of time. It's the same problem as far as the user is concerned.
+	 */
+	private static TimeoutException tooComplex() {
+		return new TimeoutException("Regular expression is too complex");
+	}
+	
+	private static void appendReplacement(Matcher matcher, StringBuffer output, String replacement) throws IllegalArgumentException {
+		try {
+			matcher.appendReplacement(output, replacement);
+		} catch (IndexOutOfBoundsException e) {
+			// Thrown for groups that don't exist, which is just as much the user's fault as the
+			// IllegalArgumentException thrown for everything else
+			throw new IllegalArgumentException(e.getMessage());
+		}
+	}
+	
+	private Matcher matcher(String text, int start, int end, long deadline) {
+		Matcher matcher = pattern.matcher(new DeadlineCharSequence(text, deadline));
+		matcher.region(start, Math.min(end, text.length()));
+		// Let lookarounds and anchors see the text outside of the range
+		matcher.useTransparentBounds(true);
+		matcher.useAnchoringBounds(false);
+		return matcher;
+	}
+	
+	/**
+	 * Thrown out of the matcher when the search should stop.
+	 */
+	private static class DeadlineException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		
+		private final boolean timedOut;
+		
+		private DeadlineException(boolean timedOut) {
+			this.timedOut = timedOut;
+		}
+		
+		private void rethrowIfTimedOut() throws TimeoutException {
+			if (timedOut) {
+				throw new TimeoutException();
+			}
+		}
+	}
+	
+	/**
+	 * The text for the matcher to read. Every so often, checks whether or not the search should
+	 * stop. This is the only way to stop a Matcher that is stuck backtracking.
+	 */
+	private static class DeadlineCharSequence implements CharSequence {
+		private final String text;
+		private final long deadline;
+		private int reads;
+		
+		private DeadlineCharSequence(String text, long deadline) {
+			this.text = text;
+			this.deadline = deadline;
+		}
+		
+		@Override
+		public char charAt(int index) {
+			if (++ reads >= DEADLINE_CHECK_INTERVAL) {
+				reads = 0;
+				if (Thread.currentThread().isInterrupted()) {
+					throw new DeadlineException(false);
+				}
+				if (System.currentTimeMillis() > deadline) {
+					throw new DeadlineException(true);
+				}
+			}
+			return text.charAt(index);
+		}
+		
+		@Override
+		public int length() {
+			return text.length();
+		}
+		
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return text.subSequence(start, end);
+		}
+		
+		@Override
+		public String toString() {
+			return text;
+		}
+	}
+}
@@ -27,14 +27,25 @@ import android.widget.RelativeLayout;
 import android.widget.ScrollView;
 
 import com.calsignlabs.apde.APDE;
+import com.calsignlabs.apde.FileChange;
 import com.calsignlabs.apde.KeyBinding;
 import com.calsignlabs.apde.R;
+import com.calsignlabs.apde.Rope;
 import com.calsignlabs.apde.SketchFile;
 import com.calsignlabs.apde.support.ResizeAnimation;
 import com.calsignlabs.apde.task.Task;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * Makes the Find/Replace dialog appear.
@@ -49,6 +60,7 @@ public class FindReplace implements Tool {
 	protected MutableBoolean highlightAll;
 	protected MutableBoolean wrapAround;
 	protected MutableBoolean caseSensitive;
+	protected MutableBoolean wholeWord;
 	protected MutableBoolean regExp;
 	
 	protected ScrollView options;
@@ -68,6 +80,26 @@ public class FindReplace implements Tool {
 	
 	protected TextWatcher codeWatcher;
 	
+	/**
+	 * How long a search is allowed to take, in milliseconds. Mostly matters for regular
+	 * expressions, which can take forever on the wrong text.
+	 */
+	protected static final long FIND_TIME_BUDGET = 1000;
+	protected static final long REPLACE_ALL_TIME_BUDGET = 5000;
+	
+	// Searches run here so that they don't hold up the UI. Only the latest search matters, the
+	// others are cancelled.
+	private static final ExecutorService FIND_EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "Find");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private Future<?> findFuture;
+	// Results from older searches are ignored
+	private int findGeneration;
+	
+	private final Map<SketchFile, FindIndex> findIndices = new IdentityHashMap<>();
+	
 	protected LinearLayout contentView;
 	protected LinearLayout findReplaceToolbar;
 	
@@ -185,6 +217,7 @@ public class FindReplace implements Tool {
 		highlightAll = new MutableBoolean();
 		wrapAround = new MutableBoolean();
 		caseSensitive = new MutableBoolean();
+		wholeWord = new MutableBoolean();
 		regExp = new MutableBoolean();
 		
 		findPaint = new Paint();
@@ -301,11 +334,9 @@ public class FindReplace implements Tool {
 				SwitchCompat highlightAllCheckBox = (SwitchCompat) options.findViewById(R.id.find_replace_options_highlight_all);
 				SwitchCompat wrapAroundCheckBox = (SwitchCompat) options.findViewById(R.id.find_replace_options_wrap_around);
 				SwitchCompat caseSensitiveCheckBox = (SwitchCompat) options.findViewById(R.id.find_replace_options_case_sensitive);
+				SwitchCompat wholeWordCheckBox = (SwitchCompat) options.findViewById(R.id.find_replace_options_whole_word);
 				SwitchCompat regExpCheckBox = (SwitchCompat) options.findViewById(R.id.find_replace_options_reg_exp);
 				
-				//TODO Regular Expressions aren't currently implemented
-				options.findViewById(R.id.find_replace_options_reg_exp_container).setVisibility(View.GONE);
-				
 				context.assignLongPressDescription(findButton, R.string.tool_find_replace_find);
 				context.assignLongPressDescription(replaceButton, R.string.tool_find_replace_replace_and_find);
 				context.assignLongPressDescription(replaceAllButton, R.string.tool_find_replace_replace_all);
@@ -330,13 +361,15 @@ public class FindReplace implements Tool {
 					}
 				});
 				assignBooleanSwitch(context, "wrap_around", true, wrapAroundCheckBox, wrapAround, null);
-				assignBooleanSwitch(context, "case_sensitive", false, caseSensitiveCheckBox, caseSensitive, new CompoundButton.OnCheckedChangeListener() {
+				CompoundButton.OnCheckedChangeListener findAgain = new CompoundButton.OnCheckedChangeListener() {
 					@Override
 					public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
 						find(findTextField.getText().toString(), false, 0);
 					}
-				});
-				assignBooleanSwitch(context, "reg_exp", false, regExpCheckBox, regExp, null);
+				};
+				assignBooleanSwitch(context, "case_sensitive", false, caseSensitiveCheckBox, caseSensitive, findAgain);
+				assignBooleanSwitch(context, "whole_word", false, wholeWordCheckBox, wholeWord, findAgain);
+				assignBooleanSwitch(context, "reg_exp", false, regExpCheckBox, regExp, findAgain);
 				
 				closeButton.setOnClickListener(new ImageButton.OnClickListener() {
 					@Override
@@ -441,9 +474,8 @@ public class FindReplace implements Tool {
 					@Override
 					public void onClick(View v) {
 						//Replace and find
-						String replaceWith = replaceTextField.getText().toString();
-						replace(lastFindMatch, replaceWith);
-						find(findTextField.getText().toString(), false, replaceWith.length());
+						int replacedLength = replace(lastFindMatch, replaceTextField.getText().toString());
+						find(findTextField.getText().toString(), false, replacedLength);
 					}
 				});
 				
@@ -587,57 +619,108 @@ public class FindReplace implements Tool {
 	}
 	
 	public void find(final String token, final boolean advance, final int offset) {
-//		context.getTaskManager().launchTask("findTask", false, context.getEditor(), true, new Task() {
-//			@Override
-//			public void run() {
-				if (token.length() == 0) {
-					//Bail out
-					findMatches.clear();
-					clearHighlights();
-
+		// Whatever we were searching for before is out of date now
+		if (findFuture != null) {
+			findFuture.cancel(true);
+			findFuture = null;
+		}
+		final int generation = ++ findGeneration;
+		
+		if (token.length() == 0) {
+			//Bail out
+			findMatches.clear();
+			clearHighlights();
+			
+			return;
+		}
+		
+		final FindQuery query = createQuery(token, advance);
+		if (query == null) {
+			findMatches.clear();
+			clearHighlights();
+			findTextField.setTextColor(context.getResources().getColor(R.color.find_replace_find_not_found));
+			
+			return;
+		}
+		
+		// Grab everything that we need from the UI now. The tab texts are immutable, so the
+		// search can read them on another thread.
+		final Scope searchScope = scope.get();
+		final int currentTab = context.getEditor().getSelectedCodeIndex();
+		final SketchFile[] tabs = context.getEditor().getTabMetas();
+		final Rope[] docs = getDocuments(tabs);
+		final int selectionStart = context.getCodeArea().getSelectionStart();
+		final int selectionEnd = context.getCodeArea().getSelectionEnd();
+		
+		pruneFindIndices(tabs);
+		
+		findMatches = new ArrayList<>();
+		if (highlightAll.get()) {
+			context.getCodeArea().clearHighlights();
+			context.getCodeArea().invalidate();
+		}
+		
+		findFuture = FIND_EXECUTOR.submit(() -> {
+			long deadline = System.currentTimeMillis() + FIND_TIME_BUDGET;
+			
+			// Search the current tab first so that its highlights show up as soon as possible
+			List<Integer> order = new ArrayList<>();
+			order.add(currentTab);
+			if (searchScope == Scope.ALL_TABS) {
+				for (int i = 0; i < tabs.length; i ++) {
+					if (i != currentTab) {
+						order.add(i);
+					}
+				}
+			}
+			
+			for (int tabNum : order) {
+				FindIndex index = getFindIndex(tabs[tabNum], docs[tabNum]);
+				int textOffset = searchScope == Scope.SELECTION ? selectionStart : 0;
+				int end = searchScope == Scope.SELECTION ? selectionEnd : index.getSource().length();
+				
+				final ArrayList<FindMatch> tabMatches = new ArrayList<>();
+				try {
+					query.findAll(index, textOffset, end, deadline, (start, matchEnd) ->
+							tabMatches.add(new FindMatch(tabNum, textOffset, start - textOffset, matchEnd - start)));
+				} catch (TimeoutException e) {
+					context.getEditor().runOnUiThread(() -> {
+						if (generation != findGeneration) {
+							return;
+						}
+						findFuture = null;
+						findTextField.setTextColor(context.getResources().getColor(R.color.find_replace_find_not_found));
+						context.getEditor().message(context.getResources().getString(R.string.tool_find_replace_timed_out));
+					});
 					return;
 				}
 				
-				switch (scope.get()) {
-				case SELECTION:
-					int selectionStart = context.getCodeArea().getSelectionStart();
-					int selectionEnd = context.getCodeArea().getSelectionEnd();
-					
-					String selectionText = context.getCodeArea().getText().toString().substring(selectionStart, selectionEnd);
-					
-					findMatches = findMatches((caseSensitive.get() ? token : token.toLowerCase()), (caseSensitive.get() ? selectionText : selectionText.toLowerCase()),
-							context.getEditor().getSelectedCodeIndex(), selectionStart);
-					
-					break;
-				case CURRENT_TAB:
-					String currentTabText = context.getCodeArea().getText().toString();
-					
-					findMatches = findMatches((caseSensitive.get() ? token : token.toLowerCase()), (caseSensitive.get() ? currentTabText : currentTabText.toLowerCase()),
-							context.getEditor().getSelectedCodeIndex(), 0);
-					
-					break;
-				case ALL_TABS:
-					findMatches = new ArrayList<FindMatch>();
-					
-					for (int i = 0; i < context.getEditor().getCodeCount(); i ++) {
-						String tabText = context.getEditor().getTabMetas()[i].getText();
-						
-						findMatches.addAll(findMatches((caseSensitive.get() ? token : token.toLowerCase()), (caseSensitive.get() ? tabText : tabText.toLowerCase()), i, 0));
-					}
-					
-					break;
+				if (Thread.currentThread().isInterrupted()) {
+					return;
 				}
 				
-				context.getEditor().runOnUiThread(new Runnable() {
-					@Override
-					public void run() {
-						if (findMatches.size() == 0) {
-							findTextField.setTextColor(context.getResources().getColor(R.color.find_replace_find_not_found));
-						} else {
-							findTextField.setTextColor(context.getResources().getColor(android.R.color.primary_text_dark));
-						}
+				context.getEditor().runOnUiThread(() -> {
+					if (generation != findGeneration) {
+						return;
+					}
+					addFindMatches(tabMatches);
+					if (tabNum == currentTab && highlightAll.get()) {
+						addHighlights();
 					}
 				});
+			}
+			
+			context.getEditor().runOnUiThread(() -> {
+				if (generation != findGeneration) {
+					return;
+				}
+				findFuture = null;
+				
+				if (findMatches.size() == 0) {
+					findTextField.setTextColor(context.getResources().getColor(R.color.find_replace_find_not_found));
+				} else {
+					findTextField.setTextColor(context.getResources().getColor(android.R.color.primary_text_dark));
+				}
 				
 				if (highlightAll.get()) {
 					addHighlights();
@@ -648,13 +731,108 @@ public class FindReplace implements Tool {
 				} else {
 					selectCursorFindMatch(offset);
 				}
-//			}
-//			
-//			@Override
-//			public CharSequence getTitle() {
-//				return context.getResources().getString(R.string.find);
-//			}
-//		});
+			});
+		});
+	}
+	
+	/**
+	 * Build the query for the current options, or tell the user why we can't.
+	 *
+	 * @param token the token to look for
+	 * @param notify whether or not to tell the user if the token is an invalid regular
+	 *               expression, which we don't want to do while they are still typing it
+	 * @return the query, or null if the token is an invalid regular expression
+	 */
+	protected FindQuery createQuery(String token, boolean notify) {
+		try {
+			return new FindQuery(token, caseSensitive.get(), wholeWord.get(), regExp.get());
+		} catch (PatternSyntaxException e) {
+			if (notify) {
+				context.getEditor().message(context.getResources().getString(R.string.tool_find_replace_invalid_reg_exp));
+			}
+			return null;
+		}
+	}
+	
+	/**
+	 * Add the matches from one tab, keeping the list sorted by tab and then by position.
+	 */
+	protected void addFindMatches(List<FindMatch> tabMatches) {
+		if (tabMatches.isEmpty()) {
+			return;
+		}
+		int tabNum = tabMatches.get(0).tabNum;
+		int insertAt = 0;
+		while (insertAt < findMatches.size() && findMatches.get(insertAt).tabNum < tabNum) {
+			insertAt ++;
+		}
+		findMatches.addAll(insertAt, tabMatches);
+	}
+	
+	/**
+	 * Get the current text of each tab. Call this on the UI thread, the tabs' texts are only safe
+	 * to read there.
+	 */
+	protected static Rope[] getDocuments(SketchFile[] tabs) {
+		Rope[] docs = new Rope[tabs.length];
+		for (int i = 0; i < tabs.length; i ++) {
+			docs[i] = tabs[i].getDocument();
+		}
+		return docs;
+	}
+	
+	/**
+	 * Get the search index for the current text of a tab. Only call this on the UI thread.
+	 */
+	protected FindIndex getFindIndex(SketchFile sketchFile) {
+		return getFindIndex(sketchFile, sketchFile.getDocument());
+	}
+	
+	/**
+	 * Get the search index for the given text of a tab, building a new one if the text has
+	 * changed since the last search. Safe to call from any thread.
+	 *
+	 * @param sketchFile the tab
+	 * @param text the tab's text, as read on the UI thread
+	 */
+	protected FindIndex getFindIndex(SketchFile sketchFile, Rope text) {
+		synchronized (findIndices) {
+			FindIndex index = findIndices.get(sketchFile);
+			if (index != null && index.getSource() == text) {
+				return index;
+			}
+		}
+		
+		// Build outside of the lock, it can take a while
+		FindIndex index = new FindIndex(text);
+		
+		synchronized (findIndices) {
+			findIndices.put(sketchFile, index);
+		}
+		
+		return index;
+	}
+	
+	/**
+	 * Forget about the indices of tabs that have been closed.
+	 */
+	protected void pruneFindIndices(SketchFile[] tabs) {
+		synchronized (findIndices) {
+			Iterator<SketchFile> iterator = findIndices.keySet().iterator();
+			while (iterator.hasNext()) {
+				SketchFile sketchFile = iterator.next();
+				boolean open = false;
+				for (SketchFile tab : tabs) {
+					if (tab == sketchFile) {
+						open = true;
+						break;
+					}
+				}
+				if (!open) {
+					iterator.remove();
+				}
+			}
+		}
 	}
 	
 	public void findOne(String token, boolean advance) {
@@ -663,6 +841,11 @@ public class FindReplace implements Tool {
 			return;
 		}
 		
+		FindQuery query = createQuery(token, true);
+		if (query == null) {
+			return;
+		}
+		
 		FindMatch findMatch = null;
 		
 		boolean forward = (direction.get().equals(Direction.FORWARD));
@@ -672,36 +855,24 @@ public class FindReplace implements Tool {
 		
 		int currentPos = forward ? (advance ? selectionEnd : selectionStart) : (advance ? selectionStart : selectionEnd);
 		
-		String caseToken = (caseSensitive.get() ? token : token.toLowerCase());
-		
 		int currentTab = context.getEditor().getSelectedCodeIndex();
 		int tabCount = context.getEditor().getCodeCount();
+		SketchFile[] tabs = context.getEditor().getTabMetas();
 		
 		switch (scope.get()) {
 		case SELECTION:
-			String selectionText = context.getCodeArea().getText().toString().substring(selectionStart, selectionEnd);
-			
-			findMatch = findFirstMatch(caseToken, (caseSensitive.get() ? selectionText : selectionText.toLowerCase()),
-					currentTab, selectionStart, currentPos - selectionStart);
+			findMatch = findFirstMatch(query, tabs[currentTab], currentTab, selectionStart, currentPos, selectionEnd);
 			
 			break;
 		case CURRENT_TAB:
-			String currentTabText = context.getCodeArea().getText().toString();
-			
-			findMatch = findFirstMatch(caseToken, (caseSensitive.get() ? currentTabText : currentTabText.toLowerCase()),
-					currentTab, 0, currentPos);
+			findMatch = findFirstMatch(query, tabs[currentTab], currentTab, 0, currentPos, Integer.MAX_VALUE);
 			break;
 		case ALL_TABS:
-			String currentTabTextAll = context.getCodeArea().getText().toString();
-			
-			findMatch = findFirstMatch(caseToken, (caseSensitive.get() ? currentTabTextAll : currentTabTextAll.toLowerCase()),
-					currentTab, 0, currentPos);
+			findMatch = findFirstMatch(query, tabs[currentTab], currentTab, 0, currentPos, Integer.MAX_VALUE);
 			
 			if (findMatch == null) {
 				for (int i = currentTab + (forward ? 1 : -1); (forward ? i < tabCount : i >= 0); i += (forward ? 1 : -1)) {
-					String tabText = context.getEditor().getTabMetas()[i].getText();
-					
-					findMatch = findFirstMatch(caseToken, (caseSensitive.get() ? tabText : tabText.toLowerCase()), i, 0, 0);
+					findMatch = findFirstMatch(query, tabs[i], i, 0, 0, Integer.MAX_VALUE);
 					
 					if (findMatch != null) {
 						break;
@@ -711,9 +882,7 @@ public class FindReplace implements Tool {
 			
 			if (findMatch == null) {
 				for (int i = (forward ? 0 : tabCount - 1); (forward ? i < currentTab : i > currentTab); i += (forward ? 1 : -1)) {
-					String tabText = context.getEditor().getTabMetas()[i].getText();
-					
-					findMatch = findFirstMatch(caseToken, (caseSensitive.get() ? tabText : tabText.toLowerCase()), i, 0, 0);
+					findMatch = findFirstMatch(query, tabs[i], i, 0, 0, Integer.MAX_VALUE);
 					
 					if (findMatch != null) {
 						break;
@@ -728,6 +897,20 @@ public class FindReplace implements Tool {
 		selectFindMatch(findMatch);
 	}
 	
+	protected FindMatch findFirstMatch(FindQuery query, SketchFile sketchFile, int tabNum, int textOffset, int from, int end) {
+		FindIndex index = getFindIndex(sketchFile);
+		
+		int[] match;
+		try {
+			match = query.findFirst(index, from, Math.min(end, index.getSource().length()), System.currentTimeMillis() + FIND_TIME_BUDGET);
+		} catch (TimeoutException e) {
+			context.getEditor().message(context.getResources().getString(R.string.tool_find_replace_timed_out));
+			return null;
+		}
+		
+		return match == null ? null : new FindMatch(tabNum, textOffset, match[0] - textOffset, match[1] - match[0]);
+	}
+	
 	public void addHighlights() {
 		context.getCodeArea().clearHighlights();
 		
@@ -893,172 +1076,118 @@ public class FindReplace implements Tool {
 		return lastFindMatch != null ? lastFindMatch.textOffset + lastFindMatch.position + lastFindMatch.tokenLength : 0;
 	}
 	
-	public ArrayList<FindMatch> findMatches(String token, String text, int tabNum, int textOffset) {
-		ArrayList<FindMatch> matches = new ArrayList<FindMatch>();
-		
-		int pos = 0;
-		
-		while (true) {
-			pos = text.indexOf(token, pos);
-			
-			if (pos == -1) {
-				break;
-			}
-			
-			matches.add(new FindMatch(tabNum, textOffset, pos, token.length()));
-			
-			pos += token.length();
+	/**
+	 * Replace a match in the current tab.
+	 *
+	 * @return the length of the text that the match was replaced with
+	 */
+	public int replace(FindMatch findMatch, String replace) {
+		if (findMatches.size() == 0 || findMatch == null) {
+			//Bail out
+			return 0;
 		}
 		
-		return matches;
-	}
-	
-	public FindMatch findFirstMatch(String token, String text, int tabNum, int textOffset, int startAt) {
-		int pos = text.indexOf(token, startAt);
+		FindQuery query = createQuery(findTextField.getText().toString(), true);
+		if (query == null) {
+			return 0;
+		}
 		
-		if (pos == -1) {
-			return null;
+		// Fill in references to groups, e.g. "$1"
+		String replacement;
+		try {
+			FindIndex index = getFindIndex(context.getEditor().getTabMetas()[findMatch.tabNum]);
+			replacement = query.expandReplacement(index.getText(), findMatch.position, findMatch.position + findMatch.tokenLength, replace);
+		} catch (IllegalArgumentException e) {
+			context.getEditor().message(context.getResources().getString(R.string.tool_find_replace_invalid_reg_exp));
+			return 0;
 		}
 		
-		return new FindMatch(tabNum, textOffset, pos, token.length());
+		context.getCodeArea().getText().replace(findMatch.position, findMatch.position + findMatch.tokenLength, replacement);
+		
+		return replacement.length();
 	}
 	
-	public void replace(FindMatch findMatch, String replace) {
-		if (findMatches.size() == 0) {
+	public void replaceAll(final String find, final String replace) {
+		if (find.length() == 0) {
 			//Bail out
 			return;
 		}
 		
-		context.getCodeArea().getText().replace(findMatch.position, findMatch.position + findMatch.tokenLength, replace);
-	}
-	
-	public void replaceAll(final String find, final String replace) {
+		final FindQuery query = createQuery(find, true);
+		if (query == null) {
+			return;
+		}
+		
+		// The tab texts are immutable, so the task can read them on its own thread
+		final Scope replaceScope = scope.get();
+		final int currentTab = context.getEditor().getSelectedCodeIndex();
+		final SketchFile[] tabs = context.getEditor().getTabMetas();
+		final Rope[] docs = getDocuments(tabs);
+		
+		pruneFindIndices(tabs);
+		
 		context.getTaskManager().launchTask("replaceAllTask", false, context.getEditor(), true, new Task() {
 			@Override
 			public void run() {
-				int count = 0;
-				
-				final String outputText;
-				Editable[] tabTexts;
+				long deadline = System.currentTimeMillis() + REPLACE_ALL_TIME_BUDGET;
 				
-				int pos = 0;
-				int lengthDiff = replace.length();
+				// Each tab is replaced in one pass and applied as one edit, so that it only gets
+				// one undo entry no matter how many matches there are
+				final FindQuery.Replacement[] replacements = new FindQuery.Replacement[tabs.length];
+				final Rope[] sources = new Rope[tabs.length];
 				
-				switch (scope.get()) {
-				case SELECTION:
-					//TODO Selection scope isn't currently implemented
-//					int selectionStart = context.getCodeArea().getSelectionStart();
-//					int selectionEnd = context.getCodeArea().getSelectionEnd();
-//					
-//					Editable selectionText = Editable.Factory.getInstance().newEditable(context.getCodeArea().getText().toString().substring(selectionStart, selectionEnd));
-//					
-//					while (true) {
-//						FindMatch selectionFindMatch = findFirstMatch(find, selectionText.toString(), context.getEditor().getSelectedCodeIndex(), selectionStart);
-//						
-//						if (selectionFindMatch == null) {
-//							break;
-//						}
-//						
-//						context.getCodeArea().getText().replace(selectionFindMatch.position, selectionFindMatch.position + selectionFindMatch.tokenLength, replace);
-//						count ++;
-//					}
-
-					outputText = context.getCodeArea().getText().toString();
-					tabTexts = null;
-					
-					break;
-				case CURRENT_TAB:
-					Editable currentTabText = Editable.Factory.getInstance().newEditable(context.getCodeArea().getText());
-					FindMatch currentTabFindMatch;
-					
-					while (true) {
-						currentTabFindMatch = findFirstMatch(find, currentTabText.toString(), context.getEditor().getSelectedCodeIndex(), 0, pos);
-						
-						if (currentTabFindMatch == null) {
-							break;
-						}
-						
-						currentTabText.replace(currentTabFindMatch.position, currentTabFindMatch.position + currentTabFindMatch.tokenLength, replace);
-						pos = currentTabFindMatch.position + lengthDiff;
-						count ++;
-					}
-					
-					outputText = currentTabText.toString();
-					tabTexts = null;
-					
-					break;
-				case ALL_TABS:
-					int tabNum = 0;
-					
-					tabTexts = new Editable[context.getEditor().getCodeCount()];
-					
-					for (int i = 0; i < tabTexts.length; i ++) {
-						if (i == context.getEditor().getSelectedCodeIndex()) {
-							tabTexts[i] = Editable.Factory.getInstance().newEditable(context.getCodeArea().getText());
-						} else {
-							tabTexts[i] = Editable.Factory.getInstance().newEditable(context.getEditor().getTabMetas()[i].getText());
-						}
-					}
-					
-					FindMatch tabFindMatch;
-					
-					while (true) {
-						tabFindMatch = findFirstMatch(find, tabTexts[tabNum].toString(), tabNum, 0, pos);
-						
-						if (tabFindMatch == null) {
-							if (tabNum >= context.getEditor().getCodeCount() - 1) {
-								break;
-							} else {
-								tabNum ++;
-								pos = 0;
-								continue;
-							}
+				try {
+					for (int i = 0; i < tabs.length; i ++) {
+						//TODO Selection scope isn't currently implemented
+						if (!(replaceScope == Scope.ALL_TABS || (replaceScope == Scope.CURRENT_TAB && i == currentTab))) {
+							continue;
 						}
 						
-						tabTexts[tabNum].replace(tabFindMatch.position, tabFindMatch.position + tabFindMatch.tokenLength, replace);
-						pos = tabFindMatch.position + lengthDiff;
-						count ++;
+						FindIndex index = getFindIndex(tabs[i], docs[i]);
+						sources[i] = index.getSource();
+						replacements[i] = query.replaceAll(index, replace, 0, sources[i].length(), deadline);
 					}
-					
-					//Ignored
-					outputText = context.getCodeArea().getText().toString();
-					
-					break;
-				default:
-					outputText = context.getCodeArea().getText().toString();
-					tabTexts = null;
+				} catch (TimeoutException e) {
+					postStatus(R.string.tool_find_replace_timed_out);
+					return;
+				} catch (IllegalArgumentException e) {
+					postStatus(R.string.tool_find_replace_invalid_reg_exp);
+					return;
 				}
 				
-				final int finalCount = count;
-				final Editable[] finalOutputTexts = tabTexts;
-				
 				context.getEditor().runOnUiThread(new Runnable() {
 					@Override
 					public void run() {
-						if (scope.get().equals(Scope.ALL_TABS)) {
-							SketchFile[] tabMetas = context.getEditor().getTabMetas();
+						boolean undoRedo = PreferenceManager.getDefaultSharedPreferences(context).getBoolean("pref_key_undo_redo", true);
+						SketchFile selected = context.getEditor().getTabMetas()[context.getEditor().getSelectedCodeIndex()];
+						int count = 0;
+						
+						for (int i = 0; i < tabs.length; i ++) {
+							FindQuery.Replacement replacement = replacements[i];
+							SketchFile sketchFile = tabs[i];
 							
-							for (int i = 0; i < finalOutputTexts.length; i ++) {
-								if (i == context.getEditor().getSelectedCodeIndex()) {
-									context.getCodeArea().setUpdateText(finalOutputTexts[i].toString());
-								} else {
-									SketchFile sketchFile = tabMetas[i];
-									
-									if (PreferenceManager.getDefaultSharedPreferences(context).getBoolean("pref_key_undo_redo", true)) {
-										sketchFile.update(context.getEditor(), getFileChange(sketchFile, finalOutputTexts[i]));
-									}
-									
-									// With the new ViewPager as part of Material design, the two tabs adjacent
-									// to the current tab are kept loaded, so we need to force them to update
-									sketchFile.forceReloadTextIfInitialized();
-								}
+							// Leave tabs that have been edited since we started alone, the
+							// replacement would be in the wrong place
+							if (replacement == null || sketchFile.getDocument() != sources[i]) {
+								continue;
 							}
-						} else {
-							context.getCodeArea().setUpdateText(outputText);
+							
+							if (sketchFile == selected) {
+								// The code area turns this into an undo entry like any other edit
+								context.getCodeArea().getText().replace(replacement.changeIndex, replacement.changeIndex + replacement.beforeText.length(), replacement.afterText);
+							} else {
+								sketchFile.update(context.getEditor(), getFileChange(sketchFile, replacement), undoRedo);
+								
+								// With the new ViewPager as part of Material design, the two tabs adjacent
+								// to the current tab are kept loaded, so we need to force them to update
+								sketchFile.forceReloadTextIfInitialized();
+							}
+							
+							count += replacement.count;
 						}
 						
-						postStatus(String.format(Locale.US, context.getResources().getQuantityString(R.plurals.find_replace_replace_all_complete, finalCount), finalCount));
-
+						postStatus(String.format(Locale.US, context.getResources().getQuantityString(R.plurals.find_replace_replace_all_complete, count), count));
+						
 						clearHighlights();
 					}
 				});
@@ -1071,10 +1200,12 @@ public class FindReplace implements Tool {
 		});
 	}
 	
-	protected SketchFile.FileChange getFileChange(SketchFile meta, CharSequence newText) {
-		SketchFile.FileChange fileChange = new SketchFile.FileChange();
+	protected FileChange getFileChange(SketchFile meta, FindQuery.Replacement replacement) {
+		FileChange fileChange = new FileChange();
 		
-		SketchFile.getTextChange(fileChange, meta.getText(), newText.toString());
+		fileChange.changeIndex = replacement.changeIndex;
+		fileChange.beforeText = replacement.beforeText;
+		fileChange.afterText = replacement.afterText;
 		
 		fileChange.beforeSelectionStart = meta.getSelectionStart();
 		fileChange.beforeSelectionEnd = meta.getSelectionEnd();
@@ -0,0 +1,165 @@
+package com.calsignlabs.apde;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the console's line store against a plain list of lines.
+ */
+public class ConsoleLineStoreTest {
+	private static final String ALPHABET = "ab \n\n\t\r\u00e9\u4e2d";
+	
+	/**
+	 * What the store should hold, kept the simple way.
+	 */
+	private static class Model {
+		private List<String> lines = new ArrayList<>();
+		private List<Integer> severities = new ArrayList<>();
+		private long firstLineNumber;
+		private boolean open;
+		
+		private void append(String text, int severity) {
+			String[] parts = text.split("\n", -1);
+			for (int i = 0; i < parts.length; i ++) {
+				String part = parts[i].replace("\r", "").replace("\t", "    ");
+				boolean last = i == parts.length - 1;
+				
+				if (i == 0 && open) {
+					int index = lines.size() - 1;
+					lines.set(index, lines.get(index) + part);
+					severities.set(index, Math.max(severities.get(index), severity));
+				} else if (!last || part.length() > 0) {
+					lines.add(part);
+					severities.add(severity);
+					open = last;
+				}
+				
+				if (!last) {
+					open = false;
+				}
+			}
+		}
+		
+		private void trimTo(int maxLines) {
+			while (lines.size() > maxLines) {
+				lines.remove(0);
+				severities.remove(0);
+				firstLineNumber ++;
+			}
+			if (lines.isEmpty()) {
+				open = false;
+			}
+		}
+		
+		private void clear() {
+			firstLineNumber += lines.size();
+			lines.clear();
+			severities.clear();
+			open = false;
+		}
+	}
+	
+	@Test
+	public void matchesList() {
+		Random random = new Random(1);
+		
+		ConsoleLineStore store = new ConsoleLineStore();
+		Model model = new Model();
+		
+		for (int step = 0; step < 20000; step ++) {
+			int op = random.nextInt(20);
+			if (op < 15) {
+				String text = randomText(random, random.nextInt(30));
+				int severity = random.nextInt(3);
+				store.append(text, severity);
+				model.append(text, severity);
+			} else if (op < 17) {
+				store.endLine();
+				model.open = false;
+			} else if (op < 19) {
+				// Sometimes more than a chunk's worth at once
+				int maxLines = random.nextInt(1000);
+				store.trimTo(maxLines);
+				model.trimTo(maxLines);
+			} else if (random.nextInt(20) == 0) {
+				store.clear();
+				model.clear();
+			}
+			
+			assertEquals(model.lines.size(), store.size());
+			assertEquals(model.firstLineNumber, store.getFirstLineNumber());
+			assertEquals(model.open, store.isLastLineOpen());
+			if (!model.lines.isEmpty()) {
+				int i = random.nextInt(model.lines.size());
+				assertEquals(model.lines.get(i), store.getLine(i));
+				assertEquals((int) model.severities.get(i), store.getSeverity(i));
+			}
+		}
+		
+		checkLines(model, store);
+		
+		int maxLength = 0;
+		for (String line : model.lines) {
+			maxLength = Math.max(maxLength, line.length());
+		}
+		assertTrue(store.getMaxLineLength() >= maxLength);
+	}
+	
+	@Test
+	public void writeAndRead() throws IOException {
+		Random random = new Random(2);
+		
+		File file = File.createTempFile("console", ".txt");
+		try {
+			for (int trial = 0; trial < 50; trial ++) {
+				ConsoleLineStore store = new ConsoleLineStore();
+				Model model = new Model();
+				for (int i = random.nextInt(2000); i > 0; i --) {
+					String text = randomText(random, random.nextInt(30));
+					int severity = random.nextInt(3);
+					store.append(text, severity);
+					model.append(text, severity);
+				}
+				int maxLines = random.nextInt(1500);
+				store.trimTo(maxLines);
+				model.trimTo(maxLines);
+				
+				store.writeTo(file);
+				
+				ConsoleLineStore read = new ConsoleLineStore();
+				read.append("left over", ConsoleLineStore.SEVERITY_ERR);
+				read.readFrom(file);
+				
+				assertFalse(read.isLastLineOpen());
+				checkLines(model, read);
+			}
+		} finally {
+			file.delete();
+		}
+	}
+	
+	private static void checkLines(Model model, ConsoleLineStore store) {
+		assertEquals(model.lines.size(), store.size());
+		for (int i = 0; i < model.lines.size(); i ++) {
+			assertEquals(model.lines.get(i), store.getLine(i));
+			assertEquals((int) model.severities.get(i), store.getSeverity(i));
+		}
+	}
+	
+	private static String randomText(Random random, int length) {
+		StringBuilder builder = new StringBuilder(length);
+		for (int i = 0; i < length; i ++) {
+			builder.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,132 @@
+package com.calsignlabs.apde;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks ropes against plain strings with random edits, and checks that the tree stays balanced.
+ */
+public class RopeTest {
+	private static final String ALPHABET = "abcdefgh ijk\n\t{}();=+\u00e9\u03bb";
+	
+	@Test
+	public void randomEditsMatchString() {
+		Random random = new Random(1);
+		
+		for (int trial = 0; trial < 20; trial ++) {
+			String expected = randomText(random, random.nextInt(20000));
+			Rope rope = Rope.of(expected);
+			
+			for (int step = 0; step < 500; step ++) {
+				int start = random.nextInt(expected.length() + 1);
+				int end = start + random.nextInt(Math.min(expected.length() - start, 2000) + 1);
+				
+				switch (random.nextInt(4)) {
+					case 0: {
+						// Mostly typing, with the odd big paste
+						String text = randomText(random, random.nextInt(10) == 0 ? random.nextInt(5000) : random.nextInt(5));
+						rope = rope.replace(start, end, text);
+						expected = expected.substring(0, start) + text + expected.substring(end);
+						break;
+					}
+					case 1: {
+						String text = randomText(random, random.nextInt(3));
+						rope = rope.insert(start, text);
+						expected = expected.substring(0, start) + text + expected.substring(start);
+						break;
+					}
+					case 2:
+						rope = rope.delete(start, end);
+						expected = expected.substring(0, start) + expected.substring(end);
+						break;
+					case 3:
+						assertEquals(expected.substring(start, end), rope.subRope(start, end).toString());
+						assertEquals(expected.substring(start, end), rope.substring(start, end));
+						assertTrue(rope.subRope(start, end).isValid());
+						break;
+				}
+				
+				assertEquals(expected.length(), rope.length());
+				if (expected.length() > 0) {
+					int index = random.nextInt(expected.length());
+					assertEquals(expected.charAt(index), rope.charAt(index));
+				}
+				assertTrue(rope.isValid());
+			}
+			
+			assertEquals(expected, rope.toString());
+		}
+	}
+	
+	@Test
+	public void concatDifferentHeights() {
+		Random random = new Random(2);
+		
+		for (int trial = 0; trial < 200; trial ++) {
+			// Lengths from a few chars to a few hundred leaves, so that the heights differ a lot
+			String left = randomText(random, 1 + random.nextInt(1 << random.nextInt(18)));
+			String right = randomText(random, 1 + random.nextInt(1 << random.nextInt(18)));
+			
+			Rope leftRope = Rope.of(left);
+			Rope rightRope = Rope.of(right);
+			// Sub-ropes have uneven leaves, which the balancing has to cope with too
+			if (random.nextBoolean()) {
+				int start = random.nextInt(left.length());
+				leftRope = leftRope.subRope(start, left.length());
+				left = left.substring(start);
+			}
+			if (random.nextBoolean()) {
+				int end = 1 + random.nextInt(right.length());
+				rightRope = rightRope.subRope(0, end);
+				right = right.substring(0, end);
+			}
+			
+			Rope joined = Rope.concat(leftRope, rightRope);
+			assertEquals(left + right, joined.toString());
+			assertTrue(joined.isValid());
+			
+			Rope reversed = Rope.concat(rightRope, leftRope);
+			assertEquals(right + left, reversed.toString());
+			assertTrue(reversed.isValid());
+		}
+	}
+	
+	@Test
+	public void oldVersionsDontChange() {
+		Random random = new Random(3);
+		
+		List<Rope> ropes = new ArrayList<>();
+		List<String> texts = new ArrayList<>();
+		String text = randomText(random, 10000);
+		Rope rope = Rope.of(text);
+		
+		for (int step = 0; step < 300; step ++) {
+			ropes.add(rope);
+			texts.add(text);
+			
+			int start = random.nextInt(text.length() + 1);
+			int end = start + random.nextInt(Math.min(text.length() - start, 50) + 1);
+			String replacement = randomText(random, random.nextInt(50));
+			rope = rope.replace(start, end, replacement);
+			text = text.substring(0, start) + replacement + text.substring(end);
+		}
+		
+		for (int i = 0; i < ropes.size(); i ++) {
+			assertEquals(texts.get(i), ropes.get(i).toString());
+		}
+	}
+	
+	private static String randomText(Random random, int length) {
+		StringBuilder builder = new StringBuilder(length);
+		for (int i = 0; i < length; i ++) {
+			builder.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,313 @@
+package com.calsignlabs.apde;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the undo stack against a plain list of changes, and checks that merging changes doesn't
+ * change what undoing them does.
+ */
+public class UndoStackTest {
+	// Includes chars that take two and three bytes, and both halves of a surrogate pair, which
+	// end up on their own when text is picked at random
+	private static final String ALPHABET = "ab c\n{}\u00e9\u00ff\u4e2d\uffff\ud83d\ude00";
+	
+	@Test
+	public void matchesList() {
+		Random random = new Random(1);
+		
+		UndoStack stack = new UndoStack();
+		List<FileChange> expected = new ArrayList<>();
+		
+		for (int step = 0; step < 20000; step ++) {
+			int op = random.nextInt(10);
+			if (op < 5) {
+				FileChange change = randomChange(random);
+				stack.push(change);
+				expected.add(change);
+			} else if (op < 7) {
+				if (expected.isEmpty()) {
+					continue;
+				}
+				assertChangeEquals(expected.remove(expected.size() - 1), stack.pop());
+			} else if (op < 9) {
+				// Drop the oldest changes in bursts so that the gap at the start of the arena
+				// gets big enough to be reclaimed
+				for (int i = random.nextInt(20); i > 0 && !expected.isEmpty(); i --) {
+					stack.removeOldest();
+					expected.remove(0);
+				}
+			} else if (random.nextInt(50) == 0) {
+				stack.clear();
+				expected.clear();
+			}
+			
+			assertEquals(expected.size(), stack.size());
+			assertEquals(expected.isEmpty(), stack.isEmpty());
+			if (!expected.isEmpty()) {
+				int i = random.nextInt(expected.size());
+				assertChangeEquals(expected.get(i), stack.get(i));
+			}
+		}
+		
+		for (int i = 0; i < expected.size(); i ++) {
+			assertChangeEquals(expected.get(i), stack.get(i));
+		}
+	}
+	
+	@Test
+	public void writeAndRead() throws IOException {
+		Random random = new Random(2);
+		
+		for (int trial = 0; trial < 100; trial ++) {
+			UndoStack stack = new UndoStack();
+			List<FileChange> expected = new ArrayList<>();
+			
+			int count = random.nextInt(200);
+			for (int i = 0; i < count; i ++) {
+				FileChange change = randomChange(random);
+				stack.push(change);
+				expected.add(change);
+			}
+			// The stack doesn't start at the start of the arena anymore
+			for (int i = random.nextInt(count + 1); i > 0; i --) {
+				stack.removeOldest();
+				expected.remove(0);
+			}
+			
+			UndoStack read = UndoStack.readFrom(new DataInputStream(new ByteArrayInputStream(write(stack))));
+			
+			assertEquals(expected.size(), read.size());
+			assertEquals(stack.memoryUsage(), read.memoryUsage());
+			for (int i = 0; i < expected.size(); i ++) {
+				assertChangeEquals(expected.get(i), read.get(i));
+			}
+			
+			// The stack that was read has to keep working
+			for (int i = 0; i < 10; i ++) {
+				FileChange change = randomChange(random);
+				read.push(change);
+				expected.add(change);
+			}
+			while (!expected.isEmpty()) {
+				assertChangeEquals(expected.remove(expected.size() - 1), read.pop());
+			}
+			assertTrue(read.isEmpty());
+		}
+	}
+	
+	@Test
+	public void readRejectsCorruptData() throws IOException {
+		Random random = new Random(3);
+		
+		UndoStack stack = new UndoStack();
+		for (int i = 0; i < 10; i ++) {
+			stack.push(randomChange(random));
+		}
+		byte[] bytes = write(stack);
+		
+		// Unknown version
+		byte[] badVersion = bytes.clone();
+		badVersion[3] = 99;
+		assertCorrupt(badVersion);
+		
+		// The offset of the first change points past the end of the arena
+		int arenaSize = readInt(bytes, 8);
+		byte[] badOffset = bytes.clone();
+		writeInt(badOffset, 12 + arenaSize + 4, arenaSize + 1);
+		assertCorrupt(badOffset);
+		
+		// A negative length
+		byte[] badLength = bytes.clone();
+		writeInt(badLength, 12 + arenaSize + 8, -1);
+		assertCorrupt(badLength);
+		
+		// Cut off in the middle
+		byte[] truncated = new byte[bytes.length - 5];
+		System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+		assertCorrupt(truncated);
+	}
+	
+	@Test
+	public void mergeMatchesBothChanges() {
+		Random random = new Random(4);
+		
+		int merged = 0;
+		for (int trial = 0; trial < 20000; trial ++) {
+			String text0 = randomText(random, random.nextInt(40));
+			FileChange bottom = randomEdit(random, text0, 0, text0.length());
+			String text1 = redo(text0, bottom);
+			
+			// Keep the second change close to the first so that they usually touch
+			int bottomEnd = bottom.changeIndex + bottom.afterText.length();
+			int from = Math.max(bottom.changeIndex - 5, 0);
+			FileChange top = randomEdit(random, text1, from, Math.min(bottomEnd + 5, text1.length()));
+			String text2 = redo(text1, top);
+			
+			boolean touching = top.changeIndex <= bottomEnd && top.changeIndex + top.beforeText.length() >= bottom.changeIndex;
+			
+			FileChange result = UndoStack.merge(bottom, top);
+			if (!touching) {
+				assertNull(result);
+				continue;
+			}
+			
+			assertNotNull(result);
+			assertEquals(text2, redo(text0, result));
+			assertEquals(text0, undo(text2, result));
+			
+			assertEquals(bottom.beforeSelectionStart, result.beforeSelectionStart);
+			assertEquals(bottom.beforeSelectionEnd, result.beforeSelectionEnd);
+			assertEquals(bottom.beforeScrollX, result.beforeScrollX);
+			assertEquals(bottom.beforeScrollY, result.beforeScrollY);
+			assertEquals(top.afterSelectionStart, result.afterSelectionStart);
+			assertEquals(top.afterSelectionEnd, result.afterSelectionEnd);
+			assertEquals(top.afterScrollX, result.afterScrollX);
+			assertEquals(top.afterScrollY, result.afterScrollY);
+			merged ++;
+		}
+		
+		assertTrue(merged > 1000);
+	}
+	
+	@Test
+	public void compactKeepsHistory() {
+		Random random = new Random(5);
+		
+		for (int trial = 0; trial < 200; trial ++) {
+			String text = randomText(random, 200);
+			List<String> history = new ArrayList<>();
+			UndoStack stack = new UndoStack();
+			
+			// Mostly typing in one place, with the occasional jump somewhere else
+			int cursor = random.nextInt(text.length() + 1);
+			for (int step = 0; step < 300; step ++) {
+				if (random.nextInt(20) == 0) {
+					cursor = random.nextInt(text.length() + 1);
+				}
+				int end = Math.min(cursor + (random.nextInt(4) == 0 ? 1 : 0), text.length());
+				FileChange change = change(cursor, text.substring(cursor, end), randomText(random, random.nextInt(2)), random);
+				
+				history.add(text);
+				text = redo(text, change);
+				cursor += change.afterText.length();
+				stack.push(change);
+			}
+			history.add(text);
+			
+			long budget = random.nextInt((int) stack.memoryUsage());
+			int minSize = random.nextInt(10);
+			stack.compact(budget, minSize);
+			assertTrue(stack.memoryUsage() <= budget || stack.size() <= minSize);
+			
+			// Undoing everything that is left has to get back to one of the versions of the text
+			while (!stack.isEmpty()) {
+				text = undo(text, stack.pop());
+			}
+			assertTrue(history.contains(text));
+		}
+	}
+	
+	private static FileChange randomChange(Random random) {
+		// Now and then a big one, so that the arena has to grow
+		int length = random.nextInt(50) == 0 ? random.nextInt(3000) : random.nextInt(8);
+		return change(random.nextInt(100000), randomText(random, length), randomText(random, random.nextInt(8)), random);
+	}
+	
+	// Replace a random part of the given range of the text
+	private static FileChange randomEdit(Random random, String text, int from, int to) {
+		int start = from + random.nextInt(to - from + 1);
+		int end = start + random.nextInt(to - start + 1);
+		return change(start, text.substring(start, end), randomText(random, random.nextInt(4)), random);
+	}
+	
+	private static FileChange change(int index, String before, String after, Random random) {
+		FileChange change = new FileChange();
+		change.changeIndex = index;
+		change.beforeText = before;
+		change.afterText = after;
+		change.beforeSelectionStart = random.nextInt();
+		change.beforeSelectionEnd = random.nextInt();
+		change.afterSelectionStart = random.nextInt();
+		change.afterSelectionEnd = random.nextInt();
+		change.beforeScrollX = random.nextInt();
+		change.beforeScrollY = random.nextInt();
+		change.afterScrollX = random.nextInt();
+		change.afterScrollY = random.nextInt();
+		return change;
+	}
+	
+	private static String randomText(Random random, int length) {
+		StringBuilder builder = new StringBuilder(length);
+		for (int i = 0; i < length; i ++) {
+			builder.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+		}
+		return builder.toString();
+	}
+	
+	private static String redo(String text, FileChange change) {
+		assertTrue(text.startsWith(change.beforeText, change.changeIndex));
+		return text.substring(0, change.changeIndex) + change.afterText + text.substring(change.changeIndex + change.beforeText.length());
+	}
+	
+	private static String undo(String text, FileChange change) {
+		assertTrue(text.startsWith(change.afterText, change.changeIndex));
+		return text.substring(0, change.changeIndex) + change.beforeText + text.substring(change.changeIndex + change.afterText.length());
+	}
+	
+	private static void assertChangeEquals(FileChange expected, FileChange actual) {
+		assertEquals(expected.changeIndex, actual.changeIndex);
+		assertEquals(expected.beforeText, actual.beforeText);
+		assertEquals(expected.afterText, actual.afterText);
+		assertEquals(expected.beforeSelectionStart, actual.beforeSelectionStart);
+		assertEquals(expected.beforeSelectionEnd, actual.beforeSelectionEnd);
+		assertEquals(expected.afterSelectionStart, actual.afterSelectionStart);
+		assertEquals(expected.afterSelectionEnd, actual.afterSelectionEnd);
+		assertEquals(expected.beforeScrollX, actual.beforeScrollX);
+		assertEquals(expected.beforeScrollY, actual.beforeScrollY);
+		assertEquals(expected.afterScrollX, actual.afterScrollX);
+		assertEquals(expected.afterScrollY, actual.afterScrollY);
+	}
+	
+	private static byte[] write(UndoStack stack) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		stack.writeTo(out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+	
+	private static void assertCorrupt(byte[] bytes) {
+		try {
+			UndoStack.readFrom(new DataInputStream(new ByteArrayInputStream(bytes)));
+			fail("Read corrupt undo history");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+	
+	private static int readInt(byte[] bytes, int offset) {
+		return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16) | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+	}
+	
+	private static void writeInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+}
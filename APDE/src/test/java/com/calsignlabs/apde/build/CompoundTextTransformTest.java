@@ -0,0 +1,80 @@
+package com.calsignlabs.apde.build;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that finding the section of a position gives the same result as walking the sections
+ * one by one, including when some of them are empty.
+ */
+public class CompoundTextTransformTest {
+	@Test
+	public void emptySections() {
+		int[] charOffsets = {0, 100, 100, 250};
+		
+		assertEquals(0, CompoundTextTransform.findSection(charOffsets, 0));
+		assertEquals(0, CompoundTextTransform.findSection(charOffsets, 99));
+		// Section 1 is empty, so the position is at the start of section 2
+		assertEquals(2, CompoundTextTransform.findSection(charOffsets, 100));
+		assertEquals(2, CompoundTextTransform.findSection(charOffsets, 249));
+		assertEquals(3, CompoundTextTransform.findSection(charOffsets, 250));
+		assertEquals(3, CompoundTextTransform.findSection(charOffsets, 1000));
+	}
+	
+	@Test
+	public void findSectionMatchesLinearWalk() {
+		Random random = new Random(1);
+		
+		for (int trial = 0; trial < 2000; trial ++) {
+			int[] charOffsets = new int[1 + random.nextInt(20)];
+			for (int section = 1; section < charOffsets.length; section ++) {
+				// Plenty of empty sections
+				charOffsets[section] = charOffsets[section - 1] + (random.nextBoolean() ? 0 : random.nextInt(5));
+			}
+			
+			for (int index = 0; index < charOffsets[charOffsets.length - 1] + 3; index ++) {
+				assertEquals(Arrays.toString(charOffsets) + " " + index, findSection(charOffsets, index), CompoundTextTransform.findSection(charOffsets, index));
+			}
+		}
+	}
+	
+	@Test
+	public void mapBackwardFindsSection() throws Exception {
+		final String[] sections = {"void setup() {", "", "}", "", "", "void draw() {}"};
+		CompoundTextTransform transform = CompoundTextTransform.create(new CompoundTextTransform.TextHolder() {
+			@Override
+			public int count() {
+				return sections.length;
+			}
+			
+			@Override
+			public CharSequence getText(int section) {
+				return sections[section];
+			}
+		});
+		
+		int index = 0;
+		for (int section = 0; section < sections.length; section ++) {
+			// Each section is followed by a newline
+			for (int i = 0; i <= sections[section].length(); i ++) {
+				CompoundTextTransform.CompoundRange range = transform.mapBackward(index, 1, true);
+				assertEquals(section, range.section);
+				assertEquals(i, range.index);
+				index ++;
+			}
+		}
+	}
+	
+	// What mapBackward did before it used a binary search
+	private static int findSection(int[] charOffsets, int index) {
+		int section = -1;
+		while (section < charOffsets.length - 1 && charOffsets[section + 1] <= index) {
+			section ++;
+		}
+		return section;
+	}
+}
@@ -0,0 +1,320 @@
+package com.calsignlabs.apde.build;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the lexer against random sketches that are put together from pieces, so that we know
+ * where everything that it should find is. Most pieces have decoys in comments and strings that
+ * it shouldn't find.
+ */
+public class PreprocessorLexerTest {
+	private static final String[] PACKAGES = {"processing.video", "java.util", "a", "a.b.c"};
+	private static final String[] CLASSES = {"*", "Capture", "List"};
+	private static final String[] TYPE_CONSTRUCTORS = {"int", "char", "float", "boolean", "byte"};
+	private static final String[] ARGUMENTS = {"100", "width / 2", "displayWidth", "P2D", "f(1, 2)", "a[0]"};
+	private static final String[] SEPARATORS = {" ", "\n", "\n\n", "\t", " /* } */ ", "// {\n", "\r\n"};
+	private static final char[] HEX = "0123456789abcdefABCDEF".toCharArray();
+	
+	/**
+	 * A sketch along with what should be found in it.
+	 */
+	private static class Sketch {
+		private final Random random;
+		private final StringBuilder text = new StringBuilder();
+		
+		private final List<TextTransform.Range> imports = new ArrayList<>();
+		private final List<String> packages = new ArrayList<>();
+		private final List<TextTransform.Range> typeConstructors = new ArrayList<>();
+		private final List<Integer> colors = new ArrayList<>();
+		
+		// The first size() and smooth() calls where the settings calls are looked for
+		private int sizeStart = -1, smoothStart = -1;
+		private String sizeText, smoothText;
+		private String[] sizeArguments, smoothArguments;
+		
+		private Sketch(Random random) {
+			this.random = random;
+		}
+		
+		private void separate() {
+			text.append(SEPARATORS[random.nextInt(SEPARATORS.length)]);
+		}
+		
+		private void statements(int count) {
+			for (int i = 0; i < count; i ++) {
+				separate();
+				statement();
+			}
+			text.append('\n');
+		}
+		
+		private void statement() {
+			switch (random.nextInt(9)) {
+				case 0: {
+					String name = "c" + random.nextInt(10);
+					text.append("int ").append(name).append(" = ");
+					colors.add(text.length());
+					text.append(color()).append(";");
+					break;
+				}
+				case 1: {
+					String type = TYPE_CONSTRUCTORS[random.nextInt(TYPE_CONSTRUCTORS.length)];
+					text.append("x = ");
+					typeConstructors.add(new TextTransform.Range(text.length(), type.length()));
+					text.append(type).append(random.nextBoolean() ? "(" : " (").append("y);");
+					break;
+				}
+				case 2:
+					text.append("// import a.b.*; int(x) ").append(color()).append(" size(1, 2);\n");
+					break;
+				case 3:
+					text.append("/* float(x)\n").append(color()).append("\nimport a.b.*;\nvoid setup() { */");
+					break;
+				case 4:
+					text.append("String s = \"int(x) \\\" ").append(color()).append(" size(1, 2); import a.b.*;\";");
+					break;
+				case 5:
+					text.append(random.nextBoolean() ? "char q = '\"';" : "char q = '\\'';");
+					break;
+				case 6:
+					// Not color literals
+					switch (random.nextInt(3)) {
+						case 0:
+							text.append("d = #12345;");
+							break;
+						case 1:
+							text.append("d = x").append(color()).append(";");
+							break;
+						case 2:
+							text.append("d = ").append(color()).append("g;");
+							break;
+					}
+					break;
+				case 7:
+					// Calls on another object don't count
+					text.append("obj.size(1, 2); println(\"x\");");
+					break;
+				case 8:
+					text.append("if (x) { y(); }");
+					break;
+			}
+		}
+		
+		private String color() {
+			StringBuilder color = new StringBuilder("#");
+			for (int i = 0; i < 6; i ++) {
+				color.append(HEX[random.nextInt(HEX.length)]);
+			}
+			return color.toString();
+		}
+		
+		private void importStatement() {
+			String pkg = PACKAGES[random.nextInt(PACKAGES.length)];
+			String cls = CLASSES[random.nextInt(CLASSES.length)];
+			String statement = "import " + (random.nextInt(4) == 0 ? "static " : "") + pkg + "." + cls + (random.nextBoolean() ? ";" : " ;");
+			imports.add(new TextTransform.Range(text.length(), statement.length()));
+			packages.add(pkg);
+			text.append(statement).append('\n');
+		}
+		
+		private void sizeCall(boolean counts) {
+			String[] arguments = new String[random.nextInt(3) + 2];
+			for (int i = 0; i < arguments.length; i ++) {
+				arguments[i] = ARGUMENTS[random.nextInt(ARGUMENTS.length)];
+			}
+			String call = "size(" + join(arguments) + ")";
+			if (counts && sizeStart == -1) {
+				sizeStart = text.length();
+				sizeText = call;
+				sizeArguments = arguments;
+			}
+			text.append(call).append(";\n");
+		}
+		
+		private void smoothCall(boolean counts) {
+			String[] arguments = random.nextBoolean() ? new String[0] : new String[] {String.valueOf(random.nextInt(9))};
+			String call = "smooth(" + join(arguments) + ")";
+			if (counts && smoothStart == -1) {
+				smoothStart = text.length();
+				smoothText = call;
+				smoothArguments = arguments;
+			}
+			text.append(call).append(";\n");
+		}
+		
+		private static String join(String[] arguments) {
+			StringBuilder builder = new StringBuilder();
+			for (int i = 0; i < arguments.length; i ++) {
+				if (i > 0) {
+					builder.append(", ");
+				}
+				builder.append(arguments[i]);
+			}
+			return builder.toString();
+		}
+	}
+	
+	@Test
+	public void staticMode() {
+		Random random = new Random(1);
+		
+		for (int trial = 0; trial < 2000; trial ++) {
+			Sketch sketch = new Sketch(random);
+			imports(sketch);
+			sketch.statements(random.nextInt(10));
+			if (random.nextBoolean()) {
+				sketch.sizeCall(true);
+			}
+			sketch.statements(random.nextInt(10));
+			if (random.nextBoolean()) {
+				sketch.smoothCall(true);
+			}
+			if (random.nextBoolean()) {
+				// Only the first one counts
+				sketch.sizeCall(true);
+			}
+			sketch.statements(random.nextInt(10));
+			
+			PreprocessorLexer lexer = check(sketch, PreprocessorLexer.Mode.STATIC);
+			assertFalse(lexer.hasSetup());
+			assertFalse(lexer.hasSettings());
+		}
+	}
+	
+	@Test
+	public void activeMode() {
+		Random random = new Random(2);
+		
+		for (int trial = 0; trial < 2000; trial ++) {
+			Sketch sketch = new Sketch(random);
+			imports(sketch);
+			sketch.statements(random.nextInt(5));
+			
+			boolean hasSettings = random.nextBoolean();
+			if (hasSettings) {
+				sketch.text.append("\nvoid settings() {");
+				sketch.statements(random.nextInt(3));
+				sketch.text.append("}\n");
+			}
+			
+			// Calls outside of setup() don't count in active mode
+			if (random.nextBoolean()) {
+				sketch.sizeCall(false);
+			}
+			
+			sketch.text.append("\nvoid setup() {");
+			sketch.statements(random.nextInt(5));
+			if (random.nextBoolean()) {
+				sketch.sizeCall(true);
+			}
+			// The calls can come after nested blocks
+			sketch.statements(random.nextInt(5));
+			if (random.nextBoolean()) {
+				sketch.smoothCall(true);
+			}
+			sketch.text.append("}\n");
+			
+			sketch.text.append("\nvoid draw() {");
+			sketch.statements(random.nextInt(5));
+			if (random.nextBoolean()) {
+				sketch.sizeCall(false);
+			}
+			if (random.nextBoolean()) {
+				sketch.smoothCall(false);
+			}
+			sketch.text.append("}\n");
+			
+			PreprocessorLexer lexer = check(sketch, PreprocessorLexer.Mode.ACTIVE);
+			assertTrue(lexer.hasSetup());
+			assertEquals(hasSettings, lexer.hasSettings());
+		}
+	}
+	
+	@Test
+	public void javaMode() {
+		Random random = new Random(3);
+		
+		for (int trial = 0; trial < 500; trial ++) {
+			Sketch sketch = new Sketch(random);
+			imports(sketch);
+			sketch.text.append("public class Sketch extends PApplet {\nvoid setup() {");
+			sketch.statements(random.nextInt(5));
+			sketch.sizeCall(false);
+			sketch.text.append("}\n}\n");
+			
+			PreprocessorLexer lexer = check(sketch, PreprocessorLexer.Mode.JAVA);
+			assertTrue(lexer.hasSetup());
+		}
+	}
+	
+	private static void imports(Sketch sketch) {
+		for (int i = sketch.random.nextInt(4); i > 0; i --) {
+			sketch.importStatement();
+			if (sketch.random.nextBoolean()) {
+				sketch.separate();
+			}
+		}
+	}
+	
+	private static PreprocessorLexer check(Sketch sketch, PreprocessorLexer.Mode mode) {
+		String text = sketch.text.toString();
+		PreprocessorLexer lexer = new PreprocessorLexer(text);
+		
+		assertEquals(text, mode, lexer.getMode());
+		
+		List<PreprocessorLexer.Import> imports = lexer.getImports();
+		assertEquals(text, sketch.imports.size(), imports.size());
+		for (int i = 0; i < imports.size(); i ++) {
+			assertRangeEquals(sketch.imports.get(i), imports.get(i).range);
+			assertEquals(sketch.packages.get(i), imports.get(i).pkg);
+		}
+		
+		List<TextTransform.Range> typeConstructors = lexer.getTypeConstructors();
+		assertEquals(text, sketch.typeConstructors.size(), typeConstructors.size());
+		for (int i = 0; i < typeConstructors.size(); i ++) {
+			assertRangeEquals(sketch.typeConstructors.get(i), typeConstructors.get(i));
+		}
+		
+		assertEquals(text, sketch.colors, lexer.getColorLiterals());
+		
+		if (mode == PreprocessorLexer.Mode.JAVA) {
+			assertNull(lexer.getSettingsCall(mode, "size"));
+		} else {
+			assertCallEquals(text, sketch.sizeStart, sketch.sizeText, sketch.sizeArguments, lexer.getSettingsCall(mode, "size"));
+			assertCallEquals(text, sketch.smoothStart, sketch.smoothText, sketch.smoothArguments, lexer.getSettingsCall(mode, "smooth"));
+		}
+		assertNull(lexer.getSettingsCall(mode, "fullScreen"));
+		assertNull(lexer.getSettingsCall(mode, "noSmooth"));
+		
+		return lexer;
+	}
+	
+	private static void assertRangeEquals(TextTransform.Range expected, TextTransform.Range actual) {
+		assertEquals(expected.index, actual.index);
+		assertEquals(expected.length, actual.length);
+	}
+	
+	private static void assertCallEquals(String text, int start, String call, String[] arguments, PreprocessorLexer.MethodMatch match) {
+		if (start == -1) {
+			assertNull(text, match);
+			return;
+		}
+		assertNotNull(text, match);
+		assertEquals(start, match.start);
+		assertEquals(call, match.text);
+		assertEquals(call.length() + 1, match.semicolonLength);
+		assertArrayEquals(Arrays.toString(match.arguments), arguments, match.arguments);
+	}
+}
@@ -0,0 +1,140 @@
+package com.calsignlabs.apde.build;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that mapping ranges through a transform gives the same result as walking the edits one
+ * by one, which is what the transform did before it had an index.
+ */
+public class TextTransformTest {
+	@Test
+	public void mapMatchesLinearWalk() throws Exception {
+		Random random = new Random(1);
+		
+		int trials = 0;
+		while (trials < 2000) {
+			int length = 50 + random.nextInt(400);
+			StringBuilder text = new StringBuilder();
+			for (int i = 0; i < length; i ++) {
+				text.append((char) ('a' + random.nextInt(26)));
+			}
+			
+			TextTransform transform = new TextTransform(text);
+			List<TextTransform.Edit> edits = new ArrayList<>();
+			addRandomEdits(random, transform, edits, length);
+			
+			StringBuilder result;
+			try {
+				result = transform.applyForward();
+			} catch (TextTransform.OverlappingEditException e) {
+				// A move landed on top of something else, try again
+				continue;
+			}
+			trials ++;
+			
+			// The same order that the transform puts them in
+			Collections.sort(edits, new Comparator<TextTransform.Edit>() {
+				@Override
+				public int compare(TextTransform.Edit edit1, TextTransform.Edit edit2) {
+					return edit2.index() == edit1.index() ? edit2.getWeight() - edit1.getWeight() : edit2.index() - edit1.index();
+				}
+			});
+			Collections.reverse(edits);
+			
+			for (int index = -2; index < Math.max(result.length(), length) + 2; index ++) {
+				for (int rangeLength = 0; rangeLength < 4; rangeLength ++) {
+					assertRangeEquals(map(edits, index, rangeLength, true, result.length()), transform.mapForward(index, rangeLength));
+					assertRangeEquals(map(edits, index, rangeLength, false, length), transform.mapBackward(index, rangeLength));
+				}
+			}
+		}
+	}
+	
+	@Test(expected = TextTransform.LockException.class)
+	public void mapNeedsLock() throws Exception {
+		TextTransform transform = new TextTransform("abc");
+		transform.insert(1, "x");
+		transform.mapForward(0);
+	}
+	
+	private static void addRandomEdits(Random random, TextTransform transform, List<TextTransform.Edit> edits, int length) {
+		// Keep the edits apart, the transform doesn't allow them to overlap
+		boolean[] used = new boolean[length + 1];
+		for (int i = random.nextInt(30); i > 0; i --) {
+			int kind = random.nextInt(4);
+			int index = random.nextInt(length);
+			int editLength = 1 + random.nextInt(5);
+			int weight = random.nextInt(3);
+			if (index + editLength > length) {
+				continue;
+			}
+			
+			boolean free = true;
+			for (int j = index; j <= index + editLength; j ++) {
+				free &= !used[j];
+			}
+			if (!free) {
+				continue;
+			}
+			
+			// Inserts can be a lot longer than anything else, which is what makes the mapping
+			// tricky
+			String text = "XYZWVUTSRQ".substring(0, random.nextInt(10));
+			if (kind == 0) {
+				used[index] = true;
+				edits.add(transform.insert(index, text).weight(weight));
+				continue;
+			}
+			
+			for (int j = index; j <= index + editLength; j ++) {
+				used[j] = true;
+			}
+			if (kind == 1) {
+				edits.add(transform.remove(index, editLength).weight(weight));
+			} else if (kind == 2) {
+				edits.add(transform.replace(index, editLength, text).weight(weight));
+			} else {
+				// Moves go to the top, like the preprocessor's do
+				TextTransform.MoveEdit move = transform.move(index, editLength, 0);
+				move.getInsert().weight(-100 - i);
+				edits.addAll(move);
+			}
+		}
+	}
+	
+	// Goes through the edits first to last, shifting the range as it goes
+	private static TextTransform.Range map(List<TextTransform.Edit> edits, int index, int length, boolean forward, int textLength) {
+		for (TextTransform.Edit edit : edits) {
+			if (edit.hasMoveLink() && edit.index() <= index && edit.index() + edit.directionalLength(!forward) >= index + length) {
+				return constrain(edit.getMoveLink().index() + (index - edit.index()), length, textLength);
+			} else if (edit.index() >= index) {
+				if (edit.index() >= index + length) {
+					return constrain(index, length, textLength);
+				} else {
+					return constrain(edit.index(), edit.directionalLength(forward), textLength);
+				}
+			}
+			
+			index += edit.directionlLengthDiff(forward);
+		}
+		
+		return constrain(index, length, textLength);
+	}
+	
+	private static TextTransform.Range constrain(int index, int length, int textLength) {
+		int constrained = Math.max(index, 0);
+		return new TextTransform.Range(constrained, Math.min(length - (constrained - index), textLength - 1));
+	}
+	
+	private static void assertRangeEquals(TextTransform.Range expected, TextTransform.Range actual) {
+		assertEquals(expected.toString(), actual.toString());
+	}
+}
@@ -0,0 +1,122 @@
+package com.calsignlabs.apde.tool;
+
+import com.calsignlabs.apde.Rope;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the search index against a plain scan of the text, both before and after it has built
+ * its trigram index.
+ */
+public class FindIndexTest {
+	// Few enough letters that tokens show up a lot, in both cases, with word boundaries
+	private static final String ALPHABET = "abAB_1 .\n\u00c9\u00e9";
+	
+	@Test
+	public void matchesScan() {
+		Random random = new Random(1);
+		
+		for (int trial = 0; trial < 300; trial ++) {
+			String text = randomText(random, random.nextInt(3000));
+			FindIndex index = new FindIndex(Rope.of(text));
+			
+			// The first search scans and the later ones use the trigram index
+			for (int search = 0; search < 20; search ++) {
+				String token = random.nextInt(3) == 0 || text.isEmpty() ? randomText(random, 1 + random.nextInt(6)) : pick(random, text);
+				boolean caseSensitive = random.nextBoolean();
+				boolean wholeWord = random.nextBoolean();
+				int start = random.nextInt(text.length() + 1);
+				int end = start + random.nextInt(text.length() - start + 1);
+				
+				final List<Integer> matches = new ArrayList<>();
+				index.findAll(token, caseSensitive, wholeWord, start, end, new FindIndex.MatchListener() {
+					@Override
+					public void onMatch(int matchStart, int matchEnd) {
+						assertEquals(token.length(), matchEnd - matchStart);
+						matches.add(matchStart);
+					}
+				});
+				assertEquals(findAll(text, token, caseSensitive, wholeWord, start, end), matches);
+				
+				assertEquals(findFirst(text, token, caseSensitive, wholeWord, start, end), index.findFirst(token, caseSensitive, wholeWord, start, end));
+			}
+		}
+	}
+	
+	@Test
+	public void foldKeepsPositions() {
+		Random random = new Random(2);
+		
+		for (int trial = 0; trial < 1000; trial ++) {
+			StringBuilder builder = new StringBuilder();
+			for (int i = random.nextInt(20); i > 0; i --) {
+				builder.append((char) random.nextInt(0x10000));
+			}
+			String text = builder.toString();
+			String folded = FindIndex.fold(text);
+			
+			assertEquals(text.length(), folded.length());
+			for (int i = 0; i < text.length(); i ++) {
+				assertEquals(Character.toLowerCase(text.charAt(i)), folded.charAt(i));
+			}
+		}
+	}
+	
+	// A token taken from the text, so that there is something to find
+	private static String pick(Random random, String text) {
+		int start = random.nextInt(text.length());
+		return text.substring(start, Math.min(start + 1 + random.nextInt(6), text.length()));
+	}
+	
+	private static List<Integer> findAll(String text, String token, boolean caseSensitive, boolean wholeWord, int start, int end) {
+		List<Integer> matches = new ArrayList<>();
+		int pos = start;
+		while (pos + token.length() <= end) {
+			if (matches(text, token, caseSensitive, wholeWord, pos)) {
+				matches.add(pos);
+				pos += token.length();
+			} else {
+				pos ++;
+			}
+		}
+		return matches;
+	}
+	
+	private static int findFirst(String text, String token, boolean caseSensitive, boolean wholeWord, int from, int end) {
+		for (int pos = from; pos + token.length() <= end; pos ++) {
+			if (matches(text, token, caseSensitive, wholeWord, pos)) {
+				return pos;
+			}
+		}
+		return -1;
+	}
+	
+	private static boolean matches(String text, String token, boolean caseSensitive, boolean wholeWord, int pos) {
+		for (int i = 0; i < token.length(); i ++) {
+			char a = text.charAt(pos + i), b = token.charAt(i);
+			if (caseSensitive ? a != b : Character.toLowerCase(a) != Character.toLowerCase(b)) {
+				return false;
+			}
+		}
+		if (!wholeWord) {
+			return true;
+		}
+		int end = pos + token.length();
+		return (pos == 0 || !Character.isJavaIdentifierPart(text.charAt(pos - 1)))
+				&& (end == text.length() || !Character.isJavaIdentifierPart(text.charAt(end)));
+	}
+	
+	private static String randomText(Random random, int length) {
+		StringBuilder builder = new StringBuilder(length);
+		for (int i = 0; i < length; i ++) {
+			builder.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+		}
+		return builder.toString();
+	}
+}
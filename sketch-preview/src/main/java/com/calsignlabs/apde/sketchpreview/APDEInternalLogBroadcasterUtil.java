@@ -2,7 +2,38 @@ package com.calsignlabs.apde.sketchpreview;
 
 // Copied from APDE/src/assets - keep up to date
 public class APDEInternalLogBroadcasterUtil {
-	private static android.os.Handler handler = new android.os.Handler(android.os.Looper.getMainLooper());
+	// Sending a broadcast for every write is far too slow for sketches that print every frame,
+	// so output is collected here and sent to APDE in batches from a background thread
+	
+	// How long to wait for more output once there is a full line
+	private static final long APDE_INTERNAL_LINE_DELAY = 50;
+	// How long to wait for the rest of a line
+	private static final long APDE_INTERNAL_PARTIAL_LINE_DELAY = 250;
+	// The most text to put in one broadcast, also when to send without waiting
+	private static final int APDE_INTERNAL_BATCH_SIZE = 16 * 1024;
+	// The most text to hold on to if APDE can't keep up, anything more is dropped
+	private static final int APDE_INTERNAL_MAX_PENDING = 1024 * 1024;
+	
+	private static final Object lock = new Object();
+	
+	// The text waiting to be sent, one entry per run of writes with the same severity
+	private static java.util.ArrayList<String> pendingMessages = new java.util.ArrayList<String>();
+	private static StringBuilder pendingSeverities = new StringBuilder();
+	private static StringBuilder current = null;
+	private static char currentSeverity;
+	private static int pendingSize = 0;
+	private static int droppedLines = 0;
+	// The delay of the flush that has been scheduled, or -1 if there isn't one
+	private static long scheduledDelay = -1;
+	
+	private static android.content.Context context;
+	private static android.os.Handler handler;
+	
+	private static final Runnable flushRunnable = new Runnable() {
+		public void run() {
+			APDEInternalFlush();
+		}
+	};
 	
 	public static class APDEInternalExceptionHandler implements Thread.UncaughtExceptionHandler {
 		private Thread.UncaughtExceptionHandler defaultHandler;
@@ -17,6 +48,8 @@ public class APDEInternalLogBroadcasterUtil {
 		
 		public void uncaughtException(Thread t, Throwable e) {
 			e.printStackTrace();
+			// The process is about to die, so send everything now rather than waiting
+			APDEInternalFlush();
 			APDEInternalBroadcastMessage(e.getMessage(), 'x', e.getClass().getName(), context);
 			defaultHandler.uncaughtException(t, e);
 		}
@@ -46,7 +79,7 @@ public class APDEInternalLogBroadcasterUtil {
 		
 		@Override
 		public void write(byte b[], int offset, int length) {
-			APDEInternalBroadcastMessage(new String(b, offset, length), severity, "", context);
+			APDEInternalWrite(new String(b, offset, length), severity, context);
 		}
 		
 		@Override
@@ -56,16 +89,151 @@ public class APDEInternalLogBroadcasterUtil {
 		}
 	}
 	
-	public static void APDEInternalBroadcastMessage(final String message, final char severity, final String exception, final android.content.Context context) {
-		handler.post(new Runnable() {
-			public void run() {
-				android.content.Intent intent = new android.content.Intent();
-				intent.setAction("com.calsignlabs.apde.LogBroadcast");
-				intent.putExtra("com.calsignlabs.apde.LogSeverity", severity);
-				intent.putExtra("com.calsignlabs.apde.LogMessage", message);
-				intent.putExtra("com.calsignlabs.apde.LogException", exception);
-				context.sendBroadcast(intent);
+	/**
+	 * Add output to the next batch. Can be called from any thread, doesn't wait for anything to
+	 * be sent.
+	 */
+	public static void APDEInternalWrite(String message, char severity, android.content.Context context) {
+		if (message.length() == 0) {
+			return;
+		}
+		
+		synchronized (lock) {
+			if (APDEInternalLogBroadcasterUtil.context == null) {
+				APDEInternalLogBroadcasterUtil.context = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+				android.os.HandlerThread thread = new android.os.HandlerThread("APDEInternalLogBroadcaster");
+				thread.start();
+				handler = new android.os.Handler(thread.getLooper());
+			}
+			
+			if (pendingSize + message.length() > APDE_INTERNAL_MAX_PENDING) {
+				// APDE isn't keeping up, so tell it how much is missing instead
+				droppedLines += Math.max(APDEInternalCountLines(message), 1);
+				return;
+			}
+			
+			if (current != null && currentSeverity != severity) {
+				APDEInternalEndEntry();
+			}
+			if (current == null) {
+				current = new StringBuilder();
+				currentSeverity = severity;
+			}
+			current.append(message);
+			pendingSize += message.length();
+			
+			// Send right away if there is a lot, soon if there are full lines, and a bit later if
+			// we're still waiting for the end of a line
+			long delay;
+			if (pendingSize >= APDE_INTERNAL_BATCH_SIZE) {
+				delay = 0;
+			} else if (message.indexOf('\n') != -1) {
+				delay = APDE_INTERNAL_LINE_DELAY;
+			} else {
+				delay = APDE_INTERNAL_PARTIAL_LINE_DELAY;
+			}
+			
+			if (scheduledDelay == -1 || delay < scheduledDelay) {
+				handler.removeCallbacks(flushRunnable);
+				handler.postDelayed(flushRunnable, delay);
+				scheduledDelay = delay;
+			}
+		}
+	}
+	
+	private static void APDEInternalEndEntry() {
+		pendingMessages.add(current.toString());
+		pendingSeverities.append(currentSeverity);
+		current = null;
+	}
+	
+	/**
+	 * Send everything that is waiting. Called from the background thread, or from the thread
+	 * that is crashing.
+	 */
+	public static void APDEInternalFlush() {
+		java.util.ArrayList<String> messages;
+		String severities;
+		int dropped;
+		android.content.Context context;
+		
+		synchronized (lock) {
+			if (current != null) {
+				APDEInternalEndEntry();
+			}
+			
+			messages = pendingMessages;
+			severities = pendingSeverities.toString();
+			dropped = droppedLines;
+			context = APDEInternalLogBroadcasterUtil.context;
+			
+			pendingMessages = new java.util.ArrayList<String>();
+			pendingSeverities.setLength(0);
+			pendingSize = 0;
+			droppedLines = 0;
+			scheduledDelay = -1;
+			if (handler != null) {
+				handler.removeCallbacks(flushRunnable);
+			}
+		}
+		
+		if (context == null || (messages.size() == 0 && dropped == 0)) {
+			return;
+		}
+		
+		// Broadcasts can't be too big, so split the batch up if we have to
+		java.util.ArrayList<String> batchMessages = new java.util.ArrayList<String>();
+		StringBuilder batchSeverities = new StringBuilder();
+		int batchSize = 0;
+		
+		for (int i = 0; i < messages.size(); i ++) {
+			String message = messages.get(i);
+			char severity = severities.charAt(i);
+			
+			for (int start = 0; start < message.length(); start += APDE_INTERNAL_BATCH_SIZE) {
+				String part = message.substring(start, Math.min(start + APDE_INTERNAL_BATCH_SIZE, message.length()));
+				
+				if (batchSize > 0 && batchSize + part.length() > APDE_INTERNAL_BATCH_SIZE) {
+					APDEInternalBroadcastBatch(batchMessages, batchSeverities, 0, context);
+					batchMessages.clear();
+					batchSeverities.setLength(0);
+					batchSize = 0;
+				}
+				
+				batchMessages.add(part);
+				batchSeverities.append(severity);
+				batchSize += part.length();
 			}
-		});
+		}
+		
+		APDEInternalBroadcastBatch(batchMessages, batchSeverities, dropped, context);
+	}
+	
+	private static void APDEInternalBroadcastBatch(java.util.ArrayList<String> messages, StringBuilder severities, int dropped, android.content.Context context) {
+		android.content.Intent intent = new android.content.Intent();
+		intent.setAction("com.calsignlabs.apde.LogBroadcast");
+		intent.putExtra("com.calsignlabs.apde.LogMessages", messages.toArray(new String[messages.size()]));
+		intent.putExtra("com.calsignlabs.apde.LogSeverities", severities.toString().toCharArray());
+		intent.putExtra("com.calsignlabs.apde.LogDropped", dropped);
+		context.sendBroadcast(intent);
+	}
+	
+	private static int APDEInternalCountLines(String text) {
+		int count = 0;
+		for (int i = 0; i < text.length(); i ++) {
+			if (text.charAt(i) == '\n') {
+				count ++;
+			}
+		}
+		return count;
+	}
+	
+	public static void APDEInternalBroadcastMessage(final String message, final char severity, final String exception, final android.content.Context context) {
+		android.content.Intent intent = new android.content.Intent();
+		intent.setAction("com.calsignlabs.apde.LogBroadcast");
+		intent.putExtra("com.calsignlabs.apde.LogSeverity", severity);
+		intent.putExtra("com.calsignlabs.apde.LogMessage", message);
+		intent.putExtra("com.calsignlabs.apde.LogException", exception);
+		context.sendBroadcast(intent);
 	}
 }